@@ -2,11 +2,14 @@ package org.adaway.db;
 
 import android.content.Context;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.Observer;
 import androidx.room.Room;
+import androidx.room.RoomDatabase;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
@@ -72,6 +75,12 @@ public class DbTest {
     public void createDb() {
         Context context = ApplicationProvider.getApplicationContext();
         this.db = Room.inMemoryDatabaseBuilder(context, AppDatabase.class)
+                .addCallback(new RoomDatabase.Callback() {
+                    @Override
+                    public void onCreate(@NonNull SupportSQLiteDatabase db) {
+                        Migrations.createDirtyHostTriggers(db);
+                    }
+                })
                 .allowMainThreadQueries()
                 .build();
         this.hostsSourceDao = this.db.hostsSourceDao();
@@ -391,6 +400,69 @@ public class DbTest {
         assertEquals("1.1.1.1", this.hostEntryDao.getEntry("adaway.org").getRedirection()); // User redirection must be apply
     }
 
+    @Test
+    public void testIncrementalSync() {
+        /*
+         * Create sources.
+         */
+        // Insert user source and external source
+        insertSource(USER_SOURCE_ID, USER_SOURCE_URL);
+        insertSource(EXTERNAL_SOURCE_ID, "https://adaway.org/hosts.txt");
+        HostsSource externalHostSource = getSourceFromId(EXTERNAL_SOURCE_ID);
+
+        /*
+         * Test dirty hosts are consumed by synchronization.
+         */
+        insertBlockedHost("ads.google.com", EXTERNAL_SOURCE_ID);
+        insertBlockedHost("ads.yahoo.com", EXTERNAL_SOURCE_ID);
+        insertBlockedHost("an.facebook.com", EXTERNAL_SOURCE_ID);
+        assertEquals(3, this.hostEntryDao.countDirtyHosts());
+        this.hostEntryDao.sync();
+        assertEquals(0, this.hostEntryDao.countDirtyHosts());
+        assertEquals(3, this.hostEntryDao.getAll().size());
+
+        /*
+         * Test wildcard allowed host addition and removal.
+         */
+        insertAllowedHost("*.google.com", USER_SOURCE_ID);
+        this.hostEntryDao.sync();
+        assertNull(this.hostEntryDao.getEntry("ads.google.com"));
+        assertEquals(2, this.hostEntryDao.getAll().size());
+        this.hostListItemDao.deleteUserFromHost("*.google.com");
+        this.hostEntryDao.sync();
+        assertEquals(BLOCKED, this.hostEntryDao.getTypeForHost("ads.google.com"));
+        assertEquals(3, this.hostEntryDao.getAll().size());
+
+        /*
+         * Test item update.
+         */
+        insertBlockedHost("github.com", USER_SOURCE_ID);
+        this.hostEntryDao.sync();
+        assertEquals(BLOCKED, this.hostEntryDao.getTypeForHost("github.com"));
+        HostListItem item = this.hostListItemDao.getUserList().get(0);
+        item.setType(REDIRECTED);
+        item.setRedirection("1.2.3.4");
+        this.hostListItemDao.update(item);
+        this.hostEntryDao.sync();
+        HostEntry entry = this.hostEntryDao.getEntry("github.com");
+        assertNotNull(entry);
+        assertEquals(REDIRECTED, entry.getType());
+        assertEquals("1.2.3.4", entry.getRedirection());
+
+        /*
+         * Test source toggle and removal.
+         */
+        this.hostsSourceDao.toggleEnabled(externalHostSource);
+        this.hostEntryDao.sync();
+        assertEquals(1, this.hostEntryDao.getAll().size());
+        this.hostsSourceDao.toggleEnabled(externalHostSource);
+        this.hostEntryDao.sync();
+        assertEquals(4, this.hostEntryDao.getAll().size());
+        this.hostsSourceDao.delete(externalHostSource);
+        this.hostEntryDao.sync();
+        assertEquals(1, this.hostEntryDao.getAll().size());
+    }
+
     private void insertSource(int id, String url) {
         HostsSource source = new HostsSource();
         source.setId(id);
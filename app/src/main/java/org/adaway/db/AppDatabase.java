@@ -15,7 +15,9 @@ import org.adaway.db.converter.ZonedDateTimeConverter;
 import org.adaway.db.dao.HostEntryDao;
 import org.adaway.db.dao.HostListItemDao;
 import org.adaway.db.dao.HostsSourceDao;
-import org.adaway.db.entity.HostListItem;
+import org.adaway.db.entity.DirtyHost;
+import org.adaway.db.entity.Host;
+import org.adaway.db.entity.HostListRecord;
 import org.adaway.db.entity.HostsSource;
 import org.adaway.db.entity.HostEntry;
 import org.adaway.util.AppExecutors;
@@ -25,6 +27,10 @@ import static org.adaway.db.Migrations.MIGRATION_2_3;
 import static org.adaway.db.Migrations.MIGRATION_3_4;
 import static org.adaway.db.Migrations.MIGRATION_4_5;
 import static org.adaway.db.Migrations.MIGRATION_5_6;
+import static org.adaway.db.Migrations.MIGRATION_6_7;
+import static org.adaway.db.Migrations.MIGRATION_7_8;
+import static org.adaway.db.Migrations.MIGRATION_8_9;
+import static org.adaway.db.Migrations.createDirtyHostTriggers;
 import static org.adaway.db.entity.HostsSource.USER_SOURCE_ID;
 import static org.adaway.db.entity.HostsSource.USER_SOURCE_URL;
 
@@ -33,7 +39,7 @@ import static org.adaway.db.entity.HostsSource.USER_SOURCE_URL;
  *
  * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
  */
-@Database(entities = {HostsSource.class, HostListItem.class, HostEntry.class}, version = 6)
+@Database(entities = {HostsSource.class, Host.class, HostListRecord.class, HostEntry.class, DirtyHost.class}, version = 9)
 @TypeConverters({ListTypeConverter.class, ZonedDateTimeConverter.class})
 public abstract class AppDatabase extends RoomDatabase {
     /**
@@ -58,6 +64,7 @@ public abstract class AppDatabase extends RoomDatabase {
                     ).addCallback(new Callback() {
                         @Override
                         public void onCreate(@NonNull SupportSQLiteDatabase db) {
+                            createDirtyHostTriggers(db);
                             AppExecutors.getInstance().diskIO().execute(
                                     () -> AppDatabase.initialize(context, instance)
                             );
@@ -67,7 +74,10 @@ public abstract class AppDatabase extends RoomDatabase {
                             MIGRATION_2_3,
                             MIGRATION_3_4,
                             MIGRATION_4_5,
-                            MIGRATION_5_6
+                            MIGRATION_5_6,
+                            MIGRATION_6_7,
+                            MIGRATION_7_8,
+                            MIGRATION_8_9
                     ).build();
                 }
             }
@@ -109,6 +119,18 @@ public abstract class AppDatabase extends RoomDatabase {
         hostsSourceDao.insert(source3);
     }
 
+    /**
+     * Begin a bulk load of host list items.<br>
+     * The whole load is a single transaction, so observers are notified once when it is committed.
+     *
+     * @param deferIndexes {@code true} to rebuild the host index once if the load is large,
+     *                     {@code false} to update it by each insertion.
+     * @return The began bulk load, to close once done.
+     */
+    public BulkLoad beginBulkLoad(boolean deferIndexes) {
+        return new BulkLoad(this, deferIndexes);
+    }
+
     /**
      * Get the hosts source DAO.
      *
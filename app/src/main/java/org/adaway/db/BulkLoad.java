@@ -0,0 +1,138 @@
+package org.adaway.db;
+
+import androidx.sqlite.db.SupportSQLiteStatement;
+
+import org.adaway.db.entity.HostListItem;
+import org.adaway.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * This class loads host list items in bulk, in a single database transaction.<br>
+ * Items are inserted with statements compiled once for the whole load, binding the host identifier
+ * directly when the host name is new. As observers are notified of table changes when the outermost
+ * transaction ends, they are notified once the load is committed rather than once per inserted batch.<br>
+ * When indexes are deferred and the load grows larger than the stored items, the host index of the
+ * items is dropped and rebuilt once before commit instead of being updated by each insertion.<br>
+ * A load must be used from the thread that began it, then closed.
+ * Its changes are rolled back unless it is marked successful before being closed.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public final class BulkLoad implements HostListItemInserter, Closeable {
+    private static final String TAG = "BulkLoad";
+    /**
+     * The minimum number of items to insert before deferring the host index.
+     */
+    private static final int MIN_DEFERRED_INDEX_ITEM_COUNT = 10_000;
+    private static final String DROP_HOST_INDEX = "DROP INDEX IF EXISTS `index_hosts_lists_host_id`";
+    private static final String CREATE_HOST_INDEX =
+            "CREATE INDEX IF NOT EXISTS `index_hosts_lists_host_id` ON `hosts_lists` (`host_id`)";
+    private final AppDatabase database;
+    private final SupportSQLiteStatement hostStatement;
+    private final SupportSQLiteStatement hostIdStatement;
+    private final SupportSQLiteStatement itemStatement;
+    /**
+     * The number of inserted items to defer the host index at, {@code -1} to never defer it.
+     */
+    private final long deferredIndexItemCount;
+    private long insertedCount;
+    private boolean indexDeferred;
+
+    /**
+     * Constructor.
+     *
+     * @param database     The application database.
+     * @param deferIndexes {@code true} to defer the host index update of large loads, {@code false} otherwise.
+     */
+    BulkLoad(AppDatabase database, boolean deferIndexes) {
+        this.database = database;
+        this.hostStatement = database.compileStatement("INSERT OR IGNORE INTO `hosts` (`name`) VALUES (?)");
+        this.hostIdStatement = database.compileStatement("SELECT `id` FROM `hosts` WHERE `name` = ?");
+        this.itemStatement = database.compileStatement("INSERT INTO `hosts_lists` " +
+                "(`host_id`, `type`, `enabled`, `redirection`, `source_id`) VALUES (?, ?, ?, ?, ?)");
+        if (deferIndexes) {
+            // Defer the index once the load outgrows the stored items, rebuilding it then costs less than updating it
+            try (SupportSQLiteStatement countStatement =
+                         database.compileStatement("SELECT COUNT(*) FROM `hosts_lists`")) {
+                this.deferredIndexItemCount = Math.max(MIN_DEFERRED_INDEX_ITEM_COUNT, countStatement.simpleQueryForLong());
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to count stored host list items.", e);
+            }
+        } else {
+            this.deferredIndexItemCount = -1;
+        }
+        this.insertedCount = 0;
+        this.indexDeferred = false;
+        this.database.beginTransaction();
+    }
+
+    @Override
+    public void insert(HostListItem item) {
+        String host = item.getHost();
+        this.hostStatement.bindString(1, host);
+        long hostId = this.hostStatement.executeInsert();
+        // Look up host identifier if the host name was already stored
+        if (hostId == -1) {
+            this.hostIdStatement.bindString(1, host);
+            hostId = this.hostIdStatement.simpleQueryForLong();
+        }
+        this.itemStatement.bindLong(1, hostId);
+        this.itemStatement.bindLong(2, item.getType().getValue());
+        this.itemStatement.bindLong(3, item.isEnabled() ? 1 : 0);
+        String redirection = item.getRedirection();
+        if (redirection == null) {
+            this.itemStatement.bindNull(4);
+        } else {
+            this.itemStatement.bindString(4, redirection);
+        }
+        this.itemStatement.bindLong(5, item.getSourceId());
+        this.itemStatement.executeInsert();
+        this.insertedCount++;
+        if (this.insertedCount == this.deferredIndexItemCount) {
+            this.database.getOpenHelper().getWritableDatabase().execSQL(DROP_HOST_INDEX);
+            this.indexDeferred = true;
+        }
+    }
+
+    /**
+     * Get the number of inserted items.
+     *
+     * @return The number of inserted items.
+     */
+    public long getInsertedCount() {
+        return this.insertedCount;
+    }
+
+    /**
+     * Mark the load as successful so its changes are committed when it is closed.<br>
+     * The deferred host index is rebuilt first, so a failed rebuild rolls the load back.
+     */
+    public void setSuccessful() {
+        if (this.indexDeferred) {
+            this.database.getOpenHelper().getWritableDatabase().execSQL(CREATE_HOST_INDEX);
+            this.indexDeferred = false;
+        }
+        this.database.setTransactionSuccessful();
+    }
+
+    /**
+     * End the load, committing its changes if marked successful or rolling them back otherwise.
+     */
+    @Override
+    public void close() {
+        closeStatement(this.hostStatement);
+        closeStatement(this.hostIdStatement);
+        closeStatement(this.itemStatement);
+        this.database.endTransaction();
+    }
+
+    private static void closeStatement(SupportSQLiteStatement statement) {
+        try {
+            statement.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close bulk load statement.", e);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.adaway.db;
+
+import org.adaway.db.entity.HostListItem;
+
+/**
+ * This interface inserts {@link HostListItem}s one by one, as they are produced.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public interface HostListItemInserter {
+    /**
+     * Insert an item, adding its host name if not stored yet.
+     *
+     * @param item The item to insert.
+     */
+    void insert(HostListItem item);
+}
@@ -99,4 +99,80 @@ class Migrations {
             database.execSQL("DELETE FROM `hosts_sources` WHERE `url` LIKE \"file://%\"");
         }
     };
+    /**
+     * The migration script from v6 to v7.
+     */
+    static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Add dirty hosts table and its triggers
+            database.execSQL("CREATE TABLE IF NOT EXISTS `dirty_hosts` (`host` TEXT NOT NULL, PRIMARY KEY(`host`))");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS `hosts_lists_dirty_insert` AFTER INSERT ON `hosts_lists` " +
+                    "BEGIN INSERT OR IGNORE INTO `dirty_hosts` (`host`) VALUES (NEW.`host`); END");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS `hosts_lists_dirty_delete` AFTER DELETE ON `hosts_lists` " +
+                    "BEGIN INSERT OR IGNORE INTO `dirty_hosts` (`host`) VALUES (OLD.`host`); END");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS `hosts_lists_dirty_update` AFTER UPDATE ON `hosts_lists` " +
+                    "WHEN OLD.`host` != NEW.`host` OR OLD.`type` != NEW.`type` OR OLD.`enabled` != NEW.`enabled` " +
+                    "OR OLD.`redirection` IS NOT NEW.`redirection` " +
+                    "BEGIN INSERT OR IGNORE INTO `dirty_hosts` (`host`) VALUES (OLD.`host`); " +
+                    "INSERT OR IGNORE INTO `dirty_hosts` (`host`) VALUES (NEW.`host`); END");
+        }
+    };
+    /**
+     * The migration script from v7 to v8.
+     */
+    static final Migration MIGRATION_7_8 = new Migration(7, 8) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Add hosts sources HTTP validators
+            database.execSQL("ALTER TABLE `hosts_sources` ADD `entity_tag` TEXT");
+            database.execSQL("ALTER TABLE `hosts_sources` ADD `last_modified_header` TEXT");
+        }
+    };
+    /**
+     * The migration script from v8 to v9.
+     */
+    static final Migration MIGRATION_8_9 = new Migration(8, 9) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Add hosts table with the host names of hosts lists items and dirty hosts
+            database.execSQL("CREATE TABLE IF NOT EXISTS `hosts` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `name` TEXT NOT NULL)");
+            database.execSQL("INSERT INTO `hosts` (`name`) SELECT `host` FROM `hosts_lists` UNION SELECT `host` FROM `dirty_hosts`");
+            database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS `index_hosts_name` ON `hosts` (`name`)");
+            // Remove dirty hosts triggers
+            database.execSQL("DROP TRIGGER IF EXISTS `hosts_lists_dirty_insert`");
+            database.execSQL("DROP TRIGGER IF EXISTS `hosts_lists_dirty_delete`");
+            database.execSQL("DROP TRIGGER IF EXISTS `hosts_lists_dirty_update`");
+            // Reference host names from hosts lists items
+            database.execSQL("CREATE TABLE `hosts_lists_new` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `host_id` INTEGER NOT NULL, `type` INTEGER NOT NULL, `enabled` INTEGER NOT NULL, `redirection` TEXT, `source_id` INTEGER NOT NULL, FOREIGN KEY(`host_id`) REFERENCES `hosts`(`id`) ON UPDATE NO ACTION ON DELETE NO ACTION , FOREIGN KEY(`source_id`) REFERENCES `hosts_sources`(`id`) ON UPDATE CASCADE ON DELETE CASCADE )");
+            database.execSQL("INSERT INTO `hosts_lists_new` (`id`, `host_id`, `type`, `enabled`, `redirection`, `source_id`) SELECT `hosts_lists`.`id`, `hosts`.`id`, `type`, `enabled`, `redirection`, `source_id` FROM `hosts_lists` INNER JOIN `hosts` ON `hosts`.`name` = `hosts_lists`.`host`");
+            database.execSQL("DROP TABLE `hosts_lists`");
+            database.execSQL("ALTER TABLE `hosts_lists_new` RENAME TO `hosts_lists`");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_hosts_lists_host_id` ON `hosts_lists` (`host_id`)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_hosts_lists_source_id` ON `hosts_lists` (`source_id`)");
+            // Reference host names from dirty hosts
+            database.execSQL("CREATE TABLE `dirty_hosts_new` (`host_id` INTEGER NOT NULL, PRIMARY KEY(`host_id`))");
+            database.execSQL("INSERT INTO `dirty_hosts_new` (`host_id`) SELECT `hosts`.`id` FROM `dirty_hosts` INNER JOIN `hosts` ON `hosts`.`name` = `dirty_hosts`.`host`");
+            database.execSQL("DROP TABLE `dirty_hosts`");
+            database.execSQL("ALTER TABLE `dirty_hosts_new` RENAME TO `dirty_hosts`");
+            createDirtyHostTriggers(database);
+        }
+    };
+
+    /**
+     * Create the triggers recording the changed hosts lists items as dirty hosts.
+     *
+     * @param database The database to create triggers into.
+     */
+    static void createDirtyHostTriggers(@NonNull SupportSQLiteDatabase database) {
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS `hosts_lists_dirty_insert` AFTER INSERT ON `hosts_lists` " +
+                "BEGIN INSERT OR IGNORE INTO `dirty_hosts` (`host_id`) VALUES (NEW.`host_id`); END");
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS `hosts_lists_dirty_delete` AFTER DELETE ON `hosts_lists` " +
+                "BEGIN INSERT OR IGNORE INTO `dirty_hosts` (`host_id`) VALUES (OLD.`host_id`); END");
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS `hosts_lists_dirty_update` AFTER UPDATE ON `hosts_lists` " +
+                "WHEN OLD.`host_id` != NEW.`host_id` OR OLD.`type` != NEW.`type` OR OLD.`enabled` != NEW.`enabled` " +
+                "OR OLD.`redirection` IS NOT NEW.`redirection` " +
+                "BEGIN INSERT OR IGNORE INTO `dirty_hosts` (`host_id`) VALUES (OLD.`host_id`); " +
+                "INSERT OR IGNORE INTO `dirty_hosts` (`host_id`) VALUES (NEW.`host_id`); END");
+    }
 }
@@ -1,9 +1,12 @@
 package org.adaway.db.dao;
 
+import android.database.Cursor;
+
 import androidx.annotation.Nullable;
 import androidx.room.Dao;
 import androidx.room.Insert;
 import androidx.room.Query;
+import androidx.room.Transaction;
 
 import org.adaway.db.entity.HostEntry;
 import org.adaway.db.entity.HostListItem;
@@ -24,35 +27,87 @@ import static org.adaway.db.entity.ListType.REDIRECTED;
 public interface HostEntryDao {
     Pattern ANY_CHAR_PATTERN = Pattern.compile("\\*");
     Pattern A_CHAR_PATTERN = Pattern.compile("\\?");
+    /**
+     * The minimum number of dirty hosts to consider a full synchronization.
+     */
+    int FULL_SYNC_MIN_DIRTY_HOSTS = 1000;
 
     @Query("DELETE FROM `host_entries`")
     void clear();
 
-    @Query("INSERT INTO `host_entries` SELECT DISTINCT `host`, `type`, `redirection` FROM `hosts_lists` WHERE `type` = 0 AND `enabled` = 1")
+    @Query("INSERT INTO `host_entries` SELECT `name`, `type`, `redirection` FROM (SELECT DISTINCT `host_id`, `type`, `redirection` FROM `hosts_lists` WHERE `type` = 0 AND `enabled` = 1) INNER JOIN `hosts` ON `hosts`.`id` = `host_id`")
     void importBlocked();
 
-    @Query("SELECT host FROM hosts_lists WHERE type = 1 AND enabled = 1")
+    @Query("SELECT name FROM hosts_lists INNER JOIN hosts ON hosts.id = host_id WHERE type = 1 AND enabled = 1")
     List<String> getEnabledAllowedHosts();
 
     @Query("DELETE FROM `host_entries` WHERE `host` LIKE :hostPattern")
     void allowHost(String hostPattern);
 
-    @Query("SELECT * FROM hosts_lists WHERE type = 2 AND enabled = 1 ORDER BY host ASC, source_id DESC")
+    @Query("SELECT hosts_lists.id AS id, name AS host, type, enabled, redirection, source_id FROM hosts_lists INNER JOIN hosts ON hosts.id = host_id WHERE type = 2 AND enabled = 1 ORDER BY host_id ASC, source_id DESC, id DESC")
     List<HostListItem> getEnabledRedirectedHosts();
 
     @Insert(onConflict = REPLACE)
     void redirectHost(HostEntry redirection);
 
+    @Query("SELECT COUNT(*) FROM `host_entries`")
+    int count();
+
+    @Query("SELECT COUNT(*) FROM `dirty_hosts`")
+    int countDirtyHosts();
+
+    @Query("SELECT `name` FROM `dirty_hosts` INNER JOIN `hosts` ON `hosts`.`id` = `host_id` WHERE `name` LIKE '%*%' OR `name` LIKE '%?%'")
+    List<String> getDirtyWildcardHosts();
+
+    @Query("INSERT OR IGNORE INTO `dirty_hosts` SELECT DISTINCT `host_id` FROM `hosts_lists` WHERE `type` = 0 AND `host_id` IN (SELECT `id` FROM `hosts` WHERE `name` LIKE :hostPattern)")
+    void markBlockedHostsDirty(String hostPattern);
+
+    @Query("DELETE FROM `host_entries` WHERE `host` IN (SELECT `name` FROM `dirty_hosts` INNER JOIN `hosts` ON `hosts`.`id` = `host_id`)")
+    void deleteDirtyEntries();
+
+    @Query("INSERT INTO `host_entries` SELECT `name`, `type`, `redirection` FROM (SELECT DISTINCT `host_id`, `type`, `redirection` FROM `hosts_lists` WHERE `type` = 0 AND `enabled` = 1 AND `host_id` IN (SELECT `host_id` FROM `dirty_hosts`)) INNER JOIN `hosts` ON `hosts`.`id` = `host_id`")
+    void importDirtyBlocked();
+
+    @Query("DELETE FROM `host_entries` WHERE `host` IN (SELECT `name` FROM `dirty_hosts` INNER JOIN `hosts` ON `hosts`.`id` = `host_id`) AND EXISTS (SELECT 1 FROM `hosts_lists` INNER JOIN `hosts` ON `hosts`.`id` = `hosts_lists`.`host_id` WHERE `hosts_lists`.`type` = 1 AND `hosts_lists`.`enabled` = 1 AND `host_entries`.`host` LIKE REPLACE(REPLACE(`hosts`.`name`, '*', '%'), '?', '_'))")
+    void allowDirtyHosts();
+
+    @Query("INSERT OR REPLACE INTO `host_entries` SELECT `name`, `type`, `redirection` FROM `hosts_lists` AS `item` INNER JOIN `hosts` ON `hosts`.`id` = `item`.`host_id` WHERE `item`.`id` = (SELECT `id` FROM `hosts_lists` WHERE `type` = 2 AND `enabled` = 1 AND `host_id` = `item`.`host_id` ORDER BY `source_id` ASC, `id` ASC LIMIT 1) AND `item`.`host_id` IN (SELECT `host_id` FROM `dirty_hosts`)")
+    void redirectDirtyHosts();
+
+    @Query("DELETE FROM `dirty_hosts`")
+    void clearDirtyHosts();
+
+    @Query("DELETE FROM `hosts` WHERE `id` IN (SELECT `host_id` FROM `dirty_hosts`) AND NOT EXISTS (SELECT 1 FROM `hosts_lists` WHERE `host_id` = `hosts`.`id`)")
+    void deleteUnusedDirtyHosts();
+
     /**
-     * Synchronize the host entries based on the current hosts lists table records.
+     * Synchronize the host entries based on the current hosts lists table records.<br>
+     * Only the entries of the hosts changed since the last synchronization are updated, unless most of
+     * the entries changed.
+     * The host names no more used by any hosts lists item are then removed.
      */
+    @Transaction
     default void sync() {
+        int dirtyHostCount = countDirtyHosts();
+        if (dirtyHostCount > FULL_SYNC_MIN_DIRTY_HOSTS && dirtyHostCount > count() / 4) {
+            fullSync();
+        } else if (dirtyHostCount > 0) {
+            incrementalSync();
+        }
+        if (dirtyHostCount > 0) {
+            deleteUnusedDirtyHosts();
+        }
+        clearDirtyHosts();
+    }
+
+    /**
+     * Rebuild all the host entries from the hosts lists table records.
+     */
+    default void fullSync() {
         clear();
         importBlocked();
         for (String allowedHost : getEnabledAllowedHosts()) {
-            allowedHost = ANY_CHAR_PATTERN.matcher(allowedHost).replaceAll("%");
-            allowedHost = A_CHAR_PATTERN.matcher(allowedHost).replaceAll("_");
-            allowHost(allowedHost);
+            allowHost(toLikePattern(allowedHost));
         }
         for (HostListItem redirectedHost : getEnabledRedirectedHosts()) {
             HostEntry entry = new HostEntry();
@@ -63,9 +118,37 @@ public interface HostEntryDao {
         }
     }
 
+    /**
+     * Update the host entries of the dirty hosts only.<br>
+     * Wildcard dirty hosts mark the blocked hosts they match as dirty as their allowed state may have changed.
+     */
+    default void incrementalSync() {
+        for (String wildcardHost : getDirtyWildcardHosts()) {
+            markBlockedHostsDirty(toLikePattern(wildcardHost));
+        }
+        deleteDirtyEntries();
+        importDirtyBlocked();
+        allowDirtyHosts();
+        redirectDirtyHosts();
+    }
+
+    /**
+     * Convert a wildcard host name to a SQL LIKE pattern.
+     *
+     * @param host The wildcard host name to convert.
+     * @return The related SQL LIKE pattern.
+     */
+    static String toLikePattern(String host) {
+        host = ANY_CHAR_PATTERN.matcher(host).replaceAll("%");
+        return A_CHAR_PATTERN.matcher(host).replaceAll("_");
+    }
+
     @Query("SELECT * FROM `host_entries` ORDER BY `host`")
     List<HostEntry> getAll();
 
+    @Query("SELECT * FROM `host_entries` ORDER BY `host`")
+    Cursor getAllAsCursor();
+
     @Query("SELECT `type` FROM `host_entries` WHERE `host` == :host LIMIT 1")
     ListType getTypeOfHost(String host);
 
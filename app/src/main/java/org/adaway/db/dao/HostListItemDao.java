@@ -1,63 +1,125 @@
 package org.adaway.db.dao;
 
+import android.database.Cursor;
+
 import androidx.lifecycle.LiveData;
 import androidx.paging.DataSource;
 import androidx.room.Dao;
-import androidx.room.Delete;
-import androidx.room.Insert;
 import androidx.room.Query;
-import androidx.room.Update;
+import androidx.room.Transaction;
 
 import org.adaway.db.entity.HostListItem;
+import org.adaway.db.entity.ListType;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
-import static androidx.room.OnConflictStrategy.REPLACE;
-
 /**
- * This interface is the DAO for {@link HostListItem} entities.
+ * This interface is the DAO for {@link HostListItem} entities.<br>
+ * Items are stored as {@link org.adaway.db.entity.HostListRecord} referencing their host name
+ * from the {@code hosts} table, so items are written with queries rather than generated insertion methods.
  *
  * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
  */
 @Dao
 public interface HostListItemDao {
-    @Insert(onConflict = REPLACE)
-    void insert(HostListItem... item);
-
-    @Insert(onConflict = REPLACE)
-    void insert(List<HostListItem> items);
-
-    @Update
-    void update(HostListItem item);
-
-    @Delete
-    void delete(HostListItem item);
-
-    @Query("DELETE FROM hosts_lists WHERE source_id = 1 AND host = :host")
+    /**
+     * The maximum number of identifiers to delete per query, below SQLite variable number limit.
+     */
+    int DELETE_BATCH_SIZE = 500;
+
+    @Query("INSERT OR IGNORE INTO hosts (name) VALUES (:name)")
+    void insertHost(String name);
+
+    @Query("INSERT OR REPLACE INTO hosts_lists (id, host_id, type, enabled, redirection, source_id) VALUES (NULLIF(:id, 0), (SELECT id FROM hosts WHERE name = :host), :type, :enabled, :redirection, :sourceId)")
+    void insertRecord(int id, String host, ListType type, boolean enabled, String redirection, int sourceId);
+
+    @Query("UPDATE hosts_lists SET host_id = (SELECT id FROM hosts WHERE name = :host), type = :type, enabled = :enabled, redirection = :redirection, source_id = :sourceId WHERE id = :id")
+    void updateRecord(int id, String host, ListType type, boolean enabled, String redirection, int sourceId);
+
+    default void insert(HostListItem... items) {
+        insert(Arrays.asList(items));
+    }
+
+    /**
+     * Insert items, adding their host names if not stored yet.
+     *
+     * @param items The items to insert.
+     */
+    @Transaction
+    default void insert(List<HostListItem> items) {
+        for (HostListItem item : items) {
+            insertHost(item.getHost());
+            insertRecord(item.getId(), item.getHost(), item.getType(), item.isEnabled(), item.getRedirection(), item.getSourceId());
+        }
+    }
+
+    /**
+     * Update an item, adding its host name if not stored yet.
+     *
+     * @param item The item to update.
+     */
+    @Transaction
+    default void update(HostListItem item) {
+        insertHost(item.getHost());
+        updateRecord(item.getId(), item.getHost(), item.getType(), item.isEnabled(), item.getRedirection(), item.getSourceId());
+    }
+
+    default void delete(HostListItem item) {
+        deleteIds(Collections.singletonList(item.getId()));
+    }
+
+    @Query("DELETE FROM hosts_lists WHERE source_id = 1 AND host_id = (SELECT id FROM hosts WHERE name = :host)")
     void deleteUserFromHost(String host);
 
-    @Query("SELECT * FROM hosts_lists WHERE type = :type AND host LIKE :query AND ((:includeSources == 0 AND source_id == 1) || (:includeSources == 1)) GROUP BY host ORDER BY host ASC")
+    @Query("SELECT hosts_lists.id AS id, name AS host, type, enabled, redirection, source_id FROM hosts_lists INNER JOIN hosts ON hosts.id = host_id WHERE type = :type AND name LIKE :query AND ((:includeSources == 0 AND source_id == 1) || (:includeSources == 1)) GROUP BY host_id ORDER BY host ASC")
     DataSource.Factory<Integer, HostListItem> loadList(int type, boolean includeSources, String query);
 
-    @Query("SELECT * FROM hosts_lists ORDER BY host ASC")
+    @Query("SELECT hosts_lists.id AS id, name AS host, type, enabled, redirection, source_id FROM hosts_lists INNER JOIN hosts ON hosts.id = host_id ORDER BY host ASC")
     List<HostListItem> getAll();
 
-    @Query("SELECT * FROM hosts_lists WHERE source_id = 1")
+    @Query("SELECT hosts_lists.id AS id, name AS host, type, enabled, redirection, source_id FROM hosts_lists INNER JOIN hosts ON hosts.id = host_id WHERE source_id = 1")
     List<HostListItem> getUserList();
 
-    @Query("SELECT id FROM hosts_lists WHERE host = :host AND source_id = 1 LIMIT 1")
+    @Query("SELECT name AS host, type, redirection FROM hosts_lists INNER JOIN hosts ON hosts.id = host_id WHERE enabled = 1 ORDER BY source_id DESC")
+    Cursor getEnabledItems();
+
+    @Query("SELECT hosts_lists.id FROM hosts_lists INNER JOIN hosts ON hosts.id = host_id WHERE name = :host AND source_id = 1 LIMIT 1")
     Optional<Integer> getHostId(String host);
 
-    @Query("SELECT COUNT(DISTINCT host) FROM hosts_lists WHERE type = 0 AND enabled = 1")
+    @Query("SELECT COUNT(DISTINCT host_id) FROM hosts_lists WHERE type = 0 AND enabled = 1")
     LiveData<Integer> getBlockedHostCount();
 
-    @Query("SELECT COUNT(DISTINCT host) FROM hosts_lists WHERE type = 1 AND enabled = 1")
+    @Query("SELECT COUNT(DISTINCT host_id) FROM hosts_lists WHERE type = 1 AND enabled = 1")
     LiveData<Integer> getAllowedHostCount();
 
-    @Query("SELECT COUNT(DISTINCT host) FROM hosts_lists WHERE type = 2 AND enabled = 1")
+    @Query("SELECT COUNT(DISTINCT host_id) FROM hosts_lists WHERE type = 2 AND enabled = 1")
     LiveData<Integer> getRedirectHostCount();
 
     @Query("DELETE FROM hosts_lists WHERE source_id = :sourceId")
     void clearSourceHosts(int sourceId);
+
+    @Query("SELECT hosts_lists.id AS id, name AS host, type, redirection FROM hosts_lists INNER JOIN hosts ON hosts.id = host_id WHERE source_id = :sourceId")
+    Cursor getSourceItems(int sourceId);
+
+    @Query("DELETE FROM hosts_lists WHERE id IN (:ids)")
+    void deleteIds(List<Integer> ids);
+
+    /**
+     * Update the items of a source by deleting and inserting items in a single transaction.
+     *
+     * @param removedIds The identifiers of the items to delete.
+     * @param addedItems The items to insert.
+     */
+    @Transaction
+    default void updateSourceItems(List<Integer> removedIds, List<HostListItem> addedItems) {
+        for (int index = 0; index < removedIds.size(); index += DELETE_BATCH_SIZE) {
+            deleteIds(removedIds.subList(index, Math.min(index + DELETE_BATCH_SIZE, removedIds.size())));
+        }
+        if (!addedItems.isEmpty()) {
+            insert(addedItems);
+        }
+    }
 }
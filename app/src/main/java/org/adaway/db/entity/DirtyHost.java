@@ -0,0 +1,27 @@
+package org.adaway.db.entity;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * This entity represents a host name whose {@link HostEntry} must be updated.<br>
+ * Dirty hosts are recorded by {@code hosts_lists} table triggers, by {@link Host} identifier,
+ * and consumed by host entries synchronization.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@Entity(tableName = "dirty_hosts")
+public class DirtyHost {
+    @PrimaryKey
+    @ColumnInfo(name = "host_id")
+    private int hostId;
+
+    public int getHostId() {
+        return hostId;
+    }
+
+    public void setHostId(int hostId) {
+        this.hostId = hostId;
+    }
+}
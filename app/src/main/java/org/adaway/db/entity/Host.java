@@ -0,0 +1,40 @@
+package org.adaway.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * This entity represents a host name of the hosts lists.<br>
+ * Host names are stored once, whatever the number of hosts lists items referencing them.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@Entity(
+        tableName = "hosts",
+        indices = {@Index(value = "name", unique = true)}
+)
+public class Host {
+    @PrimaryKey(autoGenerate = true)
+    private int id;
+    @NonNull
+    private String name;
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    public void setName(@NonNull String name) {
+        this.name = name;
+    }
+}
@@ -48,6 +48,10 @@ public class HostsSource {
     @ColumnInfo(name = "last_modified_online")
     private ZonedDateTime onlineModificationDate;
     private int size;
+    @ColumnInfo(name = "entity_tag")
+    private String entityTag;
+    @ColumnInfo(name = "last_modified_header")
+    private String lastModifiedHeader;
 
     /**
      * Check whether an URL is valid for as host source.<br>
@@ -144,6 +148,32 @@ public class HostsSource {
         this.size = size;
     }
 
+    /**
+     * Get the HTTP entity tag of the last downloaded source.
+     *
+     * @return The HTTP entity tag, {@code null} if unknown.
+     */
+    public String getEntityTag() {
+        return this.entityTag;
+    }
+
+    public void setEntityTag(String entityTag) {
+        this.entityTag = entityTag;
+    }
+
+    /**
+     * Get the HTTP last modified header value of the last downloaded source.
+     *
+     * @return The HTTP last modified header value, {@code null} if unknown.
+     */
+    public String getLastModifiedHeader() {
+        return this.lastModifiedHeader;
+    }
+
+    public void setLastModifiedHeader(String lastModifiedHeader) {
+        this.lastModifiedHeader = lastModifiedHeader;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -162,6 +162,22 @@ public class PreferenceHelper {
         );
     }
 
+    public static int getParallelDownloads(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(
+                Constants.PREFS_NAME,
+                Context.MODE_PRIVATE
+        );
+        String pref = prefs.getString(
+                context.getString(R.string.pref_update_parallel_downloads_key),
+                context.getString(R.string.pref_update_parallel_downloads_def)
+        );
+        try {
+            return Math.max(1, Integer.parseInt(pref));
+        } catch (NumberFormatException e) {
+            return Integer.parseInt(context.getString(R.string.pref_update_parallel_downloads_def));
+        }
+    }
+
     public static String getRedirectionIpv4(Context context) {
         SharedPreferences prefs = context.getSharedPreferences(
                 Constants.PREFS_NAME,
@@ -354,4 +370,37 @@ public class PreferenceHelper {
         editor.putStringSet(context.getString(R.string.pref_vpn_excluded_user_apps_key), excludedApplicationPackageNames);
         editor.apply();
     }
+
+    public static String getVpnDnsTransport(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(
+                Constants.PREFS_NAME,
+                Context.MODE_PRIVATE
+        );
+        return prefs.getString(
+                context.getString(R.string.pref_vpn_dns_transport_key),
+                context.getString(R.string.pref_vpn_dns_transport_default)
+        );
+    }
+
+    public static String getVpnDnsServerName(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(
+                Constants.PREFS_NAME,
+                Context.MODE_PRIVATE
+        );
+        return prefs.getString(
+                context.getString(R.string.pref_vpn_dns_server_name_key),
+                context.getString(R.string.pref_vpn_dns_server_name_default)
+        );
+    }
+
+    public static String getVpnDnsServerAddresses(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(
+                Constants.PREFS_NAME,
+                Context.MODE_PRIVATE
+        );
+        return prefs.getString(
+                context.getString(R.string.pref_vpn_dns_server_addresses_key),
+                context.getString(R.string.pref_vpn_dns_server_addresses_default)
+        );
+    }
 }
@@ -0,0 +1,176 @@
+package org.adaway.model.root;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.adaway.db.entity.ListType.REDIRECTED;
+import static org.adaway.util.Constants.LINE_SEPARATOR;
+
+/**
+ * This class writes a hosts file into a byte channel.<br>
+ * Lines are encoded straight into a direct byte buffer and host entries are streamed from a database cursor.
+ * The redirection addresses are encoded once, so the memory usage does not depend on the number of entries.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class HostsFileWriter {
+    /**
+     * The output buffer size (256ko).
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+    /**
+     * The initial host name buffer size.
+     */
+    private static final int HOST_BUFFER_SIZE = 256;
+    /**
+     * The channel to write hosts file into.
+     */
+    private final WritableByteChannel channel;
+    /**
+     * The output buffer.
+     */
+    private final ByteBuffer buffer;
+    /**
+     * The encoded line separator.
+     */
+    private final byte[] lineSeparator;
+
+    /**
+     * Constructor.
+     *
+     * @param channel The channel to write hosts file into.
+     */
+    HostsFileWriter(WritableByteChannel channel) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.lineSeparator = LINE_SEPARATOR.getBytes(UTF_8);
+    }
+
+    /**
+     * Write a line.
+     *
+     * @param line The line to write.
+     * @throws IOException If the line could not be written.
+     */
+    void writeLine(String line) throws IOException {
+        putString(line);
+        newLine();
+    }
+
+    /**
+     * Write a line separator.
+     *
+     * @throws IOException If the line separator could not be written.
+     */
+    void newLine() throws IOException {
+        putBytes(this.lineSeparator);
+    }
+
+    /**
+     * Write host entries.<br>
+     * Blocked entries are written for IPv4 and optionally IPv6 redirection address,
+     * redirected entries are written with their own redirection address.
+     *
+     * @param cursor          The host entries cursor, with {@code host}, {@code type} and {@code redirection} columns.
+     * @param redirectionIpv4 The IPv4 redirection address.
+     * @param redirectionIpv6 The IPv6 redirection address.
+     * @param enableIpv6      {@code true} to write IPv6 redirection too, {@code false} otherwise.
+     * @return The number of written entries.
+     * @throws IOException If the entries could not be written.
+     */
+    int writeEntries(Cursor cursor, String redirectionIpv4, String redirectionIpv6, boolean enableIpv6) throws IOException {
+        int hostColumnIndex = cursor.getColumnIndexOrThrow("host");
+        int typeColumnIndex = cursor.getColumnIndexOrThrow("type");
+        int redirectionColumnIndex = cursor.getColumnIndexOrThrow("redirection");
+        byte[] ipv4Prefix = (redirectionIpv4 + " ").getBytes(UTF_8);
+        byte[] ipv6Prefix = (redirectionIpv6 + " ").getBytes(UTF_8);
+        int redirectedType = REDIRECTED.getValue();
+        CharArrayBuffer host = new CharArrayBuffer(HOST_BUFFER_SIZE);
+        int count = 0;
+        while (cursor.moveToNext()) {
+            cursor.copyStringToBuffer(hostColumnIndex, host);
+            if (cursor.getInt(typeColumnIndex) == redirectedType) {
+                putString(cursor.getString(redirectionColumnIndex));
+                putByte((byte) ' ');
+                putChars(host.data, host.sizeCopied);
+                newLine();
+            } else {
+                putBytes(ipv4Prefix);
+                putChars(host.data, host.sizeCopied);
+                newLine();
+                if (enableIpv6) {
+                    putBytes(ipv6Prefix);
+                    putChars(host.data, host.sizeCopied);
+                    newLine();
+                }
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Write the buffered bytes to the channel.
+     *
+     * @throws IOException If the bytes could not be written.
+     */
+    void flush() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+
+    private void putByte(byte value) throws IOException {
+        if (!this.buffer.hasRemaining()) {
+            flush();
+        }
+        this.buffer.put(value);
+    }
+
+    private void putBytes(byte[] bytes) throws IOException {
+        if (this.buffer.remaining() < bytes.length) {
+            flush();
+        }
+        if (bytes.length > this.buffer.capacity()) {
+            this.channel.write(ByteBuffer.wrap(bytes));
+        } else {
+            this.buffer.put(bytes);
+        }
+    }
+
+    private void putString(String value) throws IOException {
+        putChars(value.toCharArray(), value.length());
+    }
+
+    private void putChars(char[] chars, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            // Encode ASCII characters directly
+            if (c < 0x80) {
+                putByte((byte) c);
+            } else if (c < 0x800) {
+                putByte((byte) (0xC0 | c >> 6));
+                putByte((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars[i + 1])) {
+                int codePoint = Character.toCodePoint(c, chars[++i]);
+                putByte((byte) (0xF0 | codePoint >> 18));
+                putByte((byte) (0x80 | codePoint >> 12 & 0x3F));
+                putByte((byte) (0x80 | codePoint >> 6 & 0x3F));
+                putByte((byte) (0x80 | codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                putByte((byte) '?');
+            } else {
+                putByte((byte) (0xE0 | c >> 12));
+                putByte((byte) (0x80 | c >> 6 & 0x3F));
+                putByte((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+}
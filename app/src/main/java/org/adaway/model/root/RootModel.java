@@ -1,6 +1,7 @@
 package org.adaway.model.root;
 
 import android.content.Context;
+import android.database.Cursor;
 
 import com.topjohnwu.superuser.Shell;
 import com.topjohnwu.superuser.io.SuFile;
@@ -10,7 +11,6 @@ import org.adaway.db.AppDatabase;
 import org.adaway.db.dao.HostEntryDao;
 import org.adaway.db.dao.HostsSourceDao;
 import org.adaway.db.entity.HostsSource;
-import org.adaway.db.entity.HostEntry;
 import org.adaway.helper.PreferenceHelper;
 import org.adaway.model.adblocking.AdBlockMethod;
 import org.adaway.model.adblocking.AdBlockModel;
@@ -21,14 +21,12 @@ import org.adaway.util.ShellUtils;
 import org.adaway.util.WebServerUtils;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
@@ -36,7 +34,6 @@ import java.util.Locale;
 import java.util.concurrent.Executor;
 
 import static android.content.Context.MODE_PRIVATE;
-import static org.adaway.db.entity.ListType.REDIRECTED;
 import static org.adaway.model.adblocking.AdBlockMethod.ROOT;
 import static org.adaway.model.error.HostError.COPY_FAIL;
 import static org.adaway.model.error.HostError.NOT_ENOUGH_SPACE;
@@ -193,63 +190,48 @@ public class RootModel extends AdBlockModel {
      */
     private void createNewHostsFile() throws HostErrorException {
         deleteNewHostsFile();
-        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(this.context.openFileOutput(HOSTS_FILENAME, MODE_PRIVATE)))) {
+        try (FileOutputStream outputStream = this.context.openFileOutput(HOSTS_FILENAME, MODE_PRIVATE)) {
+            HostsFileWriter writer = new HostsFileWriter(outputStream.getChannel());
             writeHostsHeader(writer);
             writeLoopbackToHosts(writer);
             writeHosts(writer);
+            writer.flush();
         } catch (IOException exception) {
             throw new HostErrorException(PRIVATE_FILE_FAILED, exception);
         }
     }
 
-    private void writeHostsHeader(BufferedWriter writer) throws IOException {
+    private void writeHostsHeader(HostsFileWriter writer) throws IOException {
         // Format current date
         SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
         Date now = new Date();
         String date = formatter.format(now);
         // Write header
-        writer.write(HEADER1);
-        writer.write(date);
-        writer.newLine();
-        writer.write(HEADER2);
-        writer.newLine();
+        writer.writeLine(HEADER1 + date);
+        writer.writeLine(HEADER2);
         // Write hosts source
-        writer.write(HEADER_SOURCES);
-        writer.newLine();
+        writer.writeLine(HEADER_SOURCES);
         for (HostsSource hostsSource : this.hostsSourceDao.getEnabled()) {
-            writer.write("# - " + hostsSource.getLabel() + ":" + hostsSource.getUrl());
-            writer.newLine();
+            writer.writeLine("# - " + hostsSource.getLabel() + ":" + hostsSource.getUrl());
         }
         // Write empty line separator
         writer.newLine();
     }
 
-    private void writeLoopbackToHosts(BufferedWriter writer) throws IOException {
-        writer.write(LOCALHOST_IPv4 + " " + LOCALHOST_HOSTNAME);
-        writer.newLine();
-        writer.write(LOCALHOST_IPv6 + " " + LOCALHOST_HOSTNAME);
-        writer.newLine();
+    private void writeLoopbackToHosts(HostsFileWriter writer) throws IOException {
+        writer.writeLine(LOCALHOST_IPv4 + " " + LOCALHOST_HOSTNAME);
+        writer.writeLine(LOCALHOST_IPv6 + " " + LOCALHOST_HOSTNAME);
     }
 
-    private void writeHosts(BufferedWriter writer) throws IOException {
+    private void writeHosts(HostsFileWriter writer) throws IOException {
         // Get user preferences
         String redirectionIpv4 = PreferenceHelper.getRedirectionIpv4(this.context);
         String redirectionIpv6 = PreferenceHelper.getRedirectionIpv6(this.context);
         boolean enableIpv6 = PreferenceHelper.getEnableIpv6(this.context);
-        // Write each hostname
-        for (HostEntry entry : this.hostEntryDao.getAll()) {
-            String hostname = entry.getHost();
-            if (entry.getType() == REDIRECTED) {
-                writer.write(entry.getRedirection() + " " + hostname);
-                writer.newLine();
-            } else {
-                writer.write(redirectionIpv4 + " " + hostname);
-                writer.newLine();
-                if (enableIpv6) {
-                    writer.write(redirectionIpv6 + " " + hostname);
-                    writer.newLine();
-                }
-            }
+        // Stream each host entry
+        try (Cursor cursor = this.hostEntryDao.getAllAsCursor()) {
+            int count = writer.writeEntries(cursor, redirectionIpv4, redirectionIpv6, enableIpv6);
+            Log.d(TAG, "Wrote " + count + " host entries.");
         }
     }
 
@@ -0,0 +1,128 @@
+package org.adaway.model.source;
+
+/**
+ * This class is a hosts file line tokenizer.<br>
+ * It extracts the address and host name columns of a line in a single pass, without any allocation.
+ * It accepts the same lines as the {@code ^\s*([^#\s]+)\s+([^#\s]+).*$} regular expression.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class HostsLineTokenizer {
+    private CharSequence line;
+    private int addressStart;
+    private int addressEnd;
+    private int hostStart;
+    private int hostEnd;
+
+    /**
+     * Tokenize a line.
+     *
+     * @param line The line to tokenize.
+     * @return {@code true} if the line has both address and host name columns, {@code false} otherwise.
+     */
+    boolean tokenize(CharSequence line) {
+        this.line = line;
+        int length = line.length();
+        // Read address column
+        int index = skipWhitespaces(line, 0, length);
+        this.addressStart = index;
+        index = skipToken(line, index, length);
+        this.addressEnd = index;
+        if (this.addressEnd == this.addressStart) {
+            return false;
+        }
+        // Check column separator
+        int separatorEnd = skipWhitespaces(line, index, length);
+        if (separatorEnd == index) {
+            return false;
+        }
+        // Read host name column
+        this.hostStart = separatorEnd;
+        this.hostEnd = skipToken(line, separatorEnd, length);
+        if (this.hostEnd == this.hostStart) {
+            return false;
+        }
+        // Check the line trail has no line terminator
+        for (int i = this.hostEnd; i < length; i++) {
+            char c = line.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the address column is equal to a value.
+     *
+     * @param value The value to check.
+     * @return {@code true} if the address column is equal to the value, {@code false} otherwise.
+     */
+    boolean isAddress(String value) {
+        return regionEquals(this.addressStart, this.addressEnd, value);
+    }
+
+    /**
+     * Check whether the host name column is equal to a value.
+     *
+     * @param value The value to check.
+     * @return {@code true} if the host name column is equal to the value, {@code false} otherwise.
+     */
+    boolean isHost(String value) {
+        return regionEquals(this.hostStart, this.hostEnd, value);
+    }
+
+    CharSequence getLine() {
+        return this.line;
+    }
+
+    int getHostStart() {
+        return this.hostStart;
+    }
+
+    int getHostEnd() {
+        return this.hostEnd;
+    }
+
+    String getAddress() {
+        return this.line.subSequence(this.addressStart, this.addressEnd).toString();
+    }
+
+    String getHost() {
+        return this.line.subSequence(this.hostStart, this.hostEnd).toString();
+    }
+
+    private boolean regionEquals(int start, int end, String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (this.line.charAt(i) != value.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespaces(CharSequence line, int index, int length) {
+        while (index < length && isWhitespace(line.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    private static int skipToken(CharSequence line, int index, int length) {
+        while (index < length) {
+            char c = line.charAt(index);
+            if (c == '#' || isWhitespace(c)) {
+                break;
+            }
+            index++;
+        }
+        return index;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -0,0 +1,277 @@
+package org.adaway.model.source;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.adaway.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.time.ZonedDateTime;
+import java.util.Date;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.Okio;
+
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.time.ZoneOffset.UTC;
+
+/**
+ * This class retrieves hosts sources concurrently.<br>
+ * Retrieval tasks run on a bounded number of threads and copy the downloaded sources into temporary files,
+ * so the caller can wait for the tasks in submission order and store the sources one at a time.
+ * Downloads are conditional to the HTTP validators of the previous download to skip unmodified sources.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class SourceDownloader implements Closeable {
+    /**
+     * The log tag.
+     */
+    private static final String TAG = "SourceDownloader";
+    /**
+     * The HTTP client to download hosts sources.
+     */
+    private final OkHttpClient httpClient;
+    /**
+     * The directory to store downloaded sources.
+     */
+    private final File directory;
+    /**
+     * The executor to run retrieval tasks.
+     */
+    private final ExecutorService executor;
+    /**
+     * The downloaded source files not deleted yet.
+     */
+    private final Set<File> files;
+
+    /**
+     * Constructor.
+     *
+     * @param httpClient  The HTTP client to download hosts sources.
+     * @param directory   The directory to store downloaded sources.
+     * @param parallelism The maximum number of retrieval tasks to run at the same time.
+     */
+    SourceDownloader(OkHttpClient httpClient, File directory, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        }
+        this.httpClient = httpClient;
+        this.directory = directory;
+        this.executor = Executors.newFixedThreadPool(parallelism, new DownloaderThreadFactory());
+        this.files = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Submit a retrieval task.
+     *
+     * @param task The task to run.
+     * @param <T>  The type of the task result.
+     * @return The future result of the task.
+     */
+    <T> Future<T> submit(Callable<T> task) {
+        return this.executor.submit(task);
+    }
+
+    /**
+     * Create a request to a hosts source, conditional to its stored HTTP validators if any.
+     *
+     * @param url                The URL of the hosts source.
+     * @param entityTag          The entity tag of the last downloaded source, {@code null} if unknown.
+     * @param lastModifiedHeader The last modified header of the last downloaded source, {@code null} if unknown.
+     * @return The request builder.
+     */
+    static Request.Builder newConditionalRequest(String url, @Nullable String entityTag, @Nullable String lastModifiedHeader) {
+        Request.Builder builder = new Request.Builder().url(url);
+        if (entityTag != null) {
+            builder.header("If-None-Match", entityTag);
+        }
+        if (lastModifiedHeader != null) {
+            builder.header("If-Modified-Since", lastModifiedHeader);
+        }
+        return builder;
+    }
+
+    /**
+     * Download a hosts source into a temporary file.<br>
+     * The request is conditional to the given HTTP validators so an unmodified source is not downloaded again.
+     * This method is expected to be called from retrieval tasks.
+     *
+     * @param url                The URL of the hosts source to download.
+     * @param entityTag          The entity tag of the last downloaded source, {@code null} if unknown.
+     * @param lastModifiedHeader The last modified header of the last downloaded source, {@code null} if unknown.
+     * @return The downloaded source.
+     * @throws IOException If the hosts source could not be downloaded.
+     */
+    @NonNull
+    Download download(String url, @Nullable String entityTag, @Nullable String lastModifiedHeader) throws IOException {
+        Request request = newConditionalRequest(url, entityTag, lastModifiedHeader).build();
+        try (Response response = this.httpClient.newCall(request).execute()) {
+            if (response.code() == HTTP_NOT_MODIFIED) {
+                return new Download(null, UTF_8, response);
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException("Unexpected response " + response.code() + " from " + url + ".");
+            }
+            ResponseBody body = Objects.requireNonNull(response.body());
+            MediaType contentType = body.contentType();
+            Charset charset = contentType == null ? UTF_8 : contentType.charset(UTF_8);
+            File file = createFile();
+            try (BufferedSink sink = Okio.buffer(Okio.sink(file))) {
+                sink.writeAll(body.source());
+            } catch (IOException | RuntimeException e) {
+                delete(file);
+                throw e;
+            }
+            return new Download(file, charset, response);
+        }
+    }
+
+    private File createFile() throws IOException {
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Failed to create download directory " + this.directory + ".");
+        }
+        File file = File.createTempFile("source", ".txt", this.directory);
+        this.files.add(file);
+        return file;
+    }
+
+    /**
+     * Delete a downloaded source.
+     *
+     * @param download The downloaded source to delete.
+     */
+    void delete(Download download) {
+        if (download.file != null) {
+            delete(download.file);
+        }
+    }
+
+    private void delete(File file) {
+        this.files.remove(file);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to delete downloaded source " + file + ".");
+        }
+    }
+
+    /**
+     * Cancel the pending retrieval tasks and delete the downloaded sources.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+        for (File file : this.files) {
+            delete(file);
+        }
+    }
+
+    /**
+     * This class is the result of a hosts source download, the source being stored into a temporary file if modified.
+     *
+     * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+     */
+    static class Download {
+        private final File file;
+        private final Charset charset;
+        private final String entityTag;
+        private final String lastModifiedHeader;
+        private final Date lastModified;
+
+        private Download(@Nullable File file, Charset charset, Response response) {
+            this.file = file;
+            this.charset = charset;
+            this.entityTag = response.header("ETag");
+            this.lastModifiedHeader = response.header("Last-Modified");
+            this.lastModified = response.headers().getDate("Last-Modified");
+        }
+
+        /**
+         * Check whether the source was modified since the last download.
+         *
+         * @return {@code true} if the source was modified and downloaded, {@code false} if not modified.
+         */
+        boolean isModified() {
+            return this.file != null;
+        }
+
+        /**
+         * Get the source entity tag.
+         *
+         * @return The source entity tag, {@code null} if the server did not send one.
+         */
+        @Nullable
+        String getEntityTag() {
+            return this.entityTag;
+        }
+
+        /**
+         * Get the source last modified header value.
+         *
+         * @return The source last modified header value, {@code null} if the server did not send one.
+         */
+        @Nullable
+        String getLastModifiedHeader() {
+            return this.lastModifiedHeader;
+        }
+
+        /**
+         * Get the source last modification date.
+         *
+         * @return The source last modification date, {@code null} if the server did not send a valid one.
+         */
+        @Nullable
+        ZonedDateTime getLastModified() {
+            return this.lastModified == null ? null : ZonedDateTime.ofInstant(this.lastModified.toInstant(), UTC);
+        }
+
+        /**
+         * Open a reader to the downloaded source.
+         *
+         * @return A reader to the downloaded source.
+         * @throws IOException If the downloaded source could not be opened.
+         */
+        Reader openReader() throws IOException {
+            if (this.file == null) {
+                throw new IOException("The source was not modified and not downloaded.");
+            }
+            return new InputStreamReader(new FileInputStream(this.file), this.charset);
+        }
+    }
+
+    /**
+     * This class is a {@link ThreadFactory} to name the downloader threads.
+     *
+     * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+     */
+    private static class DownloaderThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SourceDownloader-" + this.threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package org.adaway.model.source;
 
+import android.database.Cursor;
+
+import androidx.annotation.NonNull;
+
+import org.adaway.db.HostListItemInserter;
 import org.adaway.db.dao.HostListItemDao;
 import org.adaway.db.entity.HostListItem;
 import org.adaway.db.entity.HostsSource;
@@ -7,17 +12,26 @@ import org.adaway.db.entity.ListType;
 import org.adaway.util.Log;
 import org.adaway.util.RegexUtils;
 
-import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Reader;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static org.adaway.db.entity.ListType.BLOCKED;
 import static org.adaway.db.entity.ListType.REDIRECTED;
@@ -28,16 +42,21 @@ import static org.adaway.util.Constants.LOCALHOST_IPv6;
 
 /**
  * This class is an {@link HostsSource} loader.<br>
- * It parses a source and loads it to database.
+ * It parses a source and loads it to database.<br>
+ * The source is read by fixed size chunks of whole lines. Each chunk is parsed by a pool of parser
+ * threads while the next ones are read.<br>
+ * If the source has no stored item yet, the parsed items are inserted as they are parsed.
+ * Otherwise, they are compared to the stored ones and only the differences are written.<br>
+ * Items are inserted through an {@link HostListItemInserter}, usually a bulk load wrapping the whole parsing
+ * in a single transaction.
  *
  * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
  */
 class SourceLoader {
     private static final String TAG = "SourceLoader";
-    private static final String END_OF_QUEUE_MARKER = "#EndOfQueueMarker";
-    private static final int INSERT_BATCH_SIZE = 100;
-    private static final String HOSTS_PARSER = "^\\s*([^#\\s]+)\\s+([^#\\s]+).*$";
-    static final Pattern HOSTS_PARSER_PATTERN = Pattern.compile(HOSTS_PARSER);
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int PARSER_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private static final int MAX_PENDING_CHUNKS = PARSER_COUNT * 2;
 
     private final int sourceId;
     private final boolean parseRedirectedHosts;
@@ -47,189 +66,408 @@ class SourceLoader {
         this.parseRedirectedHosts = hostsSource.isRedirectEnabled();
     }
 
-    void parse(Reader reader, HostListItemDao hostListItemDao) {
-        // Clear current hosts
-        hostListItemDao.clearSourceHosts(this.sourceId);
-        // Create batch
-        int parserCount = 3;
-        LinkedBlockingQueue<String> hostsLineQueue = new LinkedBlockingQueue<>();
-        LinkedBlockingQueue<HostListItem> hostsListItemQueue = new LinkedBlockingQueue<>();
-        SourceReader sourceReader = new SourceReader(reader, hostsLineQueue, parserCount);
-        ItemInserter inserter = new ItemInserter(hostsListItemQueue, hostListItemDao, parserCount);
-        ExecutorService executorService = Executors.newFixedThreadPool(
-                parserCount + 2,
-                r -> new Thread(r, TAG)
-        );
-        executorService.execute(sourceReader);
-        for (int i = 0; i < parserCount; i++) {
-            executorService.execute(new HostListItemParser(hostsLineQueue, hostsListItemQueue));
-        }
-        Future<Integer> inserterFuture = executorService.submit(inserter);
+    /**
+     * Parse a source and update its items in database.
+     *
+     * @param reader          The source reader.
+     * @param hostListItemDao The {@link HostListItem} DAO.
+     * @param inserter        The {@link HostListItem} inserter.
+     * @throws IOException If the source could not be read.
+     */
+    void parse(Reader reader, HostListItemDao hostListItemDao, HostListItemInserter inserter) throws IOException {
+        long startTime = System.currentTimeMillis();
+        // Load stored items to select the writer
+        Map<ItemKey, Integer> storedItems = new HashMap<>();
+        List<Integer> duplicateIds = new ArrayList<>();
+        loadStoredItems(hostListItemDao, storedItems, duplicateIds);
+        ItemWriter writer = storedItems.isEmpty() ?
+                new ItemInserter(hostListItemDao, inserter) :
+                new ItemDiffer(hostListItemDao, inserter, storedItems, duplicateIds);
+        // Read chunks and parse them
+        ExecutorService parserPool = Executors.newFixedThreadPool(PARSER_COUNT);
+        Deque<Future<ParsedChunk>> parsingChunks = new ArrayDeque<>();
+        long charCount = 0;
+        try {
+            char[] buffer = new char[CHUNK_SIZE];
+            int length = 0;
+            int read;
+            while ((read = reader.read(buffer, length, buffer.length - length)) != -1) {
+                charCount += read;
+                length += read;
+                // Wait for a full buffer
+                if (length < buffer.length) {
+                    continue;
+                }
+                // Split chunk after the last line end
+                int chunkLength = getLastLineEnd(buffer, length);
+                if (chunkLength == 0) {
+                    // Grow buffer to read the whole line
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    continue;
+                }
+                char[] nextBuffer = new char[Math.max(CHUNK_SIZE, (length - chunkLength) * 2)];
+                System.arraycopy(buffer, chunkLength, nextBuffer, 0, length - chunkLength);
+                parsingChunks.add(parserPool.submit(new ChunkParser(buffer, chunkLength)));
+                buffer = nextBuffer;
+                length -= chunkLength;
+                // Write parsed chunks to bound pending chunks
+                while (parsingChunks.size() > MAX_PENDING_CHUNKS) {
+                    writer.add(getParsedChunk(parsingChunks.remove()));
+                }
+            }
+            // Parse remaining content
+            if (length > 0) {
+                parsingChunks.add(parserPool.submit(new ChunkParser(buffer, length)));
+            }
+            while (!parsingChunks.isEmpty()) {
+                writer.add(getParsedChunk(parsingChunks.remove()));
+            }
+            writer.complete();
+        } finally {
+            parserPool.shutdownNow();
+        }
+        // Report throughput
+        long duration = Math.max(1, System.currentTimeMillis() - startTime);
+        double megabytes = charCount / (1024D * 1024D);
+        Log.i(TAG, writer.insertedCount + " host list items inserted and " + writer.deletedCount +
+                " deleted from " + writer.lineCount + " lines (" +
+                String.format(Locale.ROOT, "%.2f", megabytes) + "MB) in " + duration + "ms: " +
+                (writer.lineCount * 1000 / duration) + " lines/s, " +
+                String.format(Locale.ROOT, "%.2f", megabytes * 1000 / duration) + "MB/s.");
+    }
+
+    private void loadStoredItems(HostListItemDao hostListItemDao, Map<ItemKey, Integer> storedItems,
+                                 List<Integer> duplicateIds) {
+        try (Cursor cursor = hostListItemDao.getSourceItems(this.sourceId)) {
+            int idIndex = cursor.getColumnIndexOrThrow("id");
+            int hostIndex = cursor.getColumnIndexOrThrow("host");
+            int typeIndex = cursor.getColumnIndexOrThrow("type");
+            int redirectionIndex = cursor.getColumnIndexOrThrow("redirection");
+            while (cursor.moveToNext()) {
+                ItemKey key = new ItemKey(
+                        cursor.getString(hostIndex),
+                        ListType.fromValue(cursor.getInt(typeIndex)),
+                        cursor.getString(redirectionIndex)
+                );
+                int id = cursor.getInt(idIndex);
+                if (storedItems.putIfAbsent(key, id) != null) {
+                    duplicateIds.add(id);
+                }
+            }
+        }
+    }
+
+    private static int getLastLineEnd(char[] buffer, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            char c = buffer[i];
+            if (c == '\n' || c == '\r') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private HostListItem parseHostListItem(HostsLineTokenizer tokenizer, CharSequence line) {
+        if (!tokenizer.tokenize(line)) {
+            Log.d(TAG, "Does not match: " + line);
+            return null;
+        }
+        // Skip localhost name
+        if (tokenizer.isHost(LOCALHOST_HOSTNAME)) {
+            return null;
+        }
+        // check if ip is 127.0.0.1 or 0.0.0.0
+        ListType type;
+        if (tokenizer.isAddress(LOCALHOST_IPv4)
+                || tokenizer.isAddress(BOGUS_IPv4)
+                || tokenizer.isAddress(LOCALHOST_IPv6)) {
+            type = BLOCKED;
+        } else if (this.parseRedirectedHosts) {
+            type = REDIRECTED;
+        } else {
+            return null;
+        }
+        // Check host name before allocating it
+        if (!RegexUtils.isValidWildcardHostname(line, tokenizer.getHostStart(), tokenizer.getHostEnd())) {
+            return null;
+        }
+        String redirection = null;
+        if (type == REDIRECTED) {
+            redirection = tokenizer.getAddress();
+            if (!RegexUtils.isValidIP(redirection)) {
+                return null;
+            }
+        }
+        HostListItem item = new HostListItem();
+        item.setType(type);
+        item.setHost(tokenizer.getHost());
+        item.setEnabled(true);
+        item.setRedirection(redirection);
+        item.setSourceId(this.sourceId);
+        return item;
+    }
+
+    /**
+     * This class is the result of a chunk parsing.
+     */
+    /**
+     * Get a parsed chunk.
+     *
+     * @param future The future parsed chunk.
+     * @return The parsed chunk.
+     * @throws IOException If the chunk parsing was interrupted.
+     */
+    private static ParsedChunk getParsedChunk(Future<ParsedChunk> future) throws IOException {
         try {
-            Integer inserted = inserterFuture.get();
-            Log.i(TAG, inserted + " host list items inserted.");
+            return future.get();
         } catch (ExecutionException e) {
-            Log.w(TAG, "Failed to parse hosts sources.", e);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Failed to parse hosts source chunk.", cause);
         } catch (InterruptedException e) {
-            Log.w(TAG, "Interrupted while parsing sources.", e);
             Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing hosts source.");
+        }
+    }
+
+    private static class ParsedChunk {
+        private final List<HostListItem> items;
+        private final int lineCount;
+
+        private ParsedChunk(List<HostListItem> items, int lineCount) {
+            this.items = items;
+            this.lineCount = lineCount;
         }
-        executorService.shutdown();
     }
 
-    private static class SourceReader implements Runnable {
-        private final Reader reader;
-        private final BlockingQueue<String> queue;
-        private final int parserCount;
+    /**
+     * This class is a task to parse the lines of a chunk.
+     */
+    private class ChunkParser implements Callable<ParsedChunk> {
+        private final char[] chunk;
+        private final int length;
 
-        private SourceReader(Reader reader, BlockingQueue<String> queue, int parserCount) {
-            this.reader = reader;
-            this.queue = queue;
-            this.parserCount = parserCount;
+        private ChunkParser(char[] chunk, int length) {
+            this.chunk = chunk;
+            this.length = length;
         }
 
         @Override
-        public void run() {
-            new BufferedReader(this.reader)
-                    .lines()
-                    .forEach(this.queue::add);
-            // Send end of queue marker to parsers
-            for (int i = 0; i < this.parserCount; i++) {
-                this.queue.add(END_OF_QUEUE_MARKER);
+        public ParsedChunk call() {
+            List<HostListItem> items = new ArrayList<>();
+            int lineCount = 0;
+            Line line = new Line(this.chunk);
+            HostsLineTokenizer tokenizer = new HostsLineTokenizer();
+            int start = 0;
+            for (int i = 0; i <= this.length; i++) {
+                if (i < this.length && this.chunk[i] != '\n' && this.chunk[i] != '\r') {
+                    continue;
+                }
+                // Skip empty lines as CRLF line ends
+                if (i > start) {
+                    lineCount++;
+                    line.set(start, i);
+                    HostListItem item = parseHostListItem(tokenizer, line);
+                    if (item != null) {
+                        items.add(item);
+                    }
+                }
+                start = i + 1;
             }
+            return new ParsedChunk(items, lineCount);
         }
     }
 
-    private class HostListItemParser implements Runnable {
-        private final BlockingQueue<String> lineQueue;
-        private final BlockingQueue<HostListItem> itemQueue;
+    /**
+     * This class is a reusable view of a chunk line.
+     */
+    private static class Line implements CharSequence {
+        private final char[] chunk;
+        private int start;
+        private int end;
 
-        private HostListItemParser(BlockingQueue<String> lineQueue, BlockingQueue<HostListItem> itemQueue) {
-            this.lineQueue = lineQueue;
-            this.itemQueue = itemQueue;
+        private Line(char[] chunk) {
+            this.chunk = chunk;
+        }
+
+        private void set(int start, int end) {
+            this.start = start;
+            this.end = end;
         }
 
         @Override
-        public void run() {
-            boolean endOfSource = false;
-            while (!endOfSource) {
-                try {
-                    String line = this.lineQueue.take();
-                    // Check end of queue marker
-                    //noinspection StringEquality
-                    if (line == END_OF_QUEUE_MARKER) {
-                        endOfSource = true;
-                        // Send end of queue marker to inserter
-                        HostListItem endItem = new HostListItem();
-                        endItem.setHost(line);
-                        this.itemQueue.add(endItem);
-                    } else {
-                        HostListItem item = parseHostListItem(line);
-                        if (item != null && isRedirectionValid(item) && isHostValid(item)) {
-                            this.itemQueue.add(item);
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    Log.w(TAG, "Interrupted while parsing hosts list item.", e);
-                    endOfSource = true;
-                    Thread.currentThread().interrupt();
-                }
-            }
+        public int length() {
+            return this.end - this.start;
         }
 
-        private HostListItem parseHostListItem(String line) {
-            Matcher matcher = HOSTS_PARSER_PATTERN.matcher(line);
-            if (!matcher.matches()) {
-                Log.d(TAG, "Does not match: " + line);
-                return null;
-            }
-            // Check IP address validity or while list entry (if allowed)
-            String ip = matcher.group(1);
-            String hostname = matcher.group(2);
-            // Skip localhost name
-            if (LOCALHOST_HOSTNAME.equals(hostname)) {
-                return null;
-            }
-            // check if ip is 127.0.0.1 or 0.0.0.0
-            ListType type;
-            if (LOCALHOST_IPv4.equals(ip)
-                    || BOGUS_IPv4.equals(ip)
-                    || LOCALHOST_IPv6.equals(ip)) {
-                type = BLOCKED;
-            } else if (SourceLoader.this.parseRedirectedHosts) {
-                type = REDIRECTED;
-            } else {
-                return null;
-            }
-            HostListItem item = new HostListItem();
-            item.setType(type);
-            item.setHost(hostname);
-            item.setEnabled(true);
-            if (type == REDIRECTED) {
-                item.setRedirection(ip);
-            }
-            item.setSourceId(SourceLoader.this.sourceId);
-            return item;
+        @Override
+        public char charAt(int index) {
+            return this.chunk[this.start + index];
+        }
+
+        @NonNull
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(this.chunk, this.start + start, end - start);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return new String(this.chunk, this.start, this.end - this.start);
+        }
+    }
+
+    /**
+     * This class is the key of an item, the items with the same key being duplicates.
+     */
+    private static class ItemKey {
+        private final String host;
+        private final ListType type;
+        private final String redirection;
+
+        private ItemKey(String host, ListType type, String redirection) {
+            this.host = host;
+            this.type = type;
+            this.redirection = redirection;
+        }
+
+        private ItemKey(HostListItem item) {
+            this(item.getHost(), item.getType(), item.getRedirection());
         }
 
-        private boolean isRedirectionValid(HostListItem item) {
-            return item.getType() != REDIRECTED || RegexUtils.isValidIP(item.getRedirection());
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            ItemKey key = (ItemKey) o;
+
+            if (!host.equals(key.host)) return false;
+            if (type != key.type) return false;
+            return Objects.equals(redirection, key.redirection);
         }
 
-        private boolean isHostValid(HostListItem item) {
-            return RegexUtils.isValidWildcardHostname(item.getHost());
+        @Override
+        public int hashCode() {
+            int result = host.hashCode();
+            result = 31 * result + type.hashCode();
+            result = 31 * result + (redirection != null ? redirection.hashCode() : 0);
+            return result;
         }
     }
 
-    private static class ItemInserter implements Callable<Integer> {
-        private final BlockingQueue<HostListItem> hostListItemQueue;
-        private final HostListItemDao hostListItemDao;
-        private final int parserCount;
+    /**
+     * This class writes the parsed items to the database.
+     */
+    private abstract static class ItemWriter {
+        protected final HostListItemDao hostListItemDao;
+        protected final HostListItemInserter inserter;
+        protected int insertedCount;
+        protected int deletedCount;
+        private long lineCount;
 
-        private ItemInserter(BlockingQueue<HostListItem> itemQueue, HostListItemDao hostListItemDao, int parserCount) {
-            this.hostListItemQueue = itemQueue;
+        private ItemWriter(HostListItemDao hostListItemDao, HostListItemInserter inserter) {
             this.hostListItemDao = hostListItemDao;
-            this.parserCount = parserCount;
+            this.inserter = inserter;
+            this.insertedCount = 0;
+            this.deletedCount = 0;
+            this.lineCount = 0;
+        }
+
+        private void add(ParsedChunk chunk) {
+            this.lineCount += chunk.lineCount;
+            add(chunk.items);
+        }
+
+        /**
+         * Add parsed items.
+         *
+         * @param items The parsed items to add.
+         */
+        protected abstract void add(List<HostListItem> items);
+
+        /**
+         * Complete the item writing once all the items were added.
+         */
+        protected abstract void complete();
+    }
+
+    /**
+     * This class inserts parsed items as they are parsed, skipping the duplicate ones.<br>
+     * It is used when the source has no stored item.
+     */
+    private static class ItemInserter extends ItemWriter {
+        private final Set<ItemKey> insertedItems;
+
+        private ItemInserter(HostListItemDao hostListItemDao, HostListItemInserter inserter) {
+            super(hostListItemDao, inserter);
+            this.insertedItems = new HashSet<>();
         }
 
         @Override
-        public Integer call() {
-            int inserted = 0;
-            int workerStopped = 0;
-            HostListItem[] batch = new HostListItem[INSERT_BATCH_SIZE];
-            int cacheSize = 0;
-            boolean queueEmptied = false;
-            while (!queueEmptied) {
-                try {
-                    HostListItem item = this.hostListItemQueue.take();
-                    // Check end of queue marker
-                    //noinspection StringEquality
-                    if (item.getHost() == END_OF_QUEUE_MARKER) {
-                        workerStopped++;
-                        if (workerStopped >= this.parserCount) {
-                            queueEmptied = true;
-                        }
-                    } else {
-                        batch[cacheSize++] = item;
-                        if (cacheSize >= batch.length) {
-                            this.hostListItemDao.insert(batch);
-                            cacheSize = 0;
-                            inserted += cacheSize;
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    Log.w(TAG, "Interrupted while inserted hosts list item.", e);
-                    queueEmptied = true;
-                    Thread.currentThread().interrupt();
+        protected void add(List<HostListItem> items) {
+            for (HostListItem item : items) {
+                if (this.insertedItems.add(new ItemKey(item))) {
+                    this.inserter.insert(item);
+                    this.insertedCount++;
                 }
             }
-            // Flush current batch
-            HostListItem[] remaining = new HostListItem[cacheSize];
-            System.arraycopy(batch, 0, remaining, 0, remaining.length);
-            this.hostListItemDao.insert(remaining);
-            inserted += cacheSize;
-            // Return number of inserted items
-            return inserted;
+        }
+
+        @Override
+        protected void complete() {
+            // Nothing to complete as items are already inserted
+        }
+    }
+
+    /**
+     * This class compares parsed items to the stored ones and writes only the differences.<br>
+     * The new items are inserted as they are parsed. The stored items are consumed as they are parsed
+     * so the remaining ones are the items to delete.
+     */
+    private static class ItemDiffer extends ItemWriter {
+        /**
+         * The identifier of the items that are already parsed.
+         */
+        private static final Integer PARSED = -1;
+        private final Map<ItemKey, Integer> storedItems;
+        private final List<Integer> removedIds;
+
+        private ItemDiffer(HostListItemDao hostListItemDao, HostListItemInserter inserter,
+                           Map<ItemKey, Integer> storedItems, List<Integer> duplicateIds) {
+            super(hostListItemDao, inserter);
+            this.storedItems = storedItems;
+            this.removedIds = duplicateIds;
+        }
+
+        @Override
+        protected void add(List<HostListItem> items) {
+            for (HostListItem item : items) {
+                // Mark item as parsed and insert it if it was not stored nor already parsed
+                if (this.storedItems.put(new ItemKey(item), PARSED) == null) {
+                    this.inserter.insert(item);
+                    this.insertedCount++;
+                }
+            }
+        }
+
+        @Override
+        protected void complete() {
+            for (Integer id : this.storedItems.values()) {
+                if (!PARSED.equals(id)) {
+                    this.removedIds.add(id);
+                }
+            }
+            if (!this.removedIds.isEmpty()) {
+                this.hostListItemDao.updateSourceItems(this.removedIds, Collections.emptyList());
+            }
+            this.deletedCount = this.removedIds.size();
         }
     }
 }
@@ -15,6 +15,7 @@ import androidx.lifecycle.MutableLiveData;
 
 import org.adaway.R;
 import org.adaway.db.AppDatabase;
+import org.adaway.db.BulkLoad;
 import org.adaway.db.converter.ZonedDateTimeConverter;
 import org.adaway.db.dao.HostEntryDao;
 import org.adaway.db.dao.HostListItemDao;
@@ -22,23 +23,26 @@ import org.adaway.db.dao.HostsSourceDao;
 import org.adaway.db.entity.HostEntry;
 import org.adaway.db.entity.HostListItem;
 import org.adaway.db.entity.HostsSource;
+import org.adaway.db.entity.SourceType;
+import org.adaway.helper.PreferenceHelper;
 import org.adaway.model.error.HostErrorException;
 import org.adaway.model.git.GitHostsSource;
 import org.adaway.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.Reader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
-import java.time.LocalDateTime;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
-import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import okhttp3.Cache;
 import okhttp3.OkHttpClient;
@@ -47,6 +51,7 @@ import okhttp3.Response;
 
 import static android.content.Context.CONNECTIVITY_SERVICE;
 import static android.provider.DocumentsContract.Document.COLUMN_LAST_MODIFIED;
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
 import static java.time.ZoneOffset.UTC;
 import static java.time.format.FormatStyle.MEDIUM;
 import static org.adaway.model.error.HostError.DOWNLOAD_FAILED;
@@ -66,10 +71,18 @@ public class SourceModel {
      * The HTTP client cache size (100Mo).
      */
     private static final long CACHE_SIZE = 100L * 1024L * 1024L;
+    /**
+     * The directory to download hosts sources into, relative to the application cache directory.
+     */
+    private static final String DOWNLOAD_DIRECTORY = "sources";
     /**
      * The application context.
      */
     private final Context context;
+    /**
+     * The application database.
+     */
+    private final AppDatabase database;
     /**
      * The {@link HostsSource} DAO.
      */
@@ -102,10 +115,10 @@ public class SourceModel {
      */
     public SourceModel(Context context) {
         this.context = context;
-        AppDatabase database = AppDatabase.getInstance(this.context);
-        this.hostsSourceDao = database.hostsSourceDao();
-        this.hostListItemDao = database.hostsListItemDao();
-        this.hostEntryDao = database.hostEntryDao();
+        this.database = AppDatabase.getInstance(this.context);
+        this.hostsSourceDao = this.database.hostsSourceDao();
+        this.hostListItemDao = this.database.hostsListItemDao();
+        this.hostEntryDao = this.database.hostEntryDao();
         this.state = new MutableLiveData<>("");
         this.updateAvailable = new MutableLiveData<>();
         this.updateAvailable.setValue(false);
@@ -228,7 +241,7 @@ public class SourceModel {
     private ZonedDateTime getHostsSourceLastUpdate(HostsSource source) {
         switch (source.getType()) {
             case URL:
-                return getUrlLastUpdate(source.getUrl());
+                return getUrlLastUpdate(source);
             case FILE:
                 Uri fileUri = Uri.parse(source.getUrl());
                 return getFileLastUpdate(fileUri);
@@ -238,12 +251,14 @@ public class SourceModel {
     }
 
     /**
-     * Get the url last online update.
+     * Get the url last online update.<br>
+     * The request is conditional to the HTTP validators of the last source download, if any.
      *
-     * @param url The url to get last online update.
+     * @param source The URL hosts source to get last online update.
      * @return The last online date, {@code null} if the date could not be retrieved.
      */
-    private ZonedDateTime getUrlLastUpdate(String url) {
+    private ZonedDateTime getUrlLastUpdate(HostsSource source) {
+        String url = source.getUrl();
         Log.v(TAG, "Checking hosts file: " + url);
         // Check Git hosting
         if (GitHostsSource.isHostedOnGit(url)) {
@@ -255,25 +270,33 @@ public class SourceModel {
             }
         }
         // Default hosting
-        URLConnection connection = null;
-        try {
-            /* build connection */
-            URL mURL = new URL(url);
-            connection = mURL.openConnection();
-            connection.setConnectTimeout(15000);
-            connection.setReadTimeout(30000);
-            long lastModified = connection.getLastModified() / 1000;
-            if (lastModified == 0) {
+        ZonedDateTime localModificationDate = source.getLocalModificationDate();
+        boolean downloaded = localModificationDate != null;
+        Request request = SourceDownloader.newConditionalRequest(
+                url,
+                downloaded ? source.getEntityTag() : null,
+                downloaded ? source.getLastModifiedHeader() : null
+        ).head().build();
+        try (Response response = getHttpClient().newCall(request).execute()) {
+            if (response.code() == HTTP_NOT_MODIFIED) {
+                return localModificationDate;
+            }
+            if (!response.isSuccessful()) {
+                Log.w(TAG, "Unexpected response " + response.code() + " while checking " + url + ".");
                 return null;
             }
-            return ZonedDateTime.of(LocalDateTime.ofEpochSecond(lastModified, 0, UTC), UTC);
+            Date lastModified = response.headers().getDate("Last-Modified");
+            if (lastModified != null) {
+                return ZonedDateTime.ofInstant(lastModified.toInstant(), UTC);
+            }
+            String entityTag = response.header("ETag");
+            if (entityTag == null) {
+                return null;
+            }
+            return downloaded && entityTag.equals(source.getEntityTag()) ? localModificationDate : ZonedDateTime.now();
         } catch (Exception e) {
-            Log.e(TAG, "Exception while downloading from " + url, e);
+            Log.e(TAG, "Exception while checking " + url, e);
             return null;
-        } finally {
-            if (connection instanceof HttpURLConnection) {
-                ((HttpURLConnection) connection).disconnect();
-            }
         }
     }
 
@@ -307,7 +330,8 @@ public class SourceModel {
     }
 
     /**
-     * Retrieve all hosts sources files to copy into a private local file.
+     * Retrieve all hosts sources files to copy into a private local file.<br>
+     * The sources are checked and downloaded concurrently, then parsed and stored one at a time in source order.
      *
      * @throws HostErrorException If the hosts sources could not be downloaded.
      */
@@ -323,50 +347,48 @@ public class SourceModel {
         int numberOfFailedCopies = 0;
         // Compute current date in UTC timezone
         ZonedDateTime now = ZonedDateTime.now();
-        // Get each hosts source
-        for (HostsSource source : this.hostsSourceDao.getAll()) {
-            int sourceId = source.getId();
-            String url = source.getUrl();
-            // Clear disabled source
-            if (!source.isEnabled()) {
-                this.hostListItemDao.clearSourceHosts(sourceId);
-                this.hostsSourceDao.clearProperties(sourceId);
-                continue;
-            }
-            // Get hosts source last update
-            ZonedDateTime onlineModificationDate = getHostsSourceLastUpdate(source);
-            if (onlineModificationDate == null) {
-                onlineModificationDate = now;
-            }
-            // Check if update available
-            ZonedDateTime localModificationDate = source.getLocalModificationDate();
-            if (localModificationDate != null && localModificationDate.isAfter(onlineModificationDate)) {
-                Log.i(TAG, "Skip source " + source.getUrl() + ": no update.");
-                continue;
+        int parallelism = PreferenceHelper.getParallelDownloads(this.context);
+        File downloadDirectory = new File(this.context.getCacheDir(), DOWNLOAD_DIRECTORY);
+        try (SourceDownloader downloader = new SourceDownloader(getHttpClient(), downloadDirectory, parallelism)) {
+            // Start retrieving each enabled hosts source
+            List<Future<SourceRetrieval>> retrievals = new ArrayList<>();
+            for (HostsSource source : this.hostsSourceDao.getAll()) {
+                if (source.isEnabled()) {
+                    retrievals.add(downloader.submit(() -> retrieveHostsSource(downloader, source, now)));
+                } else {
+                    // Clear disabled source
+                    int sourceId = source.getId();
+                    this.hostListItemDao.clearSourceHosts(sourceId);
+                    this.hostsSourceDao.clearProperties(sourceId);
+                }
             }
-            // Increment number of copy
-            numberOfCopies++;
-            try {
-                // Check hosts source type
-                switch (source.getType()) {
-                    case URL:
-                        downloadHostSource(source);
-                        break;
-                    case FILE:
-                        readSourceFile(source);
-                        break;
-                    default:
-                        Log.w(TAG, "Hosts source type  is not supported.");
+            // Store each retrieved hosts source in order
+            int sourceCount = retrievals.size();
+            for (int index = 0; index < sourceCount; index++) {
+                setState(R.string.status_retrieve_progress, index + 1, sourceCount);
+                SourceRetrieval retrieval;
+                try {
+                    retrieval = getRetrieval(retrievals.get(index));
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to retrieve host source.", e);
+                    numberOfCopies++;
+                    numberOfFailedCopies++;
+                    continue;
+                }
+                HostsSource source = retrieval.source;
+                if (retrieval.skipped) {
+                    Log.i(TAG, "Skip source " + source.getUrl() + ": no update.");
+                    continue;
+                }
+                // Increment number of copy
+                numberOfCopies++;
+                try {
+                    storeHostsSource(downloader, retrieval, now);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to retrieve host source " + source.getUrl() + ".", e);
+                    // Increment number of failed copy
+                    numberOfFailedCopies++;
                 }
-                // Update local and online modification dates to now
-                localModificationDate = onlineModificationDate.isAfter(now) ? onlineModificationDate : now;
-                this.hostsSourceDao.updateModificationDates(sourceId, localModificationDate, onlineModificationDate);
-                // Update size
-                this.hostsSourceDao.updateSize(sourceId);
-            } catch (IOException e) {
-                Log.w(TAG, "Failed to retrieve host source " + url + ".", e);
-                // Increment number of failed copy
-                numberOfFailedCopies++;
             }
         }
         // Check if all copies failed
@@ -379,6 +401,121 @@ public class SourceModel {
         this.updateAvailable.postValue(false);
     }
 
+    /**
+     * Check a hosts source for update and download it if needed.<br>
+     * This method runs on the downloader threads.
+     *
+     * @param downloader The hosts sources downloader.
+     * @param source     The hosts source to retrieve.
+     * @param now        The retrieval date.
+     * @return The hosts source retrieval.
+     * @throws IOException If the hosts source could not be downloaded.
+     */
+    private SourceRetrieval retrieveHostsSource(SourceDownloader downloader, HostsSource source, ZonedDateTime now)
+            throws IOException {
+        String hostsFileUrl = source.getUrl();
+        boolean urlSource = source.getType() == SourceType.URL;
+        ZonedDateTime localModificationDate = source.getLocalModificationDate();
+        ZonedDateTime onlineModificationDate = null;
+        // Check if update available for file and Git hosted sources
+        if (!urlSource || GitHostsSource.isHostedOnGit(hostsFileUrl)) {
+            onlineModificationDate = getHostsSourceLastUpdate(source);
+            if (onlineModificationDate == null) {
+                onlineModificationDate = now;
+            }
+            if (localModificationDate != null && localModificationDate.isAfter(onlineModificationDate)) {
+                return new SourceRetrieval(source, onlineModificationDate, true, null);
+            }
+        }
+        if (!urlSource) {
+            return new SourceRetrieval(source, onlineModificationDate, false, null);
+        }
+        // Download URL hosts source if modified since its last download
+        Log.v(TAG, "Downloading hosts file: " + hostsFileUrl);
+        setState(R.string.status_download_source, hostsFileUrl);
+        boolean downloaded = localModificationDate != null;
+        SourceDownloader.Download download;
+        try {
+            download = downloader.download(
+                    hostsFileUrl,
+                    downloaded ? source.getEntityTag() : null,
+                    downloaded ? source.getLastModifiedHeader() : null
+            );
+        } catch (IOException e) {
+            throw new IOException("Exception while downloading hosts file from " + hostsFileUrl + ".", e);
+        }
+        if (!download.isModified()) {
+            return new SourceRetrieval(source, localModificationDate, true, null);
+        }
+        if (onlineModificationDate == null) {
+            onlineModificationDate = download.getLastModified();
+            if (onlineModificationDate == null) {
+                onlineModificationDate = now;
+            }
+        }
+        return new SourceRetrieval(source, onlineModificationDate, false, download);
+    }
+
+    /**
+     * Get a hosts source retrieval result.
+     *
+     * @param future The future hosts source retrieval.
+     * @return The hosts source retrieval.
+     * @throws IOException If the hosts source could not be retrieved.
+     */
+    private static SourceRetrieval getRetrieval(Future<SourceRetrieval> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to retrieve hosts source.", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while retrieving hosts source.");
+        }
+    }
+
+    /**
+     * Parse a retrieved hosts source and store it into database.
+     *
+     * @param downloader The hosts sources downloader.
+     * @param retrieval  The hosts source retrieval.
+     * @param now        The retrieval date.
+     * @throws IOException If the hosts source could not be read.
+     */
+    private void storeHostsSource(SourceDownloader downloader, SourceRetrieval retrieval, ZonedDateTime now)
+            throws IOException {
+        HostsSource source = retrieval.source;
+        int sourceId = source.getId();
+        // Check hosts source type
+        switch (source.getType()) {
+            case URL:
+                SourceDownloader.Download download = retrieval.download;
+                try (Reader reader = download.openReader()) {
+                    parseSourceInputStream(source, reader);
+                } finally {
+                    downloader.delete(download);
+                }
+                // Update HTTP validators for the next download
+                this.hostsSourceDao.updateValidators(sourceId, download.getEntityTag(), download.getLastModifiedHeader());
+                break;
+            case FILE:
+                readSourceFile(source);
+                break;
+            default:
+                Log.w(TAG, "Hosts source type  is not supported.");
+        }
+        // Update local and online modification dates to now
+        ZonedDateTime onlineModificationDate = retrieval.onlineModificationDate;
+        ZonedDateTime localModificationDate = onlineModificationDate.isAfter(now) ? onlineModificationDate : now;
+        this.hostsSourceDao.updateModificationDates(sourceId, localModificationDate, onlineModificationDate);
+        // Update size
+        this.hostsSourceDao.updateSize(sourceId);
+    }
+
     /**
      * Synchronize hosts entries from current source states.
      */
@@ -393,7 +530,7 @@ public class SourceModel {
      * @return The HTTP client to download hosts sources.
      */
     @NonNull
-    private OkHttpClient getHttpClient() {
+    private synchronized OkHttpClient getHttpClient() {
         if (this.httpClient == null) {
             this.httpClient = new OkHttpClient.Builder()
                     .cache(new Cache(this.context.getCacheDir(), CACHE_SIZE))
@@ -402,33 +539,6 @@ public class SourceModel {
         return this.httpClient;
     }
 
-    /**
-     * Download an hosts source file and append it to the database.
-     *
-     * @param source The hosts source to download.
-     * @throws IOException If the hosts source could not be downloaded.
-     */
-    private void downloadHostSource(HostsSource source) throws IOException {
-        // Get hosts file URL
-        String hostsFileUrl = source.getUrl();
-        Log.v(TAG, "Downloading hosts file: " + hostsFileUrl);
-        // Set state to downloading hosts source
-        setState(R.string.status_download_source, hostsFileUrl);
-        // Get HTTP client
-        OkHttpClient httpClient = getHttpClient();
-        // Create request
-        Request request = new Request.Builder()
-                .url(hostsFileUrl)
-                .build();
-        // Request hosts file and open byte stream
-        try (Response response = httpClient.newCall(request).execute();
-             Reader reader = Objects.requireNonNull(response.body()).charStream()) {
-            parseSourceInputStream(source, reader);
-        } catch (IOException e) {
-            throw new IOException("Exception while downloading hosts file from " + hostsFileUrl + ".", e);
-        }
-    }
-
     /**
      * Read a hosts source file and append it to the database.
      *
@@ -455,11 +565,16 @@ public class SourceModel {
      *
      * @param hostsSource The host source to parse.
      * @param reader The host source reader.
+     * @throws IOException If the host source could not be read.
      */
-    private void parseSourceInputStream(HostsSource hostsSource, Reader reader) {
+    private void parseSourceInputStream(HostsSource hostsSource, Reader reader) throws IOException {
         setState(R.string.status_parse_source, hostsSource.getLabel());
         long startTime = System.currentTimeMillis();
-        new SourceLoader(hostsSource).parse(reader, this.hostListItemDao);
+        // Load the whole source in a single transaction
+        try (BulkLoad bulkLoad = this.database.beginBulkLoad(true)) {
+            new SourceLoader(hostsSource).parse(reader, this.hostListItemDao, bulkLoad);
+            bulkLoad.setSuccessful();
+        }
         long endTime = System.currentTimeMillis();
         Log.i(TAG, "Parsed " + hostsSource.getUrl() + " in " + (endTime - startTime) / 1000 + "s");
     }
@@ -485,4 +600,24 @@ public class SourceModel {
         Log.d(TAG, state);
         this.state.postValue(state);
     }
+
+    /**
+     * This class is the result of a hosts source retrieval.
+     *
+     * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+     */
+    private static class SourceRetrieval {
+        private final HostsSource source;
+        private final ZonedDateTime onlineModificationDate;
+        private final boolean skipped;
+        private final SourceDownloader.Download download;
+
+        private SourceRetrieval(HostsSource source, ZonedDateTime onlineModificationDate, boolean skipped,
+                                SourceDownloader.Download download) {
+            this.source = source;
+            this.onlineModificationDate = onlineModificationDate;
+            this.skipped = skipped;
+            this.download = download;
+        }
+    }
 }
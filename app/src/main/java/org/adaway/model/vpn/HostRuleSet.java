@@ -0,0 +1,126 @@
+package org.adaway.model.vpn;
+
+import androidx.annotation.Nullable;
+
+import com.google.common.net.InetAddresses;
+
+import org.adaway.db.entity.HostEntry;
+import org.adaway.util.Log;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.adaway.db.entity.ListType.REDIRECTED;
+
+/**
+ * This class is a version of the compiled host rules, with their parsed redirection addresses.<br>
+ * A rule set is immutable so it is swapped as a whole, through a single reference read by the VPN query workers.
+ * Versions are ordered so a rule set loaded or compiled earlier never replaces a later one.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class HostRuleSet {
+    private static final String TAG = "HostRuleSet";
+    private final int version;
+    private final HostTrie<HostEntry> trie;
+    /**
+     * The addresses of the redirections, by redirection.
+     */
+    private final Map<String, InetAddress> redirectionAddresses;
+
+    /**
+     * Constructor.<br>
+     * The redirections are parsed once so queries are answered without parsing them.
+     *
+     * @param version The rule set version.
+     * @param trie    The compiled host rules.
+     */
+    HostRuleSet(int version, HostTrie<HostEntry> trie) {
+        this.version = version;
+        this.trie = trie;
+        Map<String, InetAddress> redirectionAddresses = new HashMap<>();
+        for (HostEntry entry : trie.getValues()) {
+            if (entry.getType() == REDIRECTED) {
+                InetAddress address = parseRedirection(entry.getRedirection());
+                if (address != null) {
+                    redirectionAddresses.put(entry.getRedirection(), address);
+                }
+            }
+        }
+        this.redirectionAddresses = redirectionAddresses;
+    }
+
+    /**
+     * Get the rule set version.
+     *
+     * @return The rule set version.
+     */
+    int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Get the number of host rules.
+     *
+     * @return The number of host rules.
+     */
+    int size() {
+        return this.trie.size();
+    }
+
+    /**
+     * Get the host entry of an host name.
+     *
+     * @param host The host name to look up.
+     * @return The host entry of the greatest matching rule, {@code null} if no rule matches.
+     */
+    @Nullable
+    HostEntry get(CharSequence host) {
+        return this.trie.get(host);
+    }
+
+    /**
+     * Get the address of a redirection.
+     *
+     * @param redirection The redirection.
+     * @return The redirection address, {@code null} if the redirection is not a rule set one.
+     */
+    @Nullable
+    InetAddress getRedirectionAddress(String redirection) {
+        return this.redirectionAddresses.get(redirection);
+    }
+
+    /**
+     * Look up host names ahead of queries, to load the rule set pages they walk through.
+     *
+     * @param hosts The host names to look up.
+     * @return The number of host names looked up.
+     */
+    int warmUp(List<String> hosts) {
+        for (String host : hosts) {
+            this.trie.get(host);
+        }
+        return hosts.size();
+    }
+
+    /**
+     * Parse a redirection address.
+     *
+     * @param redirection The redirection to parse.
+     * @return The redirection address, {@code null} if the redirection is not a valid IP address.
+     */
+    @Nullable
+    static InetAddress parseRedirection(@Nullable String redirection) {
+        if (redirection == null) {
+            return null;
+        }
+        try {
+            return InetAddresses.forString(redirection);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid redirection address " + redirection + ".");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.adaway.model.vpn;
+
+import android.database.Cursor;
+
+import org.adaway.db.dao.HostListItemDao;
+import org.adaway.db.entity.HostEntry;
+import org.adaway.db.entity.ListType;
+import org.adaway.util.Log;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static org.adaway.db.entity.ListType.ALLOWED;
+import static org.adaway.db.entity.ListType.BLOCKED;
+import static org.adaway.db.entity.ListType.REDIRECTED;
+
+/**
+ * This class compiles the enabled hosts list items into host rule sets, in the background.<br>
+ * Wildcard items are evaluated at query time so blocking or allowing a whole domain does not
+ * depend on the host entries synchronization.
+ * The trie is written as a snapshot then looked up from the mapped snapshot, out of the heap,
+ * and warmed up with the recently queried host names before being handed over.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class HostRulesCompiler {
+    private static final String TAG = "HostRulesCompiler";
+    /**
+     * The host entry comparator to apply list type precedence: redirected, allowed then blocked.
+     */
+    static final Comparator<HostEntry> TYPE_PRECEDENCE = Comparator.comparingInt(entry -> entry.getType().getValue());
+    private final HostListItemDao hostListItemDao;
+    private final HostRulesSnapshot hostRulesSnapshot;
+    private final Executor executor;
+
+    /**
+     * Constructor.
+     *
+     * @param hostListItemDao   The DAO to read the enabled hosts list items from.
+     * @param hostRulesSnapshot The snapshot to write the compiled host rules to.
+     * @param executor          The executor to compile the host rules with, off the calling thread.
+     */
+    HostRulesCompiler(HostListItemDao hostListItemDao, HostRulesSnapshot hostRulesSnapshot, Executor executor) {
+        this.hostListItemDao = hostListItemDao;
+        this.hostRulesSnapshot = hostRulesSnapshot;
+        this.executor = executor;
+    }
+
+    /**
+     * Compile the host rules in the background.<br>
+     * The method returns at once, the compiled rule set is given to the callback from the executor.
+     *
+     * @param version  The version of the rule set to compile.
+     * @param hotHosts The supplier of the recently queried host names to warm the rule set up with.
+     * @param callback The callback to give the compiled rule set to, {@code null} if the compilation failed.
+     */
+    void compile(int version, Supplier<List<String>> hotHosts, Consumer<HostRuleSet> callback) {
+        this.executor.execute(() -> {
+            HostRuleSet ruleSet = null;
+            try {
+                ruleSet = compileNow(version, hotHosts);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to compile host rules version " + version + ".", e);
+            }
+            callback.accept(ruleSet);
+        });
+    }
+
+    private HostRuleSet compileNow(int version, Supplier<List<String>> hotHosts) {
+        long startTime = System.currentTimeMillis();
+        // Share blocked and allowed entries as only their type matters
+        HostEntry blockedEntry = createEntry(BLOCKED, null);
+        HostEntry allowedEntry = createEntry(ALLOWED, null);
+        Map<String, HostEntry> redirectedEntries = new HashMap<>();
+        HostTrie.Builder<HostEntry> builder = new HostTrie.Builder<>(TYPE_PRECEDENCE);
+        try (Cursor cursor = this.hostListItemDao.getEnabledItems()) {
+            int hostIndex = cursor.getColumnIndexOrThrow("host");
+            int typeIndex = cursor.getColumnIndexOrThrow("type");
+            int redirectionIndex = cursor.getColumnIndexOrThrow("redirection");
+            while (cursor.moveToNext()) {
+                String host = cursor.getString(hostIndex);
+                ListType type = ListType.fromValue(cursor.getInt(typeIndex));
+                HostEntry entry;
+                if (type == BLOCKED) {
+                    entry = blockedEntry;
+                } else if (type == ALLOWED) {
+                    entry = allowedEntry;
+                } else {
+                    entry = redirectedEntries.computeIfAbsent(
+                            cursor.getString(redirectionIndex),
+                            redirection -> createEntry(REDIRECTED, redirection)
+                    );
+                }
+                builder.put(host, entry);
+            }
+        }
+        HostTrie<HostEntry> trie = builder.build();
+        if (this.hostRulesSnapshot.write(trie)) {
+            HostTrie<HostEntry> mappedTrie = this.hostRulesSnapshot.map(TYPE_PRECEDENCE);
+            if (mappedTrie != null) {
+                trie = mappedTrie;
+            }
+        }
+        HostRuleSet ruleSet = new HostRuleSet(version, trie);
+        int warmedUpHosts = ruleSet.warmUp(hotHosts.get());
+        long endTime = System.currentTimeMillis();
+        Log.i(TAG, "Compiled " + ruleSet.size() + " host rules and warmed them up with " + warmedUpHosts +
+                " hosts in " + (endTime - startTime) + "ms.");
+        return ruleSet;
+    }
+
+    private static HostEntry createEntry(ListType type, String redirection) {
+        HostEntry entry = new HostEntry();
+        entry.setHost("");
+        entry.setType(type);
+        entry.setRedirection(redirection);
+        return entry;
+    }
+}
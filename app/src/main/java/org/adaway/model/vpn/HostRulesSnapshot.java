@@ -0,0 +1,132 @@
+package org.adaway.model.vpn;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import org.adaway.db.entity.HostEntry;
+import org.adaway.db.entity.ListType;
+import org.adaway.util.Log;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Comparator;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+/**
+ * This class stores the compiled host rules as a snapshot file into the application storage.<br>
+ * The snapshot is memory mapped and looked up in place, so the VPN answers its first queries from the last
+ * applied rules without reading the database, nor compiling the rules, nor copying them into the heap.
+ * A snapshot is replaced by renaming the new one over it, so the previously mapped one stays valid.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class HostRulesSnapshot {
+    private static final String TAG = "HostRulesSnapshot";
+    /**
+     * The snapshot file name, in the application files directory.
+     */
+    private static final String FILE_NAME = "host_rules.snapshot";
+    private final File file;
+
+    /**
+     * Constructor.
+     *
+     * @param context The application context.
+     */
+    HostRulesSnapshot(Context context) {
+        this(context.getFilesDir());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param directory The directory to store the snapshot file into.
+     */
+    HostRulesSnapshot(File directory) {
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * Map the host rules snapshot.
+     *
+     * @param comparator The host entry comparator to apply list type precedence.
+     * @return The host rules looked up from the mapped snapshot, {@code null} if there is no valid snapshot.
+     */
+    @Nullable
+    HostTrie<HostEntry> map(Comparator<HostEntry> comparator) {
+        if (!this.file.isFile()) {
+            return null;
+        }
+        try (FileInputStream inputStream = new FileInputStream(this.file);
+             FileChannel channel = inputStream.getChannel()) {
+            // The mapping stays valid once the channel closed
+            MappedByteBuffer buffer = channel.map(READ_ONLY, 0, channel.size());
+            return HostTrie.read(buffer, comparator, HostRulesSnapshot::readEntry);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to map host rules snapshot.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the host rules snapshot.
+     *
+     * @param trie The compiled host rules to write.
+     * @return {@code true} if the snapshot was written, {@code false} otherwise.
+     */
+    synchronized boolean write(HostTrie<HostEntry> trie) {
+        File tempFile = new File(this.file.getParentFile(), FILE_NAME + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+            trie.write(outputStream, HostRulesSnapshot::writeEntry);
+            outputStream.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write host rules snapshot.", e);
+            deleteTempFile(tempFile);
+            return false;
+        }
+        if (!tempFile.renameTo(this.file)) {
+            Log.w(TAG, "Failed to replace host rules snapshot.");
+            deleteTempFile(tempFile);
+            return false;
+        }
+        return true;
+    }
+
+    private static void deleteTempFile(File tempFile) {
+        if (tempFile.exists() && !tempFile.delete()) {
+            Log.w(TAG, "Failed to delete temporary host rules snapshot.");
+        }
+    }
+
+    private static void writeEntry(DataOutput output, HostEntry entry) throws IOException {
+        output.writeInt(entry.getType().getValue());
+        String redirection = entry.getRedirection();
+        output.writeBoolean(redirection != null);
+        if (redirection != null) {
+            output.writeUTF(redirection);
+        }
+    }
+
+    private static HostEntry readEntry(DataInput input) throws IOException {
+        ListType type;
+        try {
+            type = ListType.fromValue(input.readInt());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid host entry type.", e);
+        }
+        String redirection = input.readBoolean() ? input.readUTF() : null;
+        HostEntry entry = new HostEntry();
+        entry.setHost("");
+        entry.setType(type);
+        entry.setRedirection(redirection);
+        return entry;
+    }
+}
@@ -0,0 +1,760 @@
+package org.adaway.model.vpn;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * This class is a compiled and read-only trie of host name rules.<br>
+ * Host names are stored label by label from the top level domain so looking up an host name walks
+ * it backwards with one hash probe per label, without allocation nor database access.<br>
+ * Rules can be:
+ * <ul>
+ * <li>exact host names, like {@code ads.example.com},</li>
+ * <li>subdomain wildcards, like {@code *.example.com}, matching any subdomain of {@code example.com},</li>
+ * <li>wildcard host names using {@code *} for any character sequence and {@code ?} for any character,
+ * like {@code ad?.example*.com}. They are anchored to the node of their labels following the last
+ * wildcard and only evaluated when an host name reaches this node.</li>
+ * </ul>
+ * When several rules match an host name, the greatest value according the trie comparator wins.
+ * The most specific rule wins on equality.<br>
+ * Labels are compared ignoring ASCII case.<br>
+ * The trie can be written as a versioned and checksummed snapshot, and read back from a buffer
+ * without copying its tables, so a memory mapped snapshot is looked up in place.
+ *
+ * @param <V> The type of values bound to host names.
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class HostTrie<V> {
+    /**
+     * The root node index.
+     */
+    private static final int ROOT = 0;
+    /**
+     * The value index of nodes without value.
+     */
+    private static final int NO_VALUE = -1;
+    /**
+     * The subdomain wildcard prefix.
+     */
+    private static final String SUBDOMAIN_WILDCARD = "*.";
+    /**
+     * The snapshot magic number and format version.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x41444854;
+    static final int SNAPSHOT_VERSION = 1;
+    /**
+     * The snapshot header length: magic number, version, then the table lengths and the number of rules.
+     */
+    private static final int SNAPSHOT_HEADER_LENGTH = 9 * Integer.BYTES;
+    /**
+     * The label characters of all nodes, node labels are stored in node creation order.
+     */
+    private final CharBuffer labels;
+    /**
+     * The offset of each node label in {@link #labels} (with one extra offset for the label end of the last node).
+     */
+    private final IntBuffer labelOffsets;
+    /**
+     * The parent node index of each node.
+     */
+    private final IntBuffer parents;
+    /**
+     * The exact rule value index of each node ({@link #NO_VALUE} if none).
+     */
+    private final IntBuffer valueIndexes;
+    /**
+     * The subdomain rule value index of each node ({@link #NO_VALUE} if none).
+     */
+    private final IntBuffer subdomainValueIndexes;
+    /**
+     * The first wildcard rule index of each node ({@link #NO_VALUE} if none).
+     */
+    private final IntBuffer wildcardHeads;
+    /**
+     * The wildcard rule pattern characters, without their anchor labels.
+     */
+    private final CharBuffer wildcardPatterns;
+    /**
+     * The offset of each wildcard rule pattern in {@link #wildcardPatterns} (with one extra offset for the pattern
+     * end of the last wildcard rule).
+     */
+    private final IntBuffer wildcardPatternOffsets;
+    /**
+     * The wildcard rule value indexes.
+     */
+    private final IntBuffer wildcardValueIndexes;
+    /**
+     * The next wildcard rule index of the same node ({@link #NO_VALUE} if none).
+     */
+    private final IntBuffer wildcardNexts;
+    /**
+     * The distinct values.
+     */
+    private final Object[] values;
+    /**
+     * The comparator to select the value among matching rules.
+     */
+    private final Comparator<? super V> comparator;
+    /**
+     * The open addressing table from (parent node, label) to child node index plus one ({@code 0} if empty).
+     */
+    private final IntBuffer edges;
+    /**
+     * The number of rules.
+     */
+    private final int size;
+
+    private HostTrie(CharBuffer labels, IntBuffer labelOffsets, IntBuffer parents, IntBuffer valueIndexes,
+                     IntBuffer subdomainValueIndexes, IntBuffer wildcardHeads, CharBuffer wildcardPatterns,
+                     IntBuffer wildcardPatternOffsets, IntBuffer wildcardValueIndexes, IntBuffer wildcardNexts,
+                     IntBuffer edges, Object[] values, Comparator<? super V> comparator, int size) {
+        this.labels = labels;
+        this.labelOffsets = labelOffsets;
+        this.parents = parents;
+        this.valueIndexes = valueIndexes;
+        this.subdomainValueIndexes = subdomainValueIndexes;
+        this.wildcardHeads = wildcardHeads;
+        this.wildcardPatterns = wildcardPatterns;
+        this.wildcardPatternOffsets = wildcardPatternOffsets;
+        this.wildcardValueIndexes = wildcardValueIndexes;
+        this.wildcardNexts = wildcardNexts;
+        this.edges = edges;
+        this.values = values;
+        this.comparator = comparator;
+        this.size = size;
+    }
+
+    /**
+     * Read a trie from a snapshot.<br>
+     * The trie tables are views of the snapshot buffer, only the values are decoded.
+     *
+     * @param buffer      The snapshot buffer.
+     * @param comparator  The comparator to select the value among matching rules.
+     * @param valueReader The reader of the trie values.
+     * @param <V>         The type of values bound to host names.
+     * @return The read trie.
+     * @throws IOException If the snapshot is invalid or of another format version.
+     */
+    static <V> HostTrie<V> read(ByteBuffer buffer, Comparator<? super V> comparator,
+                                ValueReader<? extends V> valueReader) throws IOException {
+        ByteBuffer data = buffer.slice();
+        int length = data.remaining();
+        if (length < SNAPSHOT_HEADER_LENGTH + Integer.BYTES) {
+            throw new IOException("Truncated host trie snapshot.");
+        }
+        // Check snapshot checksum
+        ByteBuffer content = data.duplicate();
+        content.limit(length - Integer.BYTES);
+        CRC32 checksum = new CRC32();
+        checksum.update(content);
+        if ((int) checksum.getValue() != data.getInt(length - Integer.BYTES)) {
+            throw new IOException("Invalid host trie snapshot checksum.");
+        }
+        // Check snapshot header
+        if (data.getInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Invalid host trie snapshot.");
+        }
+        int version = data.getInt();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported host trie snapshot version " + version + ".");
+        }
+        int nodeCount = data.getInt();
+        int labelLength = data.getInt();
+        int wildcardCount = data.getInt();
+        int wildcardPatternLength = data.getInt();
+        int edgeCount = data.getInt();
+        int valueCount = data.getInt();
+        int size = data.getInt();
+        long tablesLength = Integer.BYTES * (5L * nodeCount + 1 + 3L * wildcardCount + 1 + edgeCount)
+                + Character.BYTES * ((long) labelLength + wildcardPatternLength);
+        if (nodeCount < 1 || labelLength < 0 || wildcardCount < 0 || wildcardPatternLength < 0
+                || Integer.bitCount(edgeCount) != 1 || valueCount < 0
+                || tablesLength > data.remaining() - Integer.BYTES) {
+            throw new IOException("Invalid host trie snapshot tables.");
+        }
+        // Map trie tables
+        IntBuffer labelOffsets = sliceInts(data, nodeCount + 1);
+        IntBuffer parents = sliceInts(data, nodeCount);
+        IntBuffer valueIndexes = sliceInts(data, nodeCount);
+        IntBuffer subdomainValueIndexes = sliceInts(data, nodeCount);
+        IntBuffer wildcardHeads = sliceInts(data, nodeCount);
+        IntBuffer wildcardPatternOffsets = sliceInts(data, wildcardCount + 1);
+        IntBuffer wildcardValueIndexes = sliceInts(data, wildcardCount);
+        IntBuffer wildcardNexts = sliceInts(data, wildcardCount);
+        IntBuffer edges = sliceInts(data, edgeCount);
+        CharBuffer labels = sliceChars(data, labelLength);
+        CharBuffer wildcardPatterns = sliceChars(data, wildcardPatternLength);
+        // Decode values
+        byte[] valueBytes = new byte[data.remaining() - Integer.BYTES];
+        data.get(valueBytes);
+        DataInputStream valueInput = new DataInputStream(new ByteArrayInputStream(valueBytes));
+        Object[] values = new Object[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            values[i] = valueReader.read(valueInput);
+        }
+        return new HostTrie<>(labels, labelOffsets, parents, valueIndexes, subdomainValueIndexes, wildcardHeads,
+                wildcardPatterns, wildcardPatternOffsets, wildcardValueIndexes, wildcardNexts, edges, values,
+                comparator, size);
+    }
+
+    private static IntBuffer sliceInts(ByteBuffer data, int count) {
+        ByteBuffer slice = data.slice();
+        slice.limit(count * Integer.BYTES);
+        data.position(data.position() + count * Integer.BYTES);
+        return slice.asIntBuffer();
+    }
+
+    private static CharBuffer sliceChars(ByteBuffer data, int count) {
+        ByteBuffer slice = data.slice();
+        slice.limit(count * Character.BYTES);
+        data.position(data.position() + count * Character.BYTES);
+        return slice.asCharBuffer();
+    }
+
+    /**
+     * Write the trie as a snapshot, to be read with {@link #read(ByteBuffer, Comparator, ValueReader)}.
+     *
+     * @param outputStream The stream to write the snapshot to.
+     * @param valueWriter  The writer of the trie values.
+     * @throws IOException If the snapshot could not be written.
+     */
+    @SuppressWarnings("unchecked")
+    void write(OutputStream outputStream, ValueWriter<? super V> valueWriter) throws IOException {
+        BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(outputStream);
+        CheckedOutputStream checkedOutputStream = new CheckedOutputStream(bufferedOutputStream, new CRC32());
+        DataOutputStream output = new DataOutputStream(checkedOutputStream);
+        int nodeCount = this.parents.limit();
+        int wildcardCount = this.wildcardValueIndexes.limit();
+        output.writeInt(SNAPSHOT_MAGIC);
+        output.writeInt(SNAPSHOT_VERSION);
+        output.writeInt(nodeCount);
+        output.writeInt(this.labels.limit());
+        output.writeInt(wildcardCount);
+        output.writeInt(this.wildcardPatterns.limit());
+        output.writeInt(this.edges.limit());
+        output.writeInt(this.values.length);
+        output.writeInt(this.size);
+        writeInts(output, this.labelOffsets);
+        writeInts(output, this.parents);
+        writeInts(output, this.valueIndexes);
+        writeInts(output, this.subdomainValueIndexes);
+        writeInts(output, this.wildcardHeads);
+        writeInts(output, this.wildcardPatternOffsets);
+        writeInts(output, this.wildcardValueIndexes);
+        writeInts(output, this.wildcardNexts);
+        writeInts(output, this.edges);
+        writeChars(output, this.labels);
+        writeChars(output, this.wildcardPatterns);
+        for (Object value : this.values) {
+            valueWriter.write(output, (V) value);
+        }
+        output.flush();
+        // Append checksum of the written snapshot
+        new DataOutputStream(bufferedOutputStream).writeInt((int) checkedOutputStream.getChecksum().getValue());
+        bufferedOutputStream.flush();
+    }
+
+    private static void writeInts(DataOutputStream output, IntBuffer buffer) throws IOException {
+        for (int i = 0; i < buffer.limit(); i++) {
+            output.writeInt(buffer.get(i));
+        }
+    }
+
+    private static void writeChars(DataOutputStream output, CharBuffer buffer) throws IOException {
+        for (int i = 0; i < buffer.limit(); i++) {
+            output.writeChar(buffer.get(i));
+        }
+    }
+
+    /**
+     * Get the value of the rules matching an host name.
+     *
+     * @param host The host name to look for.
+     * @return The value of the matching rules, {@code null} if no rule matches the host name.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    V get(CharSequence host) {
+        int end = host.length();
+        if (end > 0 && host.charAt(end - 1) == '.') {
+            end--;
+        }
+        if (end == 0) {
+            return null;
+        }
+        // Check wildcard rules without anchor labels
+        int valueIndex = matchWildcards(ROOT, host, end, NO_VALUE);
+        // Walk labels from the top level domain
+        int node = ROOT;
+        while (end >= 0) {
+            int start = end - 1;
+            while (start >= 0 && host.charAt(start) != '.') {
+                start--;
+            }
+            start++;
+            if (start == end) {
+                return null;
+            }
+            node = findChild(node, host, start, end);
+            if (node == NO_VALUE) {
+                break;
+            }
+            if (start > 0) {
+                valueIndex = select(valueIndex, this.subdomainValueIndexes.get(node));
+                valueIndex = matchWildcards(node, host, start, valueIndex);
+            } else {
+                valueIndex = select(valueIndex, this.valueIndexes.get(node));
+            }
+            end = start - 1;
+        }
+        return valueIndex == NO_VALUE ? null : (V) this.values[valueIndex];
+    }
+
+    /**
+     * Get the number of rules.
+     *
+     * @return The number of rules.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Get the distinct values bound to host names.
+     *
+     * @return The distinct values.
+     */
+    @SuppressWarnings("unchecked")
+    List<V> getValues() {
+        return (List<V>) Arrays.asList(this.values);
+    }
+
+    private int matchWildcards(int node, CharSequence host, int end, int valueIndex) {
+        for (int wildcard = this.wildcardHeads.get(node); wildcard != NO_VALUE; wildcard = this.wildcardNexts.get(wildcard)) {
+            int patternStart = this.wildcardPatternOffsets.get(wildcard);
+            int patternEnd = this.wildcardPatternOffsets.get(wildcard + 1);
+            if (matches(this.wildcardPatterns, patternStart, patternEnd, host, end)) {
+                valueIndex = select(valueIndex, this.wildcardValueIndexes.get(wildcard));
+            }
+        }
+        return valueIndex;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int select(int currentIndex, int candidateIndex) {
+        if (candidateIndex == NO_VALUE) {
+            return currentIndex;
+        }
+        if (currentIndex == NO_VALUE) {
+            return candidateIndex;
+        }
+        V current = (V) this.values[currentIndex];
+        V candidate = (V) this.values[candidateIndex];
+        return this.comparator.compare(candidate, current) >= 0 ? candidateIndex : currentIndex;
+    }
+
+    private int findChild(int parent, CharSequence host, int start, int end) {
+        int mask = this.edges.limit() - 1;
+        int slot = hash(parent, host, start, end) & mask;
+        int entry;
+        while ((entry = this.edges.get(slot)) != 0) {
+            int child = entry - 1;
+            if (this.parents.get(child) == parent && labelEquals(this.labels, this.labelOffsets.get(child), this.labelOffsets.get(child + 1), host, start, end)) {
+                return child;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Check whether the beginning of an host name matches a wildcard pattern.
+     *
+     * @param patterns     The lower case pattern characters.
+     * @param patternStart The start index of the pattern to match.
+     * @param patternEnd   The end index of the pattern to match.
+     * @param host         The host name to check.
+     * @param end          The end index of the host name part to check.
+     * @return {@code true} if the host name part matches the pattern, {@code false} otherwise.
+     */
+    private static boolean matches(CharBuffer patterns, int patternStart, int patternEnd, CharSequence host, int end) {
+        int p = patternStart;
+        int h = 0;
+        int starP = NO_VALUE;
+        int starH = 0;
+        while (h < end) {
+            if (p < patternEnd) {
+                char c = patterns.get(p);
+                if (c == '*') {
+                    starP = p++;
+                    starH = h;
+                    continue;
+                }
+                if (c == '?' || c == toLowerCase(host.charAt(h))) {
+                    p++;
+                    h++;
+                    continue;
+                }
+            }
+            if (starP == NO_VALUE) {
+                return false;
+            }
+            // Backtrack to the last star and let it match one more character
+            p = starP + 1;
+            h = ++starH;
+        }
+        while (p < patternEnd && patterns.get(p) == '*') {
+            p++;
+        }
+        return p == patternEnd;
+    }
+
+    private static int hash(int parent, CharSequence host, int start, int end) {
+        int hash = parent * 0x9E3779B9;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + toLowerCase(host.charAt(i));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int edgeHash(int parent, char[] labels, int start, int end) {
+        int hash = parent * 0x9E3779B9;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + labels[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean labelEquals(CharBuffer labels, int labelStart, int labelEnd, CharSequence host, int start, int end) {
+        if (labelEnd - labelStart != end - start) {
+            return false;
+        }
+        for (int i = labelStart, j = start; i < labelEnd; i++, j++) {
+            if (labels.get(i) != toLowerCase(host.charAt(j))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean labelEquals(char[] labels, int labelStart, int labelEnd, CharSequence host, int start, int end) {
+        if (labelEnd - labelStart != end - start) {
+            return false;
+        }
+        for (int i = labelStart, j = start; i < labelEnd; i++, j++) {
+            if (labels[i] != toLowerCase(host.charAt(j))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static int tableSize(int nodeCount) {
+        // Keep load factor under 0.5
+        return Integer.highestOneBit(Math.max(nodeCount, 8) * 2 - 1) << 1;
+    }
+
+    private static void insertEdge(int[] edges, int node, int hash) {
+        int mask = edges.length - 1;
+        int slot = hash & mask;
+        while (edges[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        edges[slot] = node + 1;
+    }
+
+    /**
+     * This class is a {@link HostTrie} builder.<br>
+     * It is not thread safe and should be discarded once the trie built.
+     *
+     * @param <V> The type of values bound to host names.
+     */
+    static class Builder<V> {
+        private final Comparator<? super V> comparator;
+        private final Map<V, Integer> values;
+        private final List<V> valueList;
+        private final List<String> wildcardPatterns;
+        private final List<Integer> wildcardNodes;
+        private final List<Integer> wildcardValueIndexes;
+        private char[] labels;
+        private int[] labelOffsets;
+        private int[] parents;
+        private int[] valueIndexes;
+        private int[] subdomainValueIndexes;
+        private int[] edges;
+        private int nodeCount;
+        private int size;
+
+        /**
+         * Constructor.
+         *
+         * @param comparator The comparator to select the value among matching rules.
+         */
+        Builder(Comparator<? super V> comparator) {
+            this.comparator = comparator;
+            this.values = new IdentityHashMap<>();
+            this.valueList = new ArrayList<>();
+            this.wildcardPatterns = new ArrayList<>();
+            this.wildcardNodes = new ArrayList<>();
+            this.wildcardValueIndexes = new ArrayList<>();
+            this.labels = new char[1024];
+            this.labelOffsets = new int[257];
+            this.parents = new int[256];
+            this.valueIndexes = new int[256];
+            this.subdomainValueIndexes = new int[256];
+            this.edges = new int[512];
+            // Create root node
+            this.parents[ROOT] = NO_VALUE;
+            this.valueIndexes[ROOT] = NO_VALUE;
+            this.subdomainValueIndexes[ROOT] = NO_VALUE;
+            this.nodeCount = 1;
+        }
+
+        /**
+         * Bind a value to an host name rule.<br>
+         * The rule could be an host name or a wildcard host name.
+         * Binding a value to an already bound exact or subdomain rule replaces the previous value
+         * unless the previous value is greater according the comparator.
+         * Values are compared by identity, so shared values should be reused to keep the trie compact.
+         *
+         * @param rule  The host name rule to bind the value to.
+         * @param value The value to bind.
+         * @return This builder instance.
+         */
+        Builder<V> put(String rule, V value) {
+            int end = rule.length();
+            if (end > 0 && rule.charAt(end - 1) == '.') {
+                end--;
+            }
+            int lastWildcard = Math.max(rule.lastIndexOf('*', end - 1), rule.lastIndexOf('?', end - 1));
+            // Check exact host name
+            if (lastWildcard == NO_VALUE) {
+                int node = getOrCreateNode(rule, 0, end);
+                if (node != NO_VALUE) {
+                    this.valueIndexes[node] = replace(this.valueIndexes[node], value);
+                }
+                return this;
+            }
+            // Look for the labels following the last wildcard to anchor the rule
+            int anchorStart = rule.indexOf('.', lastWildcard) + 1;
+            if (anchorStart == 0 || anchorStart >= end) {
+                addWildcard(ROOT, rule.substring(0, end), value);
+                return this;
+            }
+            int node = getOrCreateNode(rule, anchorStart, end);
+            if (node == NO_VALUE) {
+                return this;
+            }
+            // Check subdomain wildcard
+            if (anchorStart == SUBDOMAIN_WILDCARD.length() && rule.startsWith(SUBDOMAIN_WILDCARD)) {
+                this.subdomainValueIndexes[node] = replace(this.subdomainValueIndexes[node], value);
+            } else {
+                addWildcard(node, rule.substring(0, anchorStart), value);
+            }
+            return this;
+        }
+
+        /**
+         * Build the trie.
+         *
+         * @return The built trie.
+         */
+        HostTrie<V> build() {
+            int nodeCount = this.nodeCount;
+            int[] wildcardHeads = new int[nodeCount];
+            Arrays.fill(wildcardHeads, NO_VALUE);
+            int wildcardCount = this.wildcardPatterns.size();
+            int[] wildcardPatternOffsets = new int[wildcardCount + 1];
+            StringBuilder wildcardPatterns = new StringBuilder();
+            int[] wildcardValueIndexes = new int[wildcardCount];
+            int[] wildcardNexts = new int[wildcardCount];
+            for (int i = 0; i < wildcardCount; i++) {
+                wildcardPatterns.append(this.wildcardPatterns.get(i));
+                wildcardPatternOffsets[i + 1] = wildcardPatterns.length();
+                int node = this.wildcardNodes.get(i);
+                wildcardValueIndexes[i] = this.wildcardValueIndexes.get(i);
+                wildcardNexts[i] = wildcardHeads[node];
+                wildcardHeads[node] = i;
+            }
+            int[] parents = Arrays.copyOf(this.parents, nodeCount);
+            int[] labelOffsets = Arrays.copyOf(this.labelOffsets, nodeCount + 1);
+            int[] edges = new int[tableSize(nodeCount)];
+            for (int node = 1; node < nodeCount; node++) {
+                insertEdge(edges, node, edgeHash(parents[node], this.labels, labelOffsets[node], labelOffsets[node + 1]));
+            }
+            return new HostTrie<>(
+                    CharBuffer.wrap(Arrays.copyOf(this.labels, labelOffsets[nodeCount])),
+                    IntBuffer.wrap(labelOffsets),
+                    IntBuffer.wrap(parents),
+                    IntBuffer.wrap(Arrays.copyOf(this.valueIndexes, nodeCount)),
+                    IntBuffer.wrap(Arrays.copyOf(this.subdomainValueIndexes, nodeCount)),
+                    IntBuffer.wrap(wildcardHeads),
+                    CharBuffer.wrap(wildcardPatterns.toString().toCharArray()),
+                    IntBuffer.wrap(wildcardPatternOffsets),
+                    IntBuffer.wrap(wildcardValueIndexes),
+                    IntBuffer.wrap(wildcardNexts),
+                    IntBuffer.wrap(edges),
+                    this.valueList.toArray(),
+                    this.comparator,
+                    this.size
+            );
+        }
+
+        private int replace(int currentIndex, V value) {
+            if (currentIndex == NO_VALUE) {
+                this.size++;
+            } else if (this.comparator.compare(value, this.valueList.get(currentIndex)) < 0) {
+                return currentIndex;
+            }
+            return getValueIndex(value);
+        }
+
+        private void addWildcard(int node, String pattern, V value) {
+            StringBuilder lowerCasePattern = new StringBuilder(pattern.length());
+            for (int i = 0; i < pattern.length(); i++) {
+                lowerCasePattern.append(toLowerCase(pattern.charAt(i)));
+            }
+            this.wildcardPatterns.add(lowerCasePattern.toString());
+            this.wildcardNodes.add(node);
+            this.wildcardValueIndexes.add(getValueIndex(value));
+            this.size++;
+        }
+
+        private int getValueIndex(V value) {
+            Integer valueIndex = this.values.get(value);
+            if (valueIndex == null) {
+                valueIndex = this.valueList.size();
+                this.values.put(value, valueIndex);
+                this.valueList.add(value);
+            }
+            return valueIndex;
+        }
+
+        private int getOrCreateNode(CharSequence host, int offset, int end) {
+            if (end == offset) {
+                return NO_VALUE;
+            }
+            int node = ROOT;
+            while (end >= offset) {
+                int start = end - 1;
+                while (start >= offset && host.charAt(start) != '.') {
+                    start--;
+                }
+                start++;
+                if (start == end) {
+                    return NO_VALUE;
+                }
+                node = getOrCreateChild(node, host, start, end);
+                end = start - 1;
+            }
+            return node;
+        }
+
+        private int getOrCreateChild(int parent, CharSequence host, int start, int end) {
+            int mask = this.edges.length - 1;
+            int slot = hash(parent, host, start, end) & mask;
+            int entry;
+            while ((entry = this.edges[slot]) != 0) {
+                int child = entry - 1;
+                if (this.parents[child] == parent && labelEquals(this.labels, this.labelOffsets[child], this.labelOffsets[child + 1], host, start, end)) {
+                    return child;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int child = createNode(parent, host, start, end);
+            this.edges[slot] = child + 1;
+            if (this.nodeCount * 2 > this.edges.length) {
+                rehash();
+            }
+            return child;
+        }
+
+        private int createNode(int parent, CharSequence host, int start, int end) {
+            int node = this.nodeCount++;
+            if (node >= this.parents.length) {
+                int capacity = this.parents.length * 2;
+                this.parents = Arrays.copyOf(this.parents, capacity);
+                this.valueIndexes = Arrays.copyOf(this.valueIndexes, capacity);
+                this.subdomainValueIndexes = Arrays.copyOf(this.subdomainValueIndexes, capacity);
+                this.labelOffsets = Arrays.copyOf(this.labelOffsets, capacity + 1);
+            }
+            int labelStart = this.labelOffsets[node];
+            int labelEnd = labelStart + end - start;
+            if (labelEnd > this.labels.length) {
+                this.labels = Arrays.copyOf(this.labels, Math.max(labelEnd, this.labels.length * 2));
+            }
+            for (int i = start, j = labelStart; i < end; i++, j++) {
+                this.labels[j] = toLowerCase(host.charAt(i));
+            }
+            this.labelOffsets[node + 1] = labelEnd;
+            this.parents[node] = parent;
+            this.valueIndexes[node] = NO_VALUE;
+            this.subdomainValueIndexes[node] = NO_VALUE;
+            return node;
+        }
+
+        private void rehash() {
+            this.edges = new int[this.edges.length * 2];
+            for (int node = 1; node < this.nodeCount; node++) {
+                insertEdge(this.edges, node, edgeHash(this.parents[node], this.labels, this.labelOffsets[node], this.labelOffsets[node + 1]));
+            }
+        }
+    }
+
+    /**
+     * This interface writes the values of a trie snapshot.
+     *
+     * @param <V> The type of values bound to host names.
+     */
+    @FunctionalInterface
+    interface ValueWriter<V> {
+        /**
+         * Write a value.
+         *
+         * @param output The output to write the value to.
+         * @param value  The value to write.
+         * @throws IOException If the value could not be written.
+         */
+        void write(DataOutput output, V value) throws IOException;
+    }
+
+    /**
+     * This interface reads the values of a trie snapshot.
+     *
+     * @param <V> The type of values bound to host names.
+     */
+    @FunctionalInterface
+    interface ValueReader<V> {
+        /**
+         * Read a value.
+         *
+         * @param input The input to read the value from.
+         * @return The read value.
+         * @throws IOException If the value could not be read.
+         */
+        V read(DataInput input) throws IOException;
+    }
+}
@@ -3,19 +3,28 @@ package org.adaway.model.vpn;
 import android.content.Context;
 import android.util.LruCache;
 
+import androidx.annotation.Nullable;
+
 import org.adaway.R;
 import org.adaway.db.AppDatabase;
 import org.adaway.db.dao.HostEntryDao;
+import org.adaway.db.dao.HostListItemDao;
 import org.adaway.db.entity.HostEntry;
 import org.adaway.model.adblocking.AdBlockMethod;
 import org.adaway.model.adblocking.AdBlockModel;
 import org.adaway.model.error.HostErrorException;
+import org.adaway.util.AppExecutors;
 import org.adaway.util.Log;
 import org.adaway.vpn.VpnService;
 
+import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static org.adaway.model.adblocking.AdBlockMethod.VPN;
 import static org.adaway.model.error.HostError.ENABLE_VPN_FAIL;
@@ -27,11 +36,48 @@ import static org.adaway.model.error.HostError.ENABLE_VPN_FAIL;
  */
 public class VpnModel extends AdBlockModel {
     private static final String TAG = "VpnModel";
+    /**
+     * The number of recently queried host names kept to warm up the next rule set (a power of two).
+     */
+    private static final int HOT_HOST_COUNT = 256;
+    /**
+     * The rate of host name lookups sampled as recently queried host names.
+     */
+    private static final int HOT_HOST_SAMPLING_RATE = 16;
+    private final HostListItemDao hostListItemDao;
     private final HostEntryDao hostEntryDao;
     private final LruCache<String, HostEntry> blockCache;
-    private final LinkedHashSet<String> logs;
-    private boolean recordingLogs;
-    private int requestCount;
+    /**
+     * The snapshot of the last compiled host rules.
+     */
+    private final HostRulesSnapshot hostRulesSnapshot;
+    /**
+     * The compiler of the host rules, off the calling thread.
+     */
+    private final HostRulesCompiler hostRulesCompiler;
+    /**
+     * The compiled host rules ({@code null} until loaded, {@link #blockCache} is used instead).
+     */
+    private volatile HostRuleSet ruleSet;
+    /**
+     * The version of the last loaded or compiled host rules.
+     */
+    private final AtomicInteger ruleSetVersion;
+    /**
+     * The number of host rules compilations in progress, recently queried host names are only sampled meanwhile.
+     */
+    private final AtomicInteger pendingCompilationCount;
+    /**
+     * The sampled recently queried host names, to warm up the next rule set.
+     */
+    private final AtomicReferenceArray<String> hotHosts;
+    private final AtomicInteger hotHostIndex;
+    /**
+     * The queried host names, recorded by the VPN query workers.
+     */
+    private final Set<String> logs;
+    private volatile boolean recordingLogs;
+    private final AtomicInteger requestCount;
 
     /**
      * Constructor.
@@ -41,6 +87,7 @@ public class VpnModel extends AdBlockModel {
     public VpnModel(Context context) {
         super(context);
         AppDatabase database = AppDatabase.getInstance(context);
+        this.hostListItemDao = database.hostsListItemDao();
         this.hostEntryDao = database.hostEntryDao();
         this.blockCache = new LruCache<String, HostEntry>(4 * 1024) {
             @Override
@@ -48,10 +95,21 @@ public class VpnModel extends AdBlockModel {
                 return VpnModel.this.hostEntryDao.getEntry(key);
             }
         };
-        this.logs = new LinkedHashSet<>();
+        this.hostRulesSnapshot = new HostRulesSnapshot(context);
+        this.hostRulesCompiler = new HostRulesCompiler(
+                this.hostListItemDao,
+                this.hostRulesSnapshot,
+                AppExecutors.getInstance().diskIO()
+        );
+        this.ruleSetVersion = new AtomicInteger();
+        this.pendingCompilationCount = new AtomicInteger();
+        this.hotHosts = new AtomicReferenceArray<>(HOT_HOST_COUNT);
+        this.hotHostIndex = new AtomicInteger();
+        this.logs = Collections.synchronizedSet(new LinkedHashSet<>());
         this.recordingLogs = false;
-        this.requestCount = 0;
+        this.requestCount = new AtomicInteger();
         this.applied.postValue(VpnService.isStarted(context));
+        AppExecutors.getInstance().diskIO().execute(this::loadHostRules);
     }
 
     @Override
@@ -61,6 +119,8 @@ public class VpnModel extends AdBlockModel {
 
     @Override
     public void apply() throws HostErrorException {
+        // Compile host rules in background
+        compileHostRules();
         // Clear cache
         this.blockCache.evictAll();
         // Start VPN
@@ -90,7 +150,9 @@ public class VpnModel extends AdBlockModel {
 
     @Override
     public List<String> getLogs() {
-        return new ArrayList<>(this.logs);
+        synchronized (this.logs) {
+            return new ArrayList<>(this.logs);
+        }
     }
 
     @Override
@@ -99,26 +161,119 @@ public class VpnModel extends AdBlockModel {
     }
 
     /**
-     * Checks host entry related to an host name.
+     * Load the host rules applied last from their snapshot, or compile them if there is no valid snapshot.
+     */
+    private void loadHostRules() {
+        long startTime = System.currentTimeMillis();
+        int version = this.ruleSetVersion.incrementAndGet();
+        HostTrie<HostEntry> trie = this.hostRulesSnapshot.map(HostRulesCompiler.TYPE_PRECEDENCE);
+        if (trie == null) {
+            compileHostRules();
+            return;
+        }
+        HostRuleSet ruleSet = new HostRuleSet(version, trie);
+        long endTime = System.currentTimeMillis();
+        if (setRuleSet(ruleSet)) {
+            Log.i(TAG, "Mapped " + ruleSet.size() + " host rules in " + (endTime - startTime) + "ms.");
+        }
+    }
+
+    /**
+     * Compile the enabled hosts list items in background so lookups no more hit the database.<br>
+     * The previous rule set is used until the new one is compiled and warmed up with the recently queried host
+     * names, then they are swapped at once.
+     */
+    private void compileHostRules() {
+        int version = this.ruleSetVersion.incrementAndGet();
+        this.pendingCompilationCount.incrementAndGet();
+        this.hostRulesCompiler.compile(version, this::getHotHosts, ruleSet -> {
+            this.pendingCompilationCount.decrementAndGet();
+            if (ruleSet != null) {
+                setRuleSet(ruleSet);
+            }
+        });
+    }
+
+    /**
+     * Set the host rules to look up, unless later ones are already set.
      *
-     * @param host A hostname to check.
-     * @return The related host entry.
+     * @param ruleSet The host rules to look up.
+     * @return {@code true} if the host rules are set, {@code false} if they are outdated.
      */
-    public HostEntry getEntry(String host) {
+    private synchronized boolean setRuleSet(HostRuleSet ruleSet) {
+        HostRuleSet currentRuleSet = this.ruleSet;
+        if (currentRuleSet != null && currentRuleSet.getVersion() > ruleSet.getVersion()) {
+            Log.i(TAG, "Discarded outdated host rules version " + ruleSet.getVersion() + ".");
+            return false;
+        }
+        this.ruleSet = ruleSet;
+        return true;
+    }
+
+    /**
+     * Get the sampled recently queried host names.
+     *
+     * @return The recently queried host names.
+     */
+    private List<String> getHotHosts() {
+        List<String> hosts = new ArrayList<>(HOT_HOST_COUNT);
+        for (int i = 0; i < HOT_HOST_COUNT; i++) {
+            String host = this.hotHosts.get(i);
+            if (host != null) {
+                hosts.add(host);
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * Get the address of a host entry redirection.<br>
+     * The redirections of the compiled host rules are parsed only once, when the rules are compiled.
+     * This method can be called concurrently by the VPN query workers.
+     *
+     * @param redirection The host entry redirection.
+     * @return The redirection address, {@code null} if the redirection is not a valid IP address.
+     */
+    @Nullable
+    public InetAddress getRedirectionAddress(String redirection) {
+        HostRuleSet ruleSet = this.ruleSet;
+        InetAddress address = ruleSet == null ? null : ruleSet.getRedirectionAddress(redirection);
+        return address == null ? HostRuleSet.parseRedirection(redirection) : address;
+    }
+
+    /**
+     * Checks host entry related to an host name.<br>
+     * Entries may be shared between host names, only their type and redirection are relevant.
+     * This method can be called concurrently by the VPN query workers.
+     *
+     * @param host A lower case hostname to check.
+     * @return The related host entry, {@code null} if the host name has no entry.
+     */
+    public HostEntry getEntry(CharSequence host) {
         // Compute miss rate periodically
-        this.requestCount++;
-        if (this.requestCount >= 1000) {
+        int requestCount = this.requestCount.incrementAndGet();
+        if (requestCount >= 1000) {
             int hits = this.blockCache.hitCount();
             int misses = this.blockCache.missCount();
             double missRate = 100D * (hits + misses) / misses;
             Log.d(TAG, "Host cache miss rate: " + missRate);
-            this.requestCount = 0;
+            this.requestCount.set(0);
         }
         // Add host to logs
         if (this.recordingLogs) {
-            this.logs.add(host);
+            this.logs.add(host.toString());
+        }
+        // Sample recently queried host names while compiling the next rule set
+        if (this.pendingCompilationCount.get() > 0 && requestCount % HOT_HOST_SAMPLING_RATE == 0) {
+            int index = this.hotHostIndex.getAndIncrement() & (HOT_HOST_COUNT - 1);
+            this.hotHosts.lazySet(index, host.toString());
+        }
+        // Check compiled host rules
+        HostRuleSet ruleSet = this.ruleSet;
+        if (ruleSet != null) {
+            return ruleSet.get(host);
         }
         // Check cache
-        return this.blockCache.get(host);
+        return this.blockCache.get(host.toString());
     }
 }
@@ -32,6 +32,7 @@ public class PrefsVpnFragment extends PreferenceFragmentCompat {
         // Bind pref actions
         bindExcludedSystemApps();
         bindExcludedUserApps();
+        bindDnsServers();
     }
 
     @Override
@@ -64,6 +65,21 @@ public class PrefsVpnFragment extends PreferenceFragmentCompat {
         });
     }
 
+    private void bindDnsServers() {
+        int[] keys = {
+                R.string.pref_vpn_dns_transport_key,
+                R.string.pref_vpn_dns_server_name_key,
+                R.string.pref_vpn_dns_server_addresses_key
+        };
+        for (int key : keys) {
+            Preference preference = findPreference(getString(key));
+            preference.setOnPreferenceChangeListener((changedPreference, newValue) -> {
+                restartVpn();
+                return true;
+            });
+        }
+    }
+
     private void restartVpn() {
         Context context = requireContext();
         if (VpnService.isStarted(context)) {
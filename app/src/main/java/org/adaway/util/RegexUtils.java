@@ -23,13 +23,15 @@ package org.adaway.util;
 import com.google.common.net.InetAddresses;
 import com.google.common.net.InternetDomainName;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import static org.adaway.util.Constants.TAG;
 
 public class RegexUtils {
-    private static final Pattern WILDCARD_PATTERN = Pattern.compile("[*?]");
+    private static final int MAX_HOSTNAME_LENGTH = 253;
+    private static final int MAX_HOSTNAME_PARTS = 127;
+    private static final int MAX_HOSTNAME_PART_LENGTH = 63;
+    private static final int VALID = 0;
+    private static final int INVALID = 1;
+    private static final int INVALID_WITH_WILDCARDS = 2;
 
     /**
      * Check whether a hostname is valid.
@@ -58,13 +60,96 @@ public class RegexUtils {
      * @return return {@code true} if wildcard hostname is valid, {@code false} otherwise.
      */
     public static boolean isValidWildcardHostname(String hostname) {
-        // Clear wildcards from host name then validate it
-        Matcher matcher = WILDCARD_PATTERN.matcher(hostname);
-        String clearedHostname = matcher.replaceAll("");
-        // Replace wildcards from host name by an alphanumeric character
-        String replacedHostname = matcher.replaceAll("a");
-        // Check if any hostname is valid
-        return isValidHostname(clearedHostname) || isValidHostname(replacedHostname);
+        return isValidWildcardHostname(hostname, 0, hostname.length());
+    }
+
+    /**
+     * Check whether a wildcard hostname is valid without allocating it.<br/>
+     * It follows the same rules as {@link #isValidWildcardHostname(String)}: the host name is first
+     * validated with its wildcards trimmed and only if it has some wildcards, with its wildcards replaced.
+     *
+     * @param sequence The sequence containing the wildcard hostname to validate.
+     * @param start    The hostname start index in the sequence, inclusive.
+     * @param end      The hostname end index in the sequence, exclusive.
+     * @return return {@code true} if wildcard hostname is valid, {@code false} otherwise.
+     */
+    public static boolean isValidWildcardHostname(CharSequence sequence, int start, int end) {
+        int result = checkHostname(sequence, start, end, false);
+        return result == VALID || result == INVALID_WITH_WILDCARDS && checkHostname(sequence, start, end, true) == VALID;
+    }
+
+    /**
+     * Check a hostname in a single pass, following {@link InternetDomainName#isValid(String)} rules.
+     *
+     * @param sequence         The sequence containing the hostname to check.
+     * @param start            The hostname start index in the sequence, inclusive.
+     * @param end              The hostname end index in the sequence, exclusive.
+     * @param replaceWildcards {@code true} to replace wildcards by an alphanumeric character,
+     *                         {@code false} to trim them.
+     * @return {@link #VALID} if the hostname is valid, {@link #INVALID_WITH_WILDCARDS} if it is
+     * invalid but has wildcards or {@link #INVALID} otherwise.
+     */
+    private static int checkHostname(CharSequence sequence, int start, int end, boolean replaceWildcards) {
+        boolean wildcards = false;
+        int length = 0;
+        int partCount = 0;
+        int partLength = 0;
+        char partFirst = 0;
+        char partLast = 0;
+        char previousPartFirst = 0;
+        for (int i = start; i < end; i++) {
+            char c = sequence.charAt(i);
+            if (c == '*' || c == '?') {
+                wildcards = true;
+                if (!replaceWildcards) {
+                    continue;
+                }
+                c = 'a';
+            }
+            length++;
+            if (c == '.' || c == '\u3002' || c == '\uFF0E' || c == '\uFF61') {
+                if (!isValidPart(partLength, partFirst, partLast)) {
+                    return wildcards ? INVALID_WITH_WILDCARDS : INVALID;
+                }
+                partCount++;
+                partLength = 0;
+                previousPartFirst = partFirst;
+                continue;
+            }
+            if (c <= 0x7F && !isPartChar(c)) {
+                // Invalid whatever the wildcards are
+                return INVALID;
+            }
+            if (partLength == 0) {
+                partFirst = c;
+            }
+            partLast = c;
+            partLength++;
+        }
+        boolean valid;
+        if (partLength == 0 && partCount > 0) {
+            // Ignore trailing dot, the final part was the previous one
+            length--;
+            valid = !isDigit(previousPartFirst);
+        } else {
+            partCount++;
+            valid = isValidPart(partLength, partFirst, partLast) && !isDigit(partFirst);
+        }
+        valid &= length <= MAX_HOSTNAME_LENGTH && partCount <= MAX_HOSTNAME_PARTS;
+        return valid ? VALID : wildcards ? INVALID_WITH_WILDCARDS : INVALID;
+    }
+
+    private static boolean isValidPart(int length, char first, char last) {
+        return length >= 1 && length <= MAX_HOSTNAME_PART_LENGTH
+                && first != '-' && first != '_' && last != '-' && last != '_';
+    }
+
+    private static boolean isPartChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || isDigit(c) || c == '-' || c == '_';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
     }
 
     /**
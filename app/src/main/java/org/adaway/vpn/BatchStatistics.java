@@ -0,0 +1,87 @@
+package org.adaway.vpn;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * This class counts the packets handled per wake up of a batched I/O loop.<br>
+ * Batches are recorded by a single thread while the counters can be read from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class BatchStatistics {
+    /**
+     * The number of recorded wake ups.
+     */
+    private volatile long wakeUpCount;
+    /**
+     * The number of packets handled by all wake ups.
+     */
+    private volatile long packetCount;
+    /**
+     * The largest number of packets handled by a single wake up.
+     */
+    private volatile int maxBatchSize;
+
+    /**
+     * Record a wake up.<br>
+     * This method must be called by a single thread.
+     *
+     * @param batchSize The number of packets handled by the wake up.
+     * @return The number of recorded wake ups, including this one.
+     */
+    long record(int batchSize) {
+        long wakeUps = this.wakeUpCount + 1;
+        this.packetCount += batchSize;
+        if (batchSize > this.maxBatchSize) {
+            this.maxBatchSize = batchSize;
+        }
+        this.wakeUpCount = wakeUps;
+        return wakeUps;
+    }
+
+    /**
+     * Get the number of recorded wake ups.
+     *
+     * @return The number of recorded wake ups.
+     */
+    long getWakeUpCount() {
+        return this.wakeUpCount;
+    }
+
+    /**
+     * Get the number of packets handled by all wake ups.
+     *
+     * @return The number of handled packets.
+     */
+    long getPacketCount() {
+        return this.packetCount;
+    }
+
+    /**
+     * Get the largest number of packets handled by a single wake up.
+     *
+     * @return The largest batch size.
+     */
+    int getMaxBatchSize() {
+        return this.maxBatchSize;
+    }
+
+    /**
+     * Get the average number of packets handled per wake up.
+     *
+     * @return The average batch size, {@code 0} if no wake up was recorded.
+     */
+    double getAverageBatchSize() {
+        long wakeUps = this.wakeUpCount;
+        return wakeUps == 0 ? 0 : (double) this.packetCount / wakeUps;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d packets in %d wake ups (%.2f per wake up, %d max)",
+                this.packetCount, this.wakeUpCount, getAverageBatchSize(), this.maxBatchSize);
+    }
+}
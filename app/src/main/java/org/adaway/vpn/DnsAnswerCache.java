@@ -0,0 +1,478 @@
+package org.adaway.vpn;
+
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+import static org.adaway.vpn.DnsQueryPacket.isSpecialCharacter;
+import static org.adaway.vpn.DnsQueryPacket.readShort;
+import static org.adaway.vpn.DnsQueryPacket.skipName;
+import static org.adaway.vpn.UdpResponseBuilder.writeShort;
+import static org.adaway.vpn.UpstreamQuery.findOptRecordClass;
+
+/**
+ * This class caches the upstream DNS server responses, by question name, type and class,
+ * and by the checking disabled and DNSSEC OK flags as they change the response content.<br>
+ * Responses are kept for their smallest record TTL and answered with their TTLs decreased by their age.
+ * Expired responses are only served, with a short TTL, when the upstream DNS server cannot answer,
+ * being backed off or too slow to respond.
+ * The cache is bounded both in entry count and in memory, dropping the least recently used responses first.
+ * It can be used from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class DnsAnswerCache {
+    /**
+     * The default maximum number of cached responses.
+     */
+    private static final int DEFAULT_MAX_ENTRIES = 4096;
+    /**
+     * The default maximum memory of cached responses (in bytes).
+     */
+    private static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+    /**
+     * The estimated memory of an entry besides its response and name (in bytes).
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+    /**
+     * The maximum time to cache a response for (in seconds).
+     */
+    private static final int MAX_TTL = 24 * 60 * 60;
+    /**
+     * The maximum time to serve an expired response for (in seconds).
+     */
+    private static final int MAX_STALE = 24 * 60 * 60;
+    /**
+     * The TTL of served expired responses, also the delay between their refresh queries (in seconds).
+     */
+    static final int STALE_TTL = 30;
+    /**
+     * The DNS header length.
+     */
+    private static final int DNS_HEADER_LENGTH = 12;
+    /**
+     * The DNS OPT record type.
+     */
+    private static final int TYPE_OPT = 41;
+    /**
+     * The DNS response codes to cache.
+     */
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+    /**
+     * The flag bits of the third DNS header byte.
+     */
+    private static final int FLAG_QR = 0x80;
+    private static final int OPCODE_MASK = 0x78;
+    private static final int FLAG_TC = 0x02;
+    /**
+     * The checking disabled flag of the fourth DNS header byte.
+     */
+    private static final int FLAG_CD = 0x10;
+    /**
+     * The DNSSEC OK flag of the first OPT record flags byte.
+     */
+    private static final int FLAG_DO = 0x80;
+
+    private final int maxEntries;
+    private final int maxBytes;
+    private final LongSupplier clock;
+    /**
+     * The cached entries, in least recently used order.
+     */
+    private final LinkedHashMap<Key, Entry> entries;
+    /**
+     * The estimated memory of the cached entries (in bytes).
+     */
+    private int size;
+
+    /**
+     * Constructor.
+     */
+    DnsAnswerCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, SystemClock::elapsedRealtime);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxEntries The maximum number of cached responses.
+     * @param maxBytes   The maximum memory of cached responses (in bytes).
+     * @param clock      The monotonic clock to get the current time from (in milliseconds).
+     */
+    DnsAnswerCache(int maxEntries, int maxBytes, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75F, true);
+        this.size = 0;
+    }
+
+    /**
+     * Get a cached response, if not expired.
+     *
+     * @param name             The lower case question name, without trailing dot.
+     * @param type             The question type.
+     * @param dnsClass         The question class.
+     * @param checkingDisabled Whether the query disables DNSSEC checking.
+     * @param dnssecOk         Whether the query accepts DNSSEC records.
+     * @return The response payload, with the TTLs to serve and the transaction ID of the cached response,
+     * {@code null} if there is no fresh response.
+     */
+    @Nullable
+    byte[] get(CharSequence name, int type, int dnsClass, boolean checkingDisabled, boolean dnssecOk) {
+        long now = this.clock.getAsLong();
+        Entry entry = lookUp(new Key(name.toString(), type, dnsClass, checkingDisabled, dnssecOk), now);
+        if (entry == null || now >= entry.expiryTime) {
+            return null;
+        }
+        return agePayload(entry, now);
+    }
+
+    /**
+     * Get a cached response to serve when the upstream DNS server cannot answer, even if expired.<br>
+     * An expired response is returned with a refresh request at most once per {@link #STALE_TTL}.
+     *
+     * @param name             The lower case question name, without trailing dot.
+     * @param type             The question type.
+     * @param dnsClass         The question class.
+     * @param checkingDisabled Whether the query disables DNSSEC checking.
+     * @param dnssecOk         Whether the query accepts DNSSEC records.
+     * @return The cached answer, {@code null} if there is no response to serve.
+     */
+    @Nullable
+    Answer getStale(CharSequence name, int type, int dnsClass, boolean checkingDisabled, boolean dnssecOk) {
+        return getStale(new Key(name.toString(), type, dnsClass, checkingDisabled, dnssecOk));
+    }
+
+    /**
+     * Get a cached response to serve when the upstream DNS server cannot answer a query, even if expired.
+     *
+     * @param query  The query payload.
+     * @param length The query payload length.
+     * @return The cached answer, {@code null} if there is no response to serve.
+     * @see #getStale(CharSequence, int, int, boolean, boolean)
+     */
+    @Nullable
+    Answer getStale(byte[] query, int length) {
+        Key key = parseQueryKey(query, length);
+        return key == null ? null : getStale(key);
+    }
+
+    @Nullable
+    private Answer getStale(Key key) {
+        long now = this.clock.getAsLong();
+        Entry entry = lookUp(key, now);
+        if (entry == null) {
+            return null;
+        }
+        if (now < entry.expiryTime) {
+            return new Answer(agePayload(entry, now), false);
+        }
+        byte[] payload = entry.response.clone();
+        for (int ttlOffset : entry.ttlOffsets) {
+            writeTtl(payload, ttlOffset, STALE_TTL);
+        }
+        return new Answer(payload, entry.claimRefresh(now));
+    }
+
+    @Nullable
+    private synchronized Entry lookUp(Key key, long now) {
+        Entry entry = this.entries.get(key);
+        if (entry != null && now - entry.expiryTime > MAX_STALE * 1000L) {
+            remove(entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private static byte[] agePayload(Entry entry, long now) {
+        byte[] payload = entry.response.clone();
+        int age = (int) ((now - entry.time) / 1000);
+        for (int i = 0; i < entry.ttlOffsets.length; i++) {
+            writeTtl(payload, entry.ttlOffsets[i], entry.ttls[i] - age);
+        }
+        return payload;
+    }
+
+    /**
+     * Cache a response from an upstream DNS server.<br>
+     * Only successful or name error responses to a single question, with a record to get the TTL from, are cached.
+     *
+     * @param response The response payload.
+     * @param length   The response payload length.
+     */
+    void put(byte[] response, int length) {
+        Entry entry = parse(response, length, this.clock.getAsLong());
+        if (entry == null) {
+            return;
+        }
+        synchronized (this) {
+            Entry previous = this.entries.put(entry.key, entry);
+            if (previous != null) {
+                this.size -= previous.size;
+            }
+            this.size += entry.size;
+            // Drop least recently used entries while the cache is full
+            Iterator<Entry> iterator = this.entries.values().iterator();
+            while ((this.entries.size() > this.maxEntries || this.size > this.maxBytes) && iterator.hasNext()) {
+                this.size -= iterator.next().size;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop all cached responses.
+     */
+    synchronized void clear() {
+        this.entries.clear();
+        this.size = 0;
+    }
+
+    /**
+     * Get the number of cached responses.
+     *
+     * @return The number of cached responses.
+     */
+    synchronized int getEntryCount() {
+        return this.entries.size();
+    }
+
+    private void remove(Entry entry) {
+        if (this.entries.remove(entry.key) != null) {
+            this.size -= entry.size;
+        }
+    }
+
+    @Nullable
+    private static Entry parse(byte[] response, int length, long now) {
+        if (length < DNS_HEADER_LENGTH
+                || (response[2] & (FLAG_QR | OPCODE_MASK | FLAG_TC)) != FLAG_QR
+                || readShort(response, 4) != 1) {
+            return null;
+        }
+        int rcode = response[3] & 0x0F;
+        if (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN) {
+            return null;
+        }
+        int answerCount = readShort(response, 6);
+        int authorityCount = readShort(response, 8);
+        int additionalCount = readShort(response, 10);
+        // Parse question
+        StringBuilder name = new StringBuilder();
+        int offset = parseName(response, DNS_HEADER_LENGTH, length, name);
+        if (offset < 0 || offset + 4 > length) {
+            return null;
+        }
+        int type = readShort(response, offset);
+        int dnsClass = readShort(response, offset + 2);
+        offset += 4;
+        // Parse records TTL
+        int recordCount = answerCount + authorityCount + additionalCount;
+        int[] ttlOffsets = new int[recordCount];
+        int[] ttls = new int[recordCount];
+        int ttlCount = 0;
+        int minTtl = MAX_TTL;
+        int end = length;
+        boolean dnssecOk = false;
+        for (int record = 0; record < recordCount; record++) {
+            int recordOffset = offset;
+            offset = skipName(response, offset, length);
+            if (offset < 0 || offset + 10 > length) {
+                return null;
+            }
+            int recordType = readShort(response, offset);
+            int ttl = readInt(response, offset + 4);
+            int ttlOffset = offset + 4;
+            offset += 10 + readShort(response, offset + 8);
+            if (offset > length) {
+                return null;
+            }
+            if (recordType == TYPE_OPT) {
+                // Drop the OPT record as the EDNS options of the client may differ
+                if (record != recordCount - 1 || offset != length) {
+                    return null;
+                }
+                // Keep the DNSSEC OK flag from the OPT record TTL, after the extended code and version
+                dnssecOk = (response[ttlOffset + 2] & FLAG_DO) != 0;
+                end = recordOffset;
+                break;
+            }
+            // Treat TTL with the most significant bit set as zero
+            if (ttl < 0) {
+                ttl = 0;
+            }
+            ttlOffsets[ttlCount] = ttlOffset;
+            ttls[ttlCount] = ttl;
+            ttlCount++;
+            minTtl = Math.min(minTtl, ttl);
+        }
+        if (offset != length || ttlCount == 0 || minTtl == 0) {
+            return null;
+        }
+        byte[] payload = Arrays.copyOf(response, end);
+        if (end != length) {
+            writeShort(payload, 10, additionalCount - 1);
+        }
+        Key key = new Key(name.toString(), type, dnsClass, (response[3] & FLAG_CD) != 0, dnssecOk);
+        return new Entry(key, payload, Arrays.copyOf(ttlOffsets, ttlCount), Arrays.copyOf(ttls, ttlCount),
+                now, now + minTtl * 1000L);
+    }
+
+    @Nullable
+    private static Key parseQueryKey(byte[] query, int length) {
+        if (length < DNS_HEADER_LENGTH || readShort(query, 4) != 1) {
+            return null;
+        }
+        StringBuilder name = new StringBuilder();
+        int offset = parseName(query, DNS_HEADER_LENGTH, length, name);
+        if (offset < 0 || offset + 4 > length) {
+            return null;
+        }
+        // The OPT record class is followed by the extended code and version then the flags
+        int optClassOffset = findOptRecordClass(query, 0, length);
+        boolean dnssecOk = optClassOffset >= 0 && (query[optClassOffset + 4] & FLAG_DO) != 0;
+        return new Key(name.toString(), readShort(query, offset), readShort(query, offset + 2),
+                (query[3] & FLAG_CD) != 0, dnssecOk);
+    }
+
+    private static int parseName(byte[] data, int offset, int end, StringBuilder name) {
+        while (offset < end) {
+            int labelLength = data[offset++] & 0xFF;
+            if (labelLength == 0) {
+                return name.length() == 0 ? -1 : offset;
+            }
+            // Only accept names the query parser would have accepted
+            if (labelLength > 63 || offset + labelLength > end) {
+                return -1;
+            }
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            for (int i = 0; i < labelLength; i++) {
+                int c = data[offset++] & 0xFF;
+                if (c <= ' ' || c >= 0x7F || isSpecialCharacter(c)) {
+                    return -1;
+                }
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                name.append((char) c);
+            }
+        }
+        return -1;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return readShort(data, offset) << 16 | readShort(data, offset + 2);
+    }
+
+    private static void writeTtl(byte[] data, int offset, int ttl) {
+        writeShort(data, offset, ttl >>> 16);
+        writeShort(data, offset + 2, ttl);
+    }
+
+    /**
+     * This class is a cached response to serve, possibly expired.
+     *
+     * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+     */
+    static final class Answer {
+        private final byte[] payload;
+        private final boolean refreshNeeded;
+
+        private Answer(byte[] payload, boolean refreshNeeded) {
+            this.payload = payload;
+            this.refreshNeeded = refreshNeeded;
+        }
+
+        /**
+         * Get the response payload, with the TTLs to serve and the transaction ID of the cached response.
+         *
+         * @return The response payload.
+         */
+        byte[] getPayload() {
+            return this.payload;
+        }
+
+        /**
+         * Check whether the response is expired and should be refreshed from the upstream DNS server.
+         *
+         * @return {@code true} if the response should be refreshed, {@code false} otherwise.
+         */
+        boolean isRefreshNeeded() {
+            return this.refreshNeeded;
+        }
+    }
+
+    private static final class Key {
+        private final String name;
+        private final int type;
+        private final int dnsClass;
+        private final boolean checkingDisabled;
+        private final boolean dnssecOk;
+
+        private Key(String name, int type, int dnsClass, boolean checkingDisabled, boolean dnssecOk) {
+            this.name = name;
+            this.type = type;
+            this.dnsClass = dnsClass;
+            this.checkingDisabled = checkingDisabled;
+            this.dnssecOk = dnssecOk;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+
+            return this.type == key.type && this.dnsClass == key.dnsClass
+                    && this.checkingDisabled == key.checkingDisabled && this.dnssecOk == key.dnssecOk
+                    && this.name.equals(key.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.name, this.type, this.dnsClass, this.checkingDisabled, this.dnssecOk);
+        }
+    }
+
+    private static final class Entry {
+        private final Key key;
+        private final byte[] response;
+        private final int[] ttlOffsets;
+        private final int[] ttls;
+        private final long time;
+        private final long expiryTime;
+        private final int size;
+        private long refreshTime;
+
+        private Entry(Key key, byte[] response, int[] ttlOffsets, int[] ttls, long time, long expiryTime) {
+            this.key = key;
+            this.response = response;
+            this.ttlOffsets = ttlOffsets;
+            this.ttls = ttls;
+            this.time = time;
+            this.expiryTime = expiryTime;
+            this.size = ENTRY_OVERHEAD + response.length + 8 * ttls.length + 2 * key.name.length();
+            // Allow a refresh as soon as the entry expires
+            this.refreshTime = expiryTime - STALE_TTL * 1000L;
+        }
+
+        private synchronized boolean claimRefresh(long now) {
+            if (now - this.refreshTime < STALE_TTL * 1000L) {
+                return false;
+            }
+            this.refreshTime = now;
+            return true;
+        }
+    }
+}
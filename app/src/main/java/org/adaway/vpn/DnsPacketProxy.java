@@ -17,17 +17,16 @@ package org.adaway.vpn;
 import android.content.Context;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import org.adaway.AdAwayApplication;
 import org.adaway.db.entity.HostEntry;
 import org.adaway.db.entity.ListType;
 import org.adaway.model.vpn.VpnModel;
 import org.pcap4j.packet.IpPacket;
 import org.pcap4j.packet.IpSelector;
-import org.pcap4j.packet.IpV4Packet;
-import org.pcap4j.packet.IpV6Packet;
 import org.pcap4j.packet.Packet;
 import org.pcap4j.packet.UdpPacket;
-import org.pcap4j.packet.UnknownPacket;
 import org.pcap4j.packet.namednumber.IpNumber;
 import org.xbill.DNS.AAAARecord;
 import org.xbill.DNS.ARecord;
@@ -43,11 +42,16 @@ import org.xbill.DNS.TextParseException;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.adaway.util.Constants.isDebugEnabled;
 
 /**
  * Creates and parses packets, and sends packets to a remote socket or the device using
@@ -59,6 +63,10 @@ public class DnsPacketProxy {
     // Choose a value that is smaller than the time needed to unblock a host.
     private static final int NEGATIVE_CACHE_TTL_SECONDS = 5;
     private static final SOARecord NEGATIVE_CACHE_SOA_RECORD;
+    private static final DnsResponseTemplate BLOCKED_RESPONSE_TEMPLATE;
+    private static final HostEntry ALLOWED_ENTRY;
+    // The headers of queries only forwarded to refresh the answer cache, whose responses are not written back.
+    private static final byte[] CACHE_REFRESH_HEADERS = new byte[0];
 
     static {
         try {
@@ -67,18 +75,35 @@ public class DnsPacketProxy {
             Name name = new Name("adaway.vpn.invalid.");
             NEGATIVE_CACHE_SOA_RECORD = new SOARecord(name, DClass.IN, NEGATIVE_CACHE_TTL_SECONDS,
                     name, name, 0, 0, 0, 0, NEGATIVE_CACHE_TTL_SECONDS);
+            BLOCKED_RESPONSE_TEMPLATE = DnsResponseTemplate.blocked(NEGATIVE_CACHE_SOA_RECORD.toWire(Section.AUTHORITY));
         } catch (TextParseException e) {
             throw new RuntimeException(e);
         }
+        // Share allowed entry for all unlisted host names
+        ALLOWED_ENTRY = new HostEntry();
+        ALLOWED_ENTRY.setHost("");
+        ALLOWED_ENTRY.setType(ListType.ALLOWED);
     }
 
     private final EventLoop eventLoop;
     private final DnsServerMapper dnsServerMapper;
+    private final DnsAnswerCache answerCache;
+    private final InFlightQueries inFlightQueries;
+    private final DnsQueryPacket queryPacket;
+    /**
+     * The redirected response templates, by redirection.
+     */
+    private final Map<String, DnsResponseTemplate> redirectionTemplates;
     private VpnModel vpnModel;
 
-    DnsPacketProxy(EventLoop eventLoop, DnsServerMapper dnsServerMapper) {
+    DnsPacketProxy(EventLoop eventLoop, DnsServerMapper dnsServerMapper, DnsAnswerCache answerCache,
+                   InFlightQueries inFlightQueries) {
         this.eventLoop = eventLoop;
         this.dnsServerMapper = dnsServerMapper;
+        this.answerCache = answerCache;
+        this.inFlightQueries = inFlightQueries;
+        this.queryPacket = new DnsQueryPacket();
+        this.redirectionTemplates = new ConcurrentHashMap<>();
     }
 
     /**
@@ -91,53 +116,180 @@ public class DnsPacketProxy {
     }
 
     /**
-     * Handles a responsePayload from an upstream DNS server
+     * Handles a responsePayload from an upstream DNS server.<br>
+     * The response is cached then written back to the device, unless it only refreshes the cache,
+     * and to the identical queries waiting for it.
      *
-     * @param requestPacket   The original request packet
+     * @param requestHeaders  The IP and UDP headers of the original request packet
      * @param responsePayload The payload of the response
+     * @param length          The length of the response payload
      */
-    void handleDnsResponse(IpPacket requestPacket, byte[] responsePayload) {
-        UdpPacket udpOutPacket = (UdpPacket) requestPacket.getPayload();
-        UdpPacket.Builder payLoadBuilder = new UdpPacket.Builder(udpOutPacket)
-                .srcPort(udpOutPacket.getHeader().getDstPort())
-                .dstPort(udpOutPacket.getHeader().getSrcPort())
-                .srcAddr(requestPacket.getHeader().getDstAddr())
-                .dstAddr(requestPacket.getHeader().getSrcAddr())
-                .correctChecksumAtBuild(true)
-                .correctLengthAtBuild(true)
-                .payloadBuilder(
-                        new UnknownPacket.Builder().rawData(responsePayload)
-                );
-
-        IpPacket ipOutPacket;
-        if (requestPacket instanceof IpV4Packet) {
-            ipOutPacket = new IpV4Packet.Builder((IpV4Packet) requestPacket)
-                    .srcAddr((Inet4Address) requestPacket.getHeader().getDstAddr())
-                    .dstAddr((Inet4Address) requestPacket.getHeader().getSrcAddr())
-                    .correctChecksumAtBuild(true)
-                    .correctLengthAtBuild(true)
-                    .payloadBuilder(payLoadBuilder)
-                    .build();
-
-        } else {
-            ipOutPacket = new IpV6Packet.Builder((IpV6Packet) requestPacket)
-                    .srcAddr((Inet6Address) requestPacket.getHeader().getDstAddr())
-                    .dstAddr((Inet6Address) requestPacket.getHeader().getSrcAddr())
-                    .correctLengthAtBuild(true)
-                    .payloadBuilder(payLoadBuilder)
-                    .build();
+    void handleDnsResponse(byte[] requestHeaders, byte[] responsePayload, int length) {
+        this.answerCache.put(responsePayload, length);
+        if (requestHeaders == CACHE_REFRESH_HEADERS) {
+            return;
         }
+        writeDnsResponse(requestHeaders, responsePayload, length);
+        for (byte[] ipOutPacket : this.inFlightQueries.complete(requestHeaders, responsePayload, length)) {
+            this.eventLoop.queueDeviceWrite(ipOutPacket);
+        }
+    }
 
-        this.eventLoop.queueDeviceWrite(ipOutPacket);
+    /**
+     * Handles a query without response from the upstream DNS servers in time.<br>
+     * The query and the identical queries waiting for it are answered from the cache, even if expired.
+     * Otherwise, the query keeps waiting for its response.
+     *
+     * @param query The query without response.
+     */
+    void handleQueryTimeout(UpstreamQuery query) {
+        byte[] requestHeaders = query.getRequestHeaders();
+        if (requestHeaders == CACHE_REFRESH_HEADERS) {
+            return;
+        }
+        byte[] queryPayload = query.getPayload();
+        DnsAnswerCache.Answer answer = this.answerCache.getStale(queryPayload, queryPayload.length);
+        if (answer == null || !query.answer()) {
+            return;
+        }
+        byte[] responsePayload = answer.getPayload();
+        // Restore the query transaction ID
+        responsePayload[0] = queryPayload[0];
+        responsePayload[1] = queryPayload[1];
+        int length = query.fitResponse(responsePayload, responsePayload.length);
+        writeDnsResponse(requestHeaders, responsePayload, length);
+        for (byte[] ipOutPacket : this.inFlightQueries.complete(requestHeaders, responsePayload, length)) {
+            this.eventLoop.queueDeviceWrite(ipOutPacket);
+        }
     }
 
     /**
-     * Handles a DNS request, by either blocking it or forwarding it to the remote location.
+     * Handles a DNS request, by either blocking it or forwarding it to the remote location.<br>
+     * Common DNS queries are parsed in place and answered without intermediate packet and message objects,
+     * other packets are parsed by the generic packet and DNS message parsers.
      *
      * @param packetData The packet data to read
+     * @param length     The packet length
      * @throws VpnWorker.VpnNetworkException If some network error occurred
      */
-    void handleDnsRequest(byte[] packetData) throws VpnWorker.VpnNetworkException {
+    void handleDnsRequest(byte[] packetData, int length) throws VpnWorker.VpnNetworkException {
+        switch (this.queryPacket.parse(packetData, length)) {
+            case IGNORED:
+                break;
+            case EMPTY:
+                handleEmptyPacket();
+                break;
+            case QUERY:
+                handleDnsQuery();
+                break;
+            case UNSUPPORTED:
+                handleGenericDnsRequest(Arrays.copyOf(packetData, length));
+                break;
+        }
+    }
+
+    private void handleEmptyPacket() throws VpnWorker.VpnNetworkException {
+        InetAddress dnsAddress = this.dnsServerMapper.translate(this.queryPacket.getDestinationAddressLastByte());
+        if (dnsAddress == null) {
+            return;
+        }
+        forwardEmptyPacket(dnsAddress, this.queryPacket.getDestinationPort());
+    }
+
+    private void forwardEmptyPacket(InetAddress dnsAddress, int packetPort) throws VpnWorker.VpnNetworkException {
+        Log.i(TAG, "handleDnsRequest: Sending UDP packet without payload to " + dnsAddress);
+        // Let's be nice to Firefox. Firefox uses an empty UDP packet to
+        // the gateway to reduce the RTT. For further details, please see
+        // https://bugzilla.mozilla.org/show_bug.cgi?id=888268
+        DatagramPacket outPacket = new DatagramPacket(new byte[0], 0, 0 /* length */, dnsAddress, packetPort);
+        this.eventLoop.forwardPacket(outPacket, null);
+    }
+
+    private void handleDnsQuery() throws VpnWorker.VpnNetworkException {
+        InetAddress dnsAddress = this.dnsServerMapper.translate(this.queryPacket.getDestinationAddressLastByte());
+        if (dnsAddress == null) {
+            return;
+        }
+        CharSequence dnsQueryName = this.queryPacket.getName();
+        HostEntry entry = getHostEntry(dnsQueryName);
+        switch (entry.getType()) {
+            case BLOCKED:
+                if (isDebugEnabled()) {
+                    Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " blocked!");
+                }
+                this.eventLoop.queueDeviceWrite(this.queryPacket.createResponse(BLOCKED_RESPONSE_TEMPLATE));
+                break;
+            case ALLOWED:
+                byte[] cachedResponse = this.answerCache.get(dnsQueryName, this.queryPacket.getQueryType(),
+                        this.queryPacket.getQueryClass(), this.queryPacket.isCheckingDisabled(),
+                        this.queryPacket.isDnssecOk());
+                if (cachedResponse != null) {
+                    if (isDebugEnabled()) {
+                        Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " Allowed, answered from cache");
+                    }
+                    this.eventLoop.queueDeviceWrite(this.queryPacket.createCachedResponse(cachedResponse));
+                    break;
+                }
+                // Answer the expired response rather than waiting for backed off upstream servers
+                InetSocketAddress target = new InetSocketAddress(dnsAddress, this.queryPacket.getDestinationPort());
+                if (!this.dnsServerMapper.isUpstreamAvailable(target)) {
+                    DnsAnswerCache.Answer answer = this.answerCache.getStale(dnsQueryName,
+                            this.queryPacket.getQueryType(), this.queryPacket.getQueryClass(),
+                            this.queryPacket.isCheckingDisabled(), this.queryPacket.isDnssecOk());
+                    if (answer != null) {
+                        if (isDebugEnabled()) {
+                            Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " Allowed, answered from stale cache");
+                        }
+                        this.eventLoop.queueDeviceWrite(this.queryPacket.createCachedResponse(answer.getPayload()));
+                        // Refresh expired answer without waiting for it
+                        if (answer.isRefreshNeeded()) {
+                            forwardDnsQuery(dnsAddress, CACHE_REFRESH_HEADERS);
+                        }
+                        break;
+                    }
+                }
+                byte[] requestHeaders = this.queryPacket.copyHeaders();
+                long reforwardDelay = NANOSECONDS.toMillis(this.dnsServerMapper.getUpstreamHedgeDelay(target));
+                if (!this.inFlightQueries.add(this.queryPacket, requestHeaders, reforwardDelay)) {
+                    if (isDebugEnabled()) {
+                        Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " Allowed, waiting for identical query");
+                    }
+                    break;
+                }
+                if (isDebugEnabled()) {
+                    Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " Allowed, sending to " + dnsAddress);
+                }
+                forwardDnsQuery(dnsAddress, requestHeaders);
+                break;
+            case REDIRECTED:
+                if (isDebugEnabled()) {
+                    Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " redirected to " + entry.getRedirection() + ".");
+                }
+                DnsResponseTemplate template = getRedirectionTemplate(entry.getRedirection());
+                if (template == null) {
+                    org.adaway.util.Log.w(TAG, "Failed to get inet address for host " + dnsQueryName + ".");
+                    // Parse query to answer without redirection record
+                    handleGenericDnsRequest(Arrays.copyOfRange(this.queryPacket.getData(), 0,
+                            this.queryPacket.getPayloadOffset() + this.queryPacket.getPayloadLength()));
+                    break;
+                }
+                this.eventLoop.queueDeviceWrite(this.queryPacket.createResponse(template));
+                break;
+        }
+    }
+
+    private void forwardDnsQuery(InetAddress dnsAddress, byte[] requestHeaders) throws VpnWorker.VpnNetworkException {
+        DatagramPacket outPacket = new DatagramPacket(
+                this.queryPacket.getData(),
+                this.queryPacket.getPayloadOffset(),
+                this.queryPacket.getPayloadLength(),
+                dnsAddress,
+                this.queryPacket.getDestinationPort()
+        );
+        this.eventLoop.forwardPacket(outPacket, requestHeaders);
+    }
+
+    private void handleGenericDnsRequest(byte[] packetData) throws VpnWorker.VpnNetworkException {
         IpPacket ipPacket;
         try {
             ipPacket = (IpPacket) IpSelector.newPacket(packetData, 0, packetData.length);
@@ -170,13 +322,7 @@ public class DnsPacketProxy {
         }
 
         if (udpPayload == null) {
-            Log.i(TAG, "handleDnsRequest: Sending UDP packet without payload: " + updPacket);
-
-            // Let's be nice to Firefox. Firefox uses an empty UDP packet to
-            // the gateway to reduce the RTT. For further details, please see
-            // https://bugzilla.mozilla.org/show_bug.cgi?id=888268
-            DatagramPacket outPacket = new DatagramPacket(new byte[0], 0, 0 /* length */, dnsAddress, packetPort);
-            eventLoop.forwardPacket(outPacket, null);
+            forwardEmptyPacket(dnsAddress, packetPort);
             return;
         }
 
@@ -192,8 +338,9 @@ public class DnsPacketProxy {
             Log.i(TAG, "handleDnsRequest: Discarding DNS packet with no query " + dnsMsg);
             return;
         }
+        byte[] requestHeaders = getHeaders(ipPacket, updPacket);
         Name name = dnsMsg.getQuestion().getName();
-        String dnsQueryName = name.toString(true);
+        String dnsQueryName = name.toString(true).toLowerCase(Locale.ENGLISH);
         HostEntry entry = getHostEntry(dnsQueryName);
         switch (entry.getType()) {
             case BLOCKED:
@@ -201,12 +348,12 @@ public class DnsPacketProxy {
                 dnsMsg.getHeader().setFlag(Flags.QR);
                 dnsMsg.getHeader().setRcode(Rcode.NOERROR);
                 dnsMsg.addRecord(NEGATIVE_CACHE_SOA_RECORD, Section.AUTHORITY);
-                handleDnsResponse(ipPacket, dnsMsg.toWire());
+                writeDnsResponse(requestHeaders, dnsMsg.toWire());
                 break;
             case ALLOWED:
                 Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " Allowed, sending to " + dnsAddress);
                 DatagramPacket outPacket = new DatagramPacket(dnsRawData, 0, dnsRawData.length, dnsAddress, packetPort);
-                eventLoop.forwardPacket(outPacket, ipPacket);
+                this.eventLoop.forwardPacket(outPacket, requestHeaders);
                 break;
             case REDIRECTED:
                 Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " redirected to " + entry.getRedirection() + ".");
@@ -214,8 +361,10 @@ public class DnsPacketProxy {
                 dnsMsg.getHeader().setFlag(Flags.AA);
                 dnsMsg.getHeader().unsetFlag(Flags.RD);
                 dnsMsg.getHeader().setRcode(Rcode.NOERROR);
-                try {
-                    InetAddress address = InetAddress.getByName(entry.getRedirection());
+                InetAddress address = this.vpnModel.getRedirectionAddress(entry.getRedirection());
+                if (address == null) {
+                    org.adaway.util.Log.w(TAG, "Failed to get inet address for host " + dnsQueryName + ".");
+                } else {
                     Record record;
                     if (address instanceof Inet6Address) {
                         record = new AAAARecord(name, DClass.IN, NEGATIVE_CACHE_TTL_SECONDS, address);
@@ -223,47 +372,74 @@ public class DnsPacketProxy {
                         record = new ARecord(name, DClass.IN, NEGATIVE_CACHE_TTL_SECONDS, address);
                     }
                     dnsMsg.addRecord(record, Section.ANSWER);
-                } catch (UnknownHostException e) {
-                    org.adaway.util.Log.w(TAG, "Failed to get inet address for host " + dnsQueryName + ".", e);
                 }
-                handleDnsResponse(ipPacket, dnsMsg.toWire());
+                writeDnsResponse(requestHeaders, dnsMsg.toWire());
                 break;
         }
     }
 
-    private HostEntry getHostEntry(String dnsQueryName) {
-        String hostname = dnsQueryName.toLowerCase(Locale.ENGLISH);
+    private void writeDnsResponse(byte[] requestHeaders, byte[] responsePayload) {
+        writeDnsResponse(requestHeaders, responsePayload, responsePayload.length);
+    }
+
+    private void writeDnsResponse(byte[] requestHeaders, byte[] responsePayload, int length) {
+        byte[] ipOutPacket = UdpResponseBuilder.build(requestHeaders, requestHeaders.length, responsePayload, 0, length);
+        this.eventLoop.queueDeviceWrite(ipOutPacket);
+    }
+
+    private static byte[] getHeaders(IpPacket ipPacket, UdpPacket udpPacket) {
+        byte[] ipHeader = ipPacket.getHeader().getRawData();
+        byte[] udpHeader = udpPacket.getHeader().getRawData();
+        byte[] headers = Arrays.copyOf(ipHeader, ipHeader.length + udpHeader.length);
+        System.arraycopy(udpHeader, 0, headers, ipHeader.length, udpHeader.length);
+        return headers;
+    }
+
+    /**
+     * Get the response template of a redirection, built once from the redirection address parsed with the rules.
+     *
+     * @param redirection The host entry redirection.
+     * @return The redirected response template, {@code null} if the redirection is not a valid IP address.
+     */
+    @Nullable
+    private DnsResponseTemplate getRedirectionTemplate(@Nullable String redirection) {
+        if (redirection == null) {
+            return null;
+        }
+        return this.redirectionTemplates.computeIfAbsent(redirection, key -> {
+            InetAddress address = this.vpnModel.getRedirectionAddress(key);
+            return address == null ? null : DnsResponseTemplate.redirected(address.getAddress());
+        });
+    }
+
+    private HostEntry getHostEntry(CharSequence hostname) {
         HostEntry entry = null;
         if (this.vpnModel != null) {
             entry = this.vpnModel.getEntry(hostname);
         }
-        if (entry == null) {
-            entry = new HostEntry();
-            entry.setHost(hostname);
-            entry.setType(ListType.ALLOWED);
-        }
-        return entry;
+        return entry == null ? ALLOWED_ENTRY : entry;
     }
 
     /**
-     * Interface abstracting away {@link VpnWorker}.
+     * Interface abstracting away {@link VpnWorker}.<br>
+     * Its methods are called from the query workers and the VPN worker threads, so implementations must be thread-safe.
      */
     interface EventLoop {
         /**
          * Called to send a packet to a remote location
          *
-         * @param packet        The packet to send
-         * @param requestPacket If specified, the event loop must wait for a response, and then
-         *                      call {@link #handleDnsResponse(IpPacket, byte[])} for the data
-         *                      of the response, with this packet as the first argument.
+         * @param packet         The packet to send
+         * @param requestHeaders If specified, the event loop must wait for a response, and then
+         *                       call {@link #handleDnsResponse(byte[], byte[], int)} for the data
+         *                       of the response, with these IP and UDP headers as the first argument.
          */
-        void forwardPacket(DatagramPacket packet, IpPacket requestPacket) throws VpnWorker.VpnNetworkException;
+        void forwardPacket(DatagramPacket packet, @Nullable byte[] requestHeaders) throws VpnWorker.VpnNetworkException;
 
         /**
          * Write an IP packet to the local TUN device
          *
          * @param packet The packet to write (a response to a DNS request)
          */
-        void queueDeviceWrite(IpPacket packet);
+        void queueDeviceWrite(byte[] packet);
     }
 }
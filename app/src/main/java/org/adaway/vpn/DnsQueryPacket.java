@@ -0,0 +1,471 @@
+package org.adaway.vpn;
+
+import java.util.Arrays;
+
+import static org.adaway.vpn.UdpResponseBuilder.IPV6_HEADER_LENGTH;
+import static org.adaway.vpn.UdpResponseBuilder.UDP_HEADER_LENGTH;
+import static org.adaway.vpn.UdpResponseBuilder.UDP_PROTOCOL;
+import static org.adaway.vpn.UdpResponseBuilder.sum;
+import static org.adaway.vpn.UdpResponseBuilder.writeHeaders;
+import static org.adaway.vpn.UdpResponseBuilder.writeShort;
+
+/**
+ * This class parses DNS query packets read from the VPN device in place.<br>
+ * It only handles the common case of a single question standard query over UDP, with at most one additional record,
+ * and reports any other packet to be parsed by the generic packet and DNS message parsers.
+ * The instance and its query name are reused from one packet to another, so it must be used by a single thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class DnsQueryPacket {
+    /**
+     * The DNS header length.
+     */
+    private static final int DNS_HEADER_LENGTH = 12;
+    /**
+     * The maximum length of a DNS label.
+     */
+    private static final int MAX_LABEL_LENGTH = 63;
+    /**
+     * The DNS OPT record type.
+     */
+    private static final int TYPE_OPT = 41;
+    /**
+     * The flag bits of the third DNS header byte.
+     */
+    private static final int FLAG_QR = 0x80;
+    private static final int OPCODE_MASK = 0x78;
+    /**
+     * The checking disabled flag of the fourth DNS header byte.
+     */
+    private static final int FLAG_CD = 0x10;
+    /**
+     * The DNSSEC OK flag of the first OPT record flags byte.
+     */
+    private static final int FLAG_DO = 0x80;
+
+    /**
+     * The packet data.
+     */
+    private byte[] data;
+    /**
+     * The length of the IP and UDP headers.
+     */
+    private int headersLength;
+    /**
+     * The DNS payload length.
+     */
+    private int payloadLength;
+    /**
+     * The offset of the end of the question section.
+     */
+    private int questionEnd;
+    /**
+     * The UDP destination port.
+     */
+    private int destinationPort;
+    /**
+     * The last byte of the IP destination address.
+     */
+    private byte destinationAddressLastByte;
+    /**
+     * The lower case query name, without trailing dot.
+     */
+    private final StringBuilder name;
+
+    /**
+     * Constructor.
+     */
+    DnsQueryPacket() {
+        this.name = new StringBuilder(256);
+    }
+
+    /**
+     * Parse a packet.<br>
+     * The packet data are referenced until the next parsing, so they must not be modified while the query is handled.
+     *
+     * @param data   The packet data.
+     * @param length The packet length.
+     * @return The parsing result.
+     */
+    Result parse(byte[] data, int length) {
+        this.data = data;
+        this.name.setLength(0);
+        if (length < 1) {
+            return Result.UNSUPPORTED;
+        }
+        // Parse IP header
+        int ipHeaderLength;
+        int packetLength;
+        int version = (data[0] & 0xF0) >> 4;
+        if (version == 4) {
+            if (length < 20) {
+                return Result.UNSUPPORTED;
+            }
+            ipHeaderLength = (data[0] & 0x0F) * 4;
+            packetLength = readShort(data, 2);
+            if (ipHeaderLength < 20 || packetLength < ipHeaderLength || packetLength > length) {
+                return Result.UNSUPPORTED;
+            }
+            // Check fragmentation (more fragments flag and fragment offset)
+            if ((readShort(data, 6) & 0x3FFF) != 0) {
+                return Result.UNSUPPORTED;
+            }
+            if ((data[9] & 0xFF) != UDP_PROTOCOL) {
+                return Result.IGNORED;
+            }
+            this.destinationAddressLastByte = data[19];
+        } else if (version == 6) {
+            if (length < IPV6_HEADER_LENGTH) {
+                return Result.UNSUPPORTED;
+            }
+            ipHeaderLength = IPV6_HEADER_LENGTH;
+            packetLength = IPV6_HEADER_LENGTH + readShort(data, 4);
+            // Let extension headers to the generic parser
+            if (packetLength > length || (data[6] & 0xFF) != UDP_PROTOCOL) {
+                return Result.UNSUPPORTED;
+            }
+            this.destinationAddressLastByte = data[39];
+        } else {
+            return Result.UNSUPPORTED;
+        }
+        // Parse UDP header
+        if (packetLength < ipHeaderLength + UDP_HEADER_LENGTH) {
+            return Result.UNSUPPORTED;
+        }
+        int udpLength = readShort(data, ipHeaderLength + 4);
+        if (udpLength < UDP_HEADER_LENGTH || ipHeaderLength + udpLength > packetLength) {
+            return Result.UNSUPPORTED;
+        }
+        this.destinationPort = readShort(data, ipHeaderLength + 2);
+        this.headersLength = ipHeaderLength + UDP_HEADER_LENGTH;
+        this.payloadLength = udpLength - UDP_HEADER_LENGTH;
+        if (this.payloadLength == 0) {
+            return Result.EMPTY;
+        }
+        return parseDnsQuery() ? Result.QUERY : Result.UNSUPPORTED;
+    }
+
+    private boolean parseDnsQuery() {
+        int offset = this.headersLength;
+        int end = offset + this.payloadLength;
+        if (this.payloadLength < DNS_HEADER_LENGTH
+                || (this.data[offset + 2] & (FLAG_QR | OPCODE_MASK)) != 0
+                || readShort(this.data, offset + 4) != 1
+                || readShort(this.data, offset + 6) != 0
+                || readShort(this.data, offset + 8) != 0) {
+            return false;
+        }
+        int additionalCount = readShort(this.data, offset + 10);
+        // Parse question name
+        offset = parseName(offset + DNS_HEADER_LENGTH, end);
+        if (offset < 0 || this.name.length() == 0) {
+            return false;
+        }
+        // Skip question type and class
+        offset += 4;
+        if (offset > end) {
+            return false;
+        }
+        this.questionEnd = offset;
+        // Check additional record
+        if (additionalCount == 1) {
+            offset = skipRecord(offset, end);
+        } else if (additionalCount != 0) {
+            return false;
+        }
+        return offset == end;
+    }
+
+    private int parseName(int offset, int end) {
+        while (offset < end) {
+            int labelLength = this.data[offset++] & 0xFF;
+            if (labelLength == 0) {
+                return offset;
+            }
+            // Let compression pointers and long labels to the generic parser
+            if (labelLength > MAX_LABEL_LENGTH || offset + labelLength > end) {
+                return -1;
+            }
+            if (this.name.length() > 0) {
+                this.name.append('.');
+            }
+            for (int i = 0; i < labelLength; i++) {
+                int c = this.data[offset++] & 0xFF;
+                // Let characters needing escape to the generic parser
+                if (c <= ' ' || c >= 0x7F || isSpecialCharacter(c)) {
+                    return -1;
+                }
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                this.name.append((char) c);
+            }
+        }
+        return -1;
+    }
+
+    static boolean isSpecialCharacter(int c) {
+        switch (c) {
+            case '"':
+            case '(':
+            case ')':
+            case '.':
+            case ';':
+            case '\\':
+            case '@':
+            case '$':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private int skipRecord(int offset, int end) {
+        // Skip record name, the root name or a compression pointer
+        if (offset >= end) {
+            return -1;
+        }
+        int nameByte = this.data[offset] & 0xFF;
+        if (nameByte == 0) {
+            offset++;
+        } else if ((nameByte & 0xC0) == 0xC0) {
+            offset += 2;
+        } else {
+            return -1;
+        }
+        // Skip type, class, TTL and data length
+        offset += 10;
+        if (offset > end) {
+            return -1;
+        }
+        return offset + readShort(this.data, offset - 2);
+    }
+
+    /**
+     * Get the lower case query name, without trailing dot.<br>
+     * The returned character sequence is reused by the next parsing.
+     *
+     * @return The query name.
+     */
+    CharSequence getName() {
+        return this.name;
+    }
+
+    /**
+     * Get the question type.
+     *
+     * @return The question type.
+     */
+    int getQueryType() {
+        return readShort(this.data, this.questionEnd - 4);
+    }
+
+    /**
+     * Get the question class.
+     *
+     * @return The question class.
+     */
+    int getQueryClass() {
+        return readShort(this.data, this.questionEnd - 2);
+    }
+
+    /**
+     * Check whether the query disables DNSSEC checking, with the CD header flag.
+     *
+     * @return {@code true} if the query disables DNSSEC checking, {@code false} otherwise.
+     */
+    boolean isCheckingDisabled() {
+        return (this.data[this.headersLength + 3] & FLAG_CD) != 0;
+    }
+
+    /**
+     * Check whether the query accepts DNSSEC records, with the DO flag of its OPT record.
+     *
+     * @return {@code true} if the query accepts DNSSEC records, {@code false} otherwise.
+     */
+    boolean isDnssecOk() {
+        if (this.questionEnd == this.headersLength + this.payloadLength) {
+            return false;
+        }
+        // Skip the additional record name, the root name or a compression pointer
+        int offset = this.questionEnd + (this.data[this.questionEnd] == 0 ? 1 : 2);
+        // Check the record type then the flags of its TTL, after the extended code and version
+        return readShort(this.data, offset) == TYPE_OPT && (this.data[offset + 6] & FLAG_DO) != 0;
+    }
+
+    /**
+     * Get the UDP destination port.
+     *
+     * @return The UDP destination port.
+     */
+    int getDestinationPort() {
+        return this.destinationPort;
+    }
+
+    /**
+     * Get the last byte of the IP destination address.
+     *
+     * @return The last byte of the IP destination address.
+     */
+    byte getDestinationAddressLastByte() {
+        return this.destinationAddressLastByte;
+    }
+
+    /**
+     * Get the packet data.
+     *
+     * @return The packet data.
+     */
+    byte[] getData() {
+        return this.data;
+    }
+
+    /**
+     * Get the offset of the DNS payload.
+     *
+     * @return The offset of the DNS payload.
+     */
+    int getPayloadOffset() {
+        return this.headersLength;
+    }
+
+    /**
+     * Get the DNS payload length.
+     *
+     * @return The DNS payload length.
+     */
+    int getPayloadLength() {
+        return this.payloadLength;
+    }
+
+    /**
+     * Get the length of the DNS header and question section.
+     *
+     * @return The length of the DNS header and question section.
+     */
+    int getQuestionLength() {
+        return this.questionEnd - this.headersLength;
+    }
+
+    /**
+     * Copy the IP and UDP headers to build the response later.
+     *
+     * @return The IP and UDP headers.
+     */
+    byte[] copyHeaders() {
+        return Arrays.copyOf(this.data, this.headersLength);
+    }
+
+    /**
+     * Create the response packet of a blocked or redirected query.<br>
+     * The response is the query header and question, patched and followed by the template records,
+     * then the query additional record if any. The payload checksum sum only covers the bytes copied from the query.
+     *
+     * @param template The response template.
+     * @return The response packet.
+     */
+    byte[] createResponse(DnsResponseTemplate template) {
+        int questionLength = this.questionEnd - this.headersLength;
+        int recordsLength = template.getRecordsLength();
+        int additionalLength = this.headersLength + this.payloadLength - this.questionEnd;
+        int responseLength = questionLength + recordsLength + additionalLength;
+        byte[] response = new byte[this.headersLength + responseLength];
+        int offset = copyQuery(response, questionLength);
+        template.writeHeader(response, offset);
+        int sum = sum(0, response, offset, questionLength);
+        offset += questionLength;
+        template.writeRecords(response, offset);
+        sum += template.getSum(questionLength);
+        offset += recordsLength;
+        System.arraycopy(this.data, this.questionEnd, response, offset, additionalLength);
+        sum = sum(sum, response, offset, additionalLength, questionLength + recordsLength);
+        writeHeaders(this.data, this.headersLength, response, responseLength, sum);
+        return response;
+    }
+
+    /**
+     * Create the response packet of a cached response.<br>
+     * The response gets the query transaction ID and question, as its question name may differ in case only.
+     * It is fitted into the UDP payload size advertised by the query, as it may be cached from a query
+     * advertising a larger one.
+     *
+     * @param cachedPayload The cached response payload, with the same question name, type and class.
+     * @return The response packet.
+     */
+    byte[] createCachedResponse(byte[] cachedPayload) {
+        byte[] response = new byte[this.headersLength + cachedPayload.length];
+        System.arraycopy(cachedPayload, 0, response, this.headersLength, cachedPayload.length);
+        // Copy query transaction ID
+        System.arraycopy(this.data, this.headersLength, response, this.headersLength, 2);
+        // Copy query question, skipping DNS header
+        int questionOffset = this.headersLength + DNS_HEADER_LENGTH;
+        System.arraycopy(this.data, questionOffset, response, questionOffset, this.questionEnd - questionOffset);
+        int maxResponseSize = UpstreamQuery.readMaxResponseSize(this.data, this.headersLength, this.payloadLength);
+        int payloadLength = UpstreamQuery.fitResponse(response, this.headersLength, cachedPayload.length, maxResponseSize);
+        if (payloadLength < cachedPayload.length) {
+            response = Arrays.copyOf(response, this.headersLength + payloadLength);
+        }
+        writeHeaders(this.data, this.headersLength, response, payloadLength);
+        return response;
+    }
+
+    private int copyQuery(byte[] response, int questionLength) {
+        int offset = this.headersLength;
+        System.arraycopy(this.data, offset, response, offset, questionLength);
+        // Clear response code
+        response[offset + 3] &= 0xF0;
+        return offset;
+    }
+
+    static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF;
+    }
+
+    /**
+     * Skip a name of a DNS message, ending by the root label or a compression pointer.
+     *
+     * @param data   The DNS message.
+     * @param offset The name offset.
+     * @param end    The DNS message end.
+     * @return The offset after the name, {@code -1} if the name is invalid.
+     */
+    static int skipName(byte[] data, int offset, int end) {
+        while (offset < end) {
+            int labelLength = data[offset] & 0xFF;
+            if (labelLength == 0) {
+                return offset + 1;
+            } else if ((labelLength & 0xC0) == 0xC0) {
+                return offset + 2;
+            } else if ((labelLength & 0xC0) != 0) {
+                return -1;
+            }
+            offset += 1 + labelLength;
+        }
+        return -1;
+    }
+
+    /**
+     * This enumerates the packet parsing results.
+     *
+     * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+     */
+    enum Result {
+        /**
+         * The packet is not an UDP packet and should be ignored.
+         */
+        IGNORED,
+        /**
+         * The packet is an UDP packet without payload.
+         */
+        EMPTY,
+        /**
+         * The packet is a supported DNS query.
+         */
+        QUERY,
+        /**
+         * The packet is not supported and should be parsed by the generic parsers.
+         */
+        UNSUPPORTED
+    }
+}
@@ -0,0 +1,137 @@
+package org.adaway.vpn;
+
+import static org.adaway.vpn.UdpResponseBuilder.sum;
+import static org.adaway.vpn.UdpResponseBuilder.writeShort;
+
+/**
+ * This class is the precomputed wire format of the records answering blocked and redirected queries.<br>
+ * A response is built by patching the query header flags and record counts, then appending the template records
+ * after the query question. The records checksum sum is precomputed for both byte alignments,
+ * so only the bytes copied from the query are summed to build a response.
+ * A template is immutable and can be shared between threads.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class DnsResponseTemplate {
+    /**
+     * The DNS header length.
+     */
+    private static final int DNS_HEADER_LENGTH = 12;
+    /**
+     * The time to live of redirected answers, in seconds.
+     */
+    private static final int ANSWER_TTL = 5;
+    /**
+     * The DNS A and AAAA types, and IN class.
+     */
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final int CLASS_IN = 1;
+    /**
+     * The flag bits of the third DNS header byte.
+     */
+    private static final int FLAG_QR = 0x80;
+    private static final int FLAG_AA = 0x04;
+    private static final int FLAG_RD = 0x01;
+    /**
+     * The flags to set to the third DNS header byte.
+     */
+    private final int setFlags;
+    /**
+     * The flags to clear from the third DNS header byte.
+     */
+    private final int clearedFlags;
+    private final int answerCount;
+    private final int authorityCount;
+    /**
+     * The wire format of the records.
+     */
+    private final byte[] records;
+    /**
+     * The folded checksum sum of the records, starting at an even or odd position.
+     */
+    private final int evenSum;
+    private final int oddSum;
+
+    private DnsResponseTemplate(int setFlags, int clearedFlags, int answerCount, int authorityCount, byte[] records) {
+        this.setFlags = setFlags;
+        this.clearedFlags = clearedFlags;
+        this.answerCount = answerCount;
+        this.authorityCount = authorityCount;
+        this.records = records;
+        this.evenSum = sum(0, records, 0, records.length, 0);
+        this.oddSum = sum(0, records, 0, records.length, 1);
+    }
+
+    /**
+     * Create the template of blocked query responses.<br>
+     * The responses have no answer and the given negative caching record as authority.
+     *
+     * @param authorityRecord The wire format of the authority record.
+     * @return The template of blocked query responses.
+     */
+    static DnsResponseTemplate blocked(byte[] authorityRecord) {
+        return new DnsResponseTemplate(FLAG_QR, 0, 0, 1, authorityRecord.clone());
+    }
+
+    /**
+     * Create the template of redirected query responses.<br>
+     * The responses have an authoritative A or AAAA answer, depending on the redirection address family,
+     * pointing to the question name.
+     *
+     * @param address The redirection address bytes.
+     * @return The template of redirected query responses.
+     */
+    static DnsResponseTemplate redirected(byte[] address) {
+        byte[] answer = new byte[12 + address.length];
+        writeShort(answer, 0, 0xC000 | DNS_HEADER_LENGTH);
+        writeShort(answer, 2, address.length == 16 ? TYPE_AAAA : TYPE_A);
+        writeShort(answer, 4, CLASS_IN);
+        writeShort(answer, 6, 0);
+        writeShort(answer, 8, ANSWER_TTL);
+        writeShort(answer, 10, address.length);
+        System.arraycopy(address, 0, answer, 12, address.length);
+        return new DnsResponseTemplate(FLAG_QR | FLAG_AA, FLAG_RD, 1, 0, answer);
+    }
+
+    /**
+     * Get the records length.
+     *
+     * @return The records length.
+     */
+    int getRecordsLength() {
+        return this.records.length;
+    }
+
+    /**
+     * Patch the flags and record counts of a response DNS header, copied from its query.
+     *
+     * @param response The response bytes.
+     * @param offset   The offset of the response DNS header.
+     */
+    void writeHeader(byte[] response, int offset) {
+        response[offset + 2] = (byte) ((response[offset + 2] | this.setFlags) & ~this.clearedFlags);
+        writeShort(response, offset + 6, this.answerCount);
+        writeShort(response, offset + 8, this.authorityCount);
+    }
+
+    /**
+     * Write the records into a response.
+     *
+     * @param response The response bytes.
+     * @param offset   The offset to write the records at.
+     */
+    void writeRecords(byte[] response, int offset) {
+        System.arraycopy(this.records, 0, response, offset, this.records.length);
+    }
+
+    /**
+     * Get the folded checksum sum of the records.
+     *
+     * @param position The position of the records in the checksummed data.
+     * @return The folded checksum sum of the records at this position.
+     */
+    int getSum(int position) {
+        return (position & 1) == 0 ? this.evenSum : this.oddSum;
+    }
+}
@@ -1,33 +1,123 @@
 package org.adaway.vpn;
 
-import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.LinkProperties;
 import android.net.VpnService;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import org.adaway.helper.PreferenceHelper;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.SSLSocketFactory;
 
 import static android.content.Context.CONNECTIVITY_SERVICE;
 
 class DnsServerMapper {
     private static final String TAG = "DnsMapper";
+    /**
+     * The number of upstream channels per DNS server.
+     */
+    private static final int CHANNELS_PER_SERVER = 4;
+    /**
+     * The port of upstream DNS servers.
+     */
+    private static final int DNS_PORT = 53;
+    /**
+     * The port of upstream DNS over TLS servers.
+     */
+    private static final int DNS_OVER_TLS_PORT = 853;
+    /**
+     * The upstream transport preference values.
+     */
+    private static final String TRANSPORT_TLS = "tls";
+    private static final String TRANSPORT_HTTPS = "https";
+    private static final UpstreamChannel[] NO_CHANNELS = new UpstreamChannel[0];
 
-    private final Context context;
+    private final android.net.VpnService vpnService;
+    /**
+     * The callback to notify when upstream channels are opened or closed.
+     */
+    private final Runnable channelsListener;
+    /**
+     * The handler of the responses received by the secure and TCP fallback transports.
+     */
+    private final UpstreamResponseHandler responseHandler;
     private final List<InetAddress> upstreamDnsServers;
+    /**
+     * The selector of upstream DNS servers, from their health.
+     */
+    private final UpstreamSelector upstreamSelector;
+    /**
+     * The upstream channel pools, by DNS server address.
+     */
+    private final Map<InetSocketAddress, UpstreamChannel[]> channelPools;
+    /**
+     * The worn out upstream channels, replaced in their pool and waiting for their pending queries.
+     */
+    private final List<UpstreamChannel> retiredChannels;
+    /**
+     * The opened upstream channels, {@code null} if the pools changed since last computed.
+     */
+    private UpstreamChannel[] channels;
+    /**
+     * The index of the next channel to use in a pool.
+     */
+    private int nextChannelIndex;
+    /**
+     * The transport to send queries with.
+     */
+    private volatile UpstreamForwarder.Transport transport;
+    /**
+     * The secure transport, {@code null} if queries are sent to the network DNS servers over UDP.
+     */
+    @Nullable
+    private Closeable secureTransport;
+    /**
+     * The secure DNS servers, empty if queries are sent to the network DNS servers over UDP.
+     */
+    private List<InetSocketAddress> secureServers;
+    /**
+     * The TCP transport to retry truncated UDP responses with, {@code null} if a secure transport is set.
+     */
+    @Nullable
+    private StreamUpstreamTransport tcpTransport;
+    /**
+     * The executor to retry truncated UDP responses over TCP, off the upstream receiving thread.
+     */
+    @Nullable
+    private ExecutorService tcpExecutor;
 
-    DnsServerMapper(Context context) {
-        this.context = context;
+    DnsServerMapper(android.net.VpnService vpnService, Runnable channelsListener,
+                    UpstreamResponseHandler responseHandler) {
+        this.vpnService = vpnService;
+        this.channelsListener = channelsListener;
+        this.responseHandler = responseHandler;
         this.upstreamDnsServers = new ArrayList<>();
+        this.upstreamSelector = new UpstreamSelector();
+        this.channelPools = new HashMap<>();
+        this.retiredChannels = new ArrayList<>();
+        this.channels = NO_CHANNELS;
+        this.transport = this::sendUdpQuery;
+        this.secureServers = Collections.emptyList();
     }
 
     InetAddress configure(android.net.VpnService.Builder builder) throws VpnWorker.VpnNetworkException {
@@ -48,6 +138,7 @@ class DnsServerMapper {
 
         // Add configured DNS servers
         this.upstreamDnsServers.clear();
+        closeChannels();
         // TODO Custom DNS servers
 //        if (config.dnsServers.enabled) {
 //            for (Configuration.Item item : config.dnsServers.items) {
@@ -73,26 +164,327 @@ class DnsServerMapper {
             }
         }
 
+        configureTransport();
+
         // Return last DNS server added
         return this.upstreamDnsServers.get(this.upstreamDnsServers.size() - 1);
     }
 
+    private void configureTransport() throws VpnWorker.VpnNetworkException {
+        String transport = PreferenceHelper.getVpnDnsTransport(this.vpnService);
+        List<InetSocketAddress> servers = new ArrayList<>();
+        if (TRANSPORT_TLS.equals(transport) || TRANSPORT_HTTPS.equals(transport)) {
+            String serverName = PreferenceHelper.getVpnDnsServerName(this.vpnService).trim();
+            List<InetAddress> addresses = getSecureDnsServerAddresses();
+            if (serverName.isEmpty() || addresses.isEmpty()) {
+                throw new VpnWorker.VpnNetworkException("No secure DNS server");
+            }
+            Log.i(TAG, "configure: Using " + transport + " DNS server " + serverName + " at " + addresses);
+            ProtectedSocketFactory socketFactory = new ProtectedSocketFactory(this.vpnService);
+            if (TRANSPORT_TLS.equals(transport)) {
+                for (InetAddress address : addresses) {
+                    servers.add(new InetSocketAddress(address, DNS_OVER_TLS_PORT));
+                }
+                // Use the default TLS socket factory for its shared session cache
+                StreamUpstreamTransport tlsTransport = new StreamUpstreamTransport(this.upstreamSelector,
+                        socketFactory, (SSLSocketFactory) SSLSocketFactory.getDefault(), serverName,
+                        this.responseHandler);
+                this.secureTransport = tlsTransport;
+                this.transport = tlsTransport;
+            } else {
+                servers.add(HttpsUpstreamTransport.getServerAddress(serverName));
+                HttpsUpstreamTransport httpsTransport = new HttpsUpstreamTransport(this.upstreamSelector,
+                        socketFactory, serverName, addresses, this.responseHandler);
+                this.secureTransport = httpsTransport;
+                this.transport = httpsTransport;
+            }
+        } else {
+            for (InetAddress upstreamDnsServer : this.upstreamDnsServers) {
+                servers.add(new InetSocketAddress(upstreamDnsServer, DNS_PORT));
+            }
+            // Use its own selector so TCP response times do not rank the UDP servers
+            this.tcpTransport = new StreamUpstreamTransport(new UpstreamSelector(),
+                    new ProtectedSocketFactory(this.vpnService), null, null, this.responseHandler);
+            this.tcpExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "VpnTcpFallback"));
+            this.transport = this::sendUdpQuery;
+        }
+        this.secureServers = this.secureTransport == null ? Collections.emptyList() : servers;
+        this.upstreamSelector.setServers(servers);
+    }
+
+    private List<InetAddress> getSecureDnsServerAddresses() {
+        List<InetAddress> addresses = new ArrayList<>();
+        for (String address : PreferenceHelper.getVpnDnsServerAddresses(this.vpnService).split(",")) {
+            address = address.trim();
+            if (address.isEmpty()) {
+                continue;
+            }
+            try {
+                addresses.add(InetAddress.getByName(address));
+            } catch (UnknownHostException e) {
+                Log.w(TAG, "configure: Invalid secure DNS server address " + address, e);
+            }
+        }
+        return addresses;
+    }
+
     InetAddress translate(InetAddress fakeDnsAddress) {
         byte[] addr = fakeDnsAddress.getAddress();
-        int index = addr[addr.length - 1] - 2;
+        return translate(addr[addr.length - 1]);
+    }
+
+    InetAddress translate(byte fakeDnsAddressLastByte) {
+        int index = (fakeDnsAddressLastByte & 0xFF) - 2;
 
-        if (index >= this.upstreamDnsServers.size()) {
-            Log.e(TAG, "handleDnsRequest: Cannot handle packets to " + fakeDnsAddress.getHostAddress() + " - not a valid address for this network");
+        if (index < 0 || index >= this.upstreamDnsServers.size()) {
+            Log.e(TAG, "handleDnsRequest: Cannot handle packets to DNS server " + index + " - not a valid address for this network");
             return null;
         }
 
         InetAddress dnsAddress = this.upstreamDnsServers.get(index);
-        Log.d(TAG, String.format("handleDnsRequest: Incoming packet to %s AKA %d AKA %s", fakeDnsAddress.getHostAddress(), index, dnsAddress.getHostAddress()));
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, String.format("handleDnsRequest: Incoming packet to %d AKA %s", index, dnsAddress.getHostAddress()));
+        }
         return dnsAddress;
     }
 
+    /**
+     * Get the selector of upstream DNS servers.
+     *
+     * @return The selector of upstream DNS servers.
+     */
+    UpstreamSelector getUpstreamSelector() {
+        return this.upstreamSelector;
+    }
+
+    /**
+     * Get the transport to send queries with.
+     *
+     * @return The transport to send queries with, over UDP to the network DNS servers unless a secure one is set.
+     */
+    UpstreamForwarder.Transport getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * Get the upstream DNS server to send a query to.
+     *
+     * @param target The network DNS server the query was sent to.
+     * @return The network DNS server, or the first secure DNS server if a secure transport is set.
+     */
+    InetSocketAddress getUpstreamServer(InetSocketAddress target) {
+        List<InetSocketAddress> servers = this.secureServers;
+        return servers.isEmpty() ? target : servers.get(0);
+    }
+
+    /**
+     * Check whether an upstream DNS server is available to answer the queries sent to a target.
+     *
+     * @param target The network DNS server the query was sent to.
+     * @return {@code true} if an upstream DNS server is available, {@code false} if they are all backed off.
+     */
+    boolean isUpstreamAvailable(InetSocketAddress target) {
+        return this.upstreamSelector.isAvailable(getUpstreamServer(target));
+    }
+
+    /**
+     * Get the delay to wait for a response of the upstream DNS server answering the queries sent to a target.
+     *
+     * @param target The network DNS server the query was sent to.
+     * @return The 90th percentile of the recent response times of the selected upstream DNS server (in nanoseconds).
+     */
+    long getUpstreamHedgeDelay(InetSocketAddress target) {
+        InetSocketAddress server = this.upstreamSelector.select(getUpstreamServer(target));
+        return this.upstreamSelector.getHealth(server).getHedgeDelay();
+    }
+
+    private void sendUdpQuery(InetSocketAddress server, UpstreamQuery query) throws IOException {
+        // Try the channels of the pool in turn until one has a transaction ID available
+        for (int attempt = 0; attempt < CHANNELS_PER_SERVER; attempt++) {
+            UpstreamChannel channel = getChannel(server);
+            try {
+                if (channel.send(query)) {
+                    return;
+                }
+            } catch (IOException e) {
+                // Replace the channel on next query
+                closeChannel(channel);
+                throw e;
+            }
+        }
+        throw new IOException("No transaction ID available to send query to " + server + ".");
+    }
+
+    private void retryOverTcp(InetSocketAddress server, UpstreamQuery query, byte[] response, int length) {
+        StreamUpstreamTransport tcpTransport = this.tcpTransport;
+        ExecutorService tcpExecutor = this.tcpExecutor;
+        if (tcpTransport == null || tcpExecutor == null || tcpExecutor.isShutdown()) {
+            return;
+        }
+        // Keep the truncated response to answer it if the TCP query fails
+        byte[] truncatedResponse = Arrays.copyOf(response, length);
+        tcpExecutor.execute(() -> {
+            try {
+                tcpTransport.send(server, query);
+            } catch (IOException e) {
+                Log.d(TAG, "Failed to retry truncated response from " + server + " over TCP.", e);
+                if (query.answer()) {
+                    this.responseHandler.handleResponse(query.getRequestHeaders(), truncatedResponse,
+                            query.fitResponse(truncatedResponse, length));
+                }
+            }
+        });
+    }
+
+    /**
+     * Get an upstream channel to a DNS server.<br>
+     * Channels are opened on demand and used in turn within the server pool.
+     * Worn out channels are replaced by new ones, and retired until their pending queries are done.
+     *
+     * @param server The DNS server address.
+     * @return An upstream channel to the DNS server.
+     * @throws IOException If the channel could not be opened.
+     */
+    UpstreamChannel getChannel(InetSocketAddress server) throws IOException {
+        synchronized (this.channelPools) {
+            UpstreamChannel[] pool = this.channelPools.get(server);
+            if (pool == null) {
+                pool = new UpstreamChannel[CHANNELS_PER_SERVER];
+                this.channelPools.put(server, pool);
+            }
+            int index = this.nextChannelIndex;
+            this.nextChannelIndex = (index + 1) % CHANNELS_PER_SERVER;
+            UpstreamChannel channel = pool[index];
+            if (channel != null && channel.isWornOut(System.nanoTime())) {
+                this.retiredChannels.add(channel);
+                channel = null;
+            }
+            if (channel == null) {
+                Log.d(TAG, "Opening upstream channel " + index + " to " + server);
+                channel = new UpstreamChannel(this.vpnService, server,
+                        this.upstreamSelector.getHealth(server),
+                        this.tcpTransport == null ? null : this::retryOverTcp);
+                pool[index] = channel;
+                this.channels = null;
+                this.channelsListener.run();
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Get the opened upstream channels.<br>
+     * The same array is returned until a channel is opened or closed.
+     *
+     * @return The opened upstream channels.
+     */
+    UpstreamChannel[] getChannels() {
+        synchronized (this.channelPools) {
+            if (this.channels == null) {
+                List<UpstreamChannel> channels = new ArrayList<>();
+                for (UpstreamChannel[] pool : this.channelPools.values()) {
+                    for (UpstreamChannel channel : pool) {
+                        if (channel != null) {
+                            channels.add(channel);
+                        }
+                    }
+                }
+                channels.addAll(this.retiredChannels);
+                this.channels = channels.toArray(NO_CHANNELS);
+            }
+            return this.channels;
+        }
+    }
+
+    /**
+     * Close an upstream channel, to be replaced by a new one on next use.
+     *
+     * @param channel The channel to close.
+     */
+    void closeChannel(UpstreamChannel channel) {
+        synchronized (this.channelPools) {
+            UpstreamChannel[] pool = this.channelPools.get(channel.getServer());
+            if (pool != null) {
+                for (int i = 0; i < pool.length; i++) {
+                    if (pool[i] == channel) {
+                        pool[i] = null;
+                        this.channels = null;
+                    }
+                }
+            }
+            if (this.retiredChannels.remove(channel)) {
+                this.channels = null;
+            }
+        }
+        channel.close();
+        this.channelsListener.run();
+    }
+
+    /**
+     * Close the retired upstream channels without pending queries.<br>
+     * This method must be called by the thread receiving the channel responses.
+     *
+     * @return The number of closed channels.
+     */
+    int closeRetiredChannels() {
+        List<UpstreamChannel> closedChannels = new ArrayList<>();
+        synchronized (this.channelPools) {
+            Iterator<UpstreamChannel> iterator = this.retiredChannels.iterator();
+            while (iterator.hasNext()) {
+                UpstreamChannel channel = iterator.next();
+                if (!channel.hasPendingQueries()) {
+                    iterator.remove();
+                    closedChannels.add(channel);
+                    this.channels = null;
+                }
+            }
+        }
+        if (closedChannels.isEmpty()) {
+            return 0;
+        }
+        for (UpstreamChannel channel : closedChannels) {
+            channel.close();
+        }
+        this.channelsListener.run();
+        return closedChannels.size();
+    }
+
+    /**
+     * Close all upstream channels and the secure and TCP fallback transport connections.
+     */
+    void closeChannels() {
+        if (this.tcpExecutor != null) {
+            this.tcpExecutor.shutdownNow();
+            this.tcpExecutor = null;
+        }
+        if (this.tcpTransport != null) {
+            this.tcpTransport.close();
+            this.tcpTransport = null;
+        }
+        if (this.secureTransport != null) {
+            FileHelper.closeOrWarn(this.secureTransport, TAG, "closeChannels: Could not close secure transport");
+            this.secureTransport = null;
+            this.secureServers = Collections.emptyList();
+        }
+        synchronized (this.channelPools) {
+            for (UpstreamChannel[] pool : this.channelPools.values()) {
+                for (UpstreamChannel channel : pool) {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                }
+            }
+            for (UpstreamChannel channel : this.retiredChannels) {
+                channel.close();
+            }
+            this.channelPools.clear();
+            this.retiredChannels.clear();
+            this.channels = NO_CHANNELS;
+        }
+    }
+
     private List<InetAddress> getNetworkDnsServers() {
-        ConnectivityManager cm = (ConnectivityManager) this.context.getSystemService(CONNECTIVITY_SERVICE);
+        ConnectivityManager cm = (ConnectivityManager) this.vpnService.getSystemService(CONNECTIVITY_SERVICE);
         if (cm == null) {
             return Collections.emptyList();
         }
@@ -135,7 +527,7 @@ class DnsServerMapper {
     }
 
     private boolean hasIpV6Servers(Collection<InetAddress> dnsServers) {
-        if (!PreferenceHelper.getEnableIpv6(this.context)) {
+        if (!PreferenceHelper.getEnableIpv6(this.vpnService)) {
             return false;
         }
 
@@ -0,0 +1,193 @@
+package org.adaway.vpn;
+
+import androidx.annotation.NonNull;
+
+import org.adaway.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Dns;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * This class sends queries to an upstream DNS over HTTPS server (RFC 8484).<br>
+ * Queries are posted asynchronously through a single HTTP client, multiplexing them over a persistent HTTP/2
+ * connection which is kept alive by pings while used. TLS sessions are resumed on reconnection.
+ * The server name is resolved from bootstrap addresses so no plain DNS query is sent to connect to it.
+ * It can be used from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class HttpsUpstreamTransport implements UpstreamForwarder.Transport, Closeable {
+    /**
+     * The log tag.
+     */
+    private static final String TAG = "HttpsUpstream";
+    /**
+     * The DNS message media type.
+     */
+    private static final MediaType DNS_MESSAGE = MediaType.get("application/dns-message");
+    /**
+     * The HTTPS port of upstream DNS servers.
+     */
+    static final int HTTPS_PORT = 443;
+    /**
+     * The connection and query timeout (in seconds).
+     */
+    private static final int TIMEOUT = 10;
+    /**
+     * The HTTP/2 ping interval to keep connections alive and detect broken ones (in seconds).
+     */
+    private static final int PING_INTERVAL = 30;
+    /**
+     * The time to keep an idle connection open (in minutes).
+     */
+    private static final int KEEP_ALIVE_DURATION = 5;
+    /**
+     * The maximum number of concurrent queries, multiplexed on the server connection.
+     */
+    private static final int MAX_CONCURRENT_QUERIES = 64;
+    private final UpstreamSelector selector;
+    private final UpstreamResponseHandler handler;
+    private final OkHttpClient httpClient;
+    private final HttpUrl url;
+
+    /**
+     * Constructor.
+     *
+     * @param selector           The selector to get the server health from.
+     * @param socketFactory      The factory of the underlying sockets.
+     * @param serverName         The server name.
+     * @param bootstrapAddresses The server addresses.
+     * @param handler            The handler of the received responses.
+     */
+    HttpsUpstreamTransport(UpstreamSelector selector, SocketFactory socketFactory, String serverName,
+                           List<InetAddress> bootstrapAddresses, UpstreamResponseHandler handler) {
+        this(selector, createHttpClient(socketFactory, serverName, bootstrapAddresses), new HttpUrl.Builder()
+                .scheme("https")
+                .host(serverName)
+                .addPathSegments("dns-query")
+                .build(), handler);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param selector   The selector to get the server health from.
+     * @param httpClient The HTTP client to post queries with.
+     * @param url        The URL to post queries to.
+     * @param handler    The handler of the received responses.
+     */
+    HttpsUpstreamTransport(UpstreamSelector selector, OkHttpClient httpClient, HttpUrl url,
+                           UpstreamResponseHandler handler) {
+        this.selector = selector;
+        this.handler = handler;
+        this.httpClient = httpClient;
+        this.url = url;
+    }
+
+    private static OkHttpClient createHttpClient(SocketFactory socketFactory, String serverName,
+                                                 List<InetAddress> bootstrapAddresses) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_CONCURRENT_QUERIES);
+        dispatcher.setMaxRequestsPerHost(MAX_CONCURRENT_QUERIES);
+        return new OkHttpClient.Builder()
+                .socketFactory(socketFactory)
+                .dns(hostname -> serverName.equalsIgnoreCase(hostname) ? bootstrapAddresses : Dns.SYSTEM.lookup(hostname))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectionPool(new ConnectionPool(1, KEEP_ALIVE_DURATION, TimeUnit.MINUTES))
+                .dispatcher(dispatcher)
+                .pingInterval(PING_INTERVAL, TimeUnit.SECONDS)
+                .connectTimeout(TIMEOUT, TimeUnit.SECONDS)
+                .callTimeout(TIMEOUT, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Get the server address to track the health of the DNS over HTTPS server.
+     *
+     * @param serverName The server name.
+     * @return The server address, unresolved.
+     */
+    static InetSocketAddress getServerAddress(String serverName) {
+        return InetSocketAddress.createUnresolved(serverName, HTTPS_PORT);
+    }
+
+    @Override
+    public void send(InetSocketAddress server, UpstreamQuery query) {
+        // Post the payload without datagram packet as the server address is not resolved
+        byte[] queryPayload = query.copyPayload();
+        if (queryPayload.length < 2) {
+            return;
+        }
+        int originalId = (queryPayload[0] & 0xFF) << 8 | queryPayload[1] & 0xFF;
+        // Use a zero transaction ID to make queries cache friendly as stated by RFC 8484
+        queryPayload[0] = 0;
+        queryPayload[1] = 0;
+        Request request = new Request.Builder()
+                .url(this.url)
+                .header("Accept", DNS_MESSAGE.toString())
+                .post(RequestBody.create(DNS_MESSAGE, queryPayload))
+                .build();
+        UpstreamHealth health = this.selector.getHealth(server);
+        long sendTime = this.selector.now();
+        this.httpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                if (!call.isCanceled()) {
+                    health.recordFailure(selector.now());
+                    Log.d(TAG, "Failed to query " + server + ".", e);
+                }
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
+                try (ResponseBody body = response.body()) {
+                    if (!response.isSuccessful() || body == null) {
+                        health.recordFailure(selector.now());
+                        Log.d(TAG, "Failed to query " + server + ": HTTP " + response.code() + ".");
+                        return;
+                    }
+                    byte[] payload = body.bytes();
+                    health.recordResponse(selector.now() - sendTime);
+                    if (payload.length < 2 || !query.answer()) {
+                        return;
+                    }
+                    payload[0] = (byte) (originalId >> 8);
+                    payload[1] = (byte) originalId;
+                    handler.handleResponse(query.getRequestHeaders(), payload,
+                            query.fitResponse(payload, payload.length));
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancel the pending queries and close the connections.
+     */
+    @Override
+    public void close() {
+        this.httpClient.dispatcher().cancelAll();
+        this.httpClient.connectionPool().evictAll();
+        this.httpClient.dispatcher().executorService().shutdown();
+    }
+}
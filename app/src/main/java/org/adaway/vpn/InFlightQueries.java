@@ -0,0 +1,324 @@
+package org.adaway.vpn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import static org.adaway.vpn.DnsQueryPacket.readShort;
+
+/**
+ * This class coalesces identical queries waiting for an upstream DNS server response.<br>
+ * The first query of a flight is forwarded upstream while the identical queries received meanwhile wait for its
+ * response, which is then sent to each of them with their own transaction ID and addresses.
+ * Queries are identical if they only differ by their transaction ID and question name case.
+ * A query is forwarded again, joining the flight, if it is retransmitted by the client of a query of the flight
+ * or if the flight waits longer than the upstream response delay, so a lost upstream query does not hold the
+ * following queries back. Otherwise, flights expire after a short timeout.
+ * It can be used from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class InFlightQueries {
+    /**
+     * The time a flight accepts new queries for (in milliseconds).
+     */
+    private static final long FLIGHT_TIMEOUT_MS = 2_000;
+    /**
+     * The maximum number of flights.
+     */
+    private static final int MAX_FLIGHTS = 1024;
+    /**
+     * The maximum number of queries waiting for a flight.
+     */
+    private static final int MAX_WAITING_QUERIES = 32;
+    /**
+     * The maximum number of queries forwarded for a flight.
+     */
+    private static final int MAX_FORWARDED_QUERIES = 4;
+    /**
+     * The DNS header length.
+     */
+    private static final int DNS_HEADER_LENGTH = 12;
+    /**
+     * The UDP header length.
+     */
+    private static final int UDP_HEADER_LENGTH = 8;
+
+    private final LongSupplier clock;
+    /**
+     * The flights, by query key.
+     */
+    private final Map<Key, Flight> flights;
+    /**
+     * The flights, by IP and UDP headers of their forwarded queries.
+     */
+    private final Map<byte[], Flight> flightsByHeaders;
+
+    /**
+     * Constructor.
+     */
+    InFlightQueries() {
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param clock The clock to get the current time from (in milliseconds).
+     */
+    InFlightQueries(LongSupplier clock) {
+        this.clock = clock;
+        this.flights = new HashMap<>();
+        this.flightsByHeaders = new IdentityHashMap<>();
+    }
+
+    /**
+     * Add a query to forward upstream.<br>
+     * An identical query is only forwarded again if it is retransmitted.
+     *
+     * @param query          The query to add.
+     * @param requestHeaders The IP and UDP headers of the query, to forward it with.
+     * @return {@code true} if the query must be forwarded, {@code false} if it waits for an identical query response.
+     */
+    boolean add(DnsQueryPacket query, byte[] requestHeaders) {
+        return add(query, requestHeaders, FLIGHT_TIMEOUT_MS);
+    }
+
+    /**
+     * Add a query to forward upstream.
+     *
+     * @param query          The query to add.
+     * @param requestHeaders The IP and UDP headers of the query, to forward it with.
+     * @param reforwardDelay The delay to wait for a flight response before forwarding an identical query again,
+     *                       usually the upstream hedge delay (in milliseconds).
+     * @return {@code true} if the query must be forwarded, {@code false} if it waits for an identical query response.
+     */
+    boolean add(DnsQueryPacket query, byte[] requestHeaders, long reforwardDelay) {
+        byte[] payload = Arrays.copyOfRange(query.getData(), query.getPayloadOffset(),
+                query.getPayloadOffset() + query.getPayloadLength());
+        Key key = new Key(payload, query.getQuestionLength());
+        Query newQuery = new Query(requestHeaders, payload, query.getQuestionLength());
+        long now = this.clock.getAsLong();
+        synchronized (this) {
+            Flight flight = this.flights.get(key);
+            if (flight != null && now - flight.time < FLIGHT_TIMEOUT_MS) {
+                // Forward again retransmitted queries and queries of flights waiting too long
+                boolean retransmitted = flight.removeRetransmitted(newQuery);
+                if (retransmitted || now - flight.time >= reforwardDelay) {
+                    if (flight.forwardedQueries.size() < MAX_FORWARDED_QUERIES) {
+                        flight.forwardedQueries.add(newQuery);
+                        flight.time = now;
+                        this.flightsByHeaders.put(requestHeaders, flight);
+                    }
+                    return true;
+                }
+                if (flight.waitingQueries.size() >= MAX_WAITING_QUERIES) {
+                    return true;
+                }
+                flight.waitingQueries.add(newQuery);
+                return false;
+            }
+            if (flight != null) {
+                removeForwardedQueries(flight);
+            } else if (this.flights.size() >= MAX_FLIGHTS && !removeExpiredFlights(now)) {
+                return true;
+            }
+            flight = new Flight(key, newQuery, now);
+            this.flights.put(key, flight);
+            this.flightsByHeaders.put(requestHeaders, flight);
+            return true;
+        }
+    }
+
+    /**
+     * Complete a flight with the response of its forwarded query.
+     *
+     * @param requestHeaders The IP and UDP headers of the forwarded query.
+     * @param response       The response payload.
+     * @param length         The response payload length.
+     * @return The response packets to send to the queries waiting for the flight.
+     */
+    List<byte[]> complete(byte[] requestHeaders, byte[] response, int length) {
+        Flight flight;
+        synchronized (this) {
+            flight = this.flightsByHeaders.get(requestHeaders);
+            if (flight == null) {
+                return Collections.emptyList();
+            }
+            this.flights.remove(flight.key);
+            removeForwardedQueries(flight);
+        }
+        List<byte[]> packets = new ArrayList<>(flight.waitingQueries.size());
+        for (Query waitingQuery : flight.waitingQueries) {
+            packets.add(waitingQuery.createResponse(response, length));
+        }
+        return packets;
+    }
+
+    /**
+     * Get the number of flights.
+     *
+     * @return The number of flights.
+     */
+    synchronized int getFlightCount() {
+        return this.flights.size();
+    }
+
+    private boolean removeExpiredFlights(long now) {
+        boolean removed = false;
+        Iterator<Flight> iterator = this.flights.values().iterator();
+        while (iterator.hasNext()) {
+            Flight flight = iterator.next();
+            if (now - flight.time >= FLIGHT_TIMEOUT_MS) {
+                iterator.remove();
+                removeForwardedQueries(flight);
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    private void removeForwardedQueries(Flight flight) {
+        for (Query forwardedQuery : flight.forwardedQueries) {
+            this.flightsByHeaders.remove(forwardedQuery.requestHeaders);
+        }
+    }
+
+    /**
+     * This class is the key of identical queries.<br>
+     * It is the query payload without transaction ID, and with the question name in lower case.
+     */
+    private static final class Key {
+        private final byte[] data;
+        private final int hashCode;
+
+        private Key(byte[] payload, int questionLength) {
+            this.data = Arrays.copyOfRange(payload, 2, payload.length);
+            // Lower case the question name, skipping header and question type and class
+            for (int i = DNS_HEADER_LENGTH - 2; i < questionLength - 6; i++) {
+                byte b = this.data[i];
+                if (b >= 'A' && b <= 'Z') {
+                    this.data[i] = (byte) (b + 'a' - 'A');
+                }
+            }
+            this.hashCode = Arrays.hashCode(this.data);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+
+            return Arrays.equals(this.data, key.data);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+
+    private static final class Flight {
+        private final Key key;
+        /**
+         * The forwarded queries, the first one and the ones forwarded again.
+         */
+        private final List<Query> forwardedQueries;
+        private final List<Query> waitingQueries;
+        /**
+         * The time of the last forwarded query.
+         */
+        private long time;
+
+        private Flight(Key key, Query query, long time) {
+            this.key = key;
+            this.forwardedQueries = new ArrayList<>(1);
+            this.forwardedQueries.add(query);
+            this.waitingQueries = new ArrayList<>(0);
+            this.time = time;
+        }
+
+        /**
+         * Check whether a query is retransmitted by the client of a query of the flight.<br>
+         * The previous query is no more waiting as the retransmitted one is forwarded instead.
+         *
+         * @param query The query to check.
+         * @return {@code true} if the query was retransmitted, {@code false} otherwise.
+         */
+        private boolean removeRetransmitted(Query query) {
+            for (Query forwardedQuery : this.forwardedQueries) {
+                if (forwardedQuery.isRetransmittedBy(query)) {
+                    return true;
+                }
+            }
+            Iterator<Query> iterator = this.waitingQueries.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isRetransmittedBy(query)) {
+                    iterator.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Query {
+        private final byte[] requestHeaders;
+        private final byte[] payload;
+        private final int questionLength;
+
+        private Query(byte[] requestHeaders, byte[] payload, int questionLength) {
+            this.requestHeaders = requestHeaders;
+            this.payload = payload;
+            this.questionLength = questionLength;
+        }
+
+        /**
+         * Check whether a query is a retransmission of this query.<br>
+         * It has the same transaction ID, source address and source port.
+         *
+         * @param query The query to check.
+         * @return {@code true} if the query is a retransmission of this query, {@code false} otherwise.
+         */
+        private boolean isRetransmittedBy(Query query) {
+            byte[] headers = this.requestHeaders;
+            byte[] otherHeaders = query.requestHeaders;
+            if (headers.length != otherHeaders.length || this.payload[0] != query.payload[0]
+                    || this.payload[1] != query.payload[1]) {
+                return false;
+            }
+            // Compare IPv4 or IPv6 source address, then UDP source port
+            boolean ipv4 = (headers[0] & 0xF0) == 0x40;
+            int addressOffset = ipv4 ? 12 : 8;
+            int addressEnd = addressOffset + (ipv4 ? 4 : 16);
+            int portOffset = headers.length - UDP_HEADER_LENGTH;
+            for (int i = addressOffset; i < addressEnd; i++) {
+                if (headers[i] != otherHeaders[i]) {
+                    return false;
+                }
+            }
+            return headers[portOffset] == otherHeaders[portOffset]
+                    && headers[portOffset + 1] == otherHeaders[portOffset + 1];
+        }
+
+        private byte[] createResponse(byte[] response, int length) {
+            byte[] payload = Arrays.copyOf(response, length);
+            // Restore transaction ID
+            System.arraycopy(this.payload, 0, payload, 0, 2);
+            // Restore question name case if the response has the question
+            if (length >= this.questionLength && readShort(payload, 4) == 1) {
+                System.arraycopy(this.payload, DNS_HEADER_LENGTH, payload, DNS_HEADER_LENGTH,
+                        this.questionLength - DNS_HEADER_LENGTH);
+            }
+            return UdpResponseBuilder.build(this.requestHeaders, this.requestHeaders.length, payload, 0, length);
+        }
+    }
+}
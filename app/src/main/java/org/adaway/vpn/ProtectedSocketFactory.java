@@ -0,0 +1,73 @@
+package org.adaway.vpn;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+
+/**
+ * This class creates sockets protected from the VPN, for upstream DNS server connections.<br>
+ * Without protection, connections to a DNS server address would be routed back into the VPN.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class ProtectedSocketFactory extends SocketFactory {
+    private final android.net.VpnService vpnService;
+
+    /**
+     * Constructor.
+     *
+     * @param vpnService The VPN service to protect the sockets from.
+     */
+    ProtectedSocketFactory(android.net.VpnService vpnService) {
+        this.vpnService = vpnService;
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        Socket socket = new Socket();
+        if (!this.vpnService.protect(socket)) {
+            socket.close();
+            throw new IOException("Failed to protect upstream socket.");
+        }
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return connect(null, new InetSocketAddress(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return connect(new InetSocketAddress(localHost, localPort), new InetSocketAddress(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return connect(null, new InetSocketAddress(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return connect(new InetSocketAddress(localAddress, localPort), new InetSocketAddress(address, port));
+    }
+
+    private Socket connect(@Nullable InetSocketAddress localAddress, InetSocketAddress address) throws IOException {
+        Socket socket = createSocket();
+        try {
+            if (localAddress != null) {
+                socket.bind(localAddress);
+            }
+            socket.connect(address);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.adaway.vpn;
+
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is a bounded lock-free queue to hand packets off between the VPN pipeline stages.<br>
+ * Each slot has a sequence number that tells producers and consumers whether it is free or filled,
+ * so any number of threads can offer and poll elements without locks.
+ * Elements are consumed by a single thread which can park until an element is available.
+ * When the queue is full, producers can drop the oldest element instead of blocking.
+ *
+ * @param <E> The type of queued elements.
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class RingBuffer<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    /**
+     * The position of the next element to poll.
+     */
+    private final AtomicLong head;
+    /**
+     * The position of the next element to offer.
+     */
+    private final AtomicLong tail;
+    /**
+     * The consumer thread waiting for an element, {@code null} if not waiting.
+     */
+    private volatile Thread waitingConsumer;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The queue capacity, rounded up to a power of two.
+     */
+    RingBuffer(int capacity) {
+        if (capacity < 2 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+        this.head = new AtomicLong();
+        this.tail = new AtomicLong();
+    }
+
+    /**
+     * Offer an element to the queue.
+     *
+     * @param element The element to offer.
+     * @return {@code true} if the element was queued, {@code false} if the queue is full.
+     */
+    boolean offer(E element) {
+        long position = this.tail.get();
+        while (true) {
+            int index = (int) position & this.mask;
+            long difference = this.sequences.get(index) - position;
+            if (difference == 0) {
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    this.elements.lazySet(index, element);
+                    // Publish the element with a full barrier so a parking consumer is always seen
+                    this.sequences.set(index, position + 1);
+                    signalConsumer();
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+            position = this.tail.get();
+        }
+    }
+
+    /**
+     * Offer an element to the queue, dropping the oldest elements while the queue is full.
+     *
+     * @param element The element to offer.
+     * @return The number of dropped elements.
+     */
+    int offerDroppingOldest(E element) {
+        int dropped = 0;
+        while (!offer(element)) {
+            if (poll() != null) {
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Poll an element from the queue.
+     *
+     * @return The oldest element of the queue, {@code null} if the queue is empty.
+     */
+    @Nullable
+    E poll() {
+        long position = this.head.get();
+        while (true) {
+            int index = (int) position & this.mask;
+            long difference = this.sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (this.head.compareAndSet(position, position + 1)) {
+                    E element = this.elements.get(index);
+                    this.elements.lazySet(index, null);
+                    // Release the slot for the next lap of producers
+                    this.sequences.lazySet(index, position + this.mask + 1);
+                    return element;
+                }
+            } else if (difference < 0) {
+                return null;
+            }
+            position = this.head.get();
+        }
+    }
+
+    /**
+     * Take an element from the queue, waiting for one if the queue is empty.<br>
+     * This method must be called by a single consumer thread.
+     *
+     * @return The oldest element of the queue.
+     * @throws InterruptedException If the consumer thread was interrupted while waiting.
+     */
+    E take() throws InterruptedException {
+        E element = poll();
+        while (element == null) {
+            this.waitingConsumer = Thread.currentThread();
+            // Check again in case an element was offered before the consumer was registered
+            element = poll();
+            if (element == null) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    this.waitingConsumer = null;
+                    throw new InterruptedException();
+                }
+                element = poll();
+            }
+            this.waitingConsumer = null;
+        }
+        return element;
+    }
+
+    private void signalConsumer() {
+        Thread consumer = this.waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+}
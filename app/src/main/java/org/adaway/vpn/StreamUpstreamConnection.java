@@ -0,0 +1,252 @@
+package org.adaway.vpn;
+
+import org.adaway.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * This class is a persistent stream connection to an upstream DNS server, over TCP or TLS.<br>
+ * Queries are pipelined: they are written with their two bytes length prefix without waiting for the previous
+ * responses, and each one is sent with its own transaction ID which matches its response, in any order.
+ * The connection is kept open until it was idle for the socket read timeout.
+ * If it is closed by the server, times out or fails, its pending queries are handed back to be sent again.
+ * Response times and connection failures with pending queries are recorded into the server health.
+ * Responses are read into a reused buffer and fitted into the UDP payload size advertised by their client.
+ * Queries can be sent from any thread while responses are received by a dedicated thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class StreamUpstreamConnection implements Closeable {
+    /**
+     * The log tag.
+     */
+    private static final String TAG = "StreamUpstream";
+    /**
+     * The maximum number of pending queries.
+     */
+    private static final int MAX_PENDING_QUERIES = 1024;
+    /**
+     * The upstream DNS server address.
+     */
+    private final InetSocketAddress server;
+    /**
+     * The upstream DNS server health.
+     */
+    private final UpstreamHealth health;
+    /**
+     * The handler of the received responses.
+     */
+    private final UpstreamResponseHandler handler;
+    /**
+     * The handler of the pending queries left once the connection failed.
+     */
+    private final Consumer<UpstreamQuery> retryHandler;
+    /**
+     * The socket connected to the upstream DNS server.
+     */
+    private final Socket socket;
+    private final DataOutputStream output;
+    private final DataInputStream input;
+    /**
+     * The pending queries, by their transaction ID.
+     */
+    private final Map<Integer, PendingQuery> pendingQueries;
+    /**
+     * The transaction ID of the last sent query.
+     */
+    private int lastId;
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param server       The upstream DNS server address.
+     * @param socket       The socket connected to the upstream DNS server, with the idle timeout as read timeout.
+     * @param health       The upstream DNS server health.
+     * @param handler      The handler of the received responses.
+     * @param retryHandler The handler of the pending queries left once the connection failed.
+     * @throws IOException If the socket streams could not be opened.
+     */
+    StreamUpstreamConnection(InetSocketAddress server, Socket socket, UpstreamHealth health,
+                             UpstreamResponseHandler handler, Consumer<UpstreamQuery> retryHandler)
+            throws IOException {
+        this.server = server;
+        this.health = health;
+        this.handler = handler;
+        this.retryHandler = retryHandler;
+        this.socket = socket;
+        this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.pendingQueries = new ConcurrentHashMap<>();
+        this.closed = false;
+        Thread thread = new Thread(this::receive, "VpnStreamReader-" + server);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Send a query to the upstream DNS server.
+     *
+     * @param query The query to send.
+     * @throws IOException If the query could not be sent, the connection being closed.
+     */
+    synchronized void send(UpstreamQuery query) throws IOException {
+        if (this.closed) {
+            throw new IOException("Connection to " + this.server + " is closed.");
+        }
+        if (this.pendingQueries.size() >= MAX_PENDING_QUERIES) {
+            throw new IOException("Too many pending queries to " + this.server + ".");
+        }
+        DatagramPacket packet = query.createPacket(this.server);
+        if (packet.getLength() < 2) {
+            return;
+        }
+        byte[] data = packet.getData();
+        int id = this.lastId;
+        do {
+            id = (id + 1) & 0xFFFF;
+        } while (this.pendingQueries.containsKey(id));
+        this.lastId = id;
+        this.pendingQueries.put(id, new PendingQuery(readId(data), query, System.nanoTime()));
+        writeId(data, id);
+        try {
+            this.output.writeShort(packet.getLength());
+            this.output.write(data, 0, packet.getLength());
+            this.output.flush();
+        } catch (IOException e) {
+            // Let the receiving thread hand the other pending queries back
+            this.pendingQueries.remove(id);
+            this.closed = true;
+            closeSocket();
+            throw e;
+        }
+    }
+
+    private void receive() {
+        byte[] response = new byte[UpstreamQuery.MAX_UDP_PAYLOAD_SIZE];
+        try {
+            while (!this.closed) {
+                int length = this.input.readUnsignedShort();
+                if (length > response.length) {
+                    response = new byte[length];
+                }
+                this.input.readFully(response, 0, length);
+                if (length < 2) {
+                    continue;
+                }
+                PendingQuery pendingQuery = this.pendingQueries.remove(readId(response));
+                if (pendingQuery == null) {
+                    Log.d(TAG, "Dropping response from " + this.server + " without pending query.");
+                    continue;
+                }
+                this.health.recordResponse(System.nanoTime() - pendingQuery.time);
+                if (!pendingQuery.query.answer()) {
+                    continue;
+                }
+                writeId(response, pendingQuery.originalId);
+                this.handler.handleResponse(pendingQuery.query.getRequestHeaders(), response,
+                        pendingQuery.query.fitResponse(response, length));
+            }
+        } catch (SocketTimeoutException | EOFException e) {
+            Log.d(TAG, "Closing idle connection to " + this.server + ".");
+        } catch (IOException e) {
+            if (!this.closed) {
+                Log.d(TAG, "Failed to receive response from " + this.server + ".", e);
+            }
+        }
+        List<UpstreamQuery> queries = drainPendingQueries();
+        closeSocket();
+        if (!queries.isEmpty()) {
+            this.health.recordFailure(System.nanoTime());
+            for (UpstreamQuery query : queries) {
+                if (!query.isAnswered()) {
+                    this.retryHandler.accept(query);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop sending queries and take the pending ones.<br>
+     * It is synchronized with {@link #send(UpstreamQuery)} so a query is either sent and taken, or not sent.
+     *
+     * @return The pending queries, empty if the connection was closed on purpose.
+     */
+    private synchronized List<UpstreamQuery> drainPendingQueries() {
+        this.closed = true;
+        List<UpstreamQuery> queries = new ArrayList<>(this.pendingQueries.size());
+        for (PendingQuery pendingQuery : this.pendingQueries.values()) {
+            queries.add(pendingQuery.query);
+        }
+        this.pendingQueries.clear();
+        return queries;
+    }
+
+    /**
+     * Check whether the connection is closed.
+     *
+     * @return {@code true} if the connection is closed and can no more send queries, {@code false} otherwise.
+     */
+    boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Close the connection and drop its pending queries.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.pendingQueries.clear();
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Failed to close connection to " + this.server + ".", e);
+        }
+    }
+
+    private static int readId(byte[] data) {
+        return (data[0] & 0xFF) << 8 | data[1] & 0xFF;
+    }
+
+    private static void writeId(byte[] data, int id) {
+        data[0] = (byte) (id >> 8);
+        data[1] = (byte) id;
+    }
+
+    /**
+     * This class is a query waiting for its response.
+     *
+     * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+     */
+    private static class PendingQuery {
+        private final int originalId;
+        private final UpstreamQuery query;
+        private final long time;
+
+        private PendingQuery(int originalId, UpstreamQuery query, long time) {
+            this.originalId = originalId;
+            this.query = query;
+            this.time = time;
+        }
+    }
+}
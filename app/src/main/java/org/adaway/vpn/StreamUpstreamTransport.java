@@ -0,0 +1,187 @@
+package org.adaway.vpn;
+
+import androidx.annotation.Nullable;
+
+import org.adaway.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * This class sends queries to upstream DNS servers over persistent stream connections,
+ * either DNS over TCP or DNS over TLS.<br>
+ * Each server has a single pooled connection, pipelining its queries, which is opened on demand and replaced once
+ * closed. TLS sessions are resumed on reconnection from the session cache of the TLS socket factory, so only the
+ * first connection to a server pays a full handshake.
+ * The pending queries of a failed connection, and the queries sent while it was closing, are sent once again with
+ * a new connection.
+ * It can be used from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class StreamUpstreamTransport implements UpstreamForwarder.Transport, Closeable {
+    /**
+     * The log tag.
+     */
+    private static final String TAG = "StreamUpstream";
+    /**
+     * The connection and TLS handshake timeout (in milliseconds).
+     */
+    private static final int CONNECT_TIMEOUT = 5_000;
+    /**
+     * The time to keep an idle connection open (in milliseconds).
+     */
+    private static final int IDLE_TIMEOUT = 30_000;
+    private final UpstreamSelector selector;
+    private final SocketFactory socketFactory;
+    /**
+     * The TLS socket factory to secure connections with, {@code null} for plain TCP.
+     */
+    @Nullable
+    private final SSLSocketFactory sslSocketFactory;
+    /**
+     * The server name to authenticate the TLS connections with, {@code null} for plain TCP.
+     */
+    @Nullable
+    private final String serverName;
+    private final UpstreamResponseHandler handler;
+    /**
+     * The connection slots, by server address.
+     */
+    private final Map<InetSocketAddress, ConnectionSlot> slots;
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param selector         The selector to get the server health from.
+     * @param socketFactory    The factory of the underlying sockets.
+     * @param sslSocketFactory The TLS socket factory to secure connections with, {@code null} for plain TCP.
+     * @param serverName       The server name to authenticate the TLS connections with, {@code null} for plain TCP.
+     * @param handler          The handler of the received responses.
+     */
+    StreamUpstreamTransport(UpstreamSelector selector, SocketFactory socketFactory,
+                            @Nullable SSLSocketFactory sslSocketFactory, @Nullable String serverName,
+                            UpstreamResponseHandler handler) {
+        this.selector = selector;
+        this.socketFactory = socketFactory;
+        this.sslSocketFactory = sslSocketFactory;
+        this.serverName = serverName;
+        this.handler = handler;
+        this.slots = new ConcurrentHashMap<>();
+        this.closed = false;
+    }
+
+    @Override
+    public void send(InetSocketAddress server, UpstreamQuery query) throws IOException {
+        ConnectionSlot slot = this.slots.computeIfAbsent(server, key -> new ConnectionSlot());
+        StreamUpstreamConnection connection = getConnection(server, slot);
+        try {
+            connection.send(query);
+        } catch (IOException e) {
+            if (!connection.isClosed()) {
+                throw e;
+            }
+            // The connection was closed meanwhile, send the query with a new one
+            getConnection(server, slot).send(query);
+        }
+    }
+
+    /**
+     * Send again a pending query of a failed connection, only once.
+     *
+     * @param server The upstream DNS server address.
+     * @param query  The pending query to send again.
+     */
+    private void resend(InetSocketAddress server, UpstreamQuery query) {
+        if (this.closed || !query.resend()) {
+            Log.d(TAG, "Dropping query to " + server + " after its connection failed.");
+            return;
+        }
+        try {
+            send(server, query);
+        } catch (IOException e) {
+            this.selector.getHealth(server).recordFailure(this.selector.now());
+            Log.d(TAG, "Failed to send query again to " + server + ".", e);
+        }
+    }
+
+    private StreamUpstreamConnection getConnection(InetSocketAddress server, ConnectionSlot slot) throws IOException {
+        synchronized (slot) {
+            if (this.closed) {
+                throw new IOException("Transport is closed.");
+            }
+            StreamUpstreamConnection connection = slot.connection;
+            if (connection == null || connection.isClosed()) {
+                Log.d(TAG, "Opening connection to " + server + ".");
+                connection = new StreamUpstreamConnection(server, connect(server),
+                        this.selector.getHealth(server), this.handler, query -> resend(server, query));
+                slot.connection = connection;
+            }
+            return connection;
+        }
+    }
+
+    private Socket connect(InetSocketAddress server) throws IOException {
+        Socket socket = this.socketFactory.createSocket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(server, CONNECT_TIMEOUT);
+            if (this.sslSocketFactory != null && this.serverName != null) {
+                socket.setSoTimeout(CONNECT_TIMEOUT);
+                // Layer TLS over the connected socket, keyed by server name and port for session resumption
+                SSLSocket sslSocket = (SSLSocket) this.sslSocketFactory.createSocket(socket, this.serverName,
+                        server.getPort(), true);
+                socket = sslSocket;
+                SSLParameters parameters = sslSocket.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                parameters.setServerNames(Collections.singletonList(new SNIHostName(this.serverName)));
+                sslSocket.setSSLParameters(parameters);
+                sslSocket.startHandshake();
+            }
+            socket.setSoTimeout(IDLE_TIMEOUT);
+            return socket;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Close all connections and drop their pending queries.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        for (ConnectionSlot slot : this.slots.values()) {
+            synchronized (slot) {
+                if (slot.connection != null) {
+                    slot.connection.close();
+                    slot.connection = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * This class holds the connection to a server.
+     *
+     * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+     */
+    private static class ConnectionSlot {
+        @Nullable
+        private StreamUpstreamConnection connection;
+    }
+}
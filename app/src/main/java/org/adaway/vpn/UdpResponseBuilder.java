@@ -0,0 +1,174 @@
+package org.adaway.vpn;
+
+/**
+ * This class builds IP/UDP response packets from the IP and UDP headers of their request.<br>
+ * Addresses and ports are swapped, lengths and checksums are computed directly on the packet bytes,
+ * from a precomputed payload checksum sum if any.
+ * IPv4 headers are copied with their options, IPv6 headers are copied without extension headers.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class UdpResponseBuilder {
+    /**
+     * The UDP header length.
+     */
+    static final int UDP_HEADER_LENGTH = 8;
+    /**
+     * The IPv6 header length.
+     */
+    static final int IPV6_HEADER_LENGTH = 40;
+    /**
+     * The UDP protocol number.
+     */
+    static final int UDP_PROTOCOL = 17;
+
+    private UdpResponseBuilder() {
+
+    }
+
+    /**
+     * Build a response packet.
+     *
+     * @param requestHeaders The request packet bytes, starting with its IP and UDP headers.
+     * @param headersLength  The length of the request IP and UDP headers.
+     * @param payload        The response payload.
+     * @param offset         The offset of the response payload.
+     * @param length         The length of the response payload.
+     * @return The response packet bytes.
+     */
+    static byte[] build(byte[] requestHeaders, int headersLength, byte[] payload, int offset, int length) {
+        byte[] packet = new byte[headersLength + length];
+        System.arraycopy(payload, offset, packet, headersLength, length);
+        writeHeaders(requestHeaders, headersLength, packet, length);
+        return packet;
+    }
+
+    /**
+     * Write the headers of a response packet whose payload is already written after the headers.
+     *
+     * @param requestHeaders The request packet bytes, starting with its IP and UDP headers.
+     * @param headersLength  The length of the request IP and UDP headers.
+     * @param packet         The response packet to write headers to.
+     * @param payloadLength  The length of the response payload.
+     */
+    static void writeHeaders(byte[] requestHeaders, int headersLength, byte[] packet, int payloadLength) {
+        writeHeaders(requestHeaders, headersLength, packet, payloadLength,
+                sum(0, packet, headersLength, payloadLength));
+    }
+
+    /**
+     * Write the headers of a response packet whose payload is already written after the headers.
+     *
+     * @param requestHeaders The request packet bytes, starting with its IP and UDP headers.
+     * @param headersLength  The length of the request IP and UDP headers.
+     * @param packet         The response packet to write headers to.
+     * @param payloadLength  The length of the response payload.
+     * @param payloadSum     The checksum sum of the response payload.
+     */
+    static void writeHeaders(byte[] requestHeaders, int headersLength, byte[] packet, int payloadLength,
+                             int payloadSum) {
+        int ipHeaderLength = headersLength - UDP_HEADER_LENGTH;
+        int udpLength = UDP_HEADER_LENGTH + payloadLength;
+        System.arraycopy(requestHeaders, 0, packet, 0, ipHeaderLength);
+        int sum;
+        if ((requestHeaders[0] & 0xF0) == 0x40) {
+            // Swap IPv4 addresses
+            System.arraycopy(requestHeaders, 12, packet, 16, 4);
+            System.arraycopy(requestHeaders, 16, packet, 12, 4);
+            // Update total length and header checksum
+            writeShort(packet, 2, ipHeaderLength + udpLength);
+            writeShort(packet, 10, 0);
+            writeShort(packet, 10, finish(sum(0, packet, 0, ipHeaderLength)));
+            // Compute pseudo header sum
+            sum = sum(0, packet, 12, 8);
+        } else {
+            // Swap IPv6 addresses
+            System.arraycopy(requestHeaders, 8, packet, 24, 16);
+            System.arraycopy(requestHeaders, 24, packet, 8, 16);
+            // Update payload length and next header
+            writeShort(packet, 4, udpLength);
+            packet[6] = UDP_PROTOCOL;
+            // Compute pseudo header sum
+            sum = sum(0, packet, 8, 32);
+        }
+        sum += UDP_PROTOCOL + udpLength;
+        // Swap UDP ports and update length
+        packet[ipHeaderLength] = requestHeaders[ipHeaderLength + 2];
+        packet[ipHeaderLength + 1] = requestHeaders[ipHeaderLength + 3];
+        packet[ipHeaderLength + 2] = requestHeaders[ipHeaderLength];
+        packet[ipHeaderLength + 3] = requestHeaders[ipHeaderLength + 1];
+        writeShort(packet, ipHeaderLength + 4, udpLength);
+        writeShort(packet, ipHeaderLength + 6, 0);
+        // Compute UDP checksum, zero being transmitted as all ones
+        int checksum = finish(sum(sum, packet, ipHeaderLength, UDP_HEADER_LENGTH) + payloadSum);
+        writeShort(packet, ipHeaderLength + 6, checksum == 0 ? 0xFFFF : checksum);
+    }
+
+    /**
+     * Add bytes to an internet checksum sum.
+     *
+     * @param sum    The current sum.
+     * @param data   The bytes to add.
+     * @param offset The offset of the bytes to add.
+     * @param length The number of bytes to add.
+     * @return The updated sum.
+     */
+    static int sum(int sum, byte[] data, int offset, int length) {
+        int end = offset + length - 1;
+        int i = offset;
+        for (; i < end; i += 2) {
+            sum += (data[i] & 0xFF) << 8 | data[i + 1] & 0xFF;
+        }
+        if (i == end) {
+            sum += (data[i] & 0xFF) << 8;
+        }
+        return sum;
+    }
+
+    /**
+     * Add bytes to an internet checksum sum, from any position of the checksummed data.
+     *
+     * @param sum      The current sum.
+     * @param data     The bytes to add.
+     * @param offset   The offset of the bytes to add.
+     * @param length   The number of bytes to add.
+     * @param position The position of the bytes in the checksummed data.
+     * @return The updated sum.
+     */
+    static int sum(int sum, byte[] data, int offset, int length, int position) {
+        int bytesSum = fold(sum(0, data, offset, length));
+        // Swap the sum bytes at an odd position
+        if ((position & 1) != 0) {
+            bytesSum = (bytesSum >> 8 | bytesSum << 8) & 0xFFFF;
+        }
+        return sum + bytesSum;
+    }
+
+    /**
+     * Fold a sum into an internet checksum.
+     *
+     * @param sum The sum to fold.
+     * @return The internet checksum.
+     */
+    static int finish(int sum) {
+        return ~fold(sum) & 0xFFFF;
+    }
+
+    /**
+     * Fold a sum into 16 bits.
+     *
+     * @param sum The sum to fold.
+     * @return The folded sum.
+     */
+    private static int fold(int sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return sum;
+    }
+
+    static void writeShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+}
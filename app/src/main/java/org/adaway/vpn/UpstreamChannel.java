@@ -0,0 +1,375 @@
+package org.adaway.vpn;
+
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import androidx.annotation.Nullable;
+
+import org.adaway.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static android.system.OsConstants.EAGAIN;
+import static android.system.OsConstants.MSG_DONTWAIT;
+
+/**
+ * This class is a long-lived UDP channel to an upstream DNS server, shared by many queries.<br>
+ * Each query is sent with a random transaction ID, which routes its response back to the request.
+ * The channel is connected to the server, so the system drops datagrams from any other source,
+ * and a response is only accepted if its question matches the one of its pending query.
+ * As a channel keeps its source port, it wears out after a number of queries or some time
+ * to be replaced by a new one, making spoofed responses harder to match.
+ * Pending queries are kept in a fixed-size table and expire after a timeout.
+ * Response times and expired queries are recorded into the server health.
+ * Truncated responses are handed to a truncation handler to retry their query over TCP.
+ * Queries can be sent from any thread while responses are received by a single thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class UpstreamChannel implements Closeable {
+    /**
+     * The log tag.
+     */
+    private static final String TAG = "UpstreamChannel";
+    /**
+     * The size of the pending query table, a power of two.
+     */
+    private static final int PENDING_QUERY_COUNT = 256;
+    /**
+     * The number of random transaction IDs to try before replacing a pending query.
+     */
+    private static final int ID_ALLOCATION_ATTEMPTS = 8;
+    /**
+     * The number of queries to send before the channel wears out.
+     */
+    private static final int MAX_QUERY_COUNT = 256;
+    /**
+     * The channel lifetime before it wears out (in nanoseconds).
+     */
+    private static final long LIFETIME = TimeUnit.SECONDS.toNanos(30);
+    /**
+     * The pending query timeout (in nanoseconds).
+     */
+    private static final long QUERY_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+    /**
+     * The truncation flag of the third DNS header byte.
+     */
+    private static final int FLAG_TC = 0x02;
+    /**
+     * The upstream DNS server address.
+     */
+    private final InetSocketAddress server;
+    /**
+     * The upstream DNS server health.
+     */
+    private final UpstreamHealth health;
+    /**
+     * The handler of truncated responses, {@code null} to answer them as is.
+     */
+    @Nullable
+    private final TruncationHandler truncationHandler;
+    /**
+     * The socket connected to the upstream DNS server.
+     */
+    private final DatagramSocket socket;
+    /**
+     * The socket descriptor to poll and read from.
+     */
+    private final ParcelFileDescriptor descriptor;
+    /**
+     * The socket poll structure, reused from one poll to another.
+     */
+    private final StructPollfd pollFd;
+    /**
+     * The pending queries, indexed by the lower bits of their transaction ID.
+     */
+    private final AtomicReferenceArray<PendingQuery> pendingQueries;
+    /**
+     * The transaction ID generator.
+     */
+    private final Random random;
+    /**
+     * The channel opening time (in nanoseconds).
+     */
+    private final long openTime;
+    /**
+     * The number of queries sent.
+     */
+    private final AtomicInteger queryCount;
+
+    /**
+     * Constructor.
+     *
+     * @param vpnService        The VPN service to protect the channel socket from.
+     * @param server            The upstream DNS server address.
+     * @param health            The upstream DNS server health.
+     * @param truncationHandler The handler of truncated responses, {@code null} to answer them as is.
+     * @throws IOException If the channel could not be opened.
+     */
+    UpstreamChannel(android.net.VpnService vpnService, InetSocketAddress server, UpstreamHealth health,
+                    @Nullable TruncationHandler truncationHandler) throws IOException {
+        this.server = server;
+        this.health = health;
+        this.truncationHandler = truncationHandler;
+        this.socket = new DatagramSocket();
+        try {
+            // Packets to be sent to the real DNS server will need to be protected from the VPN
+            if (!vpnService.protect(this.socket)) {
+                throw new IOException("Failed to protect upstream socket to " + server + ".");
+            }
+            this.socket.connect(server);
+            ParcelFileDescriptor descriptor = ParcelFileDescriptor.fromDatagramSocket(this.socket);
+            if (descriptor == null) {
+                throw new IOException("Failed to get upstream socket descriptor to " + server + ".");
+            }
+            this.descriptor = descriptor;
+        } catch (IOException | RuntimeException e) {
+            this.socket.close();
+            throw e;
+        }
+        this.pollFd = new StructPollfd();
+        this.pollFd.fd = this.descriptor.getFileDescriptor();
+        this.pollFd.events = (short) OsConstants.POLLIN;
+        this.pendingQueries = new AtomicReferenceArray<>(PENDING_QUERY_COUNT);
+        this.random = new SecureRandom();
+        this.openTime = System.nanoTime();
+        this.queryCount = new AtomicInteger(0);
+    }
+
+    /**
+     * Get the upstream DNS server address.
+     *
+     * @return The upstream DNS server address.
+     */
+    InetSocketAddress getServer() {
+        return this.server;
+    }
+
+    /**
+     * Get the poll structure of the channel.
+     *
+     * @return The poll structure of the channel.
+     */
+    StructPollfd getPollFd() {
+        return this.pollFd;
+    }
+
+    /**
+     * Send a packet to the upstream DNS server, without waiting for a response.
+     *
+     * @param packet The packet to send.
+     * @throws IOException If the packet could not be sent.
+     */
+    void send(DatagramPacket packet) throws IOException {
+        this.socket.send(packet);
+    }
+
+    /**
+     * Check whether the channel is worn out and should be replaced by a new one.
+     *
+     * @param now The current time (in nanoseconds).
+     * @return {@code true} if the channel sent enough queries or is too old, {@code false} otherwise.
+     */
+    boolean isWornOut(long now) {
+        return this.queryCount.get() >= MAX_QUERY_COUNT || now - this.openTime > LIFETIME;
+    }
+
+    /**
+     * Check whether the channel has pending queries.
+     *
+     * @return {@code true} if at least one query waits for its response, {@code false} otherwise.
+     */
+    boolean hasPendingQueries() {
+        for (int index = 0; index < PENDING_QUERY_COUNT; index++) {
+            if (this.pendingQueries.get(index) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Send a query to the upstream DNS server.<br>
+     * The query transaction ID is replaced in the sent packet by a random one,
+     * the original ID being restored into the response.
+     *
+     * @param query The query to send.
+     * @return {@code true} if the query was sent,
+     * {@code false} if there is no transaction ID available to send it.
+     * @throws IOException If the query could not be sent.
+     */
+    boolean send(UpstreamQuery query) throws IOException {
+        DatagramPacket packet = query.createPacket(this.server);
+        if (packet.getLength() >= 2) {
+            byte[] data = packet.getData();
+            int id = addPendingQuery(readId(data, 0), query);
+            if (id < 0) {
+                return false;
+            }
+            writeId(data, 0, id);
+        }
+        this.queryCount.incrementAndGet();
+        this.socket.send(packet);
+        return true;
+    }
+
+    private int addPendingQuery(int originalId, UpstreamQuery upstreamQuery) {
+        long now = System.nanoTime();
+        for (int attempt = 0; attempt < ID_ALLOCATION_ATTEMPTS; attempt++) {
+            PendingQuery query = new PendingQuery(this.random.nextInt(0x10000), originalId, upstreamQuery, now);
+            int index = query.id & (PENDING_QUERY_COUNT - 1);
+            PendingQuery pendingQuery = this.pendingQueries.get(index);
+            boolean expired = pendingQuery != null && now - pendingQuery.time > QUERY_TIMEOUT;
+            if ((pendingQuery == null || expired) && this.pendingQueries.compareAndSet(index, pendingQuery, query)) {
+                if (expired) {
+                    this.health.recordFailure(now);
+                }
+                return query.id;
+            }
+        }
+        // Keep the pending queries waiting for their responses
+        return -1;
+    }
+
+    /**
+     * Receive the available responses from the upstream DNS server.<br>
+     * The responses without pending query or with another question are dropped.
+     * This method must be called by a single thread.
+     *
+     * @param buffer  The buffer to receive responses into.
+     * @param handler The handler of the received responses.
+     * @throws IOException If the responses could not be received.
+     */
+    void receive(byte[] buffer, UpstreamResponseHandler handler) throws IOException {
+        while (true) {
+            int length;
+            try {
+                length = Os.recvfrom(this.descriptor.getFileDescriptor(), buffer, 0, buffer.length, MSG_DONTWAIT, null);
+            } catch (ErrnoException e) {
+                if (e.errno == EAGAIN) {
+                    return;
+                }
+                this.health.recordFailure(System.nanoTime());
+                throw new IOException("Failed to receive response from " + this.server + ".", e);
+            }
+            if (length < 2) {
+                continue;
+            }
+            int id = readId(buffer, 0);
+            int index = id & (PENDING_QUERY_COUNT - 1);
+            PendingQuery pendingQuery = this.pendingQueries.get(index);
+            if (pendingQuery == null || pendingQuery.id != id) {
+                Log.d(TAG, "Dropping response from " + this.server + " without pending query.");
+                continue;
+            }
+            // Keep the pending query for its genuine response if the question differs
+            if (!pendingQuery.query.matchesQuestion(buffer, length)) {
+                Log.w(TAG, "Dropping response from " + this.server + " with another question than its query.");
+                continue;
+            }
+            if (!this.pendingQueries.compareAndSet(index, pendingQuery, null)) {
+                continue;
+            }
+            this.health.recordResponse(System.nanoTime() - pendingQuery.time);
+            UpstreamQuery query = pendingQuery.query;
+            if (query.isAnswered()) {
+                Log.d(TAG, "Dropping response from " + this.server + " to query already answered.");
+                continue;
+            }
+            writeId(buffer, 0, pendingQuery.originalId);
+            if (length > 2 && (buffer[2] & FLAG_TC) != 0 && this.truncationHandler != null) {
+                this.truncationHandler.handleTruncatedResponse(this.server, query, buffer, length);
+                continue;
+            }
+            if (query.answer()) {
+                handler.handleResponse(query.getRequestHeaders(), buffer, query.fitResponse(buffer, length));
+            }
+        }
+    }
+
+    /**
+     * Drop the pending queries without response after the timeout, recording them as server failures.
+     *
+     * @param now The current time (in nanoseconds).
+     * @return The number of dropped pending queries.
+     */
+    int expirePendingQueries(long now) {
+        int count = 0;
+        for (int index = 0; index < PENDING_QUERY_COUNT; index++) {
+            PendingQuery pendingQuery = this.pendingQueries.get(index);
+            if (pendingQuery != null && now - pendingQuery.time > QUERY_TIMEOUT
+                    && this.pendingQueries.compareAndSet(index, pendingQuery, null)) {
+                this.health.recordFailure(now);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Close the channel and drop its pending queries.
+     */
+    @Override
+    public void close() {
+        FileHelper.closeOrWarn(this.descriptor, TAG, "close: Could not close upstream socket descriptor");
+        this.socket.close();
+    }
+
+    private static int readId(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF;
+    }
+
+    private static void writeId(byte[] data, int offset, int id) {
+        data[offset] = (byte) (id >> 8);
+        data[offset + 1] = (byte) id;
+    }
+
+    /**
+     * This interface handles the truncated responses of upstream DNS servers.
+     *
+     * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+     */
+    @FunctionalInterface
+    interface TruncationHandler {
+        /**
+         * Handle a truncated response, which query is not answered yet.
+         *
+         * @param server   The upstream DNS server address.
+         * @param query    The query of the response.
+         * @param response The truncated response payload, only valid during the call.
+         * @param length   The truncated response payload length.
+         */
+        void handleTruncatedResponse(InetSocketAddress server, UpstreamQuery query, byte[] response, int length);
+    }
+
+    /**
+     * This class is a query waiting for its response.
+     *
+     * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+     */
+    private static class PendingQuery {
+        private final int id;
+        private final int originalId;
+        private final UpstreamQuery query;
+        private final long time;
+
+        private PendingQuery(int id, int originalId, UpstreamQuery query, long time) {
+            this.id = id;
+            this.originalId = originalId;
+            this.query = query;
+            this.time = time;
+        }
+    }
+}
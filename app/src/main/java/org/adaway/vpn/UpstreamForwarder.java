@@ -0,0 +1,156 @@
+package org.adaway.vpn;
+
+import androidx.annotation.Nullable;
+
+import org.adaway.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * This class forwards queries to the fastest available upstream DNS server, and hedges them.<br>
+ * If a query is not answered within the 90th percentile response time of its server,
+ * it is sent again to the next best server and the first response wins.
+ * If a query is still not answered after {@link #TIMEOUT_DELAY}, its timeout handler may answer it instead.
+ * The hedge and timeout of a query are cancelled once it is answered, so the scheduler should remove cancelled tasks.
+ * It can be used from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class UpstreamForwarder {
+    /**
+     * The log tag.
+     */
+    private static final String TAG = "UpstreamForwarder";
+    /**
+     * The delay to wait for a response before handling the query timeout (in milliseconds).
+     */
+    static final long TIMEOUT_DELAY = 1800;
+    private final UpstreamSelector selector;
+    private final Transport transport;
+    @Nullable
+    private final TimeoutHandler timeoutHandler;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor.
+     *
+     * @param selector  The selector of upstream DNS servers.
+     * @param transport The transport to send queries with.
+     * @param scheduler The scheduler to hedge queries with.
+     */
+    UpstreamForwarder(UpstreamSelector selector, Transport transport, ScheduledExecutorService scheduler) {
+        this(selector, transport, null, scheduler);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param selector       The selector of upstream DNS servers.
+     * @param transport      The transport to send queries with.
+     * @param timeoutHandler The handler of the queries without response after {@link #TIMEOUT_DELAY}, if any.
+     * @param scheduler      The scheduler to hedge and time queries out with.
+     */
+    UpstreamForwarder(UpstreamSelector selector, Transport transport, @Nullable TimeoutHandler timeoutHandler,
+                      ScheduledExecutorService scheduler) {
+        this.selector = selector;
+        this.transport = transport;
+        this.timeoutHandler = timeoutHandler;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Forward a query.
+     *
+     * @param query  The query to forward.
+     * @param target The upstream DNS server the query was sent to.
+     * @throws IOException If the query could not be sent.
+     */
+    void forward(UpstreamQuery query, InetSocketAddress target) throws IOException {
+        InetSocketAddress server = this.selector.select(target);
+        long sendTime = this.selector.now();
+        try {
+            this.transport.send(server, query);
+        } catch (IOException e) {
+            this.selector.getHealth(server).recordFailure(this.selector.now());
+            throw e;
+        }
+        long hedgeDelay = this.selector.getHealth(server).getHedgeDelay();
+        try {
+            ScheduledFuture<?> hedgeTask = this.scheduler.schedule(() -> hedge(query, server, sendTime),
+                    hedgeDelay, NANOSECONDS);
+            ScheduledFuture<?> timeoutTask = null;
+            if (this.timeoutHandler != null) {
+                timeoutTask = this.scheduler.schedule(() -> timeOut(query), TIMEOUT_DELAY, MILLISECONDS);
+            }
+            query.setScheduledTasks(hedgeTask, timeoutTask);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Failed to schedule hedged query, forwarder is stopped.");
+        }
+    }
+
+    private void hedge(UpstreamQuery query, InetSocketAddress server, long sendTime) {
+        if (query.isAnswered()) {
+            return;
+        }
+        // Rank the slow server down
+        this.selector.getHealth(server).recordDelay(this.selector.now() - sendTime);
+        InetSocketAddress hedgeServer = this.selector.selectHedge(server);
+        if (hedgeServer == null) {
+            return;
+        }
+        Log.d(TAG, "Hedging query to " + hedgeServer + " after no response from " + server + ".");
+        try {
+            this.transport.send(hedgeServer, query);
+        } catch (IOException e) {
+            this.selector.getHealth(hedgeServer).recordFailure(this.selector.now());
+            Log.w(TAG, "Failed to send hedged query to " + hedgeServer + ".", e);
+        }
+    }
+
+    private void timeOut(UpstreamQuery query) {
+        if (this.timeoutHandler != null && !query.isAnswered()) {
+            this.timeoutHandler.handleTimeout(query);
+        }
+    }
+
+    /**
+     * This interface sends queries to upstream DNS servers.<br>
+     * Implementations must record the response times into the server health, and answer the query once.
+     *
+     * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+     */
+    @FunctionalInterface
+    interface Transport {
+        /**
+         * Send a query to an upstream DNS server.
+         *
+         * @param server The upstream DNS server address.
+         * @param query  The query to send.
+         * @throws IOException If the query could not be sent.
+         */
+        void send(InetSocketAddress server, UpstreamQuery query) throws IOException;
+    }
+
+    /**
+     * This interface handles the queries without response in time.
+     *
+     * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+     */
+    @FunctionalInterface
+    interface TimeoutHandler {
+        /**
+         * Handle a query still not answered after {@link #TIMEOUT_DELAY}.<br>
+         * The handler must answer the query before writing any response to it.
+         *
+         * @param query The query without response.
+         */
+        void handleTimeout(UpstreamQuery query);
+    }
+}
@@ -0,0 +1,163 @@
+package org.adaway.vpn;
+
+import java.util.Arrays;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * This class tracks the health of an upstream DNS server.<br>
+ * It keeps an exponentially weighted moving average of the response times, the 90th percentile of the recent ones
+ * to get the hedging deadline from, and the consecutive failures to back the server off.
+ * Times are given in nanoseconds from a monotonic clock.
+ * It can be used from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class UpstreamHealth {
+    /**
+     * The number of recent response times to compute the percentile from.
+     */
+    private static final int SAMPLE_COUNT = 64;
+    /**
+     * The weight of a new response time in the moving average.
+     */
+    private static final double AVERAGE_WEIGHT = 0.125;
+    /**
+     * The hedging deadline before the first response time (in nanoseconds).
+     */
+    private static final long DEFAULT_HEDGE_DELAY = MILLISECONDS.toNanos(500);
+    /**
+     * The hedging deadline bounds (in nanoseconds).
+     */
+    private static final long MIN_HEDGE_DELAY = MILLISECONDS.toNanos(10);
+    private static final long MAX_HEDGE_DELAY = SECONDS.toNanos(2);
+    /**
+     * The number of consecutive failures before backing the server off.
+     */
+    private static final int FAILURE_THRESHOLD = 3;
+    /**
+     * The back off delay bounds (in nanoseconds), doubled on each failure over the threshold.
+     */
+    private static final long MIN_BACK_OFF = SECONDS.toNanos(1);
+    private static final long MAX_BACK_OFF = SECONDS.toNanos(60);
+
+    /**
+     * The recent response times, in a circular buffer.
+     */
+    private final long[] samples;
+    private int sampleCount;
+    /**
+     * The 90th percentile of the recent response times, {@code -1} if outdated.
+     */
+    private long percentile;
+    /**
+     * The moving average of the response times, {@code 0} if no response was received yet.
+     */
+    private double averageTime;
+    private int failureCount;
+    private long lastFailureTime;
+
+    /**
+     * Constructor.
+     */
+    UpstreamHealth() {
+        this.samples = new long[SAMPLE_COUNT];
+        this.sampleCount = 0;
+        this.percentile = -1;
+        this.averageTime = 0;
+        this.failureCount = 0;
+    }
+
+    /**
+     * Record a response from the server.
+     *
+     * @param responseTime The time the response took (in nanoseconds).
+     */
+    synchronized void recordResponse(long responseTime) {
+        recordTime(responseTime);
+        this.failureCount = 0;
+    }
+
+    /**
+     * Record a query that did not get a response from the server in a given delay, to rank the server down.<br>
+     * The delay is taken as a lower bound of its response time.
+     *
+     * @param delay The delay without response (in nanoseconds).
+     */
+    synchronized void recordDelay(long delay) {
+        recordTime(delay);
+    }
+
+    /**
+     * Record a failure of the server, a query without response or a network error.
+     *
+     * @param now The failure time (in nanoseconds).
+     */
+    synchronized void recordFailure(long now) {
+        this.failureCount++;
+        this.lastFailureTime = now;
+    }
+
+    private void recordTime(long time) {
+        if (this.sampleCount == 0) {
+            this.averageTime = time;
+        } else {
+            this.averageTime += AVERAGE_WEIGHT * (time - this.averageTime);
+        }
+        this.samples[this.sampleCount % SAMPLE_COUNT] = time;
+        this.sampleCount++;
+        this.percentile = -1;
+    }
+
+    /**
+     * Check whether the server is available, not backed off because of consecutive failures.
+     *
+     * @param now The current time (in nanoseconds).
+     * @return {@code true} if the server is available, {@code false} if it is backed off.
+     */
+    synchronized boolean isAvailable(long now) {
+        if (this.failureCount < FAILURE_THRESHOLD) {
+            return true;
+        }
+        int shift = Math.min(this.failureCount - FAILURE_THRESHOLD, 16);
+        long backOff = Math.min(MIN_BACK_OFF << shift, MAX_BACK_OFF);
+        return now - this.lastFailureTime >= backOff;
+    }
+
+    /**
+     * Get the moving average of the response times.
+     *
+     * @return The average response time (in nanoseconds), {@code 0} if no response was received yet.
+     */
+    synchronized long getAverageTime() {
+        return (long) this.averageTime;
+    }
+
+    /**
+     * Get the delay to wait for a response before hedging the query to another server.
+     *
+     * @return The 90th percentile of the recent response times, within bounds (in nanoseconds).
+     */
+    synchronized long getHedgeDelay() {
+        if (this.sampleCount == 0) {
+            return DEFAULT_HEDGE_DELAY;
+        }
+        if (this.percentile < 0) {
+            int count = Math.min(this.sampleCount, SAMPLE_COUNT);
+            long[] sorted = Arrays.copyOf(this.samples, count);
+            Arrays.sort(sorted);
+            this.percentile = sorted[(count * 9 - 1) / 10];
+        }
+        return Math.max(MIN_HEDGE_DELAY, Math.min(this.percentile, MAX_HEDGE_DELAY));
+    }
+
+    /**
+     * Get the number of consecutive failures.
+     *
+     * @return The number of consecutive failures.
+     */
+    synchronized int getFailureCount() {
+        return this.failureCount;
+    }
+}
@@ -0,0 +1,334 @@
+package org.adaway.vpn;
+
+import androidx.annotation.Nullable;
+
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.adaway.vpn.DnsQueryPacket.readShort;
+import static org.adaway.vpn.DnsQueryPacket.skipName;
+import static org.adaway.vpn.UdpResponseBuilder.writeShort;
+
+/**
+ * This class is a query forwarded to upstream DNS servers, possibly to several of them when hedged.<br>
+ * Only the first response is answered back to the query, which then cancels its scheduled hedge and timeout.
+ * The EDNS UDP payload size advertised by the query is limited to the upstream receive buffer size,
+ * and responses are fitted into the size advertised by the client.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class UpstreamQuery {
+    /**
+     * The maximum UDP payload size of upstream responses, the size of their receive buffers.
+     */
+    static final int MAX_UDP_PAYLOAD_SIZE = 4096;
+    /**
+     * The UDP payload size of DNS messages without EDNS.
+     */
+    private static final int DEFAULT_UDP_PAYLOAD_SIZE = 512;
+    /**
+     * The DNS header length.
+     */
+    private static final int DNS_HEADER_LENGTH = 12;
+    /**
+     * The DNS OPT record type.
+     */
+    private static final int TYPE_OPT = 41;
+    /**
+     * The truncation flag of the third DNS header byte.
+     */
+    private static final int FLAG_TC = 0x02;
+    /**
+     * The IP and UDP headers of the query.
+     */
+    private final byte[] requestHeaders;
+    /**
+     * The query payload, with its original transaction ID.
+     */
+    private final byte[] payload;
+    /**
+     * The UDP payload size advertised by the client, the maximum size of its response.
+     */
+    private final int maxResponseSize;
+    /**
+     * Whether the query was answered by an upstream DNS server.
+     */
+    private final AtomicBoolean answered;
+    /**
+     * Whether the query was sent again after its stream connection closed.
+     */
+    private final AtomicBoolean resent;
+    /**
+     * The scheduled hedge of the query, cancelled once answered ({@code null} if none).
+     */
+    @Nullable
+    private Future<?> hedgeTask;
+    /**
+     * The scheduled timeout of the query, cancelled once answered ({@code null} if none).
+     */
+    @Nullable
+    private Future<?> timeoutTask;
+
+    /**
+     * Constructor.
+     *
+     * @param requestHeaders The IP and UDP headers of the query.
+     * @param packet         The packet of the query payload.
+     */
+    UpstreamQuery(byte[] requestHeaders, DatagramPacket packet) {
+        this.requestHeaders = requestHeaders;
+        this.payload = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+        this.answered = new AtomicBoolean(false);
+        this.resent = new AtomicBoolean(false);
+        this.maxResponseSize = limitUdpPayloadSize(this.payload);
+    }
+
+    private static int limitUdpPayloadSize(byte[] payload) {
+        int offset = findOptRecordClass(payload, 0, payload.length);
+        if (offset >= 0 && readShort(payload, offset) > MAX_UDP_PAYLOAD_SIZE) {
+            writeShort(payload, offset, MAX_UDP_PAYLOAD_SIZE);
+        }
+        return readMaxResponseSize(payload, 0, payload.length);
+    }
+
+    /**
+     * Read the UDP payload size advertised by a query, limited to the upstream receive buffer size.
+     *
+     * @param message The query message.
+     * @param offset  The query message offset.
+     * @param length  The query message length.
+     * @return The maximum size of the response to the query.
+     */
+    static int readMaxResponseSize(byte[] message, int offset, int length) {
+        int classOffset = findOptRecordClass(message, offset, offset + length);
+        if (classOffset < 0) {
+            return DEFAULT_UDP_PAYLOAD_SIZE;
+        }
+        // The OPT record class is the UDP payload size
+        int size = Math.min(readShort(message, classOffset), MAX_UDP_PAYLOAD_SIZE);
+        return Math.max(size, DEFAULT_UDP_PAYLOAD_SIZE);
+    }
+
+    /**
+     * Find the OPT record of a message.
+     *
+     * @param message The message.
+     * @param start   The message offset.
+     * @param end     The message end offset.
+     * @return The offset of the OPT record class, {@code -1} if the message has no valid OPT record.
+     */
+    static int findOptRecordClass(byte[] message, int start, int end) {
+        if (end - start < DNS_HEADER_LENGTH) {
+            return -1;
+        }
+        int offset = start + DNS_HEADER_LENGTH;
+        for (int i = readShort(message, start + 4); i > 0 && offset >= 0; i--) {
+            offset = skipName(message, offset, end);
+            offset = offset < 0 ? -1 : offset + 4;
+        }
+        int recordCount = readShort(message, start + 6) + readShort(message, start + 8)
+                + readShort(message, start + 10);
+        for (int i = 0; i < recordCount && offset >= 0; i++) {
+            offset = skipName(message, offset, end);
+            if (offset < 0 || offset + 10 > end) {
+                return -1;
+            }
+            if (readShort(message, offset) == TYPE_OPT) {
+                return offset + 2;
+            }
+            offset += 10 + readShort(message, offset + 8);
+        }
+        return -1;
+    }
+
+    /**
+     * Get the query payload, with its original transaction ID.<br>
+     * The returned payload must not be modified.
+     *
+     * @return The query payload.
+     */
+    byte[] getPayload() {
+        return this.payload;
+    }
+
+    /**
+     * Copy the query payload, with its original transaction ID.
+     *
+     * @return A copy of the query payload.
+     */
+    byte[] copyPayload() {
+        return this.payload.clone();
+    }
+
+    /**
+     * Get the IP and UDP headers of the query.
+     *
+     * @return The IP and UDP headers of the query.
+     */
+    byte[] getRequestHeaders() {
+        return this.requestHeaders;
+    }
+
+    /**
+     * Get the UDP payload size advertised by the client.
+     *
+     * @return The maximum size of the response to the client.
+     */
+    int getMaxResponseSize() {
+        return this.maxResponseSize;
+    }
+
+    /**
+     * Fit a response into the UDP payload size advertised by the client.<br>
+     * A larger response is truncated to its header and question, with the truncation flag set.
+     *
+     * @param response The response payload.
+     * @param length   The response payload length.
+     * @return The fitted response payload length.
+     */
+    int fitResponse(byte[] response, int length) {
+        return fitResponse(response, 0, length, this.maxResponseSize);
+    }
+
+    /**
+     * Fit a response into a maximum size.<br>
+     * A larger response is truncated to its header and question, with the truncation flag set.
+     *
+     * @param response        The response message.
+     * @param start           The response message offset.
+     * @param length          The response message length.
+     * @param maxResponseSize The maximum response size.
+     * @return The fitted response message length.
+     */
+    static int fitResponse(byte[] response, int start, int length, int maxResponseSize) {
+        if (length <= maxResponseSize || length < DNS_HEADER_LENGTH) {
+            return length;
+        }
+        int end = start + length;
+        int offset = start + DNS_HEADER_LENGTH;
+        int questionCount = readShort(response, start + 4);
+        for (int i = 0; i < questionCount && offset >= 0; i++) {
+            offset = skipName(response, offset, end);
+            offset = offset < 0 || offset + 4 > end ? -1 : offset + 4;
+        }
+        if (offset < 0 || offset - start > maxResponseSize) {
+            offset = start + DNS_HEADER_LENGTH;
+            writeShort(response, start + 4, 0);
+        }
+        response[start + 2] |= FLAG_TC;
+        writeShort(response, start + 6, 0);
+        writeShort(response, start + 8, 0);
+        writeShort(response, start + 10, 0);
+        return offset - start;
+    }
+
+    /**
+     * Check whether a response answers the question of the query.<br>
+     * The question names are compared case-insensitively, their types and classes must be equal.
+     *
+     * @param response The response payload.
+     * @param length   The response payload length.
+     * @return {@code true} if the response has the same question as the query, {@code false} otherwise.
+     */
+    boolean matchesQuestion(byte[] response, int length) {
+        int end = this.payload.length;
+        if (end < DNS_HEADER_LENGTH || length < DNS_HEADER_LENGTH
+                || readShort(response, 4) != readShort(this.payload, 4)) {
+            return false;
+        }
+        int offset = DNS_HEADER_LENGTH;
+        for (int i = readShort(this.payload, 4); i > 0; i--) {
+            int nameEnd = skipName(this.payload, offset, end);
+            if (nameEnd < 0 || nameEnd + 4 > end || nameEnd + 4 > length) {
+                return false;
+            }
+            for (; offset < nameEnd; offset++) {
+                if (toLowerCase(this.payload[offset]) != toLowerCase(response[offset])) {
+                    return false;
+                }
+            }
+            for (; offset < nameEnd + 4; offset++) {
+                if (this.payload[offset] != response[offset]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static byte toLowerCase(byte b) {
+        // Label lengths are below upper case letters so they are kept as is
+        return b >= 'A' && b <= 'Z' ? (byte) (b + 'a' - 'A') : b;
+    }
+
+    /**
+     * Create a packet to send the query to an upstream DNS server.
+     *
+     * @param server The upstream DNS server address.
+     * @return A packet with its own copy of the query payload.
+     */
+    DatagramPacket createPacket(InetSocketAddress server) {
+        return new DatagramPacket(this.payload.clone(), this.payload.length, server);
+    }
+
+    /**
+     * Mark the query as answered.
+     *
+     * @return {@code true} if the query was not answered yet, {@code false} otherwise.
+     */
+    boolean answer() {
+        if (!this.answered.compareAndSet(false, true)) {
+            return false;
+        }
+        cancelScheduledTasks();
+        return true;
+    }
+
+    /**
+     * Set the scheduled hedge and timeout of the query, to cancel them once the query is answered.
+     *
+     * @param hedgeTask   The scheduled hedge of the query.
+     * @param timeoutTask The scheduled timeout of the query, {@code null} if none.
+     */
+    synchronized void setScheduledTasks(Future<?> hedgeTask, @Nullable Future<?> timeoutTask) {
+        this.hedgeTask = hedgeTask;
+        this.timeoutTask = timeoutTask;
+        // Cancel the tasks at once if the query was answered while scheduling them
+        if (isAnswered()) {
+            cancelScheduledTasks();
+        }
+    }
+
+    private synchronized void cancelScheduledTasks() {
+        if (this.hedgeTask != null) {
+            this.hedgeTask.cancel(false);
+            this.hedgeTask = null;
+        }
+        if (this.timeoutTask != null) {
+            this.timeoutTask.cancel(false);
+            this.timeoutTask = null;
+        }
+    }
+
+    /**
+     * Check whether the query was answered.
+     *
+     * @return {@code true} if the query was answered, {@code false} otherwise.
+     */
+    boolean isAnswered() {
+        return this.answered.get();
+    }
+
+    /**
+     * Mark the query as sent again after its stream connection closed.<br>
+     * A query is sent again only once, so it can not bounce between failing connections.
+     *
+     * @return {@code true} if the query was not sent again yet, {@code false} otherwise.
+     */
+    boolean resend() {
+        return this.resent.compareAndSet(false, true);
+    }
+}
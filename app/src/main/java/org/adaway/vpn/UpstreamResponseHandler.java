@@ -0,0 +1,19 @@
+package org.adaway.vpn;
+
+/**
+ * This interface handles upstream DNS server responses.<br>
+ * Implementations must be thread-safe as responses can be received from any transport thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@FunctionalInterface
+interface UpstreamResponseHandler {
+    /**
+     * Handle a response.
+     *
+     * @param requestHeaders The IP and UDP headers of the query.
+     * @param response       The response payload, only valid during the call.
+     * @param length         The response payload length.
+     */
+    void handleResponse(byte[] requestHeaders, byte[] response, int length);
+}
@@ -0,0 +1,136 @@
+package org.adaway.vpn;
+
+import androidx.annotation.Nullable;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * This class selects the upstream DNS servers to send queries to, from their health.<br>
+ * The available server with the lowest average response time is selected first,
+ * servers without response time yet being tried first to get one.
+ * It can be used from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class UpstreamSelector {
+    private final LongSupplier clock;
+    /**
+     * The configured servers, in configuration order.
+     */
+    private volatile List<InetSocketAddress> servers;
+    /**
+     * The health of the servers.
+     */
+    private final Map<InetSocketAddress, UpstreamHealth> healths;
+
+    /**
+     * Constructor.
+     */
+    UpstreamSelector() {
+        this(System::nanoTime);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param clock The monotonic clock to get the current time from (in nanoseconds).
+     */
+    UpstreamSelector(LongSupplier clock) {
+        this.clock = clock;
+        this.servers = Collections.emptyList();
+        this.healths = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Set the servers to select from, resetting their health.
+     *
+     * @param servers The servers to select from.
+     */
+    void setServers(Collection<InetSocketAddress> servers) {
+        this.healths.clear();
+        this.servers = Collections.unmodifiableList(new ArrayList<>(servers));
+    }
+
+    /**
+     * Get the current time of the selector clock.
+     *
+     * @return The current time (in nanoseconds).
+     */
+    long now() {
+        return this.clock.getAsLong();
+    }
+
+    /**
+     * Get the health of a server.
+     *
+     * @param server The server address.
+     * @return The server health.
+     */
+    UpstreamHealth getHealth(InetSocketAddress server) {
+        return this.healths.computeIfAbsent(server, key -> new UpstreamHealth());
+    }
+
+    /**
+     * Select the server to send a query to.
+     *
+     * @param preferred The server to prefer on ties, or to use if no server is available or if it is not configured.
+     * @return The server to send the query to.
+     */
+    InetSocketAddress select(InetSocketAddress preferred) {
+        if (!this.servers.contains(preferred)) {
+            return preferred;
+        }
+        InetSocketAddress server = select(preferred, null);
+        return server == null ? preferred : server;
+    }
+
+    /**
+     * Check whether the server to send a query to is available, not backed off.
+     *
+     * @param preferred The server to prefer on ties, or to use if no server is available or if it is not configured.
+     * @return {@code true} if the selected server is available, {@code false} if all the servers are backed off.
+     */
+    boolean isAvailable(InetSocketAddress preferred) {
+        return getHealth(select(preferred)).isAvailable(now());
+    }
+
+    /**
+     * Select another server to hedge a query to.
+     *
+     * @param excluded The server the query was sent to.
+     * @return The server to hedge the query to, {@code null} if no other server is available.
+     */
+    @Nullable
+    InetSocketAddress selectHedge(InetSocketAddress excluded) {
+        return select(null, excluded);
+    }
+
+    @Nullable
+    private InetSocketAddress select(@Nullable InetSocketAddress preferred, @Nullable InetSocketAddress excluded) {
+        long now = now();
+        InetSocketAddress bestServer = null;
+        long bestTime = Long.MAX_VALUE;
+        for (InetSocketAddress server : this.servers) {
+            if (server.equals(excluded)) {
+                continue;
+            }
+            UpstreamHealth health = getHealth(server);
+            if (!health.isAvailable(now)) {
+                continue;
+            }
+            long time = health.getAverageTime();
+            if (time < bestTime || time == bestTime && server.equals(preferred)) {
+                bestServer = server;
+                bestTime = time;
+            }
+        }
+        return bestServer;
+    }
+}
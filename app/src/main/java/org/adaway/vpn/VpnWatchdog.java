@@ -149,13 +149,13 @@ class VpnWatchdog {
     /**
      * Handles an incoming packet on a device.
      *
-     * @param packetData The data of the packet
+     * @param length The length of the packet
      */
-    void handlePacket(byte[] packetData) {
+    void handlePacket(int length) {
         if (!this.enabled) {
             return;
         }
-        Log.d(TAG, "handlePacket: Received packet of length " + packetData.length);
+        Log.d(TAG, "handlePacket: Received packet of length " + length);
         this.lastPacketReceived = System.currentTimeMillis();
     }
 
@@ -29,30 +29,31 @@ import android.system.OsConstants;
 import android.system.StructPollfd;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.adaway.helper.PreferenceHelper;
 import org.adaway.ui.home.HomeActivity;
-import org.pcap4j.packet.IpPacket;
 
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 import static android.content.pm.ApplicationInfo.FLAG_SYSTEM;
+import static android.system.OsConstants.EAGAIN;
 import static android.os.Build.VERSION.*;
 import static org.adaway.vpn.VpnStatus.RECONNECTING_NETWORK_ERROR;
 import static org.adaway.vpn.VpnStatus.RUNNING;
@@ -70,19 +71,53 @@ class VpnWorker implements DnsPacketProxy.EventLoop {
     private static final int MAX_RETRY_TIME = 2 * 60;
     /* If we had a successful connection for that long, reset retry timeout */
     private static final long RETRY_RESET_SEC = 60;
-    /* Maximum number of responses we want to wait for */
-    private static final int DNS_MAXIMUM_WAITING = 1024;
-    private static final long DNS_TIMEOUT_SEC = 10;
+    /* Maximum number of queries waiting for each query worker */
+    private static final int QUERY_QUEUE_SIZE = 256;
+    /* Maximum number of packets waiting to be written to the device */
+    private static final int DEVICE_WRITE_QUEUE_SIZE = 1024;
+    /* Maximum number of query workers */
+    private static final int MAX_QUERY_WORKERS = 4;
+    /* Maximum number of packets read from or written to the device per wake up, to let the other FDs be served */
+    private static final int MAX_DEVICE_BATCH_SIZE = 256;
+    /* Timeout to wait for the device to be writable again (in milliseconds) */
+    private static final int DEVICE_WRITE_POLL_TIMEOUT = 1000;
+    /* Period to drop the upstream queries without response (in nanoseconds) */
+    private static final long QUERY_EXPIRY_PERIOD = TimeUnit.SECONDS.toNanos(1);
+    /* Number of wake ups between two logs of the device I/O statistics */
+    private static final int STATISTICS_LOG_PERIOD = 1000;
+    /* Indexes of the OS pipes and first upstream channel poll structures, after the tunnel device one */
+    private static final int BLOCK_POLL_INDEX = 1;
+    private static final int WAKE_UP_POLL_INDEX = 2;
+    private static final int CHANNEL_POLL_INDEX = 3;
+    private static final byte[] WAKE_UP_SIGNAL = {1};
     private final android.net.VpnService vpnService;
     private final VpnStatusNotifier statusNotifier;
     /* Data to be written to the device */
-    private final Queue<byte[]> deviceWrites = new LinkedList<>();
-    // HashMap that keeps an upper limit of packets
-    private final WospList dnsIn = new WospList();
+    private final RingBuffer<byte[]> deviceWrites = new RingBuffer<>(DEVICE_WRITE_QUEUE_SIZE);
+    /* Buffer to receive DNS responses from upstream servers */
+    private final byte[] dnsResponse = new byte[UpstreamQuery.MAX_UDP_PAYLOAD_SIZE];
     // The mapping between fake and real dns addresses
     private final DnsServerMapper dnsServerMapper;
-    // The object where we actually handle packets.
+    // The answers of the upstream DNS servers, shared by the packet proxies.
+    private final DnsAnswerCache answerCache = new DnsAnswerCache();
+    // The queries waiting for upstream responses, shared by the packet proxies.
+    private final InFlightQueries inFlightQueries = new InFlightQueries();
+    // The object where we handle upstream responses.
     private final DnsPacketProxy dnsPacketProxy;
+    // The workers where we actually handle queries, each with its own packet proxy.
+    private final QueryWorker[] queryWorkers;
+    // The threads of the query workers and the device writer (empty if not running).
+    private final List<Thread> pipelineThreads = new ArrayList<>();
+    // The scheduler of hedged upstream queries (null if not running).
+    private ScheduledExecutorService hedgeScheduler;
+    // The forwarder of upstream queries, set before the query workers start (null if not running).
+    private volatile UpstreamForwarder upstreamForwarder;
+    // The first failure of a pipeline thread (null if none).
+    private final AtomicReference<VpnNetworkException> pipelineFailure = new AtomicReference<>();
+    // The packets read from the device per wake up.
+    private final BatchStatistics deviceReadStatistics = new BatchStatistics();
+    // The packets written to the device per wake up.
+    private final BatchStatistics deviceWriteStatistics = new BatchStatistics();
     // Watch dog that checks our connection is alive.
     private final VpnWatchdog vpnWatchDog;
 
@@ -98,12 +133,51 @@ class VpnWorker implements DnsPacketProxy.EventLoop {
      * File descriptor to write end of OS pipe to close stop VPN worker thread.
      */
     private FileDescriptor mInterruptFd;
+    /**
+     * File descriptor to read end of OS pipe to poll to check pipeline wake up requests.
+     */
+    private FileDescriptor wakeUpReadFd;
+    /**
+     * File descriptor to write end of OS pipe to wake up the VPN worker thread from pipeline threads.
+     */
+    private volatile FileDescriptor wakeUpWriteFd;
+    /**
+     * Buffer to drain the pipeline wake up requests into, only read by the VPN worker thread.
+     */
+    private final byte[] wakeUpBuffer = new byte[64];
+    /**
+     * Poll structure of the tunnel device.
+     */
+    private StructPollfd deviceFd;
+    /**
+     * Poll structures of the tunnel device, the OS pipes and the upstream channels.
+     */
+    private StructPollfd[] polls;
+    /**
+     * The upstream channels whose poll structures are in {@link #polls}.
+     */
+    private UpstreamChannel[] polledChannels;
+    /**
+     * The index of the query worker to hand the next query off to.
+     */
+    private int nextQueryWorker;
+    /**
+     * The last time the upstream queries without response were dropped (in nanoseconds).
+     */
+    private long lastQueryExpiryTime;
 
     VpnWorker(android.net.VpnService vpnService, VpnStatusNotifier statusNotifier) {
         this.vpnService = vpnService;
         this.statusNotifier = statusNotifier;
-        this.dnsServerMapper = new DnsServerMapper(this.vpnService);
-        this.dnsPacketProxy = new DnsPacketProxy(this, this.dnsServerMapper);
+        this.dnsServerMapper = new DnsServerMapper(this.vpnService, this::wakeUp,
+                (requestHeaders, response, length) -> this.dnsPacketProxy.handleDnsResponse(requestHeaders, response, length));
+        this.dnsPacketProxy = new DnsPacketProxy(this, this.dnsServerMapper, this.answerCache, this.inFlightQueries);
+        // Keep a core for the tunnel reader and writer
+        int workerCount = Math.max(1, Math.min(MAX_QUERY_WORKERS, Runtime.getRuntime().availableProcessors() - 1));
+        this.queryWorkers = new QueryWorker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            this.queryWorkers[i] = new QueryWorker(new DnsPacketProxy(this, this.dnsServerMapper, this.answerCache, this.inFlightQueries));
+        }
         this.vpnWatchDog = new VpnWatchdog();
     }
 
@@ -140,6 +214,9 @@ class VpnWorker implements DnsPacketProxy.EventLoop {
         Log.i(TAG, "Starting");
         // Initialize context
         this.dnsPacketProxy.initialize(this.vpnService);
+        for (QueryWorker queryWorker : this.queryWorkers) {
+            queryWorker.dnsPacketProxy.initialize(this.vpnService);
+        }
         // Initialize the watchdog
         this.vpnWatchDog.initialize(PreferenceHelper.getVpnWatchdogEnabled(this.vpnService));
 
@@ -199,144 +276,314 @@ class VpnWorker implements DnsPacketProxy.EventLoop {
         FileDescriptor[] pipes = Os.pipe();
         this.mInterruptFd = pipes[0];
         this.mBlockFd = pipes[1];
+        // A pipe the pipeline threads can wake up the poll() call with by writing to the wakeUpWriteFd end
+        FileDescriptor[] wakeUpPipes = Os.pipe();
+        this.wakeUpReadFd = wakeUpPipes[0];
+        this.wakeUpWriteFd = wakeUpPipes[1];
+        this.pipelineFailure.set(null);
+        // Drop answers from the previous network DNS servers
+        this.answerCache.clear();
+
+        // Authenticate and configure the non-blocking virtual network interface.
+        try (ParcelFileDescriptor pfd = configure()) {
+            FileDescriptor tunnelFd = pfd.getFileDescriptor();
+
+            // Create poll FD on tunnel
+            this.deviceFd = new StructPollfd();
+            this.deviceFd.fd = tunnelFd;
+            this.deviceFd.events = (short) OsConstants.POLLIN;
+            // Create poll FD on OS pipe for interruption on VPN worker stop
+            StructPollfd blockFd = new StructPollfd();
+            blockFd.fd = mBlockFd;
+            blockFd.events = (short) (OsConstants.POLLHUP | OsConstants.POLLERR);
+            // Create poll FD on OS pipe for pipeline wake up requests
+            StructPollfd wakeUpFd = new StructPollfd();
+            wakeUpFd.fd = this.wakeUpReadFd;
+            wakeUpFd.events = (short) OsConstants.POLLIN;
+            this.polls = new StructPollfd[]{this.deviceFd, blockFd, wakeUpFd};
+            this.polledChannels = new UpstreamChannel[0];
+
+            // Start the query workers and the device writer
+            startPipeline(tunnelFd);
+            try {
+                // Now we are connected. Set the flag and show the message.
+                this.statusNotifier.accept(RUNNING);
 
-        // Authenticate and configure the virtual network interface.
-        try (ParcelFileDescriptor pfd = configure();
-             // Read and write views of the tunnel device
-             FileInputStream inputStream = new FileInputStream(pfd.getFileDescriptor());
-             FileOutputStream outputStream = new FileOutputStream(pfd.getFileDescriptor())) {
-
-            // Now we are connected. Set the flag and show the message.
-            this.statusNotifier.accept(RUNNING);
-
-            // We keep forwarding packets till something goes wrong.
-            while (doOne(inputStream, outputStream, packet)) {
+                // We keep forwarding packets till something goes wrong.
+                while (doOne(tunnelFd, packet)) {
+                }
+            } finally {
+                stopPipeline();
             }
         } finally {
+            this.dnsServerMapper.closeChannels();
+            this.polls = null;
+            this.polledChannels = null;
             this.mBlockFd = FileHelper.closeOrWarn(mBlockFd, TAG, "runVpn: Could not close blockFd");
             this.mInterruptFd = FileHelper.closeOrWarn(mInterruptFd, TAG, "runVpn: Could not close interruptFd");
+            this.wakeUpWriteFd = FileHelper.closeOrWarn(this.wakeUpWriteFd, TAG, "runVpn: Could not close wakeUpWriteFd");
+            this.wakeUpReadFd = FileHelper.closeOrWarn(this.wakeUpReadFd, TAG, "runVpn: Could not close wakeUpReadFd");
         }
     }
 
-    private boolean doOne(FileInputStream inputStream, FileOutputStream fileOutputStream, byte[] packet)
-            throws IOException, ErrnoException, VpnNetworkException {
-        // Create poll FD on tunnel
-        StructPollfd deviceFd = new StructPollfd();
-        deviceFd.fd = inputStream.getFD();
-        deviceFd.events = (short) OsConstants.POLLIN;
-        if (!deviceWrites.isEmpty()) {
-            deviceFd.events |= (short) OsConstants.POLLOUT;
-        }
-        // Create poll FD on OS pipe for interruption on VPN worker stop
-        StructPollfd blockFd = new StructPollfd();
-        blockFd.fd = mBlockFd;
-        blockFd.events = (short) (OsConstants.POLLHUP | OsConstants.POLLERR);
-        // Create poll FD on each DNS query socket
-        StructPollfd[] polls = new StructPollfd[2 + this.dnsIn.size()];
-        polls[0] = deviceFd;
-        polls[1] = blockFd;
-        {
-            int i = 2;
-            for (WaitingOnSocketPacket wosp : this.dnsIn) {
-                StructPollfd pollFd = new StructPollfd();
-                pollFd.fd = ParcelFileDescriptor.fromDatagramSocket(wosp.socket).getFileDescriptor();
-                pollFd.events = (short) OsConstants.POLLIN;
-                polls[i] = pollFd;
-                i++;
+    private void startPipeline(FileDescriptor tunnelFd) {
+        // Remove the hedges and timeouts of answered queries instead of keeping them until their delay
+        ScheduledThreadPoolExecutor hedgeScheduler = new ScheduledThreadPoolExecutor(1,
+                runnable -> new Thread(runnable, "VpnHedger"));
+        hedgeScheduler.setRemoveOnCancelPolicy(true);
+        this.hedgeScheduler = hedgeScheduler;
+        this.upstreamForwarder = new UpstreamForwarder(this.dnsServerMapper.getUpstreamSelector(),
+                this.dnsServerMapper.getTransport(), this.dnsPacketProxy::handleQueryTimeout, this.hedgeScheduler);
+        for (int i = 0; i < this.queryWorkers.length; i++) {
+            this.pipelineThreads.add(new Thread(this.queryWorkers[i], "VpnQueryWorker-" + (i + 1)));
+        }
+        this.pipelineThreads.add(new Thread(() -> writeToDevice(tunnelFd), "VpnDeviceWriter"));
+        for (Thread thread : this.pipelineThreads) {
+            thread.start();
+        }
+        Log.i(TAG, "Started pipeline with " + this.queryWorkers.length + " query workers");
+    }
+
+    private void stopPipeline() {
+        for (Thread thread : this.pipelineThreads) {
+            thread.interrupt();
+        }
+        try {
+            for (Thread thread : this.pipelineThreads) {
+                thread.join(2000);
+                if (thread.isAlive()) {
+                    Log.w(TAG, "stopPipeline: Could not stop " + thread.getName() + ", it is still alive");
+                }
             }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "stopPipeline: Interrupted while joining pipeline threads", e);
+            Thread.currentThread().interrupt();
+        }
+        this.pipelineThreads.clear();
+        this.hedgeScheduler.shutdownNow();
+        this.hedgeScheduler = null;
+        this.upstreamForwarder = null;
+        // Drop packets of the stopped connection
+        for (QueryWorker queryWorker : this.queryWorkers) {
+            while (queryWorker.queries.poll() != null) {
+            }
+        }
+        while (this.deviceWrites.poll() != null) {
         }
+        Log.i(TAG, "Device reads: " + this.deviceReadStatistics);
+        Log.i(TAG, "Device writes: " + this.deviceWriteStatistics);
+    }
+
+    private boolean doOne(FileDescriptor tunnelFd, byte[] packet)
+            throws IOException, ErrnoException, VpnNetworkException {
+        // Update poll FD set only if upstream channels were opened or closed
+        updatePolls();
 
-        Log.d(TAG, "doOne: Polling " + polls.length + " file descriptors");
-        int result = Os.poll(polls, this.vpnWatchDog.getPollTimeout());
+        Log.d(TAG, "doOne: Polling " + this.polls.length + " file descriptors");
+        int result = Os.poll(this.polls, this.vpnWatchDog.getPollTimeout());
+        checkPipelineFailure();
         if (result == 0) {
             this.vpnWatchDog.handleTimeout();
             return true;
         }
-        if (blockFd.revents != 0) {
+        if (this.polls[BLOCK_POLL_INDEX].revents != 0) {
             Log.i(TAG, "Told to stop VPN");
             return false;
         }
-
-        // Need to do this before reading from the device, otherwise a new insertion there could
-        // invalidate one of the sockets we want to read from either due to size or time out
-        // constraints
-        checkForDnsResponse(polls);
-        if ((deviceFd.revents & OsConstants.POLLOUT) != 0) {
-            Log.d(TAG, "Write to device");
-            writeToDevice(fileOutputStream);
+        if (this.polls[WAKE_UP_POLL_INDEX].revents != 0) {
+            Log.d(TAG, "Woken up by pipeline");
+            Os.read(this.wakeUpReadFd, this.wakeUpBuffer, 0, this.wakeUpBuffer.length);
         }
-        if ((deviceFd.revents & OsConstants.POLLIN) != 0) {
+
+        checkForDnsResponse();
+        expireQueries();
+        if ((this.deviceFd.revents & OsConstants.POLLIN) != 0) {
             Log.d(TAG, "Read from device");
-            readPacketFromDevice(inputStream, packet);
+            readPacketsFromDevice(tunnelFd, packet);
         }
 
         return true;
     }
 
-    private void checkForDnsResponse(StructPollfd[] polls) {
-        int i = 2;
-        Iterator<WaitingOnSocketPacket> iterator = dnsIn.iterator();
-        while (iterator.hasNext()) {
-            WaitingOnSocketPacket wosp = iterator.next();
-            if ((polls[i].revents & OsConstants.POLLIN) != 0) {
-                Log.d(TAG, "Read from DNS socket" + wosp.socket);
-                iterator.remove();
+    private void updatePolls() {
+        UpstreamChannel[] channels = this.dnsServerMapper.getChannels();
+        if (channels == this.polledChannels) {
+            return;
+        }
+        StructPollfd[] polls = Arrays.copyOf(this.polls, CHANNEL_POLL_INDEX + channels.length);
+        for (int i = 0; i < channels.length; i++) {
+            polls[CHANNEL_POLL_INDEX + i] = channels[i].getPollFd();
+        }
+        this.polls = polls;
+        this.polledChannels = channels;
+    }
+
+    private void checkPipelineFailure() throws VpnNetworkException {
+        VpnNetworkException failure = this.pipelineFailure.get();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Report the failure of a pipeline thread and wake up the VPN worker thread to restart the connection.
+     *
+     * @param failure The pipeline thread failure.
+     */
+    private void fail(VpnNetworkException failure) {
+        this.pipelineFailure.compareAndSet(null, failure);
+        wakeUp();
+    }
+
+    /**
+     * Wake up the VPN worker thread from polling, to update its poll set or check for pipeline failures.
+     */
+    private void wakeUp() {
+        FileDescriptor fd = this.wakeUpWriteFd;
+        if (fd == null) {
+            return;
+        }
+        try {
+            Os.write(fd, WAKE_UP_SIGNAL, 0, WAKE_UP_SIGNAL.length);
+        } catch (ErrnoException | InterruptedIOException e) {
+            Log.w(TAG, "wakeUp: Could not wake up VPN worker thread", e);
+        }
+    }
+
+    private void checkForDnsResponse() {
+        // Iterate over the polled channels to match their poll structures
+        UpstreamChannel[] channels = this.polledChannels;
+        for (int i = 0; i < channels.length; i++) {
+            // Read on errors too, to clear them
+            if (this.polls[CHANNEL_POLL_INDEX + i].revents != 0) {
+                UpstreamChannel channel = channels[i];
+                Log.d(TAG, "Read from DNS channel to " + channel.getServer());
                 try {
-                    handleRawDnsResponse(wosp);
+                    channel.receive(this.dnsResponse, this.dnsPacketProxy::handleDnsResponse);
                 } catch (IOException e) {
                     Log.w(TAG, "checkForDnsResponse: Could not handle DNS response", e);
                 }
             }
-            i++;
         }
     }
 
-    private void writeToDevice(FileOutputStream fileOutputStream) throws VpnNetworkException {
+    private void expireQueries() {
+        long now = System.nanoTime();
+        if (now - this.lastQueryExpiryTime < QUERY_EXPIRY_PERIOD) {
+            return;
+        }
+        this.lastQueryExpiryTime = now;
+        for (UpstreamChannel channel : this.polledChannels) {
+            int count = channel.expirePendingQueries(now);
+            if (count > 0) {
+                Log.d(TAG, "Dropped " + count + " queries without response from " + channel.getServer());
+            }
+        }
+        int closedCount = this.dnsServerMapper.closeRetiredChannels();
+        if (closedCount > 0) {
+            Log.d(TAG, "Closed " + closedCount + " worn out upstream channels");
+        }
+    }
+
+    private void writeToDevice(FileDescriptor tunnelFd) {
+        // Create poll FD on tunnel to wait for it to be writable
+        StructPollfd[] writePolls = {new StructPollfd()};
+        writePolls[0].fd = tunnelFd;
+        writePolls[0].events = (short) OsConstants.POLLOUT;
         try {
-            byte[] ipPacketData = deviceWrites.poll();
-            if (ipPacketData != null) {
-                fileOutputStream.write(ipPacketData);
+            while (true) {
+                // Wait for a packet then flush the whole queue
+                byte[] ipPacketData = this.deviceWrites.take();
+                int count = 0;
+                do {
+                    writePacketToDevice(tunnelFd, ipPacketData, writePolls);
+                    count++;
+                } while (count < MAX_DEVICE_BATCH_SIZE && (ipPacketData = this.deviceWrites.poll()) != null);
+                if (this.deviceWriteStatistics.record(count) % STATISTICS_LOG_PERIOD == 0) {
+                    Log.d(TAG, "Device writes: " + this.deviceWriteStatistics);
+                }
             }
-        } catch (IOException e) {
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Device writer stopped");
+        } catch (ErrnoException | IOException e) {
             // TODO: Make this more specific, only for: "File descriptor closed"
-            throw new VpnNetworkException("Outgoing VPN output stream closed", e);
+            fail(new VpnNetworkException("Outgoing VPN output stream closed", e));
         }
     }
 
-    private void readPacketFromDevice(FileInputStream inputStream, byte[] packet) throws VpnNetworkException {
-        try {
-            // Read the outgoing packet from the input stream.
-            int length = inputStream.read(packet);
-            if (length == 0) {
-                // TODO: Possibly change to exception
-                Log.w(TAG, "Got empty packet!");
+    private void writePacketToDevice(FileDescriptor tunnelFd, byte[] ipPacketData, StructPollfd[] writePolls)
+            throws ErrnoException, InterruptedIOException, InterruptedException {
+        while (true) {
+            try {
+                Os.write(tunnelFd, ipPacketData, 0, ipPacketData.length);
                 return;
+            } catch (ErrnoException e) {
+                if (e.errno != EAGAIN) {
+                    throw e;
+                }
+            }
+            // Wait for the device to be writable again
+            Os.poll(writePolls, DEVICE_WRITE_POLL_TIMEOUT);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
             }
-            final byte[] readPacket = Arrays.copyOfRange(packet, 0, length);
+        }
+    }
 
-            vpnWatchDog.handlePacket(readPacket);
-            dnsPacketProxy.handleDnsRequest(readPacket);
+    private void readPacketsFromDevice(FileDescriptor tunnelFd, byte[] packet) throws VpnNetworkException {
+        // Read packets until the device has no more
+        int count = 0;
+        try {
+            while (count < MAX_DEVICE_BATCH_SIZE) {
+                int length;
+                try {
+                    length = Os.read(tunnelFd, packet, 0, packet.length);
+                } catch (ErrnoException e) {
+                    if (e.errno == EAGAIN) {
+                        break;
+                    }
+                    throw new VpnNetworkException("Cannot read from device", e);
+                }
+                if (length == 0) {
+                    // TODO: Possibly change to exception
+                    Log.w(TAG, "Got empty packet!");
+                    break;
+                }
+                count++;
+                vpnWatchDog.handlePacket(length);
+                // Hand the packet off to the next query worker, dropping its oldest query if overloaded
+                QueryWorker queryWorker = this.queryWorkers[this.nextQueryWorker];
+                this.nextQueryWorker = (this.nextQueryWorker + 1) % this.queryWorkers.length;
+                if (queryWorker.queries.offerDroppingOldest(Arrays.copyOf(packet, length)) > 0) {
+                    Log.d(TAG, "Dropping oldest query due to query worker overload");
+                }
+            }
         } catch (IOException e) {
             throw new VpnNetworkException("Cannot read from device", e);
+        } finally {
+            if (this.deviceReadStatistics.record(count) % STATISTICS_LOG_PERIOD == 0) {
+                Log.d(TAG, "Device reads: " + this.deviceReadStatistics);
+            }
         }
     }
 
-    public void forwardPacket(DatagramPacket outPacket, IpPacket parsedPacket) throws VpnNetworkException {
-        DatagramSocket dnsSocket = null;
+    public void forwardPacket(DatagramPacket outPacket, @Nullable byte[] requestHeaders) throws VpnNetworkException {
+        InetSocketAddress target = (InetSocketAddress) outPacket.getSocketAddress();
         try {
-            // Packets to be sent to the real DNS server will need to be protected from the VPN
-            dnsSocket = new DatagramSocket();
-
-            vpnService.protect(dnsSocket);
-
-            dnsSocket.send(outPacket);
-
-            if (parsedPacket != null)
-                dnsIn.add(new WaitingOnSocketPacket(dnsSocket, parsedPacket));
-            else
-                FileHelper.closeOrWarn(dnsSocket, TAG, "handleDnsRequest: Cannot close socket in error");
+            if (requestHeaders == null) {
+                sendPacket(target, outPacket);
+            } else {
+                // Drop query if the pipeline was stopped meanwhile, by a query worker left alive
+                UpstreamForwarder forwarder = this.upstreamForwarder;
+                if (forwarder == null) {
+                    Log.d(TAG, "forwardPacket: Dropping query as the pipeline is stopped");
+                    return;
+                }
+                // Forward query to the fastest upstream server, hedging it if too slow
+                forwarder.forward(new UpstreamQuery(requestHeaders, outPacket),
+                        this.dnsServerMapper.getUpstreamServer(target));
+            }
         } catch (IOException e) {
-            FileHelper.closeOrWarn(dnsSocket, TAG, "handleDnsRequest: Cannot close socket in error");
             if (e.getCause() instanceof ErrnoException) {
                 ErrnoException errnoExc = (ErrnoException) e.getCause();
                 if ((errnoExc.errno == OsConstants.ENETUNREACH) || (errnoExc.errno == OsConstants.EPERM)) {
@@ -347,16 +594,21 @@ class VpnWorker implements DnsPacketProxy.EventLoop {
         }
     }
 
-    private void handleRawDnsResponse(WaitingOnSocketPacket wosp) throws IOException {
-        byte[] datagramData = new byte[1024];
-        DatagramPacket replyPacket = new DatagramPacket(datagramData, datagramData.length);
-        wosp.socket.receive(replyPacket);
-        wosp.socket.close();
-        dnsPacketProxy.handleDnsResponse(wosp.packet, datagramData);
+    private void sendPacket(InetSocketAddress server, DatagramPacket packet) throws IOException {
+        UpstreamChannel channel = this.dnsServerMapper.getChannel(server);
+        try {
+            channel.send(packet);
+        } catch (IOException e) {
+            // Replace the channel on next query
+            this.dnsServerMapper.closeChannel(channel);
+            throw e;
+        }
     }
 
-    public void queueDeviceWrite(IpPacket ipOutPacket) {
-        deviceWrites.add(ipOutPacket.getRawData());
+    public void queueDeviceWrite(byte[] ipOutPacket) {
+        if (this.deviceWrites.offerDroppingOldest(ipOutPacket) > 0) {
+            Log.d(TAG, "Dropping oldest device write due to device writer overload");
+        }
     }
 
     private void configurePackages(VpnService.Builder builder) {
@@ -423,7 +675,8 @@ class VpnWorker implements DnsPacketProxy.EventLoop {
         InetAddress address = this.dnsServerMapper.configure(builder);
         this.vpnWatchDog.setTarget(address);
 
-        builder.setBlocking(true);
+        // Use non-blocking I/O to read and write packets by batch until the device would block
+        builder.setBlocking(false);
 
         // Allow applications to bypass the VPN
         builder.allowBypass();
@@ -458,63 +711,45 @@ class VpnWorker implements DnsPacketProxy.EventLoop {
     interface VpnStatusNotifier extends Consumer<VpnStatus> {
     }
 
-    static class VpnNetworkException extends Exception {
-        VpnNetworkException(String s) {
-            super(s);
-        }
-
-        VpnNetworkException(String s, Throwable t) {
-            super(s, t);
-        }
-
-    }
-
     /**
-     * Helper class holding a socket, the packet we are waiting the answer for, and a time
+     * Pipeline stage handling queries read from the device, with its own queue and packet proxy.
      */
-    private static class WaitingOnSocketPacket {
-        final DatagramSocket socket;
-        final IpPacket packet;
-        private final long time;
-
-        WaitingOnSocketPacket(DatagramSocket socket, IpPacket packet) {
-            this.socket = socket;
-            this.packet = packet;
-            this.time = System.currentTimeMillis();
-        }
+    private class QueryWorker implements Runnable {
+        final RingBuffer<byte[]> queries;
+        final DnsPacketProxy dnsPacketProxy;
 
-        long ageSeconds() {
-            return (System.currentTimeMillis() - time) / 1000;
+        QueryWorker(DnsPacketProxy dnsPacketProxy) {
+            this.queries = new RingBuffer<>(QUERY_QUEUE_SIZE);
+            this.dnsPacketProxy = dnsPacketProxy;
         }
-    }
 
-    /**
-     * Queue of WaitingOnSocketPacket, bound on time and space.
-     */
-    private static class WospList implements Iterable<WaitingOnSocketPacket> {
-        private final LinkedList<WaitingOnSocketPacket> list = new LinkedList<>();
-
-        void add(WaitingOnSocketPacket wosp) {
-            if (list.size() > DNS_MAXIMUM_WAITING) {
-                Log.d(TAG, "Dropping socket due to space constraints: " + list.element().socket);
-                list.element().socket.close();
-                list.remove();
-            }
-            while (!list.isEmpty() && list.element().ageSeconds() > DNS_TIMEOUT_SEC) {
-                Log.d(TAG, "Timeout on socket " + list.element().socket);
-                list.element().socket.close();
-                list.remove();
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    byte[] packet = this.queries.take();
+                    try {
+                        this.dnsPacketProxy.handleDnsRequest(packet, packet.length);
+                    } catch (RuntimeException e) {
+                        // Drop the faulty packet only, keeping the tunnel up for the others
+                        Log.w(TAG, "Query worker failed to handle packet, dropping it", e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Query worker stopped");
+            } catch (VpnNetworkException e) {
+                fail(e);
             }
-            list.add(wosp);
         }
+    }
 
-        @NonNull
-        public Iterator<WaitingOnSocketPacket> iterator() {
-            return list.iterator();
+    static class VpnNetworkException extends Exception {
+        VpnNetworkException(String s) {
+            super(s);
         }
 
-        int size() {
-            return list.size();
+        VpnNetworkException(String s, Throwable t) {
+            super(s, t);
         }
 
     }
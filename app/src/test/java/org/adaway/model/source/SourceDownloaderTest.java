@@ -0,0 +1,171 @@
+package org.adaway.model.source;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static java.time.ZoneOffset.UTC;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SourceDownloaderTest {
+    private static final int PARALLELISM = 3;
+    private static final int SOURCE_COUNT = 10;
+    private static final String ENTITY_TAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Mon, 01 Feb 2021 10:00:00 GMT";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private MockWebServer server;
+    private AtomicInteger activeRequests;
+    private AtomicInteger maxActiveRequests;
+    private CountDownLatch releaseLatch;
+
+    @Before
+    public void setUp() throws IOException {
+        this.activeRequests = new AtomicInteger();
+        this.maxActiveRequests = new AtomicInteger();
+        this.releaseLatch = new CountDownLatch(1);
+        this.server = new MockWebServer();
+        this.server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                String path = request.getPath();
+                if (path.startsWith("/missing")) {
+                    return new MockResponse().setResponseCode(404);
+                }
+                if (path.startsWith("/validated")) {
+                    if (ENTITY_TAG.equals(request.getHeader("If-None-Match"))
+                            || LAST_MODIFIED.equals(request.getHeader("If-Modified-Since"))) {
+                        return new MockResponse().setResponseCode(304);
+                    }
+                    return new MockResponse()
+                            .setHeader("ETag", ENTITY_TAG)
+                            .setHeader("Last-Modified", LAST_MODIFIED)
+                            .setBody("127.0.0.1 validated.com\n");
+                }
+                int active = activeRequests.incrementAndGet();
+                maxActiveRequests.accumulateAndGet(active, Math::max);
+                try {
+                    releaseLatch.await(100, TimeUnit.MILLISECONDS);
+                    return new MockResponse().setBody("127.0.0.1 host" + path.substring(1) + ".com\n");
+                } finally {
+                    activeRequests.decrementAndGet();
+                }
+            }
+        });
+        this.server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.server.shutdown();
+    }
+
+    @Test
+    public void testBoundedParallelism() throws Exception {
+        OkHttpClient httpClient = new OkHttpClient();
+        try (SourceDownloader downloader = new SourceDownloader(httpClient, this.temporaryFolder.getRoot(), PARALLELISM)) {
+            List<Future<SourceDownloader.Download>> downloads = new ArrayList<>();
+            for (int i = 0; i < SOURCE_COUNT; i++) {
+                String url = this.server.url("/" + i).toString();
+                downloads.add(downloader.submit(() -> downloader.download(url, null, null)));
+            }
+            // Check each download content in submission order
+            for (int i = 0; i < SOURCE_COUNT; i++) {
+                SourceDownloader.Download download = downloads.get(i).get(10, TimeUnit.SECONDS);
+                assertEquals("127.0.0.1 host" + i + ".com", readFirstLine(download));
+                downloader.delete(download);
+            }
+        }
+        assertEquals(SOURCE_COUNT, this.server.getRequestCount());
+        assertTrue("Too many concurrent downloads", this.maxActiveRequests.get() <= PARALLELISM);
+        assertTrue("Downloads were not concurrent", this.maxActiveRequests.get() > 1);
+        assertEquals("Downloaded files were not deleted", 0, countDownloadedFiles());
+    }
+
+    @Test
+    public void testFailedDownload() throws Exception {
+        OkHttpClient httpClient = new OkHttpClient();
+        this.releaseLatch.countDown();
+        try (SourceDownloader downloader = new SourceDownloader(httpClient, this.temporaryFolder.getRoot(), PARALLELISM)) {
+            String missingUrl = this.server.url("/missing").toString();
+            String validUrl = this.server.url("/1").toString();
+            Future<SourceDownloader.Download> missing = downloader.submit(() -> downloader.download(missingUrl, null, null));
+            Future<SourceDownloader.Download> valid = downloader.submit(() -> downloader.download(validUrl, null, null));
+            try {
+                missing.get(10, TimeUnit.SECONDS);
+                fail("Missing source should not be downloaded");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            SourceDownloader.Download download = valid.get(10, TimeUnit.SECONDS);
+            assertEquals("127.0.0.1 host1.com", readFirstLine(download));
+            assertEquals(1, countDownloadedFiles());
+        }
+        assertEquals("Downloaded files were not deleted on close", 0, countDownloadedFiles());
+    }
+
+    @Test
+    public void testConditionalDownload() throws Exception {
+        OkHttpClient httpClient = new OkHttpClient();
+        try (SourceDownloader downloader = new SourceDownloader(httpClient, this.temporaryFolder.getRoot(), PARALLELISM)) {
+            String url = this.server.url("/validated").toString();
+            // Download source without validators
+            SourceDownloader.Download download = downloader.download(url, null, null);
+            assertTrue(download.isModified());
+            assertEquals(ENTITY_TAG, download.getEntityTag());
+            assertEquals(LAST_MODIFIED, download.getLastModifiedHeader());
+            assertEquals(ZonedDateTime.of(2021, 2, 1, 10, 0, 0, 0, UTC), download.getLastModified());
+            assertEquals("127.0.0.1 validated.com", readFirstLine(download));
+            downloader.delete(download);
+            // Download source again with each validator
+            download = downloader.download(url, ENTITY_TAG, null);
+            assertFalse(download.isModified());
+            download = downloader.download(url, null, LAST_MODIFIED);
+            assertFalse(download.isModified());
+            // Download source again with outdated validator
+            download = downloader.download(url, "\"v0\"", null);
+            assertTrue(download.isModified());
+            downloader.delete(download);
+        }
+        assertEquals(4, this.server.getRequestCount());
+        assertEquals("Downloaded files were not deleted", 0, countDownloadedFiles());
+    }
+
+    private static String readFirstLine(SourceDownloader.Download download) throws IOException {
+        try (Reader reader = download.openReader();
+             BufferedReader bufferedReader = new BufferedReader(reader)) {
+            return bufferedReader.readLine();
+        }
+    }
+
+    private int countDownloadedFiles() {
+        String[] files = this.temporaryFolder.getRoot().list();
+        assertNotNull(files);
+        return files.length;
+    }
+}
@@ -6,11 +6,12 @@ import org.junit.Test;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-import static org.adaway.model.source.SourceLoader.HOSTS_PARSER_PATTERN;
 import static org.junit.Assert.*;
 
 public class SourceLoaderTest {
+    private static final String HOSTS_PARSER = "^\\s*([^#\\s]+)\\s+([^#\\s]+).*$";
 
     // Test data comes from Guava InternetDomainName unit test
     // https://github.com/google/guava/blob/master/android/guava-tests/test/com/google/common/net/InternetDomainNameTest.java
@@ -105,16 +106,68 @@ public class SourceLoaderTest {
 
     @Test
     public void testHostParser() {
-        Matcher matcher = HOSTS_PARSER_PATTERN.matcher("# [mocean.mobi]");
-        assertFalse(matcher.matches());
-        matcher = HOSTS_PARSER_PATTERN.matcher("127.0.0.1 www.domain.com ## some comments #");
-        assertTrue(matcher.matches());
-        assertEquals("127.0.0.1", matcher.group(1));
-        assertEquals("www.domain.com", matcher.group(2));
-        matcher = HOSTS_PARSER_PATTERN.matcher("127.0.0.1 ad.domain.net ## some comments");
-        assertTrue(matcher.matches());
-        assertEquals("127.0.0.1", matcher.group(1));
-        assertEquals("ad.domain.net", matcher.group(2));
+        HostsLineTokenizer tokenizer = new HostsLineTokenizer();
+        assertFalse(tokenizer.tokenize("# [mocean.mobi]"));
+        assertTrue(tokenizer.tokenize("127.0.0.1 www.domain.com ## some comments #"));
+        assertEquals("127.0.0.1", tokenizer.getAddress());
+        assertEquals("www.domain.com", tokenizer.getHost());
+        assertTrue(tokenizer.tokenize("127.0.0.1 ad.domain.net ## some comments"));
+        assertEquals("127.0.0.1", tokenizer.getAddress());
+        assertEquals("ad.domain.net", tokenizer.getHost());
+        assertTrue(tokenizer.isAddress("127.0.0.1"));
+        assertFalse(tokenizer.isAddress("127.0.0.10"));
+        assertTrue(tokenizer.isHost("ad.domain.net"));
+    }
+
+    @Test
+    public void testHostParserMatchesRegex() {
+        Pattern pattern = Pattern.compile(HOSTS_PARSER);
+        String[] lines = {
+                "",
+                " ",
+                "#",
+                "127.0.0.1",
+                "127.0.0.1 ",
+                "127.0.0.1#host.com",
+                "127.0.0.1 #host.com",
+                "127.0.0.1 host.com",
+                "127.0.0.1\thost.com",
+                " \t0.0.0.0 \t host.com \t",
+                "0.0.0.0 host.com#comment",
+                "0.0.0.0 host.com other.com",
+                "0.0.0.0 host.com \u0085",
+                "0.0.0.0 host\u0085.com",
+                "0.0.0.0\u000Bhost.com\f",
+                "::1 localhost",
+        };
+        HostsLineTokenizer tokenizer = new HostsLineTokenizer();
+        for (String line : lines) {
+            Matcher matcher = pattern.matcher(line);
+            boolean matches = matcher.matches();
+            assertEquals("The line '" + line + "' should be tokenized as the regex.", matches, tokenizer.tokenize(line));
+            if (matches) {
+                assertEquals(matcher.group(1), tokenizer.getAddress());
+                assertEquals(matcher.group(2), tokenizer.getHost());
+            }
+        }
+    }
+
+    @Test
+    public void isValidWildcardHostnameRegion() {
+        for (String validName : VALID_NAMES) {
+            String line = "0.0.0.0 " + validName + " # comment";
+            assertTrue(
+                    "The hostname '" + validName + "' should be valid.",
+                    RegexUtils.isValidWildcardHostname(line, 8, 8 + validName.length())
+            );
+        }
+        for (String invalidName : INVALID_WILDCARD_NAMES) {
+            String line = "0.0.0.0 " + invalidName + " # comment";
+            assertFalse(
+                    "The hostname '" + invalidName + "' should not be valid.",
+                    RegexUtils.isValidWildcardHostname(line, 8, 8 + invalidName.length())
+            );
+        }
     }
 
     @Test
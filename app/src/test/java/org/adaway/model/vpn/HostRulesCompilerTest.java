@@ -0,0 +1,148 @@
+package org.adaway.model.vpn;
+
+import android.database.Cursor;
+
+import org.adaway.db.dao.HostListItemDao;
+import org.adaway.db.entity.HostEntry;
+import org.adaway.db.entity.ListType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.adaway.db.entity.ListType.ALLOWED;
+import static org.adaway.db.entity.ListType.BLOCKED;
+import static org.adaway.db.entity.ListType.REDIRECTED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the host rules are compiled off the calling thread.
+ */
+public class HostRulesCompilerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCompileInBackground() throws Exception {
+        BlockingQueue<Thread> daoThreads = new LinkedBlockingQueue<>();
+        HostListItemDao dao = newDao(daoThreads, new Object[][]{
+                {"ads.example.com", BLOCKED, null},
+                {"www.ads.example.com", ALLOWED, null},
+                {"local.example.com", REDIRECTED, "127.0.0.1"}
+        });
+        HostRulesSnapshot snapshot = new HostRulesSnapshot(this.folder.getRoot());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Hold the executor so the compilation can only run once the compile call returned
+            BlockingQueue<Boolean> gate = new LinkedBlockingQueue<>();
+            executor.execute(() -> {
+                try {
+                    gate.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            HostRulesCompiler compiler = new HostRulesCompiler(dao, snapshot, executor);
+            BlockingQueue<HostRuleSet> ruleSets = new LinkedBlockingQueue<>();
+            compiler.compile(3, Collections::emptyList, ruleSets::add);
+            assertTrue(daoThreads.isEmpty());
+            gate.add(true);
+            // Check rule set is compiled from the executor
+            HostRuleSet ruleSet = ruleSets.poll(5, SECONDS);
+            assertNotNull(ruleSet);
+            Thread daoThread = daoThreads.poll();
+            assertNotNull(daoThread);
+            assertNotSame(Thread.currentThread(), daoThread);
+            assertEquals(3, ruleSet.getVersion());
+            assertEquals(3, ruleSet.size());
+            assertEquals(BLOCKED, ruleSet.get("ads.example.com").getType());
+            assertEquals(ALLOWED, ruleSet.get("www.ads.example.com").getType());
+            HostEntry redirected = ruleSet.get("local.example.com");
+            assertEquals(REDIRECTED, redirected.getType());
+            assertEquals("127.0.0.1", redirected.getRedirection());
+            assertNull(ruleSet.get("example.com"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCompileFailure() throws Exception {
+        HostListItemDao dao = (HostListItemDao) Proxy.newProxyInstance(
+                HostListItemDao.class.getClassLoader(),
+                new Class<?>[]{HostListItemDao.class},
+                (proxy, method, args) -> {
+                    throw new IllegalStateException("Database closed");
+                }
+        );
+        HostRulesSnapshot snapshot = new HostRulesSnapshot(this.folder.getRoot());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            HostRulesCompiler compiler = new HostRulesCompiler(dao, snapshot, executor);
+            BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+            compiler.compile(1, Collections::emptyList, ruleSet -> results.add(ruleSet == null ? "failed" : ruleSet));
+            assertEquals("failed", results.poll(5, SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Create a DAO returning the enabled items and recording the threads reading them.
+     *
+     * @param threads The queue to record the threads reading the enabled items.
+     * @param rows    The enabled items, as host, type and redirection.
+     * @return The DAO.
+     */
+    private static HostListItemDao newDao(BlockingQueue<Thread> threads, Object[][] rows) {
+        return (HostListItemDao) Proxy.newProxyInstance(
+                HostListItemDao.class.getClassLoader(),
+                new Class<?>[]{HostListItemDao.class},
+                (proxy, method, args) -> {
+                    if (!"getEnabledItems".equals(method.getName())) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    threads.add(Thread.currentThread());
+                    return newCursor(rows);
+                }
+        );
+    }
+
+    private static Cursor newCursor(Object[][] rows) {
+        List<String> columns = Arrays.asList("host", "type", "redirection");
+        int[] position = {-1};
+        return (Cursor) Proxy.newProxyInstance(
+                Cursor.class.getClassLoader(),
+                new Class<?>[]{Cursor.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getColumnIndexOrThrow":
+                            return columns.indexOf((String) args[0]);
+                        case "moveToNext":
+                            return ++position[0] < rows.length;
+                        case "getString":
+                            return (String) rows[position[0]][(int) args[0]];
+                        case "getInt":
+                            return ((ListType) rows[position[0]][(int) args[0]]).getValue();
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+        );
+    }
+}
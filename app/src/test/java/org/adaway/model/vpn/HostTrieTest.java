@@ -0,0 +1,169 @@
+package org.adaway.model.vpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class HostTrieTest {
+    @Test
+    public void testExactMatch() {
+        HostTrie<String> trie = new HostTrie.Builder<String>(Comparator.naturalOrder())
+                .put("ads.example.com", "ads")
+                .put("example.com", "example")
+                .put("tracker.net", "tracker")
+                .build();
+        assertEquals(3, trie.size());
+        assertEquals("ads", trie.get("ads.example.com"));
+        assertEquals("example", trie.get("example.com"));
+        assertEquals("tracker", trie.get("tracker.net"));
+        assertNull(trie.get("com"));
+        assertNull(trie.get("www.example.com"));
+        assertNull(trie.get("example.net"));
+        assertNull(trie.get("ads.example.co"));
+    }
+
+    @Test
+    public void testCaseAndTrailingDot() {
+        HostTrie<String> trie = new HostTrie.Builder<String>(Comparator.naturalOrder())
+                .put("Ads.Example.COM", "ads")
+                .build();
+        assertEquals("ads", trie.get("ads.example.com"));
+        assertEquals("ads", trie.get("ADS.EXAMPLE.COM"));
+        assertEquals("ads", trie.get("ads.example.com."));
+    }
+
+    @Test
+    public void testInvalidNames() {
+        HostTrie<String> trie = new HostTrie.Builder<String>(Comparator.naturalOrder())
+                .put("example.com", "example")
+                .put("", "empty")
+                .put("bad..com", "bad")
+                .build();
+        assertEquals(1, trie.size());
+        assertNull(trie.get(""));
+        assertNull(trie.get("."));
+        assertNull(trie.get(".example.com"));
+        assertNull(trie.get("bad..com"));
+        assertNull(trie.get("example..com"));
+    }
+
+    @Test
+    public void testReplaceValue() {
+        HostTrie<String> trie = new HostTrie.Builder<String>(Comparator.naturalOrder())
+                .put("example.com", "first")
+                .put("example.com", "second")
+                .build();
+        assertEquals(1, trie.size());
+        assertEquals("second", trie.get("example.com"));
+    }
+
+    @Test
+    public void testLargeTrie() {
+        HostTrie.Builder<Integer> builder = new HostTrie.Builder<>(Comparator.naturalOrder());
+        Integer[] values = new Integer[16];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        for (int i = 0; i < 100000; i++) {
+            builder.put("host" + i + ".domain" + (i % 100) + ".com", values[i % values.length]);
+        }
+        HostTrie<Integer> trie = builder.build();
+        assertEquals(100000, trie.size());
+        for (int i = 0; i < 100000; i++) {
+            assertEquals(values[i % values.length], trie.get("host" + i + ".domain" + (i % 100) + ".com"));
+        }
+        assertNull(trie.get("host1.domain2.com"));
+    }
+
+    @Test
+    public void testSubdomainWildcard() {
+        HostTrie<String> trie = new HostTrie.Builder<String>(Comparator.naturalOrder())
+                .put("*.doubleclick.net", "blocked")
+                .build();
+        assertEquals("blocked", trie.get("ad.doubleclick.net"));
+        assertEquals("blocked", trie.get("static.ad.doubleclick.net"));
+        assertNull(trie.get("doubleclick.net"));
+        assertNull(trie.get("notdoubleclick.net"));
+    }
+
+    @Test
+    public void testWildcards() {
+        HostTrie<String> trie = new HostTrie.Builder<String>(Comparator.naturalOrder())
+                .put("ad?.example.com", "any char")
+                .put("sub.*.example.org", "any label")
+                .put("*tracker.net", "any prefix")
+                .put("Example.*", "any top level domain")
+                .build();
+        assertEquals(4, trie.size());
+        assertEquals("any char", trie.get("ads.example.com"));
+        assertEquals("any char", trie.get("AD1.example.com"));
+        assertNull(trie.get("ad.example.com"));
+        assertNull(trie.get("adsx.example.com"));
+        assertEquals("any label", trie.get("sub.www.example.org"));
+        assertEquals("any label", trie.get("sub.a.b.example.org"));
+        assertNull(trie.get("sub.example.org"));
+        assertEquals("any prefix", trie.get("tracker.net"));
+        assertEquals("any prefix", trie.get("mytracker.net"));
+        assertEquals("any prefix", trie.get("www.mytracker.net"));
+        assertNull(trie.get("tracker.com"));
+        assertEquals("any top level domain", trie.get("example.fr"));
+        assertEquals("any top level domain", trie.get("example.co.uk"));
+        assertNull(trie.get("www.example.fr"));
+    }
+
+    @Test
+    public void testPrecedence() {
+        HostTrie<Integer> trie = new HostTrie.Builder<Integer>(Comparator.naturalOrder())
+                .put("ads.example.com", 0)
+                .put("tracker.example.com", 0)
+                .put("*.example.com", 1)
+                .put("ads.example.com", 2)
+                .put("tracker.example.com", 0)
+                .build();
+        assertEquals(Integer.valueOf(2), trie.get("ads.example.com"));
+        assertEquals(Integer.valueOf(1), trie.get("tracker.example.com"));
+        assertEquals(Integer.valueOf(1), trie.get("www.example.com"));
+        assertNull(trie.get("example.com"));
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        HostTrie<String> trie = new HostTrie.Builder<String>(Comparator.naturalOrder())
+                .put("ads.example.com", "exact")
+                .put("*.doubleclick.net", "subdomain")
+                .put("ad?.example.org", "wildcard")
+                .put("*tracker.net", "root wildcard")
+                .build();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        trie.write(outputStream, (output, value) -> output.writeUTF(value));
+        byte[] snapshot = outputStream.toByteArray();
+        // Check the trie read from a direct buffer, like a mapped file
+        ByteBuffer buffer = ByteBuffer.allocateDirect(snapshot.length);
+        buffer.put(snapshot).flip();
+        HostTrie<String> readTrie = HostTrie.read(buffer, Comparator.naturalOrder(), input -> input.readUTF());
+        assertEquals(4, readTrie.size());
+        assertEquals("exact", readTrie.get("ADS.example.com"));
+        assertEquals("subdomain", readTrie.get("ad.doubleclick.net"));
+        assertEquals("wildcard", readTrie.get("ads.example.org"));
+        assertEquals("root wildcard", readTrie.get("www.mytracker.net"));
+        assertNull(readTrie.get("example.com"));
+        // Check corrupted snapshots are rejected
+        for (int index : new int[]{4, snapshot.length / 2, snapshot.length - 1}) {
+            byte[] corruptedSnapshot = snapshot.clone();
+            corruptedSnapshot[index] ^= 1;
+            try {
+                HostTrie.read(ByteBuffer.wrap(corruptedSnapshot), Comparator.naturalOrder(), input -> input.readUTF());
+                fail("Corrupted snapshot read");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+}
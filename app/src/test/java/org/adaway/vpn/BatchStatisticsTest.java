@@ -0,0 +1,21 @@
+package org.adaway.vpn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchStatisticsTest {
+    @Test
+    public void testRecord() {
+        BatchStatistics statistics = new BatchStatistics();
+        assertEquals(0, statistics.getAverageBatchSize(), 0);
+        assertEquals(1, statistics.record(3));
+        assertEquals(2, statistics.record(7));
+        assertEquals(3, statistics.record(2));
+        assertEquals(3, statistics.getWakeUpCount());
+        assertEquals(12, statistics.getPacketCount());
+        assertEquals(7, statistics.getMaxBatchSize());
+        assertEquals(4, statistics.getAverageBatchSize(), 0);
+        assertEquals("12 packets in 3 wake ups (4.00 per wake up, 7 max)", statistics.toString());
+    }
+}
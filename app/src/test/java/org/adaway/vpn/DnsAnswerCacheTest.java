@@ -0,0 +1,229 @@
+package org.adaway.vpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DnsAnswerCacheTest {
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final int CLASS_IN = 1;
+    private static final int NOERROR = 0;
+    private static final int SERVFAIL = 2;
+    // Offset of the first answer TTL in the test responses of "cdn.example.com"
+    private static final int FIRST_TTL_OFFSET = 12 + 17 + 4 + 2 + 4;
+
+    private long now = 1_000_000;
+
+    @Test
+    public void testFreshAnswer() {
+        DnsAnswerCache cache = new DnsAnswerCache(16, 64 * 1024, () -> this.now);
+        byte[] response = newResponse("CDN.Example.com", NOERROR, 300, 60);
+        cache.put(response, response.length);
+        assertNull(cache.get("cdn.example.com", TYPE_AAAA, CLASS_IN, false, false));
+
+        this.now += 10_500;
+        byte[] payload = cache.get("cdn.example.com", TYPE_A, CLASS_IN, false, false);
+        assertNotNull(payload);
+        assertEquals(response.length, payload.length);
+        assertEquals(290, readInt(payload, FIRST_TTL_OFFSET));
+        assertEquals(50, readInt(payload, FIRST_TTL_OFFSET + 16));
+        // Check only TTLs were changed
+        writeInt(payload, FIRST_TTL_OFFSET, 300);
+        writeInt(payload, FIRST_TTL_OFFSET + 16, 60);
+        assertArrayEquals(response, payload);
+    }
+
+    @Test
+    public void testStaleAnswer() {
+        DnsAnswerCache cache = new DnsAnswerCache(16, 64 * 1024, () -> this.now);
+        byte[] response = newResponse("cdn.example.com", NOERROR, 60);
+        cache.put(response, response.length);
+
+        // Check a fresh answer is served without refresh
+        this.now += 30_000;
+        DnsAnswerCache.Answer answer = cache.getStale("cdn.example.com", TYPE_A, CLASS_IN, false, false);
+        assertNotNull(answer);
+        assertFalse(answer.isRefreshNeeded());
+        assertEquals(30, readInt(answer.getPayload(), FIRST_TTL_OFFSET));
+        // Check an expired answer is only served as stale
+        this.now += 31_000;
+        assertNull(cache.get("cdn.example.com", TYPE_A, CLASS_IN, false, false));
+        answer = cache.getStale("cdn.example.com", TYPE_A, CLASS_IN, false, false);
+        assertNotNull(answer);
+        assertTrue(answer.isRefreshNeeded());
+        assertEquals(DnsAnswerCache.STALE_TTL, readInt(answer.getPayload(), FIRST_TTL_OFFSET));
+        // Check refresh is requested once per stale TTL
+        answer = cache.getStale("cdn.example.com", TYPE_A, CLASS_IN, false, false);
+        assertNotNull(answer);
+        assertFalse(answer.isRefreshNeeded());
+        this.now += DnsAnswerCache.STALE_TTL * 1000L;
+        byte[] query = newQuery("CDN.example.com", 0, false);
+        answer = cache.getStale(query, query.length);
+        assertNotNull(answer);
+        assertTrue(answer.isRefreshNeeded());
+        // Check too old answer is dropped
+        this.now += 24 * 60 * 60 * 1000L;
+        assertNull(cache.getStale("cdn.example.com", TYPE_A, CLASS_IN, false, false));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void testDnssecFlags() {
+        DnsAnswerCache cache = new DnsAnswerCache(16, 64 * 1024, () -> this.now);
+        // Cache a response with the checking disabled flag and an OPT record with the DNSSEC OK flag
+        byte[] response = newResponse("cdn.example.com", NOERROR, 60);
+        response[3] |= 0x10;
+        byte[] responseWithOpt = Arrays.copyOf(response, response.length + 11);
+        responseWithOpt[11] = 1;
+        responseWithOpt[response.length + 2] = 41;
+        responseWithOpt[response.length + 3] = 0x10;
+        responseWithOpt[response.length + 7] = (byte) 0x80;
+        cache.put(responseWithOpt, responseWithOpt.length);
+        // Check the response is only served to queries with the same flags
+        assertNull(cache.get("cdn.example.com", TYPE_A, CLASS_IN, false, false));
+        assertNull(cache.get("cdn.example.com", TYPE_A, CLASS_IN, true, false));
+        assertNull(cache.get("cdn.example.com", TYPE_A, CLASS_IN, false, true));
+        assertArrayEquals(response, cache.get("cdn.example.com", TYPE_A, CLASS_IN, true, true));
+        byte[] query = newQuery("cdn.example.com", 0x10, true);
+        assertNotNull(cache.getStale(query, query.length));
+        query = newQuery("cdn.example.com", 0x10, false);
+        assertNull(cache.getStale(query, query.length));
+    }
+
+    @Test
+    public void testUncachedResponses() {
+        DnsAnswerCache cache = new DnsAnswerCache(16, 64 * 1024, () -> this.now);
+        byte[] response = newResponse("cdn.example.com", SERVFAIL, 60);
+        cache.put(response, response.length);
+        response = newResponse("cdn.example.com", NOERROR, 0);
+        cache.put(response, response.length);
+        response = newResponse("cdn.example.com", NOERROR);
+        cache.put(response, response.length);
+        response = newResponse("cdn.example.com", NOERROR, 60);
+        cache.put(response, response.length - 1);
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void testOptRecordDropped() {
+        DnsAnswerCache cache = new DnsAnswerCache(16, 64 * 1024, () -> this.now);
+        byte[] response = newResponse("cdn.example.com", NOERROR, 60);
+        byte[] responseWithOpt = Arrays.copyOf(response, response.length + 11);
+        responseWithOpt[11] = 1;
+        responseWithOpt[response.length + 2] = 41;
+        responseWithOpt[response.length + 3] = 0x10;
+        cache.put(responseWithOpt, responseWithOpt.length);
+        // Check the response to forward is left unchanged
+        assertEquals(1, responseWithOpt[11]);
+        assertArrayEquals(response, cache.get("cdn.example.com", TYPE_A, CLASS_IN, false, false));
+    }
+
+    @Test
+    public void testEviction() {
+        byte[] response = newResponse("a.example.com", NOERROR, 60);
+        DnsAnswerCache cache = new DnsAnswerCache(2, 64 * 1024, () -> this.now);
+        cache.put(response, response.length);
+        response = newResponse("b.example.com", NOERROR, 60);
+        cache.put(response, response.length);
+        // Use first entry so the second one is the least recently used
+        assertNotNull(cache.get("a.example.com", TYPE_A, CLASS_IN, false, false));
+        response = newResponse("c.example.com", NOERROR, 60);
+        cache.put(response, response.length);
+        assertEquals(2, cache.getEntryCount());
+        assertNotNull(cache.get("a.example.com", TYPE_A, CLASS_IN, false, false));
+        assertNull(cache.get("b.example.com", TYPE_A, CLASS_IN, false, false));
+        assertNotNull(cache.get("c.example.com", TYPE_A, CLASS_IN, false, false));
+        // Check memory bound
+        cache = new DnsAnswerCache(16, 256, () -> this.now);
+        cache.put(response, response.length);
+        response = newResponse("d.example.com", NOERROR, 60);
+        cache.put(response, response.length);
+        assertEquals(1, cache.getEntryCount());
+        assertNotNull(cache.get("d.example.com", TYPE_A, CLASS_IN, false, false));
+    }
+
+    private static byte[] newResponse(String name, int rcode, int... ttls) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        // Write header
+        writeShort(output, 0x1234);
+        output.write(0x81);
+        output.write(0x80 | rcode);
+        writeShort(output, 1);
+        writeShort(output, ttls.length);
+        writeShort(output, 0);
+        writeShort(output, 0);
+        // Write question
+        for (String label : name.split("\\.")) {
+            output.write(label.length());
+            output.write(label.getBytes(), 0, label.length());
+        }
+        output.write(0);
+        writeShort(output, TYPE_A);
+        writeShort(output, CLASS_IN);
+        // Write answers with a pointer to the question name
+        for (int i = 0; i < ttls.length; i++) {
+            writeShort(output, 0xC00C);
+            writeShort(output, TYPE_A);
+            writeShort(output, CLASS_IN);
+            writeShort(output, ttls[i] >>> 16);
+            writeShort(output, ttls[i]);
+            writeShort(output, 4);
+            output.write(new byte[]{10, 0, 0, (byte) i}, 0, 4);
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] newQuery(String name, int flags, boolean dnssecOk) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        // Write header
+        writeShort(output, 0x4321);
+        output.write(0x01);
+        output.write(flags);
+        writeShort(output, 1);
+        writeShort(output, 0);
+        writeShort(output, 0);
+        writeShort(output, 1);
+        // Write question
+        for (String label : name.split("\\.")) {
+            output.write(label.length());
+            output.write(label.getBytes(), 0, label.length());
+        }
+        output.write(0);
+        writeShort(output, TYPE_A);
+        writeShort(output, CLASS_IN);
+        // Write OPT record
+        output.write(0);
+        writeShort(output, 41);
+        writeShort(output, 1232);
+        writeShort(output, 0);
+        writeShort(output, dnssecOk ? 0x8000 : 0);
+        writeShort(output, 0);
+        return output.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream output, int value) {
+        output.write(value >> 8);
+        output.write(value);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8 | data[offset + 3] & 0xFF;
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,272 @@
+package org.adaway.vpn;
+
+import org.junit.Test;
+import org.pcap4j.packet.IpV4Packet;
+import org.pcap4j.packet.IpV6Packet;
+import org.pcap4j.packet.UdpPacket;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.ExtendedFlags;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DnsQueryPacketTest {
+    private static final byte[] CLIENT_IPV4 = {10, 111, (byte) 222, 1};
+    private static final byte[] SERVER_IPV4 = {10, 111, (byte) 222, 2};
+    private static final byte[] CLIENT_IPV6 = {32, 1, 13, (byte) 184, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1};
+    private static final byte[] SERVER_IPV6 = {32, 1, 13, (byte) 184, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 3};
+    private static final int CLIENT_PORT = 45678;
+
+    @Test
+    public void testParseQuery() throws Exception {
+        byte[] query = newQuery("Ads.Example.COM.", Type.A).toWire();
+        byte[] packet = newIpV4Packet(query, 17);
+        DnsQueryPacket queryPacket = new DnsQueryPacket();
+        assertEquals(DnsQueryPacket.Result.QUERY, queryPacket.parse(packet, packet.length));
+        assertEquals("ads.example.com", queryPacket.getName().toString());
+        assertEquals(53, queryPacket.getDestinationPort());
+        assertEquals(2, queryPacket.getDestinationAddressLastByte());
+        assertEquals(28, queryPacket.getPayloadOffset());
+        assertArrayEquals(query, Arrays.copyOfRange(packet, queryPacket.getPayloadOffset(),
+                queryPacket.getPayloadOffset() + queryPacket.getPayloadLength()));
+        assertArrayEquals(Arrays.copyOf(packet, 28), queryPacket.copyHeaders());
+        // Check the packet length is used rather than the buffer length
+        byte[] buffer = Arrays.copyOf(packet, 1500);
+        assertEquals(DnsQueryPacket.Result.QUERY, queryPacket.parse(buffer, packet.length));
+        assertEquals("ads.example.com", queryPacket.getName().toString());
+    }
+
+    @Test
+    public void testDnssecFlags() throws Exception {
+        DnsQueryPacket queryPacket = new DnsQueryPacket();
+        // Check a query without flags nor OPT record
+        byte[] packet = newIpV4Packet(newQuery("example.com.", Type.A).toWire(), 17);
+        assertEquals(DnsQueryPacket.Result.QUERY, queryPacket.parse(packet, packet.length));
+        assertFalse(queryPacket.isCheckingDisabled());
+        assertFalse(queryPacket.isDnssecOk());
+        // Check a query with the checking disabled and DNSSEC OK flags
+        Message query = newQuery("example.com.", Type.A);
+        query.getHeader().setFlag(Flags.CD);
+        query.addRecord(new OPTRecord(1232, 0, 0, ExtendedFlags.DO), Section.ADDITIONAL);
+        packet = newIpV4Packet(query.toWire(), 17);
+        assertEquals(DnsQueryPacket.Result.QUERY, queryPacket.parse(packet, packet.length));
+        assertTrue(queryPacket.isCheckingDisabled());
+        assertTrue(queryPacket.isDnssecOk());
+    }
+
+    @Test
+    public void testParseOtherPackets() throws Exception {
+        DnsQueryPacket queryPacket = new DnsQueryPacket();
+        // Non UDP packet
+        byte[] packet = newIpV4Packet(new byte[20], 6);
+        assertEquals(DnsQueryPacket.Result.IGNORED, queryPacket.parse(packet, packet.length));
+        // Empty UDP packet
+        packet = newIpV4Packet(new byte[0], 17);
+        assertEquals(DnsQueryPacket.Result.EMPTY, queryPacket.parse(packet, packet.length));
+        // Truncated packet
+        packet = newIpV4Packet(newQuery("example.com.", Type.A).toWire(), 17);
+        assertEquals(DnsQueryPacket.Result.UNSUPPORTED, queryPacket.parse(packet, packet.length - 1));
+        // Name with escaped characters
+        packet = newIpV4Packet(newQuery("ex\\032ample.com.", Type.A).toWire(), 17);
+        assertEquals(DnsQueryPacket.Result.UNSUPPORTED, queryPacket.parse(packet, packet.length));
+        // Response
+        Message response = newQuery("example.com.", Type.A);
+        response.getHeader().setFlag(Flags.QR);
+        packet = newIpV4Packet(response.toWire(), 17);
+        assertEquals(DnsQueryPacket.Result.UNSUPPORTED, queryPacket.parse(packet, packet.length));
+        // Fragmented packet
+        packet = newIpV4Packet(newQuery("example.com.", Type.A).toWire(), 17);
+        packet[6] = 0x20;
+        assertEquals(DnsQueryPacket.Result.UNSUPPORTED, queryPacket.parse(packet, packet.length));
+    }
+
+    @Test
+    public void testBlockedResponse() throws Exception {
+        Name name = new Name("adaway.vpn.invalid.");
+        SOARecord soaRecord = new SOARecord(name, DClass.IN, 5, name, name, 0, 0, 0, 0, 5);
+        Message query = newQuery("ads.example.com.", Type.A);
+        query.addRecord(new OPTRecord(4096, 0, 0), Section.ADDITIONAL);
+        byte[] packet = newIpV4Packet(query.toWire(), 17);
+        DnsQueryPacket queryPacket = new DnsQueryPacket();
+        assertEquals(DnsQueryPacket.Result.QUERY, queryPacket.parse(packet, packet.length));
+        byte[] responsePacket = queryPacket.createResponse(DnsResponseTemplate.blocked(soaRecord.toWire(Section.AUTHORITY)));
+
+        UdpPacket udpPacket = checkIpV4Response(responsePacket);
+        Message response = new Message(udpPacket.getPayload().getRawData());
+        assertEquals(query.getHeader().getID(), response.getHeader().getID());
+        assertTrue(response.getHeader().getFlag(Flags.QR));
+        assertTrue(response.getHeader().getFlag(Flags.RD));
+        assertEquals(Rcode.NOERROR, response.getRcode());
+        assertEquals(query.getQuestion(), response.getQuestion());
+        assertEquals(0, response.getSection(Section.ANSWER).size());
+        assertEquals(soaRecord, response.getSection(Section.AUTHORITY).get(0));
+        assertEquals(4096, response.getOPT().getPayloadSize());
+    }
+
+    @Test
+    public void testRedirectedResponse() throws Exception {
+        Message query = newQuery("ads.example.com.", Type.A);
+        byte[] packet = newIpV6Packet(query.toWire());
+        DnsQueryPacket queryPacket = new DnsQueryPacket();
+        assertEquals(DnsQueryPacket.Result.QUERY, queryPacket.parse(packet, packet.length));
+        assertEquals(3, queryPacket.getDestinationAddressLastByte());
+        InetAddress address = InetAddress.getByName("192.168.1.1");
+        byte[] responsePacket = queryPacket.createResponse(DnsResponseTemplate.redirected(address.getAddress()));
+
+        IpV6Packet ipPacket = IpV6Packet.newPacket(responsePacket, 0, responsePacket.length);
+        assertArrayEquals(SERVER_IPV6, ipPacket.getHeader().getSrcAddr().getAddress());
+        assertArrayEquals(CLIENT_IPV6, ipPacket.getHeader().getDstAddr().getAddress());
+        UdpPacket udpPacket = (UdpPacket) ipPacket.getPayload();
+        assertEquals(53, udpPacket.getHeader().getSrcPort().valueAsInt());
+        assertEquals(CLIENT_PORT, udpPacket.getHeader().getDstPort().valueAsInt());
+        assertTrue(udpPacket.hasValidChecksum(ipPacket.getHeader().getSrcAddr(), ipPacket.getHeader().getDstAddr(), false));
+        Message response = new Message(udpPacket.getPayload().getRawData());
+        assertTrue(response.getHeader().getFlag(Flags.QR));
+        assertTrue(response.getHeader().getFlag(Flags.AA));
+        assertFalse(response.getHeader().getFlag(Flags.RD));
+        assertEquals(Rcode.NOERROR, response.getRcode());
+        Record answer = response.getSection(Section.ANSWER).get(0);
+        assertEquals(new ARecord(new Name("ads.example.com."), DClass.IN, 5, address), answer);
+    }
+
+    @Test
+    public void testResponseChecksum() throws Exception {
+        DnsResponseTemplate redirectedTemplate = DnsResponseTemplate.redirected(InetAddress.getByName("::1").getAddress());
+        // Check precomputed checksum sums for records and additional sections at both alignments
+        for (String name : new String[]{"ad.example.com.", "ads.example.com."}) {
+            Message query = newQuery(name, Type.AAAA);
+            query.addRecord(new OPTRecord(1232, 0, 0), Section.ADDITIONAL);
+            byte[] packet = newIpV4Packet(query.toWire(), 17);
+            DnsQueryPacket queryPacket = new DnsQueryPacket();
+            assertEquals(DnsQueryPacket.Result.QUERY, queryPacket.parse(packet, packet.length));
+            UdpPacket udpPacket = checkIpV4Response(queryPacket.createResponse(redirectedTemplate));
+            Message response = new Message(udpPacket.getPayload().getRawData());
+            assertEquals(query.getQuestion(), response.getQuestion());
+            assertEquals(1232, response.getOPT().getPayloadSize());
+        }
+    }
+
+    @Test
+    public void testCachedResponse() throws Exception {
+        Message query = newQuery("Ads.Example.COM.", Type.A);
+        byte[] packet = newIpV4Packet(query.toWire(), 17);
+        DnsQueryPacket queryPacket = new DnsQueryPacket();
+        assertEquals(DnsQueryPacket.Result.QUERY, queryPacket.parse(packet, packet.length));
+        assertEquals(Type.A, queryPacket.getQueryType());
+        assertEquals(DClass.IN, queryPacket.getQueryClass());
+        // Create the cached response of another query, with another ID and name case
+        Message cachedResponse = newQuery("ads.example.com.", Type.A);
+        cachedResponse.getHeader().setID(query.getHeader().getID() ^ 0xFF);
+        cachedResponse.getHeader().setFlag(Flags.QR);
+        InetAddress address = InetAddress.getByName("192.168.1.1");
+        cachedResponse.addRecord(new ARecord(new Name("ads.example.com."), DClass.IN, 60, address), Section.ANSWER);
+        byte[] responsePacket = queryPacket.createCachedResponse(cachedResponse.toWire());
+
+        UdpPacket udpPacket = checkIpV4Response(responsePacket);
+        Message response = new Message(udpPacket.getPayload().getRawData());
+        assertEquals(query.getHeader().getID(), response.getHeader().getID());
+        assertEquals("Ads.Example.COM.", response.getQuestion().getName().toString());
+        assertEquals(cachedResponse.getSection(Section.ANSWER), response.getSection(Section.ANSWER));
+    }
+
+    @Test
+    public void testCachedResponseFitted() throws Exception {
+        // Create a cached response larger than the default UDP payload size
+        Message cachedResponse = newQuery("ads.example.com.", Type.A);
+        cachedResponse.getHeader().setFlag(Flags.QR);
+        for (int i = 0; i < 40; i++) {
+            InetAddress address = InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) i});
+            cachedResponse.addRecord(new ARecord(new Name("ads.example.com."), DClass.IN, 60, address), Section.ANSWER);
+        }
+        byte[] cachedPayload = cachedResponse.toWire();
+        assertTrue(cachedPayload.length > 512);
+        // Check the response is truncated to its question for a query without EDNS
+        Message query = newQuery("ads.example.com.", Type.A);
+        byte[] packet = newIpV4Packet(query.toWire(), 17);
+        DnsQueryPacket queryPacket = new DnsQueryPacket();
+        assertEquals(DnsQueryPacket.Result.QUERY, queryPacket.parse(packet, packet.length));
+        UdpPacket udpPacket = checkIpV4Response(queryPacket.createCachedResponse(cachedPayload));
+        Message response = new Message(udpPacket.getPayload().getRawData());
+        assertTrue(response.getHeader().getFlag(Flags.TC));
+        assertEquals(query.getQuestion(), response.getQuestion());
+        assertTrue(response.getSection(Section.ANSWER).isEmpty());
+        // Check the response is kept whole for a query advertising a large enough payload size
+        query.addRecord(new OPTRecord(1232, 0, 0), Section.ADDITIONAL);
+        packet = newIpV4Packet(query.toWire(), 17);
+        assertEquals(DnsQueryPacket.Result.QUERY, queryPacket.parse(packet, packet.length));
+        udpPacket = checkIpV4Response(queryPacket.createCachedResponse(cachedPayload));
+        response = new Message(udpPacket.getPayload().getRawData());
+        assertFalse(response.getHeader().getFlag(Flags.TC));
+        assertEquals(40, response.getSection(Section.ANSWER).size());
+    }
+
+    private static Message newQuery(String name, int type) throws Exception {
+        return Message.newQuery(Record.newRecord(Name.fromString(name), type, DClass.IN));
+    }
+
+    private static byte[] newIpV4Packet(byte[] payload, int protocol) {
+        byte[] packet = new byte[28 + payload.length];
+        packet[0] = 0x45;
+        writeShort(packet, 2, packet.length);
+        writeShort(packet, 4, 1234);
+        packet[8] = 64;
+        packet[9] = (byte) protocol;
+        System.arraycopy(CLIENT_IPV4, 0, packet, 12, 4);
+        System.arraycopy(SERVER_IPV4, 0, packet, 16, 4);
+        writeShort(packet, 10, UdpResponseBuilder.finish(UdpResponseBuilder.sum(0, packet, 0, 20)));
+        writeUdpHeader(packet, 20, payload);
+        return packet;
+    }
+
+    private static byte[] newIpV6Packet(byte[] payload) {
+        byte[] packet = new byte[48 + payload.length];
+        packet[0] = 0x60;
+        writeShort(packet, 4, 8 + payload.length);
+        packet[6] = 17;
+        packet[7] = 64;
+        System.arraycopy(CLIENT_IPV6, 0, packet, 8, 16);
+        System.arraycopy(SERVER_IPV6, 0, packet, 24, 16);
+        writeUdpHeader(packet, 40, payload);
+        return packet;
+    }
+
+    private static void writeUdpHeader(byte[] packet, int offset, byte[] payload) {
+        writeShort(packet, offset, CLIENT_PORT);
+        writeShort(packet, offset + 2, 53);
+        writeShort(packet, offset + 4, 8 + payload.length);
+        System.arraycopy(payload, 0, packet, offset + 8, payload.length);
+    }
+
+    private static UdpPacket checkIpV4Response(byte[] responsePacket) throws Exception {
+        IpV4Packet ipPacket = IpV4Packet.newPacket(responsePacket, 0, responsePacket.length);
+        assertTrue(ipPacket.getHeader().hasValidChecksum(false));
+        assertEquals(responsePacket.length, ipPacket.getHeader().getTotalLengthAsInt());
+        assertArrayEquals(SERVER_IPV4, ipPacket.getHeader().getSrcAddr().getAddress());
+        assertArrayEquals(CLIENT_IPV4, ipPacket.getHeader().getDstAddr().getAddress());
+        UdpPacket udpPacket = (UdpPacket) ipPacket.getPayload();
+        assertEquals(53, udpPacket.getHeader().getSrcPort().valueAsInt());
+        assertEquals(CLIENT_PORT, udpPacket.getHeader().getDstPort().valueAsInt());
+        assertTrue(udpPacket.hasValidChecksum(ipPacket.getHeader().getSrcAddr(), ipPacket.getHeader().getDstAddr(), false));
+        return udpPacket;
+    }
+
+    private static void writeShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+}
@@ -0,0 +1,92 @@
+package org.adaway.vpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the DNS over HTTPS transport against a local stand-in web server.
+ */
+public class HttpsUpstreamTransportTest {
+    private MockWebServer webServer;
+    private BlockingQueue<byte[][]> responses;
+    private UpstreamSelector selector;
+    private HttpsUpstreamTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        this.webServer = new MockWebServer();
+        this.webServer.start();
+        this.responses = new LinkedBlockingQueue<>();
+        this.selector = new UpstreamSelector();
+        this.transport = new HttpsUpstreamTransport(this.selector, new OkHttpClient(),
+                this.webServer.url("/dns-query"),
+                (requestHeaders, response, length) -> this.responses.add(
+                        new byte[][]{requestHeaders, Arrays.copyOf(response, length)}));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.transport.close();
+        this.webServer.shutdown();
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        byte[] answer = newMessage(0, 0x8180);
+        this.webServer.enqueue(new MockResponse()
+                .setHeader("Content-Type", "application/dns-message")
+                .setBody(new Buffer().write(answer)));
+        // Send query to the unresolved server address, as registered for DNS over HTTPS servers
+        InetSocketAddress server = HttpsUpstreamTransport.getServerAddress("dns.example.com");
+        byte[] requestHeaders = new byte[28];
+        byte[] query = newMessage(0x1234, 0x0100);
+        this.transport.send(server, new UpstreamQuery(requestHeaders, new DatagramPacket(query, query.length)));
+        // Check the query was posted with a zero transaction ID
+        RecordedRequest request = this.webServer.takeRequest(5, SECONDS);
+        assertNotNull(request);
+        assertEquals("POST", request.getMethod());
+        assertEquals("application/dns-message", request.getHeader("Content-Type"));
+        assertArrayEquals(newMessage(0, 0x0100), request.getBody().readByteArray());
+        // Check the answer comes back to the client with its transaction ID
+        byte[][] response = this.responses.poll(5, SECONDS);
+        assertNotNull(response);
+        assertSame(requestHeaders, response[0]);
+        assertArrayEquals(newMessage(0x1234, 0x8180), response[1]);
+        assertTrue(this.selector.getHealth(server).getAverageTime() > 0);
+    }
+
+    /**
+     * Create a DNS message for {@code example.com} type A.
+     *
+     * @param id    The transaction ID.
+     * @param flags The header flags.
+     * @return The DNS message.
+     */
+    private static byte[] newMessage(int id, int flags) {
+        return new byte[]{
+                (byte) (id >> 8), (byte) id, (byte) (flags >> 8), (byte) flags, 0, 1, 0, 0, 0, 0, 0, 0,
+                7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0, 0, 1, 0, 1
+        };
+    }
+}
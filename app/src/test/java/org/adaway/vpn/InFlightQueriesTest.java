@@ -0,0 +1,186 @@
+package org.adaway.vpn;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InFlightQueriesTest {
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final long HEDGE_DELAY = 500;
+
+    private long now = 1_000_000;
+
+    @Test
+    public void testCoalescing() {
+        InFlightQueries inFlightQueries = new InFlightQueries(() -> this.now);
+        DnsQueryPacket queryPacket = new DnsQueryPacket();
+        byte[] leaderHeaders = addQuery(inFlightQueries, queryPacket, 1000, 0x1111, "cdn.example.com", TYPE_A, true);
+        addQuery(inFlightQueries, queryPacket, 2000, 0x2222, "CDN.example.com", TYPE_A, false);
+        addQuery(inFlightQueries, queryPacket, 3000, 0x3333, "cdn.example.com", TYPE_A, false);
+        // Check other type is not coalesced
+        addQuery(inFlightQueries, queryPacket, 4000, 0x4444, "cdn.example.com", TYPE_AAAA, true);
+        assertEquals(2, inFlightQueries.getFlightCount());
+
+        byte[] response = newQuery(0x9999, "cdn.example.com", TYPE_A);
+        response[2] |= 0x80;
+        List<byte[]> packets = inFlightQueries.complete(leaderHeaders, response, response.length);
+        assertEquals(2, packets.size());
+        checkResponse(packets.get(0), 2000, 0x2222, "CDN.example.com", response);
+        checkResponse(packets.get(1), 3000, 0x3333, "cdn.example.com", response);
+        assertEquals(1, inFlightQueries.getFlightCount());
+        // Check flight is completed only once
+        assertTrue(inFlightQueries.complete(leaderHeaders, response, response.length).isEmpty());
+        // Check a new query starts a new flight
+        addQuery(inFlightQueries, queryPacket, 5000, 0x5555, "cdn.example.com", TYPE_A, true);
+    }
+
+    @Test
+    public void testExpiredFlight() {
+        InFlightQueries inFlightQueries = new InFlightQueries(() -> this.now);
+        DnsQueryPacket queryPacket = new DnsQueryPacket();
+        byte[] leaderHeaders = addQuery(inFlightQueries, queryPacket, 1000, 0x1111, "cdn.example.com", TYPE_A, true);
+        this.now += 2_000;
+        byte[] newLeaderHeaders = addQuery(inFlightQueries, queryPacket, 2000, 0x2222, "cdn.example.com", TYPE_A, true);
+        addQuery(inFlightQueries, queryPacket, 3000, 0x3333, "cdn.example.com", TYPE_A, false);
+        // Check late response of the expired flight is only sent to its query
+        byte[] response = newQuery(0x9999, "cdn.example.com", TYPE_A);
+        assertTrue(inFlightQueries.complete(leaderHeaders, response, response.length).isEmpty());
+        assertEquals(1, inFlightQueries.complete(newLeaderHeaders, response, response.length).size());
+    }
+
+    @Test
+    public void testLossyUpstream() {
+        InFlightQueries inFlightQueries = new InFlightQueries(() -> this.now);
+        DnsQueryPacket queryPacket = new DnsQueryPacket();
+        // Forward a query which is lost upstream
+        byte[] lostHeaders = addQuery(inFlightQueries, queryPacket, 1000, 0x1111, "cdn.example.com", TYPE_A,
+                HEDGE_DELAY, true);
+        this.now += HEDGE_DELAY / 2;
+        addQuery(inFlightQueries, queryPacket, 2000, 0x2222, "cdn.example.com", TYPE_A, HEDGE_DELAY, false);
+        // Check an identical query is forwarded again once the flight waited for longer than the hedge delay
+        this.now += HEDGE_DELAY;
+        byte[] reforwardedHeaders = addQuery(inFlightQueries, queryPacket, 3000, 0x3333, "cdn.example.com", TYPE_A,
+                HEDGE_DELAY, true);
+        addQuery(inFlightQueries, queryPacket, 4000, 0x4444, "cdn.example.com", TYPE_A, HEDGE_DELAY, false);
+        assertEquals(1, inFlightQueries.getFlightCount());
+        // Check the response of the query forwarded again completes the flight
+        byte[] response = newQuery(0x9999, "cdn.example.com", TYPE_A);
+        response[2] |= 0x80;
+        List<byte[]> packets = inFlightQueries.complete(reforwardedHeaders, response, response.length);
+        assertEquals(2, packets.size());
+        checkResponse(packets.get(0), 2000, 0x2222, "cdn.example.com", response);
+        checkResponse(packets.get(1), 4000, 0x4444, "cdn.example.com", response);
+        assertEquals(0, inFlightQueries.getFlightCount());
+        assertTrue(inFlightQueries.complete(lostHeaders, response, response.length).isEmpty());
+    }
+
+    @Test
+    public void testRetransmittedQuery() {
+        InFlightQueries inFlightQueries = new InFlightQueries(() -> this.now);
+        DnsQueryPacket queryPacket = new DnsQueryPacket();
+        byte[] leaderHeaders = addQuery(inFlightQueries, queryPacket, 1000, 0x1111, "cdn.example.com", TYPE_A,
+                HEDGE_DELAY, true);
+        addQuery(inFlightQueries, queryPacket, 2000, 0x2222, "cdn.example.com", TYPE_A, HEDGE_DELAY, false);
+        this.now += 10;
+        // Check client retransmissions are forwarded again before the hedge delay
+        byte[] retransmittedHeaders = addQuery(inFlightQueries, queryPacket, 1000, 0x1111, "cdn.example.com",
+                TYPE_A, HEDGE_DELAY, true);
+        addQuery(inFlightQueries, queryPacket, 2000, 0x2222, "cdn.example.com", TYPE_A, HEDGE_DELAY, true);
+        // Check other clients still wait, as well as the same client with another transaction ID
+        addQuery(inFlightQueries, queryPacket, 3000, 0x2222, "cdn.example.com", TYPE_A, HEDGE_DELAY, false);
+        addQuery(inFlightQueries, queryPacket, 2000, 0x5555, "cdn.example.com", TYPE_A, HEDGE_DELAY, false);
+        // Check the retransmitted query response completes the flight without the retransmitting client
+        byte[] response = newQuery(0x9999, "cdn.example.com", TYPE_A);
+        response[2] |= 0x80;
+        List<byte[]> packets = inFlightQueries.complete(retransmittedHeaders, response, response.length);
+        assertEquals(2, packets.size());
+        checkResponse(packets.get(0), 3000, 0x2222, "cdn.example.com", response);
+        checkResponse(packets.get(1), 2000, 0x5555, "cdn.example.com", response);
+        assertTrue(inFlightQueries.complete(leaderHeaders, response, response.length).isEmpty());
+    }
+
+    private byte[] addQuery(InFlightQueries inFlightQueries, DnsQueryPacket queryPacket,
+                            int port, int id, String name, int type, boolean forwarded) {
+        byte[] packet = newPacket(port, newQuery(id, name, type));
+        assertEquals(DnsQueryPacket.Result.QUERY, queryPacket.parse(packet, packet.length));
+        byte[] requestHeaders = queryPacket.copyHeaders();
+        assertEquals(forwarded, inFlightQueries.add(queryPacket, requestHeaders));
+        return requestHeaders;
+    }
+
+    private byte[] addQuery(InFlightQueries inFlightQueries, DnsQueryPacket queryPacket,
+                            int port, int id, String name, int type, long reforwardDelay, boolean forwarded) {
+        byte[] packet = newPacket(port, newQuery(id, name, type));
+        assertEquals(DnsQueryPacket.Result.QUERY, queryPacket.parse(packet, packet.length));
+        byte[] requestHeaders = queryPacket.copyHeaders();
+        assertEquals(forwarded, inFlightQueries.add(queryPacket, requestHeaders, reforwardDelay));
+        return requestHeaders;
+    }
+
+    private static void checkResponse(byte[] packet, int port, int id, String name, byte[] response) {
+        // Check addresses and ports are swapped
+        assertEquals(2, packet[15]);
+        assertEquals(1, packet[19]);
+        assertEquals(53, readShort(packet, 20));
+        assertEquals(port, readShort(packet, 22));
+        assertEquals(0xFFFF, UdpResponseBuilder.sum(0, packet, 0, 20));
+        // Check payload has query ID and question
+        byte[] payload = Arrays.copyOfRange(packet, 28, packet.length);
+        byte[] query = newQuery(id, name, TYPE_A);
+        assertArrayEquals(Arrays.copyOf(query, 2), Arrays.copyOf(payload, 2));
+        assertArrayEquals(Arrays.copyOfRange(query, 12, query.length), Arrays.copyOfRange(payload, 12, payload.length));
+        assertArrayEquals(Arrays.copyOfRange(response, 2, 12), Arrays.copyOfRange(payload, 2, 12));
+    }
+
+    private static byte[] newQuery(int id, String name, int type) {
+        byte[] query = new byte[12 + name.length() + 2 + 4];
+        writeShort(query, 0, id);
+        query[2] = 0x01;
+        query[5] = 1;
+        int offset = 12;
+        for (String label : name.split("\\.")) {
+            query[offset++] = (byte) label.length();
+            for (char c : label.toCharArray()) {
+                query[offset++] = (byte) c;
+            }
+        }
+        query[offset++] = 0;
+        writeShort(query, offset, type);
+        writeShort(query, offset + 2, 1);
+        return query;
+    }
+
+    private static byte[] newPacket(int port, byte[] payload) {
+        byte[] packet = new byte[28 + payload.length];
+        packet[0] = 0x45;
+        writeShort(packet, 2, packet.length);
+        packet[8] = 64;
+        packet[9] = 17;
+        packet[12] = 10;
+        packet[15] = 1;
+        packet[16] = 10;
+        packet[19] = 2;
+        writeShort(packet, 10, UdpResponseBuilder.finish(UdpResponseBuilder.sum(0, packet, 0, 20)));
+        writeShort(packet, 20, port);
+        writeShort(packet, 22, 53);
+        writeShort(packet, 24, 8 + payload.length);
+        System.arraycopy(payload, 0, packet, 28, payload.length);
+        return packet;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF;
+    }
+
+    private static void writeShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+}
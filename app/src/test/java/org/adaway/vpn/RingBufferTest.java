@@ -0,0 +1,80 @@
+package org.adaway.vpn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTest {
+    private static final int PRODUCER_COUNT = 4;
+    private static final int ELEMENT_COUNT = 100_000;
+
+    @Test
+    public void testOfferAndPoll() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(3);
+        assertNull(ringBuffer.poll());
+        // Capacity is rounded up to four
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ringBuffer.offer(i));
+        }
+        assertFalse(ringBuffer.offer(4));
+        assertEquals(Integer.valueOf(0), ringBuffer.poll());
+        assertTrue(ringBuffer.offer(4));
+        for (int i = 1; i < 5; i++) {
+            assertEquals(Integer.valueOf(i), ringBuffer.poll());
+        }
+        assertNull(ringBuffer.poll());
+    }
+
+    @Test
+    public void testDropOldest() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0, ringBuffer.offerDroppingOldest(i));
+        }
+        assertEquals(1, ringBuffer.offerDroppingOldest(4));
+        assertEquals(1, ringBuffer.offerDroppingOldest(5));
+        for (int i = 2; i < 6; i++) {
+            assertEquals(Integer.valueOf(i), ringBuffer.poll());
+        }
+        assertNull(ringBuffer.poll());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(64);
+        List<Thread> producers = new ArrayList<>();
+        for (int producer = 0; producer < PRODUCER_COUNT; producer++) {
+            int first = producer * ELEMENT_COUNT;
+            Thread thread = new Thread(() -> {
+                for (int i = first; i < first + ELEMENT_COUNT; i++) {
+                    while (!ringBuffer.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            producers.add(thread);
+            thread.start();
+        }
+        // Check each producer elements are taken in order and none is lost
+        int[] nextElements = new int[PRODUCER_COUNT];
+        for (int producer = 0; producer < PRODUCER_COUNT; producer++) {
+            nextElements[producer] = producer * ELEMENT_COUNT;
+        }
+        for (int i = 0; i < PRODUCER_COUNT * ELEMENT_COUNT; i++) {
+            int element = ringBuffer.take();
+            int producer = element / ELEMENT_COUNT;
+            assertEquals(nextElements[producer], element);
+            nextElements[producer]++;
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertNull(ringBuffer.poll());
+    }
+}
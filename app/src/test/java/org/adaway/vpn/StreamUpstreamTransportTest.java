@@ -0,0 +1,234 @@
+package org.adaway.vpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.SocketFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the pipelined stream transport against a local stand-in resolver answering out of order.
+ */
+public class StreamUpstreamTransportTest {
+    private static final int BATCH_SIZE = 3;
+
+    private ServerSocket serverSocket;
+    private AtomicInteger connectionCount;
+    /**
+     * The number of first connections closed by the stand-in resolver after a few answers.
+     */
+    private volatile int closingConnectionCount;
+    /**
+     * The number of answers of the closing connections.
+     */
+    private volatile int closingAnswerCount;
+    private BlockingQueue<Response> responses;
+    private UpstreamSelector selector;
+    private StreamUpstreamTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.connectionCount = new AtomicInteger();
+        new Thread(this::serve).start();
+        this.responses = new LinkedBlockingQueue<>();
+        this.selector = new UpstreamSelector();
+        this.transport = new StreamUpstreamTransport(this.selector, SocketFactory.getDefault(), null, null,
+                // Copy the response as its buffer is reused
+                (requestHeaders, response, length) -> this.responses.add(
+                        new Response(requestHeaders, Arrays.copyOf(response, length), length)));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.transport.close();
+        this.serverSocket.close();
+    }
+
+    @Test
+    public void testPipelinedQueries() throws Exception {
+        InetSocketAddress server = (InetSocketAddress) this.serverSocket.getLocalSocketAddress();
+        for (int round = 0; round < 2; round++) {
+            // Send queries with the same transaction ID, which are answered in reverse order
+            List<byte[]> requestHeaders = new ArrayList<>();
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                byte[] headers = new byte[28];
+                requestHeaders.add(headers);
+                this.transport.send(server, newQuery(headers, 0x1234, i));
+            }
+            Collections.reverse(requestHeaders);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                Response response = this.responses.poll(5, SECONDS);
+                assertNotNull(response);
+                assertSame(requestHeaders.get(i), response.requestHeaders);
+                assertEquals(13, response.length);
+                assertEquals(0x12, response.payload[0]);
+                assertEquals(0x34, response.payload[1]);
+                assertEquals(BATCH_SIZE - 1 - i, response.payload[12]);
+            }
+        }
+        // Check the connection was reused and response times recorded
+        assertEquals(1, this.connectionCount.get());
+        assertTrue(this.selector.getHealth(server).getAverageTime() > 0);
+    }
+
+    @Test
+    public void testAnsweredQuery() throws Exception {
+        InetSocketAddress server = (InetSocketAddress) this.serverSocket.getLocalSocketAddress();
+        byte[] headers = new byte[28];
+        UpstreamQuery query = newQuery(headers, 0x1234, 0);
+        // Check the response to an already answered hedged query is dropped
+        assertTrue(query.answer());
+        for (int i = 0; i < BATCH_SIZE - 1; i++) {
+            this.transport.send(server, query);
+        }
+        this.transport.send(server, newQuery(headers, 0x5678, 1));
+        Response response = this.responses.poll(5, SECONDS);
+        assertNotNull(response);
+        assertArrayEquals(new byte[]{0x56, 0x78}, new byte[]{response.payload[0], response.payload[1]});
+        assertNull(this.responses.poll(100, MILLISECONDS));
+    }
+
+    @Test
+    public void testResendOnClose() throws Exception {
+        InetSocketAddress server = (InetSocketAddress) this.serverSocket.getLocalSocketAddress();
+        // Close the first connection after answering a query, leaving a batch of queries pending
+        this.closingConnectionCount = 1;
+        this.closingAnswerCount = 1;
+        Set<Integer> values = new HashSet<>();
+        for (int i = 0; i <= BATCH_SIZE; i++) {
+            this.transport.send(server, newQuery(new byte[28], 0x1234, i));
+            values.add(i);
+        }
+        // Check the pending queries are answered with a new connection
+        for (int i = 0; i <= BATCH_SIZE; i++) {
+            Response response = this.responses.poll(5, SECONDS);
+            assertNotNull(response);
+            assertTrue(values.remove((int) response.payload[12]));
+        }
+        assertEquals(2, this.connectionCount.get());
+        assertNull(this.responses.poll(100, MILLISECONDS));
+    }
+
+    @Test
+    public void testResendOnlyOnce() throws Exception {
+        InetSocketAddress server = (InetSocketAddress) this.serverSocket.getLocalSocketAddress();
+        // Close every connection without answer
+        this.closingConnectionCount = Integer.MAX_VALUE;
+        this.closingAnswerCount = 0;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            this.transport.send(server, newQuery(new byte[28], 0x1234, i));
+        }
+        // Check the pending queries are sent again once then dropped, failing the server
+        assertNull(this.responses.poll(500, MILLISECONDS));
+        assertEquals(2, this.connectionCount.get());
+        assertTrue(this.selector.getHealth(server).getFailureCount() > 0);
+    }
+
+    private static UpstreamQuery newQuery(byte[] requestHeaders, int id, int value) {
+        byte[] payload = new byte[13];
+        payload[0] = (byte) (id >> 8);
+        payload[1] = (byte) id;
+        payload[12] = (byte) value;
+        return new UpstreamQuery(requestHeaders, new DatagramPacket(payload, payload.length));
+    }
+
+    private void serve() {
+        try {
+            while (true) {
+                Socket socket = this.serverSocket.accept();
+                if (this.connectionCount.incrementAndGet() <= this.closingConnectionCount) {
+                    new Thread(() -> answerThenClose(socket)).start();
+                } else {
+                    new Thread(() -> answer(socket)).start();
+                }
+            }
+        } catch (IOException ignored) {
+            // Server socket closed
+        }
+    }
+
+    private void answer(Socket socket) {
+        try (Socket connection = socket) {
+            DataInputStream input = new DataInputStream(connection.getInputStream());
+            DataOutputStream output = new DataOutputStream(connection.getOutputStream());
+            while (true) {
+                // Read a batch of queries and answer them in reverse order
+                List<byte[]> queries = new ArrayList<>();
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    byte[] query = new byte[input.readUnsignedShort()];
+                    input.readFully(query);
+                    queries.add(query);
+                }
+                Collections.reverse(queries);
+                for (byte[] query : queries) {
+                    query[2] |= 0x80;
+                    output.writeShort(query.length);
+                    output.write(query);
+                }
+                output.flush();
+            }
+        } catch (IOException ignored) {
+            // Connection closed
+        }
+    }
+
+    private void answerThenClose(Socket socket) {
+        try (Socket connection = socket) {
+            DataInputStream input = new DataInputStream(connection.getInputStream());
+            DataOutputStream output = new DataOutputStream(connection.getOutputStream());
+            // Read the answered queries and a batch of queries, then close without answering the batch
+            for (int i = 0; i < this.closingAnswerCount + BATCH_SIZE; i++) {
+                byte[] query = new byte[input.readUnsignedShort()];
+                input.readFully(query);
+                if (i < this.closingAnswerCount) {
+                    query[2] |= 0x80;
+                    output.writeShort(query.length);
+                    output.write(query);
+                    output.flush();
+                }
+            }
+        } catch (IOException ignored) {
+            // Connection closed
+        }
+    }
+
+    private static class Response {
+        private final byte[] requestHeaders;
+        private final byte[] payload;
+        private final int length;
+
+        private Response(byte[] requestHeaders, byte[] payload, int length) {
+            this.requestHeaders = requestHeaders;
+            this.payload = payload;
+            this.length = length;
+        }
+    }
+}
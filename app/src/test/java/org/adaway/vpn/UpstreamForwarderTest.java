@@ -0,0 +1,248 @@
+package org.adaway.vpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * This class tests the upstream forwarder against local stand-in resolvers with configurable delay and loss.
+ */
+public class UpstreamForwarderTest {
+    private final List<Closeable> closeables = new ArrayList<>();
+    private ScheduledExecutorService scheduler;
+    private UpstreamSelector selector;
+    private SocketTransport transport;
+    private UpstreamForwarder forwarder;
+
+    @Before
+    public void setUp() throws IOException {
+        this.scheduler = Executors.newScheduledThreadPool(2);
+        this.selector = new UpstreamSelector();
+        this.transport = new SocketTransport(this.selector);
+        this.closeables.add(this.transport);
+        this.forwarder = new UpstreamForwarder(this.selector, this.transport, this.scheduler);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Closeable closeable : this.closeables) {
+            closeable.close();
+        }
+        this.scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testFastestResolverSelected() throws Exception {
+        InetSocketAddress slow = startResolver(150, 0);
+        InetSocketAddress fast = startResolver(5, 0);
+        this.selector.setServers(Arrays.asList(slow, fast));
+        // Let each resolver be tried then check the fastest one is selected
+        int fastCount = 0;
+        for (int i = 0; i < 20; i++) {
+            if (fast.equals(query(i, slow))) {
+                fastCount++;
+            }
+        }
+        assertTrue(fastCount >= 18);
+        assertTrue(this.selector.getHealth(fast).getAverageTime() < this.selector.getHealth(slow).getAverageTime());
+    }
+
+    @Test
+    public void testHedgedRequest() throws Exception {
+        InetSocketAddress lossy = startResolver(0, 1);
+        InetSocketAddress backup = startResolver(10, 0);
+        this.selector.setServers(Arrays.asList(lossy, backup));
+        // Check the lost query is hedged to the backup resolver
+        long start = System.nanoTime();
+        assertEquals(backup, query(1, lossy));
+        long time = System.nanoTime() - start;
+        assertTrue(time >= MILLISECONDS.toNanos(500));
+        // Check the backup resolver is now selected first
+        start = System.nanoTime();
+        assertEquals(backup, query(2, lossy));
+        time = System.nanoTime() - start;
+        assertTrue(time < MILLISECONDS.toNanos(400));
+    }
+
+    @Test
+    public void testUnknownServerNotSelected() throws Exception {
+        InetSocketAddress configured = startResolver(0, 0);
+        InetSocketAddress other = startResolver(0, 0);
+        this.selector.setServers(Arrays.asList(configured));
+        assertEquals(other, query(1, other));
+    }
+
+    @Test
+    public void testAnsweredQueryTasksCancelled() throws Exception {
+        InetSocketAddress resolver = startResolver(0, 0);
+        this.selector.setServers(Arrays.asList(resolver));
+        ScheduledThreadPoolExecutor forwarderScheduler = new ScheduledThreadPoolExecutor(1);
+        forwarderScheduler.setRemoveOnCancelPolicy(true);
+        try {
+            this.forwarder = new UpstreamForwarder(this.selector, this.transport, query -> fail(), forwarderScheduler);
+            // Check the hedge and timeout of answered queries are removed from the scheduler
+            for (int i = 0; i < 10; i++) {
+                assertEquals(resolver, query(i, resolver));
+            }
+            assertTrue(forwarderScheduler.getQueue().isEmpty());
+            assertEquals(0, forwarderScheduler.getCompletedTaskCount());
+        } finally {
+            forwarderScheduler.shutdownNow();
+        }
+    }
+
+    private InetSocketAddress query(int id, InetSocketAddress target) throws Exception {
+        byte[] payload = {(byte) (id >> 8), (byte) id, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        UpstreamQuery query = new UpstreamQuery(new byte[0], new DatagramPacket(payload, payload.length));
+        this.forwarder.forward(query, target);
+        InetSocketAddress server = this.transport.answers.poll(3, SECONDS);
+        assertNotNull(server);
+        return server;
+    }
+
+    private InetSocketAddress startResolver(int delay, double loss) throws SocketException {
+        StandInResolver resolver = new StandInResolver(delay, loss, this.scheduler);
+        this.closeables.add(resolver);
+        return resolver.getAddress();
+    }
+
+    /**
+     * A local resolver answering each query with its header, after a delay and with a probability of loss.
+     */
+    private static class StandInResolver implements Closeable {
+        private final DatagramSocket socket;
+        private final Thread thread;
+
+        StandInResolver(int delay, double loss, ScheduledExecutorService scheduler) throws SocketException {
+            this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            Random random = new Random();
+            this.thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+                        this.socket.receive(packet);
+                        if (random.nextDouble() < loss) {
+                            continue;
+                        }
+                        byte[] response = Arrays.copyOf(packet.getData(), packet.getLength());
+                        response[2] |= 0x80;
+                        DatagramPacket responsePacket = new DatagramPacket(response, response.length, packet.getSocketAddress());
+                        scheduler.schedule(() -> {
+                            try {
+                                this.socket.send(responsePacket);
+                            } catch (IOException ignored) {
+                                // Socket closed
+                            }
+                        }, delay, MILLISECONDS);
+                    }
+                } catch (IOException ignored) {
+                    // Socket closed
+                }
+            });
+            this.thread.start();
+        }
+
+        InetSocketAddress getAddress() {
+            return (InetSocketAddress) this.socket.getLocalSocketAddress();
+        }
+
+        @Override
+        public void close() {
+            this.socket.close();
+        }
+    }
+
+    /**
+     * A transport sending queries from a single socket, recording the response times as the upstream channels do.
+     */
+    private static class SocketTransport implements UpstreamForwarder.Transport, Closeable {
+        private final UpstreamSelector selector;
+        private final DatagramSocket socket;
+        private final AtomicInteger nextId;
+        private final Map<Integer, PendingQuery> pendingQueries;
+        private final BlockingQueue<InetSocketAddress> answers;
+
+        SocketTransport(UpstreamSelector selector) throws SocketException {
+            this.selector = selector;
+            this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            this.nextId = new AtomicInteger();
+            this.pendingQueries = new ConcurrentHashMap<>();
+            this.answers = new LinkedBlockingQueue<>();
+            new Thread(this::receive).start();
+        }
+
+        @Override
+        public void send(InetSocketAddress server, UpstreamQuery query) throws IOException {
+            DatagramPacket packet = query.createPacket(server);
+            int id = this.nextId.incrementAndGet() & 0xFFFF;
+            packet.getData()[0] = (byte) (id >> 8);
+            packet.getData()[1] = (byte) id;
+            this.pendingQueries.put(id, new PendingQuery(query, server, this.selector.now()));
+            this.socket.send(packet);
+        }
+
+        private void receive() {
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+                    this.socket.receive(packet);
+                    int id = (packet.getData()[0] & 0xFF) << 8 | packet.getData()[1] & 0xFF;
+                    PendingQuery pendingQuery = this.pendingQueries.remove(id);
+                    if (pendingQuery == null) {
+                        continue;
+                    }
+                    this.selector.getHealth(pendingQuery.server).recordResponse(this.selector.now() - pendingQuery.time);
+                    if (pendingQuery.query.answer()) {
+                        this.answers.add(pendingQuery.server);
+                    }
+                }
+            } catch (IOException ignored) {
+                // Socket closed
+            }
+        }
+
+        @Override
+        public void close() {
+            this.socket.close();
+        }
+    }
+
+    private static class PendingQuery {
+        private final UpstreamQuery query;
+        private final InetSocketAddress server;
+        private final long time;
+
+        private PendingQuery(UpstreamQuery query, InetSocketAddress server, long time) {
+            this.query = query;
+            this.server = server;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.adaway.vpn;
+
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UpstreamHealthTest {
+    @Test
+    public void testHedgeDelay() {
+        UpstreamHealth health = new UpstreamHealth();
+        assertEquals(0, health.getAverageTime());
+        assertEquals(MILLISECONDS.toNanos(500), health.getHedgeDelay());
+        // Check 90th percentile of the 64 last response times, from 37 to 100 ms
+        for (int i = 1; i <= 100; i++) {
+            health.recordResponse(MILLISECONDS.toNanos(i));
+        }
+        assertEquals(MILLISECONDS.toNanos(94), health.getHedgeDelay());
+        assertTrue(health.getAverageTime() > MILLISECONDS.toNanos(90));
+        // Check hedge delay bounds
+        health = new UpstreamHealth();
+        health.recordResponse(MILLISECONDS.toNanos(1));
+        assertEquals(MILLISECONDS.toNanos(10), health.getHedgeDelay());
+        health.recordDelay(SECONDS.toNanos(10));
+        assertEquals(SECONDS.toNanos(2), health.getHedgeDelay());
+    }
+
+    @Test
+    public void testBackOff() {
+        UpstreamHealth health = new UpstreamHealth();
+        long now = SECONDS.toNanos(100);
+        health.recordFailure(now);
+        health.recordFailure(now);
+        assertTrue(health.isAvailable(now));
+        health.recordFailure(now);
+        assertFalse(health.isAvailable(now));
+        assertTrue(health.isAvailable(now + SECONDS.toNanos(1)));
+        // Check back off doubles on each failure
+        health.recordFailure(now);
+        assertFalse(health.isAvailable(now + SECONDS.toNanos(1)));
+        assertTrue(health.isAvailable(now + SECONDS.toNanos(2)));
+        // Check response resets failures
+        health.recordResponse(MILLISECONDS.toNanos(20));
+        assertEquals(0, health.getFailureCount());
+        assertTrue(health.isAvailable(now));
+    }
+}
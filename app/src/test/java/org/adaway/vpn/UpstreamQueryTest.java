@@ -0,0 +1,125 @@
+package org.adaway.vpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UpstreamQueryTest {
+    private static final InetSocketAddress SERVER = new InetSocketAddress("127.0.0.1", 53);
+
+    @Test
+    public void testUdpPayloadSize() {
+        // Check the default payload size without EDNS
+        UpstreamQuery query = newQuery(newMessage(0, 0, -1));
+        assertEquals(512, query.getMaxResponseSize());
+        // Check the advertised payload size is kept
+        query = newQuery(newMessage(0, 0, 1232));
+        assertEquals(1232, query.getMaxResponseSize());
+        assertEquals(1232, readOptClass(query.createPacket(SERVER).getData()));
+        // Check a larger payload size is limited to the receive buffer size
+        query = newQuery(newMessage(0, 0, 65000));
+        assertEquals(UpstreamQuery.MAX_UDP_PAYLOAD_SIZE, query.getMaxResponseSize());
+        assertEquals(UpstreamQuery.MAX_UDP_PAYLOAD_SIZE, readOptClass(query.createPacket(SERVER).getData()));
+        // Check a smaller payload size is raised to the default one
+        query = newQuery(newMessage(0, 0, 100));
+        assertEquals(512, query.getMaxResponseSize());
+    }
+
+    @Test
+    public void testFitResponse() {
+        UpstreamQuery query = newQuery(newMessage(0, 0, -1));
+        // Check a response fitting the payload size is kept
+        byte[] response = newMessage(10, 0, -1);
+        assertEquals(response.length, query.fitResponse(response, response.length));
+        assertFalse((response[2] & 0x02) != 0);
+        // Check a larger response is truncated to its header and question
+        response = newMessage(40, 0, 1232);
+        int length = query.fitResponse(response, response.length);
+        assertEquals(newMessage(0, 0, -1).length, length);
+        assertTrue((response[2] & 0x02) != 0);
+        assertEquals(1, response[5]);
+        assertEquals(0, response[7]);
+        assertEquals(0, response[11]);
+    }
+
+    @Test
+    public void testMatchesQuestion() {
+        UpstreamQuery query = newQuery(newMessage(0, 0, 1232));
+        // Check a response to the same question matches, whatever its name case
+        byte[] response = newMessage(2, 0x1234, -1);
+        assertTrue(query.matchesQuestion(response, response.length));
+        response[13] = 'E';
+        assertTrue(query.matchesQuestion(response, response.length));
+        // Check a response to another name does not match
+        response[14] = 'y';
+        assertFalse(query.matchesQuestion(response, response.length));
+        // Check a response to another type does not match
+        response = newMessage(2, 0x1234, -1);
+        response[26] = 28;
+        assertFalse(query.matchesQuestion(response, response.length));
+        // Check a response without question does not match
+        response = newMessage(0, 0x1234, -1);
+        assertFalse(query.matchesQuestion(response, 12));
+    }
+
+    private static UpstreamQuery newQuery(byte[] payload) {
+        return new UpstreamQuery(new byte[28], new DatagramPacket(payload, payload.length));
+    }
+
+    /**
+     * Create a DNS message for {@code example.com} with A records and an optional OPT record.
+     *
+     * @param answerCount The number of A records.
+     * @param id          The transaction ID.
+     * @param udpSize     The OPT record UDP payload size, {@code -1} for no OPT record.
+     * @return The DNS message.
+     */
+    private static byte[] newMessage(int answerCount, int id, int udpSize) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writeShort(output, id);
+        writeShort(output, answerCount > 0 ? 0x8180 : 0x0100);
+        writeShort(output, 1);
+        writeShort(output, answerCount);
+        writeShort(output, 0);
+        writeShort(output, udpSize < 0 ? 0 : 1);
+        byte[] name = {7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0};
+        output.write(name, 0, name.length);
+        writeShort(output, 1);
+        writeShort(output, 1);
+        for (int i = 0; i < answerCount; i++) {
+            // Compressed name pointing to the question, type A, class IN, TTL, address
+            writeShort(output, 0xC00C);
+            writeShort(output, 1);
+            writeShort(output, 1);
+            writeShort(output, 0);
+            writeShort(output, 300);
+            writeShort(output, 4);
+            output.write(new byte[]{10, 0, 0, (byte) i}, 0, 4);
+        }
+        if (udpSize >= 0) {
+            output.write(0);
+            writeShort(output, 41);
+            writeShort(output, udpSize);
+            writeShort(output, 0);
+            writeShort(output, 0);
+            writeShort(output, 0);
+        }
+        return output.toByteArray();
+    }
+
+    private static int readOptClass(byte[] message) {
+        int offset = message.length - 8;
+        return (message[offset] & 0xFF) << 8 | message[offset + 1] & 0xFF;
+    }
+
+    private static void writeShort(ByteArrayOutputStream output, int value) {
+        output.write(value >> 8);
+        output.write(value);
+    }
+}
@@ -0,0 +1,15 @@
+package android.database;
+
+/**
+ * This class is a stand-in of the Android character array buffer for benchmarks.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public final class CharArrayBuffer {
+    public char[] data;
+    public int sizeCopied;
+
+    public CharArrayBuffer(int size) {
+        this.data = new char[size];
+    }
+}
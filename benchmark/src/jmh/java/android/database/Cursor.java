@@ -0,0 +1,23 @@
+package android.database;
+
+import java.io.Closeable;
+
+/**
+ * This interface is a stand-in of the Android database cursor for benchmarks.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public interface Cursor extends Closeable {
+    int getColumnIndexOrThrow(String columnName);
+
+    boolean moveToNext();
+
+    int getInt(int columnIndex);
+
+    String getString(int columnIndex);
+
+    void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer);
+
+    @Override
+    void close();
+}
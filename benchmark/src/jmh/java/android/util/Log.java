@@ -0,0 +1,60 @@
+package android.util;
+
+/**
+ * This class is a stand-in of the Android logger for benchmarks.<br>
+ * It only prints warnings and errors.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public final class Log {
+    private Log() {
+    }
+
+    public static int v(String tag, String msg) {
+        return 0;
+    }
+
+    public static int v(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return print(tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return print(tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return print(tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return print(tag, msg, tr);
+    }
+
+    private static int print(String tag, String msg, Throwable tr) {
+        System.err.println(tag + ": " + msg);
+        if (tr != null) {
+            tr.printStackTrace();
+        }
+        return 0;
+    }
+}
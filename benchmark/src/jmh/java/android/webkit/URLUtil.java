@@ -0,0 +1,19 @@
+package android.webkit;
+
+/**
+ * This class is a stand-in of the Android URL utilities for benchmarks.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public final class URLUtil {
+    private URLUtil() {
+    }
+
+    public static boolean isHttpsUrl(String url) {
+        return url != null && url.regionMatches(true, 0, "https://", 0, 8);
+    }
+
+    public static boolean isContentUrl(String url) {
+        return url != null && url.regionMatches(true, 0, "content://", 0, 10);
+    }
+}
@@ -0,0 +1,19 @@
+package androidx.lifecycle;
+
+/**
+ * This class is a stand-in of the Android observable data holder for benchmarks.
+ *
+ * @param <T> The type of held data.
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public abstract class LiveData<T> {
+    private volatile T value;
+
+    public T getValue() {
+        return this.value;
+    }
+
+    protected void setValue(T value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,127 @@
+package org.adaway.benchmark;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+
+/**
+ * This class is an in-memory SQLite database with the application schema for benchmarks.<br>
+ * The table definitions come from the latest exported Room schema and the triggers from the database migrations.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class BenchmarkDatabase implements AutoCloseable {
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS `hosts_sources` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `label` TEXT NOT NULL, `url` TEXT NOT NULL, `enabled` INTEGER NOT NULL, `allowEnabled` INTEGER NOT NULL, `redirectEnabled` INTEGER NOT NULL, `last_modified_local` INTEGER, `last_modified_online` INTEGER, `size` INTEGER NOT NULL, `entity_tag` TEXT, `last_modified_header` TEXT)",
+            "CREATE UNIQUE INDEX IF NOT EXISTS `index_hosts_sources_url` ON `hosts_sources` (`url`)",
+            "CREATE TABLE IF NOT EXISTS `hosts` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `name` TEXT NOT NULL)",
+            "CREATE UNIQUE INDEX IF NOT EXISTS `index_hosts_name` ON `hosts` (`name`)",
+            "CREATE TABLE IF NOT EXISTS `hosts_lists` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `host_id` INTEGER NOT NULL, `type` INTEGER NOT NULL, `enabled` INTEGER NOT NULL, `redirection` TEXT, `source_id` INTEGER NOT NULL, FOREIGN KEY(`host_id`) REFERENCES `hosts`(`id`) ON UPDATE NO ACTION ON DELETE NO ACTION , FOREIGN KEY(`source_id`) REFERENCES `hosts_sources`(`id`) ON UPDATE CASCADE ON DELETE CASCADE )",
+            "CREATE INDEX IF NOT EXISTS `index_hosts_lists_host_id` ON `hosts_lists` (`host_id`)",
+            "CREATE INDEX IF NOT EXISTS `index_hosts_lists_source_id` ON `hosts_lists` (`source_id`)",
+            "CREATE TABLE IF NOT EXISTS `host_entries` (`host` TEXT NOT NULL, `type` INTEGER NOT NULL, `redirection` TEXT, PRIMARY KEY(`host`))",
+            "CREATE UNIQUE INDEX IF NOT EXISTS `index_host_entries_host` ON `host_entries` (`host`)",
+            "CREATE TABLE IF NOT EXISTS `dirty_hosts` (`host_id` INTEGER NOT NULL, PRIMARY KEY(`host_id`))",
+            "CREATE TRIGGER IF NOT EXISTS `hosts_lists_dirty_insert` AFTER INSERT ON `hosts_lists` " +
+                    "BEGIN INSERT OR IGNORE INTO `dirty_hosts` (`host_id`) VALUES (NEW.`host_id`); END",
+            "CREATE TRIGGER IF NOT EXISTS `hosts_lists_dirty_delete` AFTER DELETE ON `hosts_lists` " +
+                    "BEGIN INSERT OR IGNORE INTO `dirty_hosts` (`host_id`) VALUES (OLD.`host_id`); END",
+            "CREATE TRIGGER IF NOT EXISTS `hosts_lists_dirty_update` AFTER UPDATE ON `hosts_lists` " +
+                    "WHEN OLD.`host_id` != NEW.`host_id` OR OLD.`type` != NEW.`type` OR OLD.`enabled` != NEW.`enabled` " +
+                    "OR OLD.`redirection` IS NOT NEW.`redirection` " +
+                    "BEGIN INSERT OR IGNORE INTO `dirty_hosts` (`host_id`) VALUES (OLD.`host_id`); " +
+                    "INSERT OR IGNORE INTO `dirty_hosts` (`host_id`) VALUES (NEW.`host_id`); END"
+    };
+    private final Connection connection;
+
+    /**
+     * Constructor.
+     *
+     * @throws SQLException If the database could not be created.
+     */
+    public BenchmarkDatabase() throws SQLException {
+        this.connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try (Statement statement = this.connection.createStatement()) {
+            for (String sql : SCHEMA) {
+                statement.execute(sql);
+            }
+            statement.execute("INSERT INTO `hosts_sources` VALUES (1, 'User', 'content://org.adaway/user/hosts', 1, 1, 1, NULL, NULL, 0, NULL, NULL)");
+            statement.execute("INSERT INTO `hosts_sources` VALUES (2, 'Source', 'https://example.com/hosts', 1, 0, 0, NULL, NULL, 0, NULL, NULL)");
+        }
+    }
+
+    public Connection getConnection() {
+        return this.connection;
+    }
+
+    /**
+     * Fill the hosts lists with blocked hosts from a source and allowed and redirected hosts from user.
+     *
+     * @param blockedCount The number of blocked hosts.
+     * @param seed         The random generator seed.
+     * @throws SQLException If the hosts lists could not be filled.
+     */
+    public void fillHostsLists(int blockedCount, long seed) throws SQLException {
+        Random random = new Random(seed);
+        this.connection.setAutoCommit(false);
+        try (PreparedStatement hostStatement = this.connection.prepareStatement(
+                "INSERT OR IGNORE INTO `hosts` (`name`) VALUES (?)");
+             PreparedStatement statement = this.connection.prepareStatement(
+                     "INSERT INTO `hosts_lists` (`host_id`, `type`, `enabled`, `redirection`, `source_id`) VALUES ((SELECT `id` FROM `hosts` WHERE `name` = ?), ?, 1, ?, ?)")) {
+            String[] hosts = new String[blockedCount];
+            for (int i = 0; i < blockedCount; i++) {
+                hosts[i] = HostsFileGenerator.randomHost(random, i);
+                insert(hostStatement, statement, hosts[i], 0, null, 2);
+            }
+            // Allow 1% of blocked hosts, a tenth by wildcard
+            for (int i = 0; i < blockedCount / 100; i++) {
+                String host = hosts[random.nextInt(blockedCount)];
+                insert(hostStatement, statement, i % 10 == 0 ? "*" + host.substring(host.indexOf('.')) : host, 1, null, 1);
+            }
+            // Redirect 1% of blocked hosts
+            for (int i = 0; i < blockedCount / 100; i++) {
+                insert(hostStatement, statement, hosts[random.nextInt(blockedCount)], 2, "192.168.0." + (i % 256), 1);
+            }
+            statement.executeBatch();
+            this.connection.commit();
+        } finally {
+            this.connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Toggle the enabled state of a part of the hosts lists items.
+     *
+     * @param modulo    The modulo of the identifiers of the items to toggle.
+     * @param remainder The remainder of the identifiers of the items to toggle.
+     * @throws SQLException If the items could not be updated.
+     */
+    public void toggleItems(int modulo, int remainder) throws SQLException {
+        try (PreparedStatement statement = this.connection.prepareStatement(
+                "UPDATE `hosts_lists` SET `enabled` = 1 - `enabled` WHERE `id` % ? = ?")) {
+            statement.setInt(1, modulo);
+            statement.setInt(2, remainder);
+            statement.executeUpdate();
+        }
+    }
+
+    private static void insert(PreparedStatement hostStatement, PreparedStatement statement, String host, int type,
+                               String redirection, int sourceId) throws SQLException {
+        // Insert host name first as items are inserted by batch
+        hostStatement.setString(1, host);
+        hostStatement.executeUpdate();
+        statement.setString(1, host);
+        statement.setInt(2, type);
+        statement.setString(3, redirection);
+        statement.setInt(4, sourceId);
+        statement.addBatch();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        this.connection.close();
+    }
+}
@@ -0,0 +1,167 @@
+package org.adaway.benchmark;
+
+import android.database.Cursor;
+
+import androidx.lifecycle.LiveData;
+import androidx.paging.DataSource;
+
+import org.adaway.db.HostListItemInserter;
+import org.adaway.db.dao.HostListItemDao;
+import org.adaway.db.entity.HostListItem;
+import org.adaway.db.entity.ListType;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * This class is a stand-in of {@link HostListItemDao} and {@link HostListItemInserter} for benchmarks.<br>
+ * It only counts the inserted and deleted items so the benchmarks measure the parsing cost alone.
+ * Stored items can be set to benchmark source refreshes.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class CountingHostListItemDao implements HostListItemDao, HostListItemInserter {
+    private List<HostListItem> storedItems = Collections.emptyList();
+    private List<HostListItem> recordedItems;
+    private int insertedCount;
+    private int deletedCount;
+
+    /**
+     * Set the items stored for any source.
+     *
+     * @param storedItems The stored items.
+     */
+    public void setStoredItems(List<HostListItem> storedItems) {
+        this.storedItems = storedItems;
+    }
+
+    /**
+     * Record the inserted items.
+     *
+     * @param recordedItems The list to add the inserted items to, {@code null} to stop recording.
+     */
+    public void setRecordedItems(List<HostListItem> recordedItems) {
+        this.recordedItems = recordedItems;
+    }
+
+    public int getInsertedCount() {
+        return this.insertedCount;
+    }
+
+    public int getDeletedCount() {
+        return this.deletedCount;
+    }
+
+    public void reset() {
+        this.insertedCount = 0;
+        this.deletedCount = 0;
+    }
+
+    @Override
+    public void insertHost(String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void insertRecord(int id, String host, ListType type, boolean enabled, String redirection, int sourceId) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void updateRecord(int id, String host, ListType type, boolean enabled, String redirection, int sourceId) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void insert(HostListItem item) {
+        this.insertedCount++;
+        if (this.recordedItems != null) {
+            this.recordedItems.add(item);
+        }
+    }
+
+    @Override
+    public void insert(HostListItem... items) {
+        insert(Arrays.asList(items));
+    }
+
+    @Override
+    public void insert(List<HostListItem> items) {
+        this.insertedCount += items.size();
+        if (this.recordedItems != null) {
+            this.recordedItems.addAll(items);
+        }
+    }
+
+    @Override
+    public void update(HostListItem item) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void delete(HostListItem item) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void deleteUserFromHost(String host) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public DataSource.Factory<Integer, HostListItem> loadList(int type, boolean includeSources, String query) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<HostListItem> getAll() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<HostListItem> getUserList() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Cursor getEnabledItems() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Optional<Integer> getHostId(String host) {
+        return Optional.empty();
+    }
+
+    @Override
+    public LiveData<Integer> getBlockedHostCount() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LiveData<Integer> getAllowedHostCount() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LiveData<Integer> getRedirectHostCount() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clearSourceHosts(int sourceId) {
+        // Nothing to clear
+    }
+
+    @Override
+    public Cursor getSourceItems(int sourceId) {
+        return new ItemCursor(this.storedItems);
+    }
+
+    @Override
+    public void deleteIds(List<Integer> ids) {
+        this.deletedCount += ids.size();
+    }
+}
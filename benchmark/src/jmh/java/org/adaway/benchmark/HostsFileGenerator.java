@@ -0,0 +1,86 @@
+package org.adaway.benchmark;
+
+import java.util.Random;
+
+/**
+ * This class generates synthetic hosts files for benchmarks.<br>
+ * Generated files mimic the online hosts sources: a comment header, blocked host names with some
+ * comments, blank lines, CRLF line ends, redirections, wildcards and invalid entries.
+ * The generation is seeded so each run benchmarks the same content.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public final class HostsFileGenerator {
+    private static final String[] TOP_LEVEL_DOMAINS = {"com", "net", "org", "io", "fr", "co.uk", "info", "biz"};
+    private static final String[] LABELS = {
+            "ads", "ad", "track", "tracker", "analytics", "metrics", "stats", "pixel", "beacon", "cdn",
+            "static", "media", "banner", "click", "counter", "log", "telemetry", "promo", "sync", "tag"
+    };
+    private static final char[] LETTERS = "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+
+    private HostsFileGenerator() {
+    }
+
+    /**
+     * Generate the content of a hosts file.
+     *
+     * @param lineCount The number of lines to generate.
+     * @param seed      The random generator seed.
+     * @return The generated hosts file content.
+     */
+    public static String generate(int lineCount, long seed) {
+        Random random = new Random(seed);
+        StringBuilder builder = new StringBuilder(lineCount * 36);
+        builder.append("# Synthetic hosts file for benchmarks\n")
+                .append("# Lines: ").append(lineCount).append('\n')
+                .append("127.0.0.1 localhost\n")
+                .append("::1 localhost\n")
+                .append('\n');
+        for (int line = 5; line < lineCount; line++) {
+            int kind = random.nextInt(100);
+            if (kind < 2) {
+                builder.append("# Section ").append(line);
+            } else if (kind < 3) {
+                // Empty line
+            } else if (kind < 4) {
+                builder.append("0.0.0.0 invalid_host-.").append(randomLabel(random));
+            } else if (kind < 5) {
+                builder.append("10.0.").append(random.nextInt(256)).append('.').append(random.nextInt(256))
+                        .append(' ').append(randomHost(random, line));
+            } else if (kind < 6) {
+                builder.append("0.0.0.0 *.").append(randomHost(random, line));
+            } else {
+                builder.append(kind < 70 ? "0.0.0.0" : kind < 95 ? "127.0.0.1" : "::1")
+                        .append(kind % 3 == 0 ? '\t' : ' ')
+                        .append(randomHost(random, line));
+                if (kind % 10 == 0) {
+                    builder.append(" # comment");
+                }
+            }
+            builder.append(kind % 7 == 0 ? "\r\n" : "\n");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Generate a random host name.
+     *
+     * @param random The random generator.
+     * @param index  An index to make the host name unique.
+     * @return The generated host name.
+     */
+    public static String randomHost(Random random, int index) {
+        return LABELS[random.nextInt(LABELS.length)] + index + "." +
+                randomLabel(random) + "." +
+                TOP_LEVEL_DOMAINS[random.nextInt(TOP_LEVEL_DOMAINS.length)];
+    }
+
+    private static String randomLabel(Random random) {
+        int length = 3 + random.nextInt(10);
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = LETTERS[random.nextInt(i == 0 ? 26 : LETTERS.length)];
+        }
+        return new String(chars);
+    }
+}
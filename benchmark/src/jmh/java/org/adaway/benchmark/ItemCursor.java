@@ -0,0 +1,81 @@
+package org.adaway.benchmark;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import org.adaway.db.entity.HostListItem;
+
+import java.util.List;
+
+/**
+ * This class is a {@link Cursor} stand-in over {@link HostListItem} for benchmarks.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class ItemCursor implements Cursor {
+    private static final String[] COLUMNS = {"id", "host", "type", "redirection"};
+    private final List<HostListItem> items;
+    private int position;
+
+    /**
+     * Constructor.
+     *
+     * @param items The items to iterate over.
+     */
+    public ItemCursor(List<HostListItem> items) {
+        this.items = items;
+        this.position = -1;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(columnName)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Column " + columnName + " does not exist.");
+    }
+
+    @Override
+    public boolean moveToNext() {
+        this.position++;
+        return this.position < this.items.size();
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        HostListItem item = this.items.get(this.position);
+        switch (columnIndex) {
+            case 0:
+                return item.getId();
+            case 2:
+                return item.getType().getValue();
+            default:
+                throw new IllegalArgumentException("Column " + COLUMNS[columnIndex] + " is not an integer.");
+        }
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        HostListItem item = this.items.get(this.position);
+        switch (columnIndex) {
+            case 1:
+                return item.getHost();
+            case 3:
+                return item.getRedirection();
+            default:
+                throw new IllegalArgumentException("Column " + COLUMNS[columnIndex] + " is not a string.");
+        }
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        ResultSetCursor.copyString(getString(columnIndex), buffer);
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+}
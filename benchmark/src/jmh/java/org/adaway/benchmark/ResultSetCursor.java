@@ -0,0 +1,100 @@
+package org.adaway.benchmark;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * This class is a {@link Cursor} stand-in over a JDBC {@link ResultSet} for benchmarks.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class ResultSetCursor implements Cursor {
+    private final Statement statement;
+    private final ResultSet resultSet;
+
+    /**
+     * Constructor.
+     *
+     * @param statement The statement of the result set, closed with the cursor.
+     * @param resultSet The result set to iterate over.
+     */
+    public ResultSetCursor(Statement statement, ResultSet resultSet) {
+        this.statement = statement;
+        this.resultSet = resultSet;
+    }
+
+    /**
+     * Copy a string into a character array buffer like Android cursors do.
+     *
+     * @param value  The string to copy.
+     * @param buffer The buffer to copy the string into.
+     */
+    static void copyString(String value, CharArrayBuffer buffer) {
+        if (value == null) {
+            buffer.sizeCopied = 0;
+            return;
+        }
+        int length = value.length();
+        if (buffer.data == null || buffer.data.length < length) {
+            buffer.data = value.toCharArray();
+        } else {
+            value.getChars(0, length, buffer.data, 0);
+        }
+        buffer.sizeCopied = length;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        try {
+            return this.resultSet.findColumn(columnName) - 1;
+        } catch (SQLException exception) {
+            throw new IllegalArgumentException("Column " + columnName + " does not exist.", exception);
+        }
+    }
+
+    @Override
+    public boolean moveToNext() {
+        try {
+            return this.resultSet.next();
+        } catch (SQLException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        try {
+            return this.resultSet.getInt(columnIndex + 1);
+        } catch (SQLException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        try {
+            return this.resultSet.getString(columnIndex + 1);
+        } catch (SQLException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        copyString(getString(columnIndex), buffer);
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.resultSet.close();
+            this.statement.close();
+        } catch (SQLException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.adaway.benchmark;
+
+import android.database.Cursor;
+
+import org.adaway.db.dao.HostEntryDao;
+import org.adaway.db.entity.HostEntry;
+import org.adaway.db.entity.HostListItem;
+import org.adaway.db.entity.ListType;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is a stand-in of the Room generated {@link HostEntryDao} implementation for benchmarks.<br>
+ * It runs the same queries as the DAO annotations against a {@link BenchmarkDatabase}
+ * so the {@link HostEntryDao} synchronization default methods are benchmarked as is.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class SqliteHostEntryDao implements HostEntryDao {
+    private final Connection connection;
+
+    /**
+     * Constructor.
+     *
+     * @param database The database to run queries against.
+     */
+    public SqliteHostEntryDao(BenchmarkDatabase database) {
+        this.connection = database.getConnection();
+    }
+
+    @Override
+    public void clear() {
+        update("DELETE FROM `host_entries`");
+    }
+
+    @Override
+    public void importBlocked() {
+        update("INSERT INTO `host_entries` SELECT `name`, `type`, `redirection` FROM (SELECT DISTINCT `host_id`, `type`, `redirection` FROM `hosts_lists` WHERE `type` = 0 AND `enabled` = 1) INNER JOIN `hosts` ON `hosts`.`id` = `host_id`");
+    }
+
+    @Override
+    public List<String> getEnabledAllowedHosts() {
+        try (PreparedStatement statement = this.connection.prepareStatement(
+                "SELECT name FROM hosts_lists INNER JOIN hosts ON hosts.id = host_id WHERE type = 1 AND enabled = 1");
+             ResultSet resultSet = statement.executeQuery()) {
+            List<String> hosts = new ArrayList<>();
+            while (resultSet.next()) {
+                hosts.add(resultSet.getString(1));
+            }
+            return hosts;
+        } catch (SQLException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    @Override
+    public void allowHost(String hostPattern) {
+        update("DELETE FROM `host_entries` WHERE `host` LIKE ?", hostPattern);
+    }
+
+    @Override
+    public List<HostListItem> getEnabledRedirectedHosts() {
+        try (PreparedStatement statement = this.connection.prepareStatement(
+                "SELECT hosts_lists.id AS id, name AS host, type, enabled, redirection, source_id FROM hosts_lists INNER JOIN hosts ON hosts.id = host_id WHERE type = 2 AND enabled = 1 ORDER BY host_id ASC, source_id DESC, id DESC");
+             ResultSet resultSet = statement.executeQuery()) {
+            List<HostListItem> items = new ArrayList<>();
+            while (resultSet.next()) {
+                HostListItem item = new HostListItem();
+                item.setId(resultSet.getInt("id"));
+                item.setHost(resultSet.getString("host"));
+                item.setType(ListType.fromValue(resultSet.getInt("type")));
+                item.setEnabled(resultSet.getInt("enabled") == 1);
+                item.setRedirection(resultSet.getString("redirection"));
+                item.setSourceId(resultSet.getInt("source_id"));
+                items.add(item);
+            }
+            return items;
+        } catch (SQLException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    @Override
+    public void redirectHost(HostEntry redirection) {
+        update(
+                "INSERT OR REPLACE INTO `host_entries` (`host`, `type`, `redirection`) VALUES (?, ?, ?)",
+                redirection.getHost(),
+                redirection.getType().getValue(),
+                redirection.getRedirection()
+        );
+    }
+
+    @Override
+    public int count() {
+        return queryInt("SELECT COUNT(*) FROM `host_entries`");
+    }
+
+    @Override
+    public int countDirtyHosts() {
+        return queryInt("SELECT COUNT(*) FROM `dirty_hosts`");
+    }
+
+    @Override
+    public List<String> getDirtyWildcardHosts() {
+        try (PreparedStatement statement = this.connection.prepareStatement(
+                "SELECT `name` FROM `dirty_hosts` INNER JOIN `hosts` ON `hosts`.`id` = `host_id` WHERE `name` LIKE '%*%' OR `name` LIKE '%?%'");
+             ResultSet resultSet = statement.executeQuery()) {
+            List<String> hosts = new ArrayList<>();
+            while (resultSet.next()) {
+                hosts.add(resultSet.getString(1));
+            }
+            return hosts;
+        } catch (SQLException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    @Override
+    public void markBlockedHostsDirty(String hostPattern) {
+        update("INSERT OR IGNORE INTO `dirty_hosts` SELECT DISTINCT `host_id` FROM `hosts_lists` WHERE `type` = 0 AND `host_id` IN (SELECT `id` FROM `hosts` WHERE `name` LIKE ?)", hostPattern);
+    }
+
+    @Override
+    public void deleteDirtyEntries() {
+        update("DELETE FROM `host_entries` WHERE `host` IN (SELECT `name` FROM `dirty_hosts` INNER JOIN `hosts` ON `hosts`.`id` = `host_id`)");
+    }
+
+    @Override
+    public void importDirtyBlocked() {
+        update("INSERT INTO `host_entries` SELECT `name`, `type`, `redirection` FROM (SELECT DISTINCT `host_id`, `type`, `redirection` FROM `hosts_lists` WHERE `type` = 0 AND `enabled` = 1 AND `host_id` IN (SELECT `host_id` FROM `dirty_hosts`)) INNER JOIN `hosts` ON `hosts`.`id` = `host_id`");
+    }
+
+    @Override
+    public void allowDirtyHosts() {
+        update("DELETE FROM `host_entries` WHERE `host` IN (SELECT `name` FROM `dirty_hosts` INNER JOIN `hosts` ON `hosts`.`id` = `host_id`) AND EXISTS (SELECT 1 FROM `hosts_lists` INNER JOIN `hosts` ON `hosts`.`id` = `hosts_lists`.`host_id` WHERE `hosts_lists`.`type` = 1 AND `hosts_lists`.`enabled` = 1 AND `host_entries`.`host` LIKE REPLACE(REPLACE(`hosts`.`name`, '*', '%'), '?', '_'))");
+    }
+
+    @Override
+    public void redirectDirtyHosts() {
+        update("INSERT OR REPLACE INTO `host_entries` SELECT `name`, `type`, `redirection` FROM `hosts_lists` AS `item` INNER JOIN `hosts` ON `hosts`.`id` = `item`.`host_id` WHERE `item`.`id` = (SELECT `id` FROM `hosts_lists` WHERE `type` = 2 AND `enabled` = 1 AND `host_id` = `item`.`host_id` ORDER BY `source_id` ASC, `id` ASC LIMIT 1) AND `item`.`host_id` IN (SELECT `host_id` FROM `dirty_hosts`)");
+    }
+
+    @Override
+    public void clearDirtyHosts() {
+        update("DELETE FROM `dirty_hosts`");
+    }
+
+    @Override
+    public void deleteUnusedDirtyHosts() {
+        update("DELETE FROM `hosts` WHERE `id` IN (SELECT `host_id` FROM `dirty_hosts`) AND NOT EXISTS (SELECT 1 FROM `hosts_lists` WHERE `host_id` = `hosts`.`id`)");
+    }
+
+    /**
+     * Synchronize the host entries in a transaction like the Room generated implementation does.
+     */
+    @Override
+    public void sync() {
+        runInTransaction(HostEntryDao.super::sync);
+    }
+
+    /**
+     * Run an action in a transaction.
+     *
+     * @param action The action to run.
+     */
+    public void runInTransaction(Runnable action) {
+        try {
+            this.connection.setAutoCommit(false);
+            try {
+                action.run();
+                this.connection.commit();
+            } catch (RuntimeException exception) {
+                this.connection.rollback();
+                throw exception;
+            } finally {
+                this.connection.setAutoCommit(true);
+            }
+        } catch (SQLException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    @Override
+    public List<HostEntry> getAll() {
+        return queryEntries("SELECT * FROM `host_entries` ORDER BY `host`");
+    }
+
+    @Override
+    public Cursor getAllAsCursor() {
+        try {
+            PreparedStatement statement = this.connection.prepareStatement("SELECT * FROM `host_entries` ORDER BY `host`");
+            return new ResultSetCursor(statement, statement.executeQuery());
+        } catch (SQLException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    @Override
+    public ListType getTypeOfHost(String host) {
+        HostEntry entry = getEntry(host);
+        return entry == null ? null : entry.getType();
+    }
+
+    @Override
+    public ListType getTypeForHost(String host) {
+        HostEntry entry = getEntry(host);
+        return entry == null ? ListType.ALLOWED : entry.getType();
+    }
+
+    @Override
+    public HostEntry getEntry(String host) {
+        List<HostEntry> entries = queryEntries("SELECT * FROM `host_entries` WHERE `host` == ? LIMIT 1", host);
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    private int queryInt(String sql) {
+        try (PreparedStatement statement = this.connection.prepareStatement(sql);
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        } catch (SQLException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private void update(String sql, Object... arguments) {
+        try (PreparedStatement statement = this.connection.prepareStatement(sql)) {
+            bind(statement, arguments);
+            statement.executeUpdate();
+        } catch (SQLException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private List<HostEntry> queryEntries(String sql, Object... arguments) {
+        try (PreparedStatement statement = this.connection.prepareStatement(sql)) {
+            bind(statement, arguments);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                List<HostEntry> entries = new ArrayList<>();
+                while (resultSet.next()) {
+                    HostEntry entry = new HostEntry();
+                    entry.setHost(resultSet.getString("host"));
+                    entry.setType(ListType.fromValue(resultSet.getInt("type")));
+                    entry.setRedirection(resultSet.getString("redirection"));
+                    entries.add(entry);
+                }
+                return entries;
+            }
+        } catch (SQLException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private static void bind(PreparedStatement statement, Object... arguments) throws SQLException {
+        for (int i = 0; i < arguments.length; i++) {
+            statement.setObject(i + 1, arguments[i]);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.adaway.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * This class is a local DNS over TLS stand-in server for benchmarks.<br>
+ * It answers each query as soon as it is read by echoing it as a response.
+ * Its self-signed certificate for {@code localhost} is generated by the JDK {@code keytool} on start.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public final class TlsStandInServer implements Closeable {
+    /**
+     * The server name of the certificate.
+     */
+    public static final String SERVER_NAME = "localhost";
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+    private final KeyStore keyStore;
+    private final SSLServerSocket serverSocket;
+
+    /**
+     * Constructor.
+     *
+     * @throws IOException              If the server could not be started.
+     * @throws GeneralSecurityException If the server certificate could not be loaded.
+     */
+    public TlsStandInServer() throws IOException, GeneralSecurityException {
+        this.keyStore = generateKeyStore();
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(this.keyStore, PASSWORD);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), null, null);
+        this.serverSocket = (SSLServerSocket) context.getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(this::serve, "TlsStandInServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Get the server address.
+     *
+     * @return The server address.
+     */
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) this.serverSocket.getLocalSocketAddress();
+    }
+
+    /**
+     * Create a client TLS context trusting the server certificate.<br>
+     * Each context has its own session cache.
+     *
+     * @return A new client TLS context.
+     * @throws GeneralSecurityException If the context could not be created.
+     */
+    public SSLContext createClientContext() throws GeneralSecurityException {
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(this.keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagerFactory.getTrustManagers(), null);
+        return context;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.serverSocket.close();
+    }
+
+    private void serve() {
+        try {
+            while (true) {
+                Socket socket = this.serverSocket.accept();
+                Thread thread = new Thread(() -> answer(socket), "TlsStandInConnection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException ignored) {
+            // Server socket closed
+        }
+    }
+
+    private static void answer(Socket socket) {
+        try (Socket connection = socket) {
+            connection.setTcpNoDelay(true);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            while (true) {
+                byte[] query = new byte[input.readUnsignedShort()];
+                input.readFully(query);
+                if (query.length > 2) {
+                    query[2] |= 0x80;
+                }
+                output.writeShort(query.length);
+                output.write(query);
+                // Answer all the read queries at once
+                if (input.available() == 0) {
+                    output.flush();
+                }
+            }
+        } catch (IOException ignored) {
+            // Connection closed
+        }
+    }
+
+    private static KeyStore generateKeyStore() throws IOException, GeneralSecurityException {
+        File file = File.createTempFile("standin", ".p12");
+        if (!file.delete()) {
+            throw new IOException("Failed to prepare key store file " + file + ".");
+        }
+        try {
+            String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+            Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "standin",
+                    "-keyalg", "EC", "-dname", "CN=" + SERVER_NAME, "-ext", "SAN=dns:" + SERVER_NAME,
+                    "-validity", "1", "-storetype", "PKCS12", "-keystore", file.getPath(),
+                    "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+                    .redirectErrorStream(true)
+                    .start();
+            if (process.waitFor() != 0) {
+                throw new IOException("Failed to generate stand-in server certificate.");
+            }
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            try (InputStream inputStream = new FileInputStream(file)) {
+                keyStore.load(inputStream, PASSWORD);
+            }
+            return keyStore;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating stand-in server certificate.", e);
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
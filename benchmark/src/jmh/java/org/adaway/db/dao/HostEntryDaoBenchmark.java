@@ -0,0 +1,64 @@
+package org.adaway.db.dao;
+
+import org.adaway.benchmark.BenchmarkDatabase;
+import org.adaway.benchmark.SqliteHostEntryDao;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class benchmarks the {@link HostEntryDao} host entries synchronizations:
+ * the full rebuild and the incremental update after 1% of the hosts lists items changed.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HostEntryDaoBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    private int blockedCount;
+    private BenchmarkDatabase database;
+    private SqliteHostEntryDao hostEntryDao;
+    private int changeIndex;
+
+    @Setup
+    public void setUp() throws SQLException {
+        this.database = new BenchmarkDatabase();
+        this.database.fillHostsLists(this.blockedCount, 42);
+        this.hostEntryDao = new SqliteHostEntryDao(this.database);
+        this.hostEntryDao.sync();
+        this.changeIndex = 0;
+    }
+
+    @Setup(Level.Invocation)
+    public void changeItems() throws SQLException {
+        this.database.toggleItems(100, this.changeIndex++ % 100);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        this.database.close();
+    }
+
+    @Benchmark
+    public void fullSync() {
+        this.hostEntryDao.runInTransaction(this.hostEntryDao::fullSync);
+        this.hostEntryDao.clearDirtyHosts();
+    }
+
+    @Benchmark
+    public void incrementalSync() {
+        this.hostEntryDao.sync();
+    }
+}
@@ -0,0 +1,67 @@
+package org.adaway.model.root;
+
+import android.database.Cursor;
+
+import org.adaway.benchmark.BenchmarkDatabase;
+import org.adaway.benchmark.SqliteHostEntryDao;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class benchmarks the {@link HostsFileWriter} hosts file generation from the host entries.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HostsFileWriterBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    private int blockedCount;
+    @Param({"false", "true"})
+    private boolean enableIpv6;
+    private BenchmarkDatabase database;
+    private SqliteHostEntryDao hostEntryDao;
+    private File hostsFile;
+
+    @Setup
+    public void setUp() throws SQLException, IOException {
+        this.database = new BenchmarkDatabase();
+        this.database.fillHostsLists(this.blockedCount, 42);
+        this.hostEntryDao = new SqliteHostEntryDao(this.database);
+        this.hostEntryDao.sync();
+        this.hostsFile = File.createTempFile("hosts", ".txt");
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        this.database.close();
+        if (!this.hostsFile.delete()) {
+            this.hostsFile.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public int writeEntries() throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(this.hostsFile);
+             Cursor cursor = this.hostEntryDao.getAllAsCursor()) {
+            HostsFileWriter writer = new HostsFileWriter(outputStream.getChannel());
+            int count = writer.writeEntries(cursor, "0.0.0.0", "::", this.enableIpv6);
+            writer.flush();
+            return count;
+        }
+    }
+}
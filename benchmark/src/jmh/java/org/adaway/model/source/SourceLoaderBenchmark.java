@@ -0,0 +1,94 @@
+package org.adaway.model.source;
+
+import org.adaway.benchmark.CountingHostListItemDao;
+import org.adaway.benchmark.HostsFileGenerator;
+import org.adaway.db.entity.HostListItem;
+import org.adaway.db.entity.HostsSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class benchmarks the {@link SourceLoader} parsing of synthetic hosts files,
+ * either as a new source or as a refresh of a source with 1% of its items changed.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SourceLoaderBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    private int lineCount;
+    @Param({"false", "true"})
+    private boolean redirectEnabled;
+    private String content;
+    private HostsSource source;
+    private CountingHostListItemDao hostListItemDao;
+    private CountingHostListItemDao refreshHostListItemDao;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.content = HostsFileGenerator.generate(this.lineCount, 42);
+        this.source = new HostsSource();
+        this.source.setId(2);
+        this.source.setLabel("Benchmark");
+        this.source.setUrl("https://example.com/hosts");
+        this.source.setRedirectEnabled(this.redirectEnabled);
+        this.hostListItemDao = new CountingHostListItemDao();
+        // Store the parsed items with 1% of them changed
+        List<HostListItem> parsedItems = new ArrayList<>();
+        this.hostListItemDao.setRecordedItems(parsedItems);
+        parse();
+        this.hostListItemDao.setRecordedItems(null);
+        List<HostListItem> storedItems = new ArrayList<>(parsedItems.size());
+        for (int i = 0; i < parsedItems.size(); i++) {
+            HostListItem item = parsedItems.get(i);
+            if (i % 100 == 0) {
+                item = copy(item);
+                item.setHost("stale." + item.getHost());
+            }
+            item.setId(i + 1);
+            storedItems.add(item);
+        }
+        this.refreshHostListItemDao = new CountingHostListItemDao();
+        this.refreshHostListItemDao.setStoredItems(storedItems);
+    }
+
+    private static HostListItem copy(HostListItem item) {
+        HostListItem copy = new HostListItem();
+        copy.setHost(item.getHost());
+        copy.setType(item.getType());
+        copy.setEnabled(item.isEnabled());
+        copy.setRedirection(item.getRedirection());
+        copy.setSourceId(item.getSourceId());
+        return copy;
+    }
+
+    @Benchmark
+    public int parse() throws IOException {
+        this.hostListItemDao.reset();
+        SourceLoader loader = new SourceLoader(this.source);
+        loader.parse(new StringReader(this.content), this.hostListItemDao, this.hostListItemDao);
+        return this.hostListItemDao.getInsertedCount();
+    }
+
+    @Benchmark
+    public int refresh() throws IOException {
+        this.refreshHostListItemDao.reset();
+        SourceLoader loader = new SourceLoader(this.source);
+        loader.parse(new StringReader(this.content), this.refreshHostListItemDao, this.refreshHostListItemDao);
+        return this.refreshHostListItemDao.getInsertedCount() + this.refreshHostListItemDao.getDeletedCount();
+    }
+}
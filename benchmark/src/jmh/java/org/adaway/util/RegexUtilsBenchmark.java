@@ -0,0 +1,94 @@
+package org.adaway.util;
+
+import org.adaway.benchmark.HostsFileGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class benchmarks the {@link RegexUtils} host name and IP validations.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RegexUtilsBenchmark {
+    private static final int HOST_COUNT = 10000;
+    private String[] hosts;
+    private String[] ips;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        this.hosts = new String[HOST_COUNT];
+        this.ips = new String[HOST_COUNT];
+        for (int i = 0; i < HOST_COUNT; i++) {
+            String host = HostsFileGenerator.randomHost(random, i);
+            switch (i % 20) {
+                case 0:
+                    host = "*." + host;
+                    break;
+                case 1:
+                    host = host.replace('.', '?');
+                    break;
+                case 2:
+                    host = "-" + host;
+                    break;
+                case 3:
+                    host = host + "..";
+                    break;
+                default:
+                    break;
+            }
+            this.hosts[i] = host;
+            this.ips[i] = i % 2 == 0 ?
+                    "10." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256) :
+                    "fd00::" + Integer.toHexString(random.nextInt(0xFFFF));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HOST_COUNT)
+    public int isValidHostname() {
+        int valid = 0;
+        for (String host : this.hosts) {
+            if (RegexUtils.isValidHostname(host)) {
+                valid++;
+            }
+        }
+        return valid;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HOST_COUNT)
+    public int isValidWildcardHostname() {
+        int valid = 0;
+        for (String host : this.hosts) {
+            if (RegexUtils.isValidWildcardHostname(host)) {
+                valid++;
+            }
+        }
+        return valid;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HOST_COUNT)
+    public int isValidIP() {
+        int valid = 0;
+        for (String ip : this.ips) {
+            if (RegexUtils.isValidIP(ip)) {
+                valid++;
+            }
+        }
+        return valid;
+    }
+}
@@ -0,0 +1,111 @@
+package org.adaway.vpn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class benchmarks building the responses of blocked and redirected queries,
+ * from the parsed DNS message as the generic handler does, or from precomputed response templates.<br>
+ * The GC profiler of the benchmark configuration reports their allocations per query.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DnsResponseBenchmark {
+    private static final int HEADERS_LENGTH = 28;
+    private static final String REDIRECTION = "192.168.1.1";
+    private byte[] packet;
+    private SOARecord soaRecord;
+    private DnsQueryPacket queryPacket;
+    private DnsResponseTemplate blockedTemplate;
+    private DnsResponseTemplate redirectedTemplate;
+
+    @Setup
+    public void setUp() throws IOException {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString("ads.example.com."), Type.A, DClass.IN));
+        query.addRecord(new OPTRecord(4096, 0, 0), Section.ADDITIONAL);
+        byte[] payload = query.toWire();
+        // Build the IPv4 and UDP headers from a client to the VPN DNS server
+        this.packet = new byte[HEADERS_LENGTH + payload.length];
+        this.packet[0] = 0x45;
+        UdpResponseBuilder.writeShort(this.packet, 2, this.packet.length);
+        this.packet[8] = 64;
+        this.packet[9] = UdpResponseBuilder.UDP_PROTOCOL;
+        System.arraycopy(new byte[]{10, 0, 0, 2, (byte) 192, 0, 2, 2}, 0, this.packet, 12, 8);
+        UdpResponseBuilder.writeShort(this.packet, 20, 49152);
+        UdpResponseBuilder.writeShort(this.packet, 22, 53);
+        UdpResponseBuilder.writeShort(this.packet, 24, UdpResponseBuilder.UDP_HEADER_LENGTH + payload.length);
+        System.arraycopy(payload, 0, this.packet, HEADERS_LENGTH, payload.length);
+        Name name = new Name("adaway.vpn.invalid.");
+        this.soaRecord = new SOARecord(name, DClass.IN, 5, name, name, 0, 0, 0, 0, 5);
+        this.queryPacket = new DnsQueryPacket();
+        this.blockedTemplate = DnsResponseTemplate.blocked(this.soaRecord.toWire(Section.AUTHORITY));
+        this.redirectedTemplate = DnsResponseTemplate.redirected(InetAddress.getByName(REDIRECTION).getAddress());
+    }
+
+    @Benchmark
+    public byte[] messageBlockedResponse() throws IOException {
+        Message message = parseMessage();
+        message.getHeader().setFlag(Flags.QR);
+        message.getHeader().setRcode(Rcode.NOERROR);
+        message.addRecord(this.soaRecord, Section.AUTHORITY);
+        return buildResponse(message);
+    }
+
+    @Benchmark
+    public byte[] templateBlockedResponse() {
+        this.queryPacket.parse(this.packet, this.packet.length);
+        return this.queryPacket.createResponse(this.blockedTemplate);
+    }
+
+    @Benchmark
+    public byte[] messageRedirectedResponse() throws IOException {
+        Message message = parseMessage();
+        message.getHeader().setFlag(Flags.QR);
+        message.getHeader().setFlag(Flags.AA);
+        message.getHeader().unsetFlag(Flags.RD);
+        message.getHeader().setRcode(Rcode.NOERROR);
+        InetAddress address = InetAddress.getByName(REDIRECTION);
+        message.addRecord(new ARecord(message.getQuestion().getName(), DClass.IN, 5, address), Section.ANSWER);
+        return buildResponse(message);
+    }
+
+    @Benchmark
+    public byte[] templateRedirectedResponse() {
+        this.queryPacket.parse(this.packet, this.packet.length);
+        return this.queryPacket.createResponse(this.redirectedTemplate);
+    }
+
+    private Message parseMessage() throws IOException {
+        return new Message(Arrays.copyOfRange(this.packet, HEADERS_LENGTH, this.packet.length));
+    }
+
+    private byte[] buildResponse(Message message) {
+        byte[] headers = Arrays.copyOf(this.packet, HEADERS_LENGTH);
+        byte[] payload = message.toWire();
+        return UdpResponseBuilder.build(headers, HEADERS_LENGTH, payload, 0, payload.length);
+    }
+}
@@ -0,0 +1,103 @@
+package org.adaway.vpn;
+
+import org.adaway.benchmark.TlsStandInServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * This class benchmarks the per-query overhead of DNS over TLS against a local stand-in server,
+ * once the connections are warmed up: queries on the persistent connection one at a time or pipelined,
+ * and a new connection per query with a resumed TLS session or with a full handshake.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StreamUpstreamTransportBenchmark {
+    private static final int PIPELINED_QUERY_COUNT = 64;
+    private static final byte[] REQUEST_HEADERS = new byte[28];
+    private static final byte[] QUERY = {
+            0x12, 0x34, 0x01, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+            0x07, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 0x03, 'c', 'o', 'm', 0x00, 0x00, 0x01, 0x00, 0x01
+    };
+    private TlsStandInServer server;
+    private InetSocketAddress serverAddress;
+    private UpstreamSelector selector;
+    private SSLSocketFactory sslSocketFactory;
+    private Semaphore responses;
+    private StreamUpstreamTransport transport;
+
+    @Setup
+    public void setUp() throws IOException, GeneralSecurityException {
+        this.server = new TlsStandInServer();
+        this.serverAddress = this.server.getAddress();
+        this.selector = new UpstreamSelector();
+        this.sslSocketFactory = this.server.createClientContext().getSocketFactory();
+        this.responses = new Semaphore(0);
+        this.transport = createTransport(this.sslSocketFactory);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.transport.close();
+        this.server.close();
+    }
+
+    @Benchmark
+    public void persistentConnection() throws IOException, InterruptedException {
+        query(this.transport, 1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINED_QUERY_COUNT)
+    public void pipelinedQueries() throws IOException, InterruptedException {
+        query(this.transport, PIPELINED_QUERY_COUNT);
+    }
+
+    @Benchmark
+    public void resumedConnectionPerQuery() throws IOException, InterruptedException {
+        try (StreamUpstreamTransport transport = createTransport(this.sslSocketFactory)) {
+            query(transport, 1);
+        }
+    }
+
+    @Benchmark
+    public void fullHandshakePerQuery() throws IOException, InterruptedException, GeneralSecurityException {
+        SSLSocketFactory sslSocketFactory = this.server.createClientContext().getSocketFactory();
+        try (StreamUpstreamTransport transport = createTransport(sslSocketFactory)) {
+            query(transport, 1);
+        }
+    }
+
+    private StreamUpstreamTransport createTransport(SSLSocketFactory sslSocketFactory) {
+        return new StreamUpstreamTransport(this.selector, SocketFactory.getDefault(), sslSocketFactory,
+                TlsStandInServer.SERVER_NAME, (requestHeaders, response, length) -> this.responses.release());
+    }
+
+    private void query(StreamUpstreamTransport transport, int count) throws IOException, InterruptedException {
+        for (int i = 0; i < count; i++) {
+            transport.send(this.serverAddress, new UpstreamQuery(REQUEST_HEADERS, new DatagramPacket(QUERY, QUERY.length)));
+        }
+        if (!this.responses.tryAcquire(count, 5, TimeUnit.SECONDS)) {
+            throw new IOException("Missing responses from stand-in server.");
+        }
+    }
+}